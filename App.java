@@ -9,6 +9,7 @@ import java.util.TimeZone;
 
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.engine.Module;
+import org.mitre.synthea.engine.PopulationShard;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.Utilities;
 
@@ -23,7 +24,7 @@ public class App {
   public static void usage() {
     System.out.println("Usage: run_synthea [options] [state [city]]");
     System.out.println("Options: [-s seed] [-cs clinicianSeed] [-p populationSize]");
-    System.out.println("         [-ps singlePersonSeed]");
+    System.out.println("         [-ps singlePersonSeed] [-pi singlePersonIndex]");
     System.out.println("         [-r referenceDate as YYYYMMDD]");
     System.out.println("         [-e endDate as YYYYMMDD]");
     System.out.println("         [-g gender] [-a minAge-maxAge]");
@@ -35,6 +36,7 @@ public class App {
     System.out.println("         [-t updateTimePeriodInDays]");
     System.out.println("         [-f fixedRecordPath]");
     System.out.println("         [-k keepMatchingPatientsPath]");
+    System.out.println("         [--shard shardIndex/shardCount] [--resume]");
     System.out.println("         [--config*=value]");
     System.out.println("          * any setting from src/main/resources/synthea.properties");
     System.out.println("Examples:");
@@ -43,9 +45,11 @@ public class App {
     System.out.println("run_synthea -s 12345");
     System.out.println("run_synthea -p 1000");
     System.out.println("run_synthea -s 987 Washington Seattle");
+    System.out.println("run_synthea -s 987 -pi 9000000 --generate.indexed_seeds=true");
     System.out.println("run_synthea -s 21 -p 100 Utah \"Salt Lake City\"");
     System.out.println("run_synthea -g M -a 60-65");
     System.out.println("run_synthea -p 10 --exporter.fhir.export=true");
+    System.out.println("run_synthea -s 21 -p 1000000 --shard 2/8");
     System.out.println("run_synthea --exporter.baseDirectory=\"./output_tx/\" Texas");
   }
 
@@ -78,6 +82,9 @@ public class App {
           } else if (currArg.equalsIgnoreCase("-ps")) {
             String value = argsQ.poll();
             options.singlePersonSeed = Long.valueOf(value);
+          } else if (currArg.equalsIgnoreCase("-pi")) {
+            String value = argsQ.poll();
+            options.singlePersonIndex = Integer.valueOf(value);
           } else if (currArg.equalsIgnoreCase("-r")) {
             String value = argsQ.poll();
             // note that Y = "week year" and y = "year" per the formatting guidelines
@@ -199,6 +206,11 @@ public class App {
               throw new FileNotFoundException(String.format(
                   "Specified keep-patients file (%s) does not exist", value));
             }
+          } else if (currArg.equalsIgnoreCase("--shard")) {
+            String value = argsQ.poll();
+            options.shard = PopulationShard.parse(value);
+          } else if (currArg.equalsIgnoreCase("--resume")) {
+            options.resume = true;
           } else if (currArg.startsWith("--")) {
             String configSetting;
             String value;
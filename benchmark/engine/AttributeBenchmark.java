@@ -0,0 +1,151 @@
+package org.mitre.synthea.engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.mitre.synthea.engine.AttributeRegistry.Key;
+import org.mitre.synthea.modules.EncounterModule;
+
+/**
+ * Compares person attributes kept in a ConcurrentHashMap and read with keys built on every
+ * call, the way the engine used to, against an {@link AttributeMap} read and written by the
+ * slots registered when modules are loaded. Measures lookups, counter increments and the heap
+ * retained per person.
+ * Usage: AttributeBenchmark [operations]
+ */
+public class AttributeBenchmark {
+  private static final int MODULES = 100;
+  private static final int PEOPLE = 2000;
+
+  /**
+   * Run the benchmark.
+   * @param args Optional number of timed operations (default 20000000).
+   */
+  public static void main(String[] args) {
+    int operations = args.length > 0 ? Integer.parseInt(args[0]) : 20000000;
+    String[] names = new String[MODULES];
+    Key[] wellnessKeys = new Key[MODULES];
+    Key[] counterKeys = new Key[MODULES];
+    for (int i = 0; i < MODULES; i++) {
+      names[i] = new String("Module " + i);
+      wellnessKeys[i] =
+          AttributeRegistry.register(EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + names[i]);
+      counterKeys[i] = AttributeRegistry.register("counter " + i);
+    }
+    Map<String, Object> hashed = person(new ConcurrentHashMap<String, Object>(), wellnessKeys,
+        counterKeys);
+    AttributeMap slotted = (AttributeMap) person(new AttributeMap(), wellnessKeys, counterKeys);
+
+    // warm up every path before timing any
+    for (int i = 0; i < 3; i++) {
+      hashedLookups(hashed, names, operations / 10);
+      slottedLookups(slotted, wellnessKeys, operations / 10);
+      hashedCounters(hashed, counterKeys, operations / 10);
+      slottedCounters(slotted, counterKeys, operations / 10);
+    }
+    long start = System.nanoTime();
+    long hashedFound = hashedLookups(hashed, names, operations);
+    long hashedLookupNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    long slottedFound = slottedLookups(slotted, wellnessKeys, operations);
+    long slottedLookupNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    hashedCounters(hashed, counterKeys, operations);
+    long hashedCounterNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    slottedCounters(slotted, counterKeys, operations);
+    long slottedCounterNanos = System.nanoTime() - start;
+
+    System.out.printf("%d attributes per person\n", hashed.size());
+    System.out.printf("lookup, ConcurrentHashMap, key built per call: %.1f ns\n",
+        hashedLookupNanos / (double) operations);
+    System.out.printf("lookup, AttributeMap slot:                     %.1f ns\n",
+        slottedLookupNanos / (double) operations);
+    System.out.printf("counter, ConcurrentHashMap, boxed:             %.1f ns\n",
+        hashedCounterNanos / (double) operations);
+    System.out.printf("counter, AttributeMap, unboxed:                %.1f ns\n",
+        slottedCounterNanos / (double) operations);
+    System.out.printf("retained per person, ConcurrentHashMap: %d bytes\n",
+        retained(() -> person(new ConcurrentHashMap<String, Object>(), wellnessKeys,
+            counterKeys)));
+    System.out.printf("retained per person, AttributeMap:      %d bytes\n",
+        retained(() -> person(new AttributeMap(), wellnessKeys, counterKeys)));
+    if (hashedFound != slottedFound || !hashed.equals(slotted)) {
+      System.out.println("ERROR: the maps hold different attributes");
+      System.exit(1);
+    }
+  }
+
+  /** A person with an active wellness flag, a history and a counter per module. */
+  private static Map<String, Object> person(Map<String, Object> attributes, Key[] wellnessKeys,
+      Key[] counterKeys) {
+    for (int i = 0; i < MODULES; i++) {
+      AttributeMap.put(attributes, wellnessKeys[i], false);
+      attributes.put("Module " + i, i);
+      AttributeMap.put(attributes, counterKeys[i], (double) i);
+    }
+    return attributes;
+  }
+
+  private static long hashedLookups(Map<String, Object> attributes, String[] names,
+      int lookups) {
+    long found = 0;
+    for (int i = 0; i < lookups; i++) {
+      String key = EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + names[i % MODULES];
+      if (attributes.containsKey(key)) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  private static long slottedLookups(AttributeMap attributes, Key[] keys, int lookups) {
+    long found = 0;
+    for (int i = 0; i < lookups; i++) {
+      if (attributes.get(keys[i % MODULES]) != null) {
+        found++;
+      }
+    }
+    return found;
+  }
+
+  private static void hashedCounters(Map<String, Object> attributes, Key[] keys,
+      int increments) {
+    for (int i = 0; i < increments; i++) {
+      String name = keys[i % MODULES].name;
+      attributes.put(name, ((Double) attributes.get(name)) + (i % 2 == 0 ? 1 : -1));
+    }
+  }
+
+  private static void slottedCounters(AttributeMap attributes, Key[] keys, int increments) {
+    for (int i = 0; i < increments; i++) {
+      Key key = keys[i % MODULES];
+      attributes.putDouble(key, attributes.getDouble(key) + (i % 2 == 0 ? 1 : -1));
+    }
+  }
+
+  /** The heap retained by one attributes map, averaged over many people. */
+  private static long retained(Supplier<Map<String, Object>> people) {
+    Object[] population = new Object[PEOPLE];
+    long before = usedHeap();
+    for (int i = 0; i < PEOPLE; i++) {
+      population[i] = people.get();
+    }
+    long after = usedHeap();
+    if (population[PEOPLE - 1] == null) {
+      throw new IllegalStateException();
+    }
+    return (after - before) / PEOPLE;
+  }
+
+  private static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return memory.getHeapMemoryUsage().getUsed();
+  }
+}
@@ -0,0 +1,79 @@
+package org.mitre.synthea.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Compares interpreted and compiled Distributions (see {@link Distribution#compile()}) of each
+ * kind. Reports samples per second for both paths and checks that they generate the same
+ * values for the same seed.
+ * Usage: DistributionBenchmark [samples]
+ */
+public class DistributionBenchmark {
+  private static final String[] DISTRIBUTIONS = {
+    "{\"kind\": \"EXACT\", \"parameters\": {\"value\": 7}}",
+    "{\"kind\": \"UNIFORM\", \"round\": true, \"parameters\": {\"low\": 1, \"high\": 30}}",
+    "{\"kind\": \"GAUSSIAN\", \"parameters\": {\"mean\": 120, \"standardDeviation\": 15}}",
+    "{\"kind\": \"GAUSSIAN\", \"parameters\": {\"mean\": 5.5, \"standardDeviation\": 1.2,"
+        + " \"min\": 4, \"max\": 9}}",
+    "{\"kind\": \"EXPONENTIAL\", \"parameters\": {\"mean\": 14}}"
+  };
+
+  /**
+   * Run the benchmark.
+   * @param args Optional number of timed samples from each distribution (default 5000000).
+   */
+  public static void main(String[] args) {
+    int samples = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+    List<Distribution> interpreted = new ArrayList<Distribution>();
+    List<Distribution> compiled = new ArrayList<Distribution>();
+    for (String json : DISTRIBUTIONS) {
+      interpreted.add(Utilities.getGson().fromJson(json, Distribution.class));
+      Distribution distribution = Utilities.getGson().fromJson(json, Distribution.class);
+      if (!distribution.compile()) {
+        throw new IllegalStateException("Invalid distribution " + json);
+      }
+      compiled.add(distribution);
+    }
+
+    // warm up both paths before timing either
+    for (int i = 0; i < 3; i++) {
+      run(interpreted, samples / 10);
+      run(compiled, samples / 10);
+    }
+    System.out.printf("%-12s %12s %12s\n", "kind", "interpreted", "compiled");
+    for (int i = 0; i < DISTRIBUTIONS.length; i++) {
+      long start = System.nanoTime();
+      double interpretedResult = run(interpreted.subList(i, i + 1), samples);
+      long interpretedNanos = System.nanoTime() - start;
+      start = System.nanoTime();
+      double compiledResult = run(compiled.subList(i, i + 1), samples);
+      long compiledNanos = System.nanoTime() - start;
+      System.out.printf("%-12s %10.1fM/s %10.1fM/s\n", interpreted.get(i).kind,
+          samples * 1e3 / interpretedNanos, samples * 1e3 / compiledNanos);
+      if (Double.doubleToLongBits(interpretedResult) != Double.doubleToLongBits(compiledResult)) {
+        System.out.println("ERROR: compiled " + interpreted.get(i).kind
+            + " distribution generated different values");
+        System.exit(1);
+      }
+    }
+  }
+
+  /**
+   * Sample every distribution with a person of the same seed.
+   * @return the sum of the values
+   */
+  private static double run(List<Distribution> distributions, int samples) {
+    Person person = new Person(0);
+    double sum = 0;
+    for (int i = 0; i < samples; i++) {
+      for (Distribution distribution : distributions) {
+        sum += distribution.generate(person);
+      }
+    }
+    return sum;
+  }
+}
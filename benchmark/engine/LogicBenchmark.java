@@ -0,0 +1,113 @@
+package org.mitre.synthea.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Compares interpreted and compiled Logic (see {@link Logic#compile()}) on a set of
+ * conditions typical of the modules, tested against synthetic people at many timesteps.
+ * Reports nanoseconds per test for both paths and checks that they agree.
+ * Usage: LogicBenchmark [iterations]
+ */
+public class LogicBenchmark {
+  private static final String[] CONDITIONS = {
+    "{\"condition_type\": \"Age\", \"operator\": \">=\", \"quantity\": 18, \"unit\": \"years\"}",
+    "{\"condition_type\": \"Gender\", \"gender\": \"F\"}",
+    "{\"condition_type\": \"Attribute\", \"attribute\": \"bmi\", \"operator\": \">\","
+        + " \"value\": 30}",
+    "{\"condition_type\": \"Attribute\", \"attribute\": \"diabetes\", \"operator\": \"is nil\"}",
+    "{\"condition_type\": \"Date\", \"operator\": \">\", \"date\": {\"year\": 2010, \"month\": 3,"
+        + " \"day\": 1, \"hour\": 0, \"minute\": 0, \"second\": 0, \"millisecond\": 0}}",
+    "{\"condition_type\": \"And\", \"conditions\": ["
+        + "{\"condition_type\": \"Age\", \"operator\": \"<\", \"quantity\": 65,"
+        + " \"unit\": \"years\"},"
+        + "{\"condition_type\": \"Or\", \"conditions\": ["
+        + "{\"condition_type\": \"Attribute\", \"attribute\": \"smoker\", \"operator\": \"==\","
+        + " \"value\": true},"
+        + "{\"condition_type\": \"Not\", \"condition\": {\"condition_type\": \"Gender\","
+        + " \"gender\": \"M\"}}]}]}",
+    "{\"condition_type\": \"At Least\", \"minimum\": 2, \"conditions\": ["
+        + "{\"condition_type\": \"Age\", \"operator\": \">\", \"quantity\": 40,"
+        + " \"unit\": \"years\"},"
+        + "{\"condition_type\": \"Attribute\", \"attribute\": \"bmi\", \"operator\": \">=\","
+        + " \"value\": 25},"
+        + "{\"condition_type\": \"Date\", \"operator\": \">=\", \"year\": 2000}]}"
+  };
+  private static final int PEOPLE = 100;
+  private static final long WEEK = Utilities.convertTime("weeks", 1);
+
+  /**
+   * Run the benchmark.
+   * @param args Optional number of timed iterations over all people (default 20).
+   */
+  public static void main(String[] args) {
+    int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    List<Logic> interpreted = new ArrayList<Logic>();
+    List<Logic> compiled = new ArrayList<Logic>();
+    for (String json : CONDITIONS) {
+      interpreted.add(Utilities.getGson().fromJson(json, Logic.class));
+      Logic logic = Utilities.getGson().fromJson(json, Logic.class);
+      logic.compile();
+      compiled.add(logic);
+    }
+    List<Person> people = new ArrayList<Person>();
+    long start = Utilities.convertCalendarYearsToTime(1960);
+    for (int i = 0; i < PEOPLE; i++) {
+      Person person = new Person(i);
+      person.attributes.put(Person.BIRTHDATE, start + person.randInt(40) * 52 * WEEK);
+      person.attributes.put(Person.GENDER, person.randBoolean() ? "F" : "M");
+      person.attributes.put("bmi", person.rand(18.0, 40.0));
+      person.attributes.put("smoker", person.randBoolean());
+      if (person.randBoolean()) {
+        person.attributes.put("diabetes", true);
+      }
+      people.add(person);
+    }
+
+    // warm up both paths before timing either
+    run(interpreted, people, 2);
+    run(compiled, people, 2);
+    long interpretedStart = System.nanoTime();
+    long interpretedResult = run(interpreted, people, iterations);
+    long interpretedNanos = System.nanoTime() - interpretedStart;
+    long compiledStart = System.nanoTime();
+    long compiledResult = run(compiled, people, iterations);
+    long compiledNanos = System.nanoTime() - compiledStart;
+
+    double tests = (double) iterations * PEOPLE * CONDITIONS.length * timesteps();
+    System.out.printf("interpreted: %.1f ns per test\n", interpretedNanos / tests);
+    System.out.printf("compiled:    %.1f ns per test\n", compiledNanos / tests);
+    System.out.printf("speed-up: %.2fx\n", interpretedNanos / (double) compiledNanos);
+    if (interpretedResult != compiledResult) {
+      System.out.println("ERROR: compiled Logic produced different results");
+      System.exit(1);
+    }
+  }
+
+  private static int timesteps() {
+    return 52 * 60;
+  }
+
+  /**
+   * Test every condition against every person at weekly timesteps.
+   * @return a fingerprint of the results
+   */
+  private static long run(List<Logic> conditions, List<Person> people, int iterations) {
+    long fingerprint = 0;
+    long start = Utilities.convertCalendarYearsToTime(1960);
+    for (int i = 0; i < iterations; i++) {
+      for (Person person : people) {
+        for (int step = 0; step < timesteps(); step++) {
+          long time = start + step * WEEK;
+          for (Logic condition : conditions) {
+            fingerprint = 31 * fingerprint + (condition.test(person, time) ? 1 : 0);
+          }
+        }
+      }
+    }
+    return fingerprint;
+  }
+}
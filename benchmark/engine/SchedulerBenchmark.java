@@ -0,0 +1,109 @@
+package org.mitre.synthea.engine;
+
+import java.util.List;
+import java.util.Map;
+
+import org.mitre.synthea.helpers.DefaultRandomNumberGenerator;
+import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord;
+import org.mitre.synthea.world.concepts.HealthRecord.Code;
+import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
+
+/**
+ * Compares the fixed timestep engine with the event driven scheduler
+ * (see "generate.event_scheduling"). The same people are simulated in both modes, nothing is
+ * exported. Reports the simulation time per simulated person-year and checks that both modes
+ * produce the same health records.
+ * Usage: SchedulerBenchmark [population] [seed]
+ */
+public class SchedulerBenchmark {
+  private static final long YEAR = Utilities.convertTime("years", 1);
+
+  /**
+   * Run the benchmark.
+   * @param args Optional population size (default 100) and seed (default 1).
+   */
+  public static void main(String[] args) {
+    int population = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 1L;
+
+    // the first pass loads the modules and warms up the JVM
+    run(false, Math.min(population, 10), seed);
+    long[] fixed = run(false, population, seed);
+    long[] event = run(true, population, seed);
+
+    double personYears = fixed[1] / (double) YEAR;
+    System.out.printf("Simulated %d people, %.0f person-years\n", population, personYears);
+    System.out.printf("fixed timestep: %.3f ms per person-year\n", fixed[0] / 1e6 / personYears);
+    System.out.printf("event driven:   %.3f ms per person-year, %d of %d module steps skipped\n",
+        event[0] / 1e6 / personYears, event[3], event[3] + event[4]);
+    System.out.printf("speed-up: %.2fx\n", fixed[0] / (double) event[0]);
+    if (fixed[2] != event[2]) {
+      System.out.println("ERROR: the event driven scheduler produced different records");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Simulate a population.
+   * @return elapsed nanoseconds, simulated milliseconds, record fingerprint, module steps
+   *     skipped and module steps processed
+   */
+  private static long[] run(boolean eventScheduling, int population, long seed) {
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.population = population;
+    options.seed = seed;
+    options.clinicianSeed = seed;
+    options.eventScheduling = eventScheduling;
+    Generator generator = new Generator(options);
+    DefaultRandomNumberGenerator random = new DefaultRandomNumberGenerator(seed);
+
+    long elapsed = 0;
+    long simulated = 0;
+    long fingerprint = 0;
+    for (int i = 0; i < population; i++) {
+      long personSeed = random.randLong();
+      Map<String, Object> demoAttributes = generator.randomDemographics(new Person(personSeed));
+      long start = System.nanoTime();
+      Person person = generator.createPerson(personSeed, demoAttributes);
+      elapsed += System.nanoTime() - start;
+      simulated += person.lastUpdated - (long) person.attributes.get(Person.BIRTHDATE);
+      fingerprint = 31 * fingerprint + fingerprint(person.record);
+    }
+    return new long[] {elapsed, simulated, fingerprint,
+        generator.moduleStepsSkipped.get(), generator.moduleStepsProcessed.get()};
+  }
+
+  private static long fingerprint(HealthRecord record) {
+    long hash = 0;
+    for (Encounter encounter : record.encounters) {
+      hash = 31 * hash + encounter.start;
+      hash = 31 * hash + encounter.stop;
+      hash = 31 * hash + codes(encounter.codes);
+      hash = 31 * hash + entries(encounter.conditions);
+      hash = 31 * hash + entries(encounter.observations);
+      hash = 31 * hash + entries(encounter.procedures);
+      hash = 31 * hash + entries(encounter.medications);
+      hash = 31 * hash + entries(encounter.immunizations);
+    }
+    return hash;
+  }
+
+  private static long entries(List<? extends HealthRecord.Entry> entries) {
+    long hash = entries.size();
+    for (HealthRecord.Entry entry : entries) {
+      hash = 31 * hash + entry.start;
+      hash = 31 * hash + codes(entry.codes);
+    }
+    return hash;
+  }
+
+  private static long codes(List<Code> codes) {
+    long hash = 0;
+    for (Code code : codes) {
+      hash = 31 * hash + code.code.hashCode();
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,172 @@
+package org.mitre.synthea.export;
+
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks that {@link ExportFormatter} writes the same text as the SimpleDateFormat,
+ * String.format and UUID.toString calls it replaced, then compares the throughput of both
+ * with an increasing number of threads, the way CSV export formats each row.
+ * Usage: ExportFormatterBenchmark [rows per thread] [max threads]
+ */
+public class ExportFormatterBenchmark {
+  private static final int VALUES = 1 << 16;
+  /** 1900-01-01 to 2040-01-01, the span of a simulated population. */
+  private static final long MIN_TIME = -2208988800000L;
+  private static final long MAX_TIME = 2208988800000L;
+
+  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
+  private static final SimpleDateFormat ISO_DATE_FORMAT =
+      new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+  static {
+    ISO_DATE_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  private static long[] times = new long[VALUES];
+  private static BigDecimal[] costs = new BigDecimal[VALUES];
+  private static double[] amounts = new double[VALUES];
+  private static UUID[] uuids = new UUID[VALUES];
+
+  /**
+   * Run the benchmark.
+   * @param args Optional number of rows per thread (default 2000000) and the maximum number
+   *     of threads (default the number of processors).
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int rows = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+    int maxThreads = args.length > 1 ? Integer.parseInt(args[1])
+        : Runtime.getRuntime().availableProcessors();
+    Random random = new Random(0);
+    for (int i = 0; i < VALUES; i++) {
+      times[i] = MIN_TIME + (long) (random.nextDouble() * (MAX_TIME - MIN_TIME));
+      // half cent values are where rounding differences would show
+      costs[i] = BigDecimal.valueOf(random.nextInt(10000000), 3);
+      amounts[i] = random.nextInt(10000000) / 1000.0 * (random.nextBoolean() ? 1 : -1);
+      uuids[i] = new UUID(random.nextLong(), random.nextLong());
+    }
+    verify();
+
+    // warm up both before timing either
+    for (int i = 0; i < 3; i++) {
+      time(1, rows / 10, false);
+      time(1, rows / 10, true);
+    }
+    System.out.println("threads  synchronized (rows/ms)  lock-free (rows/ms)  speed-up");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      double legacy = time(threads, rows, false);
+      double formatter = time(threads, rows, true);
+      System.out.printf("%7d  %22.0f  %19.0f  %7.2fx\n", threads, legacy, formatter,
+          formatter / legacy);
+    }
+  }
+
+  /** Fail if any value is formatted differently than before. */
+  private static void verify() {
+    long[] edges = { 0L, -1L, 1L, MIN_TIME, MAX_TIME, -12212553600000L, -12212553600001L,
+        253402300799999L, 253402300800000L, Long.MIN_VALUE / 2, 1583020800000L };
+    for (long time : edges) {
+      check(DATE_FORMAT.format(new Date(time)), ExportFormatter.date(time));
+      check(ISO_DATE_FORMAT.format(new Date(time)), ExportFormatter.iso8601(time));
+    }
+    double[] specials = { 0.0, -0.0, -0.001, 1.005, 0.125, 2.675, 1e20, Double.NaN,
+        Double.NEGATIVE_INFINITY, 9.995, 123456789.125 };
+    for (double value : specials) {
+      check(String.format(Locale.US, "%.2f", value),
+          ExportFormatter.appendDecimal(new StringBuilder(), value, 2).toString());
+    }
+    for (int i = 0; i < VALUES; i++) {
+      check(DATE_FORMAT.format(new Date(times[i])), ExportFormatter.date(times[i]));
+      check(ISO_DATE_FORMAT.format(new Date(times[i])), ExportFormatter.iso8601(times[i]));
+      check(String.format(Locale.US, "%.2f", costs[i]),
+          ExportFormatter.appendDecimal(new StringBuilder(), costs[i], 2).toString());
+      BigDecimal negative = costs[i].negate();
+      check(String.format(Locale.US, "%.2f", negative),
+          ExportFormatter.appendDecimal(new StringBuilder(), negative, 2).toString());
+      check(String.format(Locale.US, "%.2f", amounts[i]),
+          ExportFormatter.appendDecimal(new StringBuilder(), amounts[i], 2).toString());
+      check(uuids[i].toString(), ExportFormatter.appendUuid(new StringBuilder(),
+          uuids[i]).toString());
+    }
+    System.out.println("Output identical for " + VALUES + " random values in time zone "
+        + TimeZone.getDefault().getID());
+  }
+
+  private static void check(String expected, String actual) {
+    if (!expected.equals(actual)) {
+      throw new IllegalStateException("Expected " + expected + " but was " + actual);
+    }
+  }
+
+  /**
+   * Format rows on several threads at once.
+   * @return the combined throughput in rows per millisecond
+   */
+  private static double time(int threads, int rows, boolean formatter)
+      throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    Thread[] workers = new Thread[threads];
+    long[] lengths = new long[threads];
+    for (int t = 0; t < threads; t++) {
+      int id = t;
+      workers[t] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        lengths[id] = formatter ? formatRows(id, rows) : formatRowsSynchronized(id, rows);
+      });
+      workers[t].start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    long nanos = System.nanoTime() - begin;
+    return threads * (double) rows / (nanos / 1e6);
+  }
+
+  private static long formatRows(int id, int rows) {
+    StringBuilder s = new StringBuilder(128);
+    long length = 0;
+    for (int i = 0; i < rows; i++) {
+      int v = (i + id * 7919) & (VALUES - 1);
+      s.setLength(0);
+      ExportFormatter.appendUuid(s, uuids[v]).append(',');
+      ExportFormatter.appendIso8601(s, times[v]).append(',');
+      ExportFormatter.appendDate(s, times[v]).append(',');
+      ExportFormatter.appendDecimal(s, costs[v], 2).append(',');
+      ExportFormatter.appendDecimal(s, amounts[v], 2);
+      length += s.length();
+    }
+    return length;
+  }
+
+  private static long formatRowsSynchronized(int id, int rows) {
+    StringBuilder s = new StringBuilder(128);
+    long length = 0;
+    for (int i = 0; i < rows; i++) {
+      int v = (i + id * 7919) & (VALUES - 1);
+      s.setLength(0);
+      s.append(uuids[v].toString()).append(',');
+      synchronized (ISO_DATE_FORMAT) {
+        s.append(ISO_DATE_FORMAT.format(new Date(times[v]))).append(',');
+      }
+      synchronized (DATE_FORMAT) {
+        s.append(DATE_FORMAT.format(new Date(times[v]))).append(',');
+      }
+      s.append(String.format(Locale.US, "%.2f", costs[v])).append(',');
+      s.append(String.format(Locale.US, "%.2f", amounts[v]));
+      length += s.length();
+    }
+    return length;
+  }
+}
@@ -0,0 +1,67 @@
+package org.mitre.synthea.export;
+
+import java.util.Map;
+
+import org.mitre.synthea.engine.Generator;
+import org.mitre.synthea.helpers.DefaultRandomNumberGenerator;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Times the conversion of one elderly patient with a large record to R4, STU3 and DSTU2
+ * bundles, the case where looking up providers, practitioners and conditions in the bundle
+ * dominated before the bundles were indexed (see {@link BundleIndex}).
+ * Usage: FhirBundleBenchmark [minimum R4 entries] [repetitions] [seed]
+ */
+public class FhirBundleBenchmark {
+
+  /**
+   * Run the benchmark.
+   * @param args Optional minimum number of R4 bundle entries (default 5000), number of timed
+   *     conversions (default 10) and seed (default 1).
+   */
+  public static void main(String[] args) {
+    int minimumEntries = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+    int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    long seed = args.length > 2 ? Long.parseLong(args[2]) : 1L;
+
+    Generator.GeneratorOptions options = new Generator.GeneratorOptions();
+    options.seed = seed;
+    options.clinicianSeed = seed;
+    options.ageSpecified = true;
+    options.minAge = 85;
+    options.maxAge = 100;
+    Generator generator = new Generator(options);
+    DefaultRandomNumberGenerator random = new DefaultRandomNumberGenerator(seed);
+
+    Person person = null;
+    int entries = 0;
+    for (int attempt = 0; attempt < 100 && entries <= minimumEntries; attempt++) {
+      long personSeed = random.randLong();
+      Map<String, Object> demoAttributes = generator.randomDemographics(new Person(personSeed));
+      person = generator.createPerson(personSeed, demoAttributes);
+      entries = FhirR4.convertToFHIR(person, generator.stop).getEntry().size();
+    }
+    System.out.printf("Patient with %d R4 entries, %d encounters\n", entries,
+        person.record.encounters.size());
+    if (entries <= minimumEntries) {
+      System.out.printf("WARNING: no patient with more than %d entries found\n", minimumEntries);
+    }
+
+    final Person patient = person;
+    final long stop = generator.stop;
+    time("R4", repetitions, () -> FhirR4.convertToFHIR(patient, stop));
+    time("STU3", repetitions, () -> FhirStu3.convertToFHIR(patient, stop));
+    time("DSTU2", repetitions, () -> FhirDstu2.convertToFHIR(patient, stop));
+  }
+
+  private static void time(String version, int repetitions, Runnable conversion) {
+    // warm up before timing
+    conversion.run();
+    long start = System.nanoTime();
+    for (int i = 0; i < repetitions; i++) {
+      conversion.run();
+    }
+    System.out.printf("%-6s %.1f ms per bundle\n", version,
+        (System.nanoTime() - start) / 1e6 / repetitions);
+  }
+}
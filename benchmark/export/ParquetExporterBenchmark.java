@@ -0,0 +1,193 @@
+package org.mitre.synthea.export;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import org.mitre.synthea.export.ParquetWriter.Column;
+import org.mitre.synthea.export.ParquetWriter.ColumnType;
+
+/**
+ * Compares the size and write throughput of CSV and Parquet for the encounters and
+ * observations tables. The rows are generated from a fixed seed with the shape of Synthea
+ * output: UUID keys, a few hundred distinct codes with skewed frequencies, timestamps and
+ * costs. Both formats are written from the same rows, CSV the way CSVExporter formats them.
+ * Usage: ParquetExporterBenchmark [patients] [seed]
+ */
+public class ParquetExporterBenchmark {
+  private static final List<Column> ENCOUNTERS = Arrays.asList(
+      Column.required("Id", ColumnType.STRING),
+      Column.required("START", ColumnType.TIMESTAMP),
+      Column.optional("STOP", ColumnType.TIMESTAMP),
+      Column.required("PATIENT", ColumnType.STRING),
+      Column.optional("ORGANIZATION", ColumnType.STRING),
+      Column.optional("ENCOUNTERCLASS", ColumnType.STRING),
+      Column.required("CODE", ColumnType.STRING),
+      Column.optional("DESCRIPTION", ColumnType.STRING),
+      Column.optional("BASE_ENCOUNTER_COST", ColumnType.DECIMAL),
+      Column.optional("TOTAL_CLAIM_COST", ColumnType.DECIMAL));
+  private static final List<Column> OBSERVATIONS = Arrays.asList(
+      Column.required("DATE", ColumnType.TIMESTAMP),
+      Column.required("PATIENT", ColumnType.STRING),
+      Column.required("ENCOUNTER", ColumnType.STRING),
+      Column.optional("CATEGORY", ColumnType.STRING),
+      Column.required("CODE", ColumnType.STRING),
+      Column.optional("DESCRIPTION", ColumnType.STRING),
+      Column.optional("VALUE", ColumnType.STRING),
+      Column.optional("UNITS", ColumnType.STRING),
+      Column.optional("TYPE", ColumnType.STRING));
+  private static final String[] CLASSES = { "wellness", "ambulatory", "outpatient",
+      "emergency", "inpatient", "urgentcare" };
+  private static final String[] CATEGORIES = { "vital-signs", "laboratory", "survey",
+      "exam" };
+  private static final String[] UNITS = { "mg/dL", "kg", "cm", "mm[Hg]", "/min", "%",
+      "kg/m2", "{score}" };
+
+  /**
+   * Run the benchmark.
+   * @param args Optional number of patients (default 2000) and seed (default 0).
+   */
+  public static void main(String[] args) throws IOException {
+    int patients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    long seed = args.length > 1 ? Long.parseLong(args[1]) : 0;
+    Path directory = Files.createTempDirectory("parquet-benchmark");
+    // warm up
+    run(directory, patients / 10, seed);
+    run(directory, patients, seed);
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+  private static void run(Path directory, int patients, long seed) throws IOException {
+    List<Object[]> encounters = new ArrayList<Object[]>();
+    List<Object[]> observations = new ArrayList<Object[]>();
+    generate(patients, seed, encounters, observations);
+
+    long start = System.nanoTime();
+    Path encountersCsv = directory.resolve("encounters.csv");
+    Path observationsCsv = directory.resolve("observations.csv");
+    writeCsv(encountersCsv, ENCOUNTERS, encounters);
+    writeCsv(observationsCsv, OBSERVATIONS, observations);
+    long csvNanos = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    Path encountersParquet = directory.resolve("encounters.parquet");
+    Path observationsParquet = directory.resolve("observations.parquet");
+    writeParquet(encountersParquet, ENCOUNTERS, encounters, false);
+    writeParquet(observationsParquet, OBSERVATIONS, observations, false);
+    long plainNanos = System.nanoTime() - start;
+    long plainBytes = Files.size(encountersParquet) + Files.size(observationsParquet);
+
+    start = System.nanoTime();
+    writeParquet(encountersParquet, ENCOUNTERS, encounters, true);
+    writeParquet(observationsParquet, OBSERVATIONS, observations, true);
+    long parquetNanos = System.nanoTime() - start;
+
+    long rows = encounters.size() + observations.size();
+    long csvBytes = Files.size(encountersCsv) + Files.size(observationsCsv);
+    long parquetBytes = Files.size(encountersParquet) + Files.size(observationsParquet);
+    System.out.printf("%d patients, %d encounters, %d observations\n", patients,
+        encounters.size(), observations.size());
+    System.out.printf("CSV:     %,12d bytes  %8.0f rows/ms\n", csvBytes,
+        rows / (csvNanos / 1e6));
+    System.out.printf("Parquet: %,12d bytes  %8.0f rows/ms  (%.1f%% of CSV, uncompressed)\n",
+        plainBytes, rows / (plainNanos / 1e6), 100.0 * plainBytes / csvBytes);
+    System.out.printf("Parquet: %,12d bytes  %8.0f rows/ms  (%.1f%% of CSV, gzip)\n",
+        parquetBytes, rows / (parquetNanos / 1e6), 100.0 * parquetBytes / csvBytes);
+  }
+
+  /** Generate a population's worth of rows with a Zipf-like code distribution. */
+  private static void generate(int patients, long seed, List<Object[]> encounters,
+      List<Object[]> observations) {
+    Random random = new Random(seed);
+    String[] organizations = new String[500];
+    for (int i = 0; i < organizations.length; i++) {
+      organizations[i] = new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+    for (int p = 0; p < patients; p++) {
+      String patient = new UUID(random.nextLong(), random.nextLong()).toString();
+      String organization = organizations[random.nextInt(organizations.length)];
+      long time = -1500000000000L + (long) (random.nextDouble() * 1500000000000L);
+      int encounterCount = 5 + random.nextInt(60);
+      for (int e = 0; e < encounterCount; e++) {
+        time += (long) (random.nextDouble() * 90 * 86400000L);
+        String id = new UUID(random.nextLong(), random.nextLong()).toString();
+        int code = skewed(random, 200);
+        BigDecimal cost = BigDecimal.valueOf(5000 + random.nextInt(200000), 2);
+        encounters.add(new Object[] { id, time, time + 900000L, patient, organization,
+            CLASSES[code % CLASSES.length], Integer.toString(185345009 + code),
+            "Encounter for problem " + code, cost,
+            cost.add(BigDecimal.valueOf(random.nextInt(50000), 2)) });
+        int observationCount = random.nextInt(25);
+        for (int o = 0; o < observationCount; o++) {
+          int observation = skewed(random, 400);
+          String value = random.nextInt(10) == 0 ? "Never smoker"
+              : String.format(Locale.US, "%.1f", random.nextGaussian() * 20 + 100);
+          observations.add(new Object[] { time, patient, id,
+              CATEGORIES[observation % CATEGORIES.length], (8000 + observation) + "-" + o % 10,
+              "Observation " + observation, value, UNITS[observation % UNITS.length],
+              value.startsWith("N") ? "text" : "numeric" });
+        }
+      }
+    }
+  }
+
+  private static int skewed(Random random, int size) {
+    return (int) (size * Math.pow(random.nextDouble(), 3));
+  }
+
+  private static void writeCsv(Path file, List<Column> columns, List<Object[]> rows)
+      throws IOException {
+    try (Writer writer = new OutputStreamWriter(Files.newOutputStream(file),
+        StandardCharsets.UTF_8)) {
+      StringBuilder s = new StringBuilder();
+      for (Object[] row : rows) {
+        s.setLength(0);
+        for (int i = 0; i < row.length; i++) {
+          if (i > 0) {
+            s.append(',');
+          }
+          Object value = row[i];
+          if (value == null) {
+            continue;
+          }
+          ColumnType type = columns.get(i).type;
+          if (type == ColumnType.TIMESTAMP) {
+            ExportFormatter.appendIso8601(s, (Long) value);
+          } else if (type == ColumnType.DECIMAL) {
+            ExportFormatter.appendDecimal(s, (BigDecimal) value, 2);
+          } else {
+            s.append(value);
+          }
+        }
+        s.append(System.lineSeparator());
+        writer.append(s);
+      }
+    }
+  }
+
+  private static void writeParquet(Path file, List<Column> columns, List<Object[]> rows,
+      boolean gzip) throws IOException {
+    try (ParquetWriter writer = new ParquetWriter(file, columns, 64L * 1024 * 1024, gzip)) {
+      // one block per 50 rows, roughly a patient
+      for (int i = 0; i < rows.size(); i += 50) {
+        writer.writeRows(rows.subList(i, Math.min(rows.size(), i + 50)));
+      }
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package org.mitre.synthea.helpers;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares selection from a RandomCollection before and after {@link RandomCollection#freeze()}
+ * and from an {@link AliasRandomCollection}, using the weights of the BFD code maps, and
+ * measures the heap each form retains for those maps. Collections of synthetic weights are used
+ * for any code map that is not available. Checks that frozen collections pick the same objects.
+ * The heap is measured as the growth of the used heap, after garbage collection, while one form
+ * is built. It includes the boxed objects of each collection, and is most stable with a fixed
+ * heap size (e.g. -Xms512m -Xmx512m).
+ * Usage: RandomCollectionBenchmark [draws per collection]
+ */
+public class RandomCollectionBenchmark {
+  private static final String[] CODE_MAPS = {
+    "export/condition_code_map.json", "export/medication_code_map.json",
+    "export/drg_code_map.json", "export/dme_code_map.json", "export/hcpcs_code_map.json",
+    "export/betos_code_map.json", "export/snf_pps_code_map.json",
+    "export/snf_pdpm_code_map.json", "export/snf_rev_cntr_code_map.json",
+    "export/hha_rev_cntr_code_map.json", "export/hospice_rev_cntr_code_map.json",
+    "export/inpatient_rev_cntr_code_map.json", "export/outpatient_rev_cntr_code_map.json"
+  };
+  private static final int[] SYNTHETIC_SIZES = {1, 2, 3, 5, 8, 20, 100, 1000};
+
+  /**
+   * Run the benchmark.
+   * @param args Optional number of draws from each collection (default 10000).
+   */
+  public static void main(String[] args) {
+    int draws = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    List<double[]> weights = loadCodeMapWeights();
+    if (weights.isEmpty()) {
+      System.out.println("No code maps found, using synthetic weights");
+      RandomNumberGenerator random = new DefaultRandomNumberGenerator(0);
+      for (int size : SYNTHETIC_SIZES) {
+        for (int i = 0; i < 100; i++) {
+          double[] collection = new double[size];
+          for (int j = 0; j < size; j++) {
+            collection[j] = 1 + random.randInt(100);
+          }
+          weights.add(collection);
+        }
+      }
+    }
+    long entries = 0;
+    for (double[] collection : weights) {
+      entries += collection.length;
+    }
+    // build one form at a time, so that the heap each of them retains can be measured
+    long used = usedHeap();
+    List<RandomCollection<Integer>> treeMaps = new ArrayList<RandomCollection<Integer>>();
+    for (double[] collection : weights) {
+      treeMaps.add(build(collection));
+    }
+    long treeMapBytes = usedHeap() - used;
+    used += treeMapBytes;
+    List<RandomCollection<Integer>> frozen = new ArrayList<RandomCollection<Integer>>();
+    for (double[] collection : weights) {
+      frozen.add(build(collection).freeze());
+    }
+    long frozenBytes = usedHeap() - used;
+    used += frozenBytes;
+    List<AliasRandomCollection<Integer>> aliases = new ArrayList<AliasRandomCollection<Integer>>();
+    for (double[] collection : weights) {
+      aliases.add(new AliasRandomCollection<Integer>(build(collection)));
+    }
+    long aliasBytes = usedHeap() - used;
+
+    // warm up every form before timing any of them
+    for (int i = 0; i < 3; i++) {
+      run(treeMaps, draws / 10);
+      run(frozen, draws / 10);
+      runAlias(aliases, draws / 10);
+    }
+    long start = System.nanoTime();
+    long treeMapResult = run(treeMaps, draws);
+    long treeMapNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    long frozenResult = run(frozen, draws);
+    long frozenNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    runAlias(aliases, draws);
+    long aliasNanos = System.nanoTime() - start;
+
+    int collections = weights.size();
+    double total = (double) collections * draws;
+    System.out.printf("%d collections, %d entries\n", collections, entries);
+    System.out.printf("TreeMap: %.1f ns per draw, %d KB retained\n", treeMapNanos / total,
+        treeMapBytes / 1024);
+    System.out.printf("frozen:  %.1f ns per draw, %d KB retained\n", frozenNanos / total,
+        frozenBytes / 1024);
+    System.out.printf("alias:   %.1f ns per draw, %d KB retained\n", aliasNanos / total,
+        aliasBytes / 1024);
+    if (treeMapResult != frozenResult) {
+      System.out.println("ERROR: frozen collections picked different objects");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Get the used heap after garbage collection. System.gc() is only a request, so collect until
+   * the used heap stops shrinking.
+   * @return the used heap in bytes
+   */
+  private static long usedHeap() {
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      memory.gc();
+      long after = memory.getHeapMemoryUsage().getUsed();
+      if (after >= used) {
+        return after;
+      }
+      used = after;
+    }
+    return used;
+  }
+
+  private static List<double[]> loadCodeMapWeights() {
+    List<double[]> weights = new ArrayList<double[]>();
+    Type type = new TypeToken<Map<String, List<Map<String, String>>>>() {}.getType();
+    for (String resource : CODE_MAPS) {
+      Map<String, List<Map<String, String>>> codeMap;
+      try {
+        codeMap = new Gson().fromJson(Utilities.readResource(resource), type);
+      } catch (Exception e) {
+        continue;
+      }
+      for (List<Map<String, String>> codes : codeMap.values()) {
+        double[] collection = new double[codes.size()];
+        for (int i = 0; i < collection.length; i++) {
+          String weight = codes.get(i).get("weight");
+          collection[i] = weight == null ? 1.0 : Double.parseDouble(weight);
+        }
+        weights.add(collection);
+      }
+    }
+    return weights;
+  }
+
+  private static RandomCollection<Integer> build(double[] weights) {
+    RandomCollection<Integer> collection = new RandomCollection<Integer>();
+    for (int i = 0; i < weights.length; i++) {
+      collection.add(weights[i], i);
+    }
+    return collection;
+  }
+
+  /**
+   * Draw from every collection with the same seed.
+   * @return a fingerprint of the objects picked
+   */
+  private static long run(List<RandomCollection<Integer>> collections, int draws) {
+    RandomNumberGenerator random = new DefaultRandomNumberGenerator(0);
+    long fingerprint = 0;
+    for (RandomCollection<Integer> collection : collections) {
+      if (collection.size() == 0) {
+        continue;
+      }
+      for (int i = 0; i < draws; i++) {
+        fingerprint = 31 * fingerprint + collection.next(random);
+      }
+    }
+    return fingerprint;
+  }
+
+  private static long runAlias(List<AliasRandomCollection<Integer>> collections, int draws) {
+    RandomNumberGenerator random = new DefaultRandomNumberGenerator(0);
+    long fingerprint = 0;
+    for (AliasRandomCollection<Integer> collection : collections) {
+      if (collection.size() == 0) {
+        continue;
+      }
+      for (int i = 0; i < draws; i++) {
+        fingerprint = 31 * fingerprint + collection.next(random);
+      }
+    }
+    return fingerprint;
+  }
+}
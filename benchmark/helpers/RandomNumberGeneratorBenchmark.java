@@ -0,0 +1,62 @@
+package org.mitre.synthea.helpers;
+
+/**
+ * Compares the draw speed of {@link DefaultRandomNumberGenerator} and
+ * {@link Xoshiro256RandomNumberGenerator} on the mix of calls a person makes.
+ * Usage: RandomNumberGeneratorBenchmark [draws]
+ */
+public class RandomNumberGeneratorBenchmark {
+
+  /**
+   * Run the benchmark.
+   * @param args Optional number of timed draws per generator (default 50000000).
+   */
+  public static void main(String[] args) {
+    int draws = args.length > 0 ? Integer.parseInt(args[0]) : 50000000;
+    // warm up both generators before timing either
+    for (int i = 0; i < 3; i++) {
+      run(new DefaultRandomNumberGenerator(i), draws / 10);
+      run(new Xoshiro256RandomNumberGenerator(i), draws / 10);
+    }
+    long start = System.nanoTime();
+    double defaultResult = run(new DefaultRandomNumberGenerator(0), draws);
+    long defaultNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    double xoshiroResult = run(new Xoshiro256RandomNumberGenerator(0), draws);
+    long xoshiroNanos = System.nanoTime() - start;
+
+    System.out.printf("java.util.Random: %.2f ns per draw (%f)\n",
+        defaultNanos / (double) draws, defaultResult);
+    System.out.printf("xoshiro256**:     %.2f ns per draw (%f)\n",
+        xoshiroNanos / (double) draws, xoshiroResult);
+    System.out.printf("speed-up: %.2fx\n", defaultNanos / (double) xoshiroNanos);
+  }
+
+  /**
+   * Draw mostly doubles, with some of the other kinds of values.
+   * @return a sum of the values, so that the draws are not optimized away
+   */
+  private static double run(RandomNumberGenerator random, int draws) {
+    double sum = 0;
+    for (int i = 0; i < draws; i++) {
+      switch (i & 7) {
+        case 0:
+          sum += random.randInt(100);
+          break;
+        case 1:
+          sum += random.randBoolean() ? 1 : 0;
+          break;
+        case 2:
+          sum += random.randLong() & 0xFF;
+          break;
+        case 3:
+          sum += random.randGaussian();
+          break;
+        default:
+          sum += random.rand();
+          break;
+      }
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,387 @@
+package org.mitre.synthea.engine;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.mitre.synthea.engine.AttributeRegistry.Key;
+
+/**
+ * Person attributes, stored by slot for the names in the {@link AttributeRegistry} and by name
+ * for any other. Double values of registered names are kept in a primitive array, so counters
+ * and other numeric attributes are read and updated without boxing. Through the Map interface
+ * it behaves like any other attributes map, for the exporters and the JSON export.
+ *
+ * <p>Like a HashMap it must not be modified by one thread while another reads it. Null values
+ * are not allowed, as in the ConcurrentHashMap used for attributes before. The static methods
+ * take the attributes of a person as any Map, and only use the slots when it is an
+ * AttributeMap, so engine code works with both.</p>
+ */
+public class AttributeMap extends AbstractMap<String, Object> implements Serializable {
+  private static final long serialVersionUID = 1L;
+  /** Marks a slot whose value is in {@link #doubles}. */
+  private static final Object DOUBLE = new Object();
+
+  /** Values of registered names by slot, null if absent. */
+  private transient Object[] values;
+  /** Double values of registered names by slot, where the value is {@link #DOUBLE}. */
+  private transient double[] doubles;
+  /** Values of names that were never registered. */
+  private transient HashMap<String, Object> others;
+  private transient int slotted;
+  private transient int modCount;
+  /** The number of registered names when {@link #others} was last checked for them. */
+  private transient int registered;
+
+  /**
+   * Create an empty map, with room for every name registered so far.
+   */
+  public AttributeMap() {
+    int capacity = Math.max(16, AttributeRegistry.size());
+    values = new Object[capacity];
+    doubles = new double[capacity];
+    others = new HashMap<String, Object>();
+    registered = AttributeRegistry.size();
+  }
+
+  /**
+   * Move the values of names registered since the last call from {@link #others} to their
+   * slots, so every value of a registered name is found by its slot.
+   */
+  private void adoptRegistered() {
+    int size = AttributeRegistry.size();
+    if (size == registered) {
+      return;
+    }
+    registered = size;
+    Iterator<Map.Entry<String, Object>> iterator = others.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Object> entry = iterator.next();
+      Key key = AttributeRegistry.find(entry.getKey());
+      if (key != null) {
+        iterator.remove();
+        put(key, entry.getValue());
+      }
+    }
+  }
+
+  private void ensureCapacity(int slot) {
+    if (slot >= values.length) {
+      int capacity = Math.max(slot + 1, Math.max(AttributeRegistry.size(), values.length * 2));
+      values = Arrays.copyOf(values, capacity);
+      doubles = Arrays.copyOf(doubles, capacity);
+    }
+  }
+
+  /**
+   * Get the value of an attribute.
+   * @param key The attribute key.
+   * @return the value, or null if it is not set
+   */
+  public Object get(Key key) {
+    adoptRegistered();
+    int slot = key.slot;
+    if (slot >= values.length) {
+      return null;
+    }
+    Object value = values[slot];
+    return value == DOUBLE ? (Object) doubles[slot] : value;
+  }
+
+  /**
+   * Check whether an attribute is set to a Double, which {@link #getDouble} reads unboxed.
+   * @param key The attribute key.
+   * @return true if the value is a Double
+   */
+  public boolean isDouble(Key key) {
+    adoptRegistered();
+    return key.slot < values.length && values[key.slot] == DOUBLE;
+  }
+
+  /**
+   * Get the value of an attribute that is set to a Double, see {@link #isDouble}.
+   * @param key The attribute key.
+   * @return the value
+   * @throws IllegalStateException if the value is not a Double
+   */
+  public double getDouble(Key key) {
+    if (!isDouble(key)) {
+      throw new IllegalStateException("Attribute " + key + " is not a Double");
+    }
+    return doubles[key.slot];
+  }
+
+  /**
+   * Set an attribute to a double, stored unboxed.
+   * @param key The attribute key.
+   * @param value The value, read back as a Double.
+   */
+  public void putDouble(Key key, double value) {
+    adoptRegistered();
+    int slot = key.slot;
+    ensureCapacity(slot);
+    if (values[slot] == null) {
+      slotted++;
+      modCount++;
+    }
+    values[slot] = DOUBLE;
+    doubles[slot] = value;
+  }
+
+  /**
+   * Set an attribute.
+   * @param key The attribute key.
+   * @param value The value, not null.
+   * @return the previous value, or null if it was not set
+   */
+  public Object put(Key key, Object value) {
+    if (value == null) {
+      throw new NullPointerException("Attribute " + key + " can not be set to null");
+    }
+    Object previous = get(key);
+    if (value instanceof Double) {
+      putDouble(key, (Double) value);
+      return previous;
+    }
+    int slot = key.slot;
+    ensureCapacity(slot);
+    if (values[slot] == null) {
+      slotted++;
+      modCount++;
+    }
+    values[slot] = value;
+    return previous;
+  }
+
+  /**
+   * Remove an attribute.
+   * @param key The attribute key.
+   * @return the previous value, or null if it was not set
+   */
+  public Object remove(Key key) {
+    adoptRegistered();
+    Object previous = get(key);
+    if (previous != null) {
+      values[key.slot] = null;
+      slotted--;
+      modCount++;
+    }
+    return previous;
+  }
+
+  @Override
+  public Object get(Object name) {
+    Key key = AttributeRegistry.find(name);
+    return key == null ? others.get(name) : get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object name) {
+    return get(name) != null;
+  }
+
+  @Override
+  public Object put(String name, Object value) {
+    Key key = AttributeRegistry.find(name);
+    if (key != null) {
+      return put(key, value);
+    }
+    if (value == null) {
+      throw new NullPointerException("Attribute " + name + " can not be set to null");
+    }
+    Object previous = others.put(name, value);
+    if (previous == null) {
+      modCount++;
+    }
+    return previous;
+  }
+
+  @Override
+  public Object remove(Object name) {
+    Key key = AttributeRegistry.find(name);
+    if (key != null) {
+      return remove(key);
+    }
+    Object previous = others.remove(name);
+    if (previous != null) {
+      modCount++;
+    }
+    return previous;
+  }
+
+  @Override
+  public int size() {
+    // moving a value between others and a slot does not change the size
+    return slotted + others.size();
+  }
+
+  @Override
+  public void clear() {
+    Arrays.fill(values, null);
+    others.clear();
+    slotted = 0;
+    modCount++;
+  }
+
+  @Override
+  public Set<Map.Entry<String, Object>> entrySet() {
+    return new AbstractSet<Map.Entry<String, Object>>() {
+      @Override
+      public Iterator<Map.Entry<String, Object>> iterator() {
+        adoptRegistered();
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return AttributeMap.this.size();
+      }
+    };
+  }
+
+  /** Visits the registered names by slot, then the others. */
+  private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+    private final Iterator<Map.Entry<String, Object>> othersIterator =
+        others.entrySet().iterator();
+    private int expectedModCount = modCount;
+    private int nextSlot = advance(0);
+    private String lastName;
+    private boolean lastInOthers;
+
+    private int advance(int slot) {
+      while (slot < values.length && values[slot] == null) {
+        slot++;
+      }
+      return slot;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextSlot < values.length || othersIterator.hasNext();
+    }
+
+    @Override
+    public Map.Entry<String, Object> next() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+      if (nextSlot < values.length) {
+        Key key = AttributeRegistry.key(nextSlot);
+        nextSlot = advance(nextSlot + 1);
+        lastName = key.name;
+        lastInOthers = false;
+        return new WriteThroughEntry(key.name, get(key));
+      }
+      if (!othersIterator.hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, Object> entry = othersIterator.next();
+      lastName = entry.getKey();
+      lastInOthers = true;
+      return new WriteThroughEntry(entry.getKey(), entry.getValue());
+    }
+
+    @Override
+    public void remove() {
+      if (lastName == null) {
+        throw new IllegalStateException();
+      }
+      if (lastInOthers) {
+        othersIterator.remove();
+        modCount++;
+      } else {
+        AttributeMap.this.remove(AttributeRegistry.find(lastName));
+      }
+      expectedModCount = modCount;
+      lastName = null;
+    }
+  }
+
+  /** An entry that writes through to the map. */
+  private class WriteThroughEntry extends AbstractMap.SimpleEntry<String, Object> {
+    private static final long serialVersionUID = 1L;
+
+    private WriteThroughEntry(String name, Object value) {
+      super(name, value);
+    }
+
+    @Override
+    public Object setValue(Object value) {
+      put(getKey(), value);
+      return super.setValue(value);
+    }
+  }
+
+  /**
+   * Slots are only valid in this JVM, so attributes are written by name.
+   */
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    out.writeInt(size());
+    for (Map.Entry<String, Object> entry : entrySet()) {
+      out.writeObject(entry.getKey());
+      out.writeObject(entry.getValue());
+    }
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int capacity = Math.max(16, AttributeRegistry.size());
+    values = new Object[capacity];
+    doubles = new double[capacity];
+    others = new HashMap<String, Object>();
+    registered = AttributeRegistry.size();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      put((String) in.readObject(), in.readObject());
+    }
+  }
+
+  /**
+   * Get an attribute of a person.
+   * @param attributes The attributes of the person.
+   * @param key The attribute key.
+   * @return the value, or null if it is not set
+   */
+  public static Object get(Map<String, Object> attributes, Key key) {
+    return attributes instanceof AttributeMap ? ((AttributeMap) attributes).get(key)
+        : attributes.get(key.name);
+  }
+
+  /**
+   * Set an attribute of a person.
+   * @param attributes The attributes of the person.
+   * @param key The attribute key.
+   * @param value The value, not null.
+   */
+  public static void put(Map<String, Object> attributes, Key key, Object value) {
+    if (attributes instanceof AttributeMap) {
+      ((AttributeMap) attributes).put(key, value);
+    } else {
+      attributes.put(key.name, value);
+    }
+  }
+
+  /**
+   * Remove an attribute of a person.
+   * @param attributes The attributes of the person.
+   * @param key The attribute key.
+   */
+  public static void remove(Map<String, Object> attributes, Key key) {
+    if (attributes instanceof AttributeMap) {
+      ((AttributeMap) attributes).remove(key);
+    } else {
+      attributes.remove(key.name);
+    }
+  }
+}
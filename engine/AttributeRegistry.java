@@ -0,0 +1,97 @@
+package org.mitre.synthea.engine;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns the person attribute names that modules read and write an integer slot, when the
+ * module is loaded, so that an {@link AttributeMap} can keep their values in arrays instead of
+ * hashing the name on every access. Slots are assigned for the life of the JVM, in the order the
+ * names are first registered, so they are never written out: a serialized {@link Key} is
+ * registered again by name when it is read.
+ */
+public final class AttributeRegistry {
+  /** The key of each registered name. */
+  private static final Map<String, Key> KEYS = new ConcurrentHashMap<String, Key>();
+  /** The key of each slot. */
+  private static volatile Key[] slots = new Key[0];
+
+  /** An attribute name and its slot. */
+  public static final class Key implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The attribute name, interned. */
+    public final String name;
+    /** The position of the attribute in an AttributeMap, assigned in this JVM only. */
+    final transient int slot;
+
+    private Key(String name, int slot) {
+      this.name = name;
+      this.slot = slot;
+    }
+
+    private Object readResolve() {
+      return register(name);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private AttributeRegistry() {
+  }
+
+  /**
+   * Get the key of an attribute name, assigning it the next slot if it is new.
+   * @param name The attribute name.
+   * @return the key, the same instance for every call with an equal name
+   */
+  public static Key register(String name) {
+    Key key = KEYS.get(name);
+    if (key != null) {
+      return key;
+    }
+    synchronized (AttributeRegistry.class) {
+      key = KEYS.get(name);
+      if (key == null) {
+        Key[] grown = Arrays.copyOf(slots, slots.length + 1);
+        key = new Key(name.intern(), slots.length);
+        grown[key.slot] = key;
+        // a key can only be found once its slot is published
+        slots = grown;
+        KEYS.put(key.name, key);
+      }
+      return key;
+    }
+  }
+
+  /**
+   * Get the key of an attribute name, if it was registered.
+   * @param name The attribute name.
+   * @return the key, or null if the name was never registered
+   */
+  public static Key find(Object name) {
+    return name instanceof String ? KEYS.get(name) : null;
+  }
+
+  /**
+   * Get the key of a slot.
+   * @param slot A slot assigned by {@link #register(String)}.
+   * @return the key
+   */
+  static Key key(int slot) {
+    return slots[slot];
+  }
+
+  /**
+   * Get the number of registered names, one more than the highest slot.
+   * @return the number of slots
+   */
+  public static int size() {
+    return slots.length;
+  }
+}
@@ -0,0 +1,395 @@
+package org.mitre.synthea.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.mitre.synthea.export.Exporter;
+
+/**
+ * An append-only record of the population slots that have been completely exported, so that
+ * a long run can be resumed after a crash.
+ * <p>
+ * A new journal starts with one <code>H,name,value</code> line for every setting that
+ * determines which people are generated, such as the seed and the population size. A run can
+ * only be resumed with the same settings, since the slots would otherwise mix two populations.
+ * </p>
+ * <p>
+ * Each export writes two lines. Before a person is exported:
+ * <code>S,index,patientId</code>. After the export has finished:
+ * <code>E,index,patientId,seed,exported,final</code>, where final is 1 when the person
+ * completes the slot. A slot is complete once its final person has been exported.
+ * </p>
+ * <p>
+ * Start lines are written immediately, before any output for the person can reach disk.
+ * Finish lines are held back until the next checkpoint, which first flushes every buffered
+ * exporter file. A finish line in the journal therefore guarantees that all rows for the
+ * person are on disk.
+ * </p>
+ * <p>
+ * On resume, every person that was started for an incomplete slot is removed from the output,
+ * since the slot will be generated again from the same seed. Rows containing their ids are
+ * truncated from CSV and NDJSON files, and per-patient files named after them are deleted.
+ * </p>
+ */
+public class CompletionJournal {
+  /** Output files that are rewritten in full when the run completes. */
+  private static final Set<String> REGENERATED_FILES = new HashSet<>(Arrays.asList(
+      "Organization.ndjson", "Location.ndjson", "Practitioner.ndjson",
+      "PractitionerRole.ndjson", "Group.ndjson"));
+  /** CSV files that are rewritten in full when the run completes, the header is kept. */
+  private static final Set<String> REGENERATED_TABLES = new HashSet<>(Arrays.asList(
+      "organizations.csv", "providers.csv", "payers.csv"));
+  /** Matches a patient id, which is a random UUID. */
+  private static final Pattern PATIENT_ID = Pattern.compile(
+      "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+  private static final Logger LOGGER = Logger.getLogger(CompletionJournal.class.getName());
+
+  private final Path file;
+  private final Map<String, String> settings;
+  private final BitSet completed = new BitSet();
+  private final List<String> pending = new ArrayList<>();
+  private final int checkpointInterval;
+  private BufferedWriter writer;
+
+  /**
+   * Open a journal, reading any existing entries when resuming.
+   * @param file The journal file.
+   * @param resume Whether to keep and read existing entries, or start a new journal.
+   * @param checkpointInterval Number of finished exports between checkpoints.
+   * @param settings The settings that determine which people are generated, by name. They are
+   *     written at the start of a new journal, and checked by {@link #recover}.
+   * @throws IOException if the journal can not be read or opened.
+   */
+  public CompletionJournal(Path file, boolean resume, int checkpointInterval,
+      Map<String, String> settings) throws IOException {
+    this.file = file;
+    this.checkpointInterval = checkpointInterval;
+    this.settings = new LinkedHashMap<>(settings);
+    Files.createDirectories(file.getParent());
+    boolean empty = true;
+    if (resume && Files.exists(file)) {
+      truncatePartialLine(file);
+      empty = Files.size(file) == 0;
+    } else {
+      Files.deleteIfExists(file);
+    }
+    this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    if (empty) {
+      for (Map.Entry<String, String> setting : this.settings.entrySet()) {
+        write("H," + setting.getKey() + "," + setting.getValue());
+      }
+    }
+  }
+
+  /**
+   * Read the journal and remove everything an incomplete slot left behind in the output.
+   * This must run before any exporter opens its output files.
+   * @param outputDirectory The base output directory.
+   * @param completedPatients Optional consumer of the id of the final patient of every
+   *     completed slot, e.g. to rebuild the FHIR Group.
+   * @throws IOException if the output can not be cleaned up.
+   * @throws IllegalArgumentException if the journal was written with different settings.
+   */
+  public void recover(Path outputDirectory, Consumer<String> completedPatients)
+      throws IOException {
+    Map<String, String> journaled = new LinkedHashMap<>();
+    Map<Integer, List<String>> startedBySlot = new HashMap<>();
+    List<String> completedIds = new ArrayList<>();
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        if (line.startsWith("H,")) {
+          String[] setting = line.split(",", 3);
+          journaled.put(setting[1], setting.length > 2 ? setting[2] : "");
+          continue;
+        }
+        String[] fields = line.split(",");
+        int index = Integer.parseInt(fields[1]);
+        if (fields[0].equals("S")) {
+          startedBySlot.computeIfAbsent(index, k -> new ArrayList<>()).add(fields[2]);
+        } else if (fields[0].equals("E") && fields[4].equals("1") && fields[5].equals("1")) {
+          completed.set(index);
+          completedIds.add(fields[2]);
+        }
+      }
+    }
+    // nothing may be removed from the output before the settings are known to match
+    checkSettings(journaled);
+    if (completedPatients != null) {
+      completedIds.forEach(completedPatients);
+    }
+    Set<String> partial = new HashSet<>();
+    for (Map.Entry<Integer, List<String>> slot : startedBySlot.entrySet()) {
+      if (completed.get(slot.getKey())) {
+        // every export for the slot, including overflow records, is kept
+        continue;
+      }
+      partial.addAll(slot.getValue());
+    }
+    // ids are found in file names and rows with a single scan, and looked up in the set
+    List<String> otherIds = partial.stream()
+        .filter(id -> !PATIENT_ID.matcher(id).matches())
+        .collect(Collectors.toList());
+
+    List<Path> outputs;
+    try (Stream<Path> files = Files.walk(outputDirectory)) {
+      outputs = files.filter(Files::isRegularFile)
+          .filter(p -> !p.equals(file))
+          .filter(p -> !p.getParent().getFileName().toString().equals("metadata"))
+          .collect(Collectors.toList());
+    }
+    for (Path output : outputs) {
+      String name = output.getFileName().toString();
+      if (REGENERATED_FILES.contains(name)) {
+        Files.delete(output);
+      } else if (REGENERATED_TABLES.contains(name)) {
+        truncateAfterHeader(output);
+      } else if (containsAny(name, partial, otherIds)) {
+        Files.delete(output);
+      } else if (!partial.isEmpty() && (name.endsWith(".csv") || name.endsWith(".ndjson"))) {
+        removeLines(output, partial, otherIds);
+      }
+    }
+    System.out.printf("Resuming: %d slots complete, %d partially exported patients removed\n",
+        completed.cardinality(), partial.size());
+  }
+
+  /**
+   * Refuse to resume when the journal was written with different settings.
+   * @param journaled The settings recorded in the journal.
+   */
+  private void checkSettings(Map<String, String> journaled) {
+    if (journaled.isEmpty()) {
+      throw new IllegalArgumentException("Can not resume: " + file
+          + " does not record the settings of the interrupted run");
+    }
+    Set<String> names = new HashSet<>(journaled.keySet());
+    names.addAll(settings.keySet());
+    for (String name : names) {
+      String previous = journaled.get(name);
+      String current = settings.get(name);
+      if (previous == null || !previous.equals(current)) {
+        throw new IllegalArgumentException(String.format("Can not resume: %s was %s in the "
+            + "interrupted run, but is %s now. Resume with the same command line and "
+            + "configuration.", name, previous == null ? "not recorded" : previous,
+            current == null ? "not set" : current));
+      }
+    }
+  }
+
+  /**
+   * Check whether a text contains one of the given patient ids.
+   * @param text A file name or a line of output.
+   * @param ids The ids to look for.
+   * @param otherIds The ids that are not UUIDs, which need a full scan. Normally empty.
+   */
+  private static boolean containsAny(String text, Set<String> ids, List<String> otherIds) {
+    Matcher matcher = PATIENT_ID.matcher(text);
+    while (matcher.find()) {
+      if (ids.contains(matcher.group())) {
+        return true;
+      }
+    }
+    return !otherIds.isEmpty() && otherIds.stream().anyMatch(text::contains);
+  }
+
+  /**
+   * Check whether a slot was completed by a previous run.
+   * @param index The slot index.
+   * @return true if the slot does not need to be generated again
+   */
+  public synchronized boolean isComplete(int index) {
+    return completed.get(index);
+  }
+
+  /**
+   * Count the completed slots in a range of indices.
+   * @param firstIndex First index, inclusive.
+   * @param endIndex Last index, exclusive.
+   * @return the number of completed slots
+   */
+  public synchronized int countComplete(int firstIndex, int endIndex) {
+    return completed.get(firstIndex, endIndex).cardinality();
+  }
+
+  /**
+   * Record that a person is about to be exported.
+   * @param index The slot index.
+   * @param patientId The id of the person.
+   */
+  public synchronized void exportStarted(int index, String patientId) {
+    write("S," + index + "," + patientId);
+  }
+
+  /**
+   * Record that a person has been exported.
+   * @param index The slot index.
+   * @param patientId The id of the person.
+   * @param seed The seed of the person.
+   * @param exported Whether the exporters accepted the person.
+   * @param finalForSlot Whether this person completes the slot.
+   */
+  public synchronized void exportFinished(int index, String patientId, long seed,
+      boolean exported, boolean finalForSlot) {
+    pending.add("E," + index + "," + patientId + "," + seed + "," + (exported ? 1 : 0) + ","
+        + (finalForSlot ? 1 : 0));
+    if (exported && finalForSlot) {
+      completed.set(index);
+    }
+    if (pending.size() >= checkpointInterval) {
+      checkpoint();
+    }
+  }
+
+  /**
+   * Flush all exporter output and then record every finished export since the last checkpoint.
+   */
+  public synchronized void checkpoint() {
+    Exporter.flushOpenFiles();
+    for (String line : pending) {
+      write(line);
+    }
+    pending.clear();
+  }
+
+  private void write(String line) {
+    try {
+      writer.write(line);
+      writer.newLine();
+      // flush every line, rows written after a start line must be traceable to their person
+      writer.flush();
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write completion journal " + file, e);
+    }
+  }
+
+  /**
+   * Write a final checkpoint and close the journal.
+   */
+  public synchronized void close() {
+    checkpoint();
+    try {
+      writer.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Unable to close completion journal " + file, e);
+    }
+  }
+
+  /**
+   * Remove a trailing line that was cut off by a crash.
+   */
+  private static void truncatePartialLine(Path path) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+      long length = raf.length();
+      long end = length;
+      while (end > 0) {
+        raf.seek(end - 1);
+        if (raf.read() == '\n') {
+          break;
+        }
+        end--;
+      }
+      if (end < length) {
+        raf.setLength(end);
+      }
+    }
+  }
+
+  private static void truncateAfterHeader(Path path) throws IOException {
+    long headerEnd = 0;
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+      int b;
+      while ((b = in.read()) != -1) {
+        headerEnd++;
+        if (b == '\n') {
+          break;
+        }
+      }
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+      raf.setLength(headerEnd);
+    }
+  }
+
+  /**
+   * Remove every line containing one of the given ids. The file is truncated at the first
+   * such line and the remaining lines are appended again, so only the tail is rewritten.
+   */
+  private static void removeLines(Path path, Set<String> ids, List<String> otherIds)
+      throws IOException {
+    long truncateAt = -1;
+    Path tail = null;
+    try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+      OutputStream tailOut = null;
+      long offset = 0;
+      byte[] line;
+      while ((line = readLine(in)) != null) {
+        String text = new String(line, StandardCharsets.UTF_8);
+        boolean remove = containsAny(text, ids, otherIds);
+        if (remove && truncateAt < 0) {
+          truncateAt = offset;
+          tail = Files.createTempFile(path.getParent(), "resume", ".tmp");
+          tailOut = Files.newOutputStream(tail);
+        } else if (!remove && tailOut != null) {
+          tailOut.write(line);
+        }
+        offset += line.length;
+      }
+      if (tailOut != null) {
+        tailOut.close();
+      }
+    }
+    if (truncateAt < 0) {
+      return;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(path.toFile(), "rw")) {
+      raf.setLength(truncateAt);
+    }
+    try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.APPEND)) {
+      Files.copy(tail, out);
+    }
+    Files.delete(tail);
+  }
+
+  /**
+   * Read one line, including its line terminator.
+   * @return the bytes of the line, or null at the end of the stream
+   */
+  private static byte[] readLine(InputStream in) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+    int b;
+    while ((b = in.read()) != -1) {
+      buffer.write(b);
+      if (b == '\n') {
+        break;
+      }
+    }
+    return buffer.size() == 0 ? null : buffer.toByteArray();
+  }
+}
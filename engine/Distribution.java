@@ -8,6 +8,10 @@ import org.mitre.synthea.world.agents.Person;
 /**
  * Representation of different types of distributions that can be used to represent
  * random variables used in Synthea States.
+ *
+ * <p>States {@link #compile()} their distributions when the module is loaded, which turns the
+ * parameters into a Sampler with final fields, so that a sample does not look up and unbox the
+ * parameters. A compiled distribution generates exactly the same values.</p>
  */
 public class Distribution implements Serializable {
   public enum Kind {
@@ -17,6 +21,97 @@ public class Distribution implements Serializable {
   public Kind kind;
   public Boolean round;
   public HashMap<String, Double> parameters;
+  /** Set by compile(), null while the parameters are interpreted. */
+  private transient Sampler sampler;
+
+  /** A compiled distribution. */
+  private abstract static class Sampler {
+    private final boolean round;
+
+    private Sampler(boolean round) {
+      this.round = round;
+    }
+
+    abstract double sample(Person person);
+
+    final double generate(Person person) {
+      double value = sample(person);
+      return round ? Math.round(value) : value;
+    }
+  }
+
+  private static final class Exact extends Sampler {
+    private final double value;
+
+    private Exact(boolean round, double value) {
+      super(round);
+      this.value = value;
+    }
+
+    @Override
+    double sample(Person person) {
+      return value;
+    }
+  }
+
+  private static final class Uniform extends Sampler {
+    private final double low;
+    private final double high;
+
+    private Uniform(boolean round, double low, double high) {
+      super(round);
+      this.low = low;
+      this.high = high;
+    }
+
+    @Override
+    double sample(Person person) {
+      return person.rand(low, high);
+    }
+  }
+
+  private static final class Gaussian extends Sampler {
+    private final double mean;
+    private final double standardDeviation;
+    /** Negative and positive infinity when the distribution is not clamped. */
+    private final double min;
+    private final double max;
+
+    private Gaussian(boolean round, double mean, double standardDeviation, double min,
+        double max) {
+      super(round);
+      this.mean = mean;
+      this.standardDeviation = standardDeviation;
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    double sample(Person person) {
+      double value = (standardDeviation * person.randGaussian()) + mean;
+      if (value < min) {
+        value = min;
+      }
+      if (value > max) {
+        value = max;
+      }
+      return value;
+    }
+  }
+
+  private static final class Exponential extends Sampler {
+    private final double lambda;
+
+    private Exponential(boolean round, double mean) {
+      super(round);
+      this.lambda = (1.0d / mean);
+    }
+
+    @Override
+    double sample(Person person) {
+      return 1.0d + Math.log(1.0d - person.rand()) / (-1.0d * lambda);
+    }
+  }
 
   /**
    * Generate a sample from the random variable.
@@ -24,6 +119,9 @@ public class Distribution implements Serializable {
    * @return The value
    */
   public double generate(Person person) {
+    if (sampler != null) {
+      return sampler.generate(person);
+    }
     double value;
     switch (this.kind) {
       case EXACT:
@@ -62,6 +160,38 @@ public class Distribution implements Serializable {
     return value;
   }
 
+  /**
+   * Validate the Distribution and replace the lookup of its parameters with a Sampler. Call once
+   * the parameters are final, e.g. when the state is initialized.
+   * @return True if it is valid, false otherwise
+   */
+  public boolean compile() {
+    if (kind == null || !validate() || parameters.containsValue(null)) {
+      return false;
+    }
+    boolean rounded = round != null && round.booleanValue();
+    switch (kind) {
+      case EXACT:
+        sampler = new Exact(rounded, parameters.get("value"));
+        break;
+      case UNIFORM:
+        sampler = new Uniform(rounded, parameters.get("low"), parameters.get("high"));
+        break;
+      case GAUSSIAN:
+        sampler = new Gaussian(rounded, parameters.get("mean"),
+            parameters.get("standardDeviation"),
+            parameters.getOrDefault("min", Double.NEGATIVE_INFINITY),
+            parameters.getOrDefault("max", Double.POSITIVE_INFINITY));
+        break;
+      case EXPONENTIAL:
+        sampler = new Exponential(rounded, parameters.get("mean"));
+        break;
+      default:
+        return false;
+    }
+    return true;
+  }
+
   /**
    * Determine whether the Distribution has all of the information it needs to generate a sample
    * value.
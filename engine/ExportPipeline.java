@@ -0,0 +1,264 @@
+package org.mitre.synthea.engine;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Decouples simulation from export. Simulation workers hand finished people to a bounded
+ * queue and a separately sized pool of export workers drains it. When the queue is full,
+ * {@link #submit} blocks the simulation worker, which applies backpressure to simulation.
+ * <p>
+ * Inline export tells {@link Generator#generatePerson(int, long)} whether the final person for
+ * a slot was exported, and the slot is retried if it was not. In pipeline mode the simulation
+ * worker has already moved on by the time the export result is known, so a rejected final
+ * person is fed back by resubmitting the slot to the simulation executor with the same seed
+ * and demographics that the inline retry would have used. The resubmitted slot keeps counting
+ * attempts from where it stopped, so "generate.max_attempts_to_keep_patient" and the target
+ * age reduction apply exactly as they do inline.
+ * </p>
+ */
+public class ExportPipeline {
+  /** Marker used to stop the export workers once the queue has drained. */
+  private static final PendingExport POISON = new PendingExport(null, 0L, -1, false, 0);
+  private static final Logger LOGGER = Logger.getLogger(ExportPipeline.class.getName());
+
+  private final Generator generator;
+  private final BlockingQueue<PendingExport> queue;
+  private final ExecutorService exportPool;
+  private final int exportThreads;
+  private ExecutorService simulationPool;
+
+  /** Slots that have been started but whose final person has not yet been exported. */
+  private final AtomicInteger openSlots = new AtomicInteger(0);
+  private final Object slotMonitor = new Object();
+
+  private final AtomicLong simulated = new AtomicLong(0);
+  private final AtomicLong exported = new AtomicLong(0);
+  private final AtomicLong rejected = new AtomicLong(0);
+  private final AtomicLong blockedNanos = new AtomicLong(0);
+  private final AtomicLong exportNanos = new AtomicLong(0);
+  private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+  private final long startTime;
+
+  /**
+   * A person waiting to be exported.
+   */
+  private static class PendingExport {
+    private final Person person;
+    private final long finishTime;
+    private final int index;
+    /** True when this is the person that completes the slot, false for overflow records. */
+    private final boolean finalForSlot;
+    /** Number of attempts made for the slot so far, including this person. */
+    private final int tryNumber;
+
+    private PendingExport(Person person, long finishTime, int index, boolean finalForSlot,
+        int tryNumber) {
+      this.person = person;
+      this.finishTime = finishTime;
+      this.index = index;
+      this.finalForSlot = finalForSlot;
+      this.tryNumber = tryNumber;
+    }
+  }
+
+  /**
+   * Create a new export pipeline. Queue size and thread count are read from
+   * "generate.pipeline.queue_size" and "generate.pipeline.export_threads".
+   * @param generator The generator whose people will be exported.
+   */
+  public ExportPipeline(Generator generator) {
+    this.generator = generator;
+    int threads = Config.getAsInteger("generate.pipeline.export_threads", -1);
+    if (threads == -1) {
+      threads = Math.max(1, generator.threadPoolSize / 2);
+    } else if (threads < 1) {
+      throw new IllegalArgumentException(String.format(
+          "Illegal export thread count (%d)", threads));
+    }
+    int queueSize = Config.getAsInteger("generate.pipeline.queue_size", -1);
+    if (queueSize == -1) {
+      queueSize = 2 * generator.threadPoolSize;
+    } else if (queueSize < 1) {
+      throw new IllegalArgumentException(String.format(
+          "Illegal export queue size (%d)", queueSize));
+    }
+    this.exportThreads = threads;
+    this.queue = new ArrayBlockingQueue<>(queueSize);
+    this.exportPool = Executors.newFixedThreadPool(threads, generator.config.threadFactory());
+    this.startTime = System.nanoTime();
+  }
+
+  /**
+   * Start the export workers.
+   * @param simulationPool Executor used to resubmit slots whose final person was rejected.
+   */
+  public void start(ExecutorService simulationPool) {
+    this.simulationPool = simulationPool;
+    for (int i = 0; i < exportThreads; i++) {
+      exportPool.submit(this::drain);
+    }
+  }
+
+  /**
+   * Record that slots have been handed to the simulation stage. Every slot must be matched by
+   * the final person for the slot being exported, or by {@link #slotFailed}.
+   * This must be called before {@link #awaitSlots}, so register the whole population up front.
+   * @param count The number of slots.
+   */
+  public void slotsStarted(int count) {
+    openSlots.addAndGet(count);
+  }
+
+  /**
+   * Record that a slot ended without producing a person, e.g. because the simulation threw.
+   */
+  public void slotFailed() {
+    slotFinished();
+  }
+
+  private void slotFinished() {
+    if (openSlots.decrementAndGet() == 0) {
+      synchronized (slotMonitor) {
+        slotMonitor.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Hand a simulated person to the export stage, blocking while the queue is full.
+   * The caller must not touch the person after this method returns.
+   * @param person The simulated person.
+   * @param finishTime Time at which the simulation stopped.
+   * @param index Target index of the slot in the population.
+   * @param finalForSlot Whether this person completes the slot.
+   * @param tryNumber Number of attempts made for the slot so far, including this person.
+   */
+  public void submit(Person person, long finishTime, int index, boolean finalForSlot,
+      int tryNumber) {
+    simulated.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      queue.put(new PendingExport(person, finishTime, index, finalForSlot, tryNumber));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for export queue", e);
+    }
+    blockedNanos.addAndGet(System.nanoTime() - start);
+    maxQueueDepth.accumulateAndGet(queue.size(), Math::max);
+  }
+
+  private void drain() {
+    while (true) {
+      PendingExport pending;
+      try {
+        pending = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      if (pending == POISON) {
+        return;
+      }
+      try {
+        export(pending);
+      } catch (Throwable e) {
+        LOGGER.log(Level.SEVERE, "Unable to export person for slot " + pending.index, e);
+        if (pending.finalForSlot) {
+          slotFinished();
+        }
+      }
+    }
+  }
+
+  private void export(PendingExport pending) {
+    long start = System.nanoTime();
+    boolean wasExported = generator.exportPerson(pending.person, pending.finishTime,
+        pending.index, pending.finalForSlot);
+    exportNanos.addAndGet(System.nanoTime() - start);
+    if (wasExported) {
+      exported.incrementAndGet();
+    } else {
+      rejected.incrementAndGet();
+    }
+    if (!pending.finalForSlot) {
+      // overflow records do not complete the slot, so a rejection needs no retry
+      return;
+    }
+    if (wasExported) {
+      slotFinished();
+    } else {
+      // same seed rotation as the inline retry in Generator.generatePerson
+      Person person = pending.person;
+      long nextSeed = person.randLong();
+      Map<String, Object> demoAttributes = generator.randomDemographics(person);
+      int index = pending.index;
+      int tryNumber = pending.tryNumber;
+      simulationPool.submit(
+          () -> generator.generatePerson(index, nextSeed, demoAttributes, tryNumber));
+    }
+  }
+
+  /**
+   * Get the number of people currently waiting to be exported.
+   * @return the queue depth
+   */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * Block until every started slot has had its final person exported.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void awaitSlots() throws InterruptedException {
+    synchronized (slotMonitor) {
+      while (openSlots.get() > 0) {
+        slotMonitor.wait(TimeUnit.SECONDS.toMillis(30));
+        if (openSlots.get() > 0) {
+          System.out.println(status());
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop the export workers once everything already queued has been exported.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void shutdown() throws InterruptedException {
+    for (int i = 0; i < exportThreads; i++) {
+      queue.put(POISON);
+    }
+    exportPool.shutdown();
+    while (!exportPool.awaitTermination(30, TimeUnit.SECONDS)) {
+      System.out.println("Waiting for exports to finish... " + status());
+    }
+  }
+
+  /**
+   * Summarize queue depth and the throughput of each stage.
+   * @return a single line status report
+   */
+  public String status() {
+    double elapsed = (System.nanoTime() - startTime) / 1e9;
+    long exportCount = exported.get() + rejected.get();
+    return String.format("Pipeline: queue=%d/%d (max %d), open slots=%d, "
+        + "simulated=%d (%.1f/s, %.1fs blocked), exported=%d (%.1f/s, %d rejected, "
+        + "%.1fms avg)",
+        queue.size(), queue.size() + queue.remainingCapacity(), maxQueueDepth.get(),
+        openSlots.get(), simulated.get(), simulated.get() / elapsed, blockedNanos.get() / 1e9,
+        exported.get(), exported.get() / elapsed, rejected.get(),
+        exportCount == 0 ? 0.0 : exportNanos.get() / 1e6 / exportCount);
+  }
+}
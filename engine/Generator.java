@@ -12,7 +12,9 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -21,6 +23,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -29,7 +32,9 @@ import org.apache.commons.io.filefilter.WildcardFileFilter;
 import org.mitre.synthea.editors.GrowthDataErrorsEditor;
 import org.mitre.synthea.export.CDWExporter;
 import org.mitre.synthea.export.Exporter;
+import org.mitre.synthea.export.FhirGroupExporterR4;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.ConfigSnapshot;
 import org.mitre.synthea.helpers.DefaultRandomNumberGenerator;
 import org.mitre.synthea.helpers.RandomNumberGenerator;
 import org.mitre.synthea.helpers.TransitionMetrics;
@@ -80,8 +85,17 @@ public class Generator {
   public TransitionMetrics metrics;
   public static String DEFAULT_STATE = "Massachusetts";
   private Exporter.ExporterRuntimeOptions exporterRuntimeOptions;
+  /** Separate export stage, or null when people are exported on the simulation thread. */
+  private ExportPipeline exportPipeline;
+  /** Record of completed slots, or null when journaling is disabled. */
+  private CompletionJournal journal;
   public static EntityManager entityManager;
   public final int threadPoolSize;
+  /** Settings read for every person or record, fixed for the lifetime of this Generator. */
+  public final ConfigSnapshot config;
+  /** Module timesteps processed and skipped by the event driven scheduler. */
+  public final AtomicLong moduleStepsProcessed = new AtomicLong(0);
+  public final AtomicLong moduleStepsSkipped = new AtomicLong(0);
 
   /**
    * Used only for testing and debugging. Populate this field to keep track of all patients
@@ -115,6 +129,20 @@ public class Generator {
     public long seed = referenceTime;
     public long clinicianSeed = referenceTime;
     public Long singlePersonSeed;
+    /** Index of a single person of the population to regenerate, or null for everyone. */
+    public Integer singlePersonIndex;
+    /** Derive each person seed from the population seed and index, instead of drawing
+     * seeds in sequence. Changes the generated population, so it is off by default.
+     * Null reads "generate.indexed_seeds" when the Generator is created. */
+    public Boolean indexedSeeds;
+    /** Part of the population generated by this process, or null for the whole population. */
+    public PopulationShard shard;
+    /** Skip the slots recorded as complete in the journal of a previous, interrupted run. */
+    public boolean resume = false;
+    /** Only process modules whose current state can change the person at this timestep.
+     * Generates the same records as processing every module at every timestep.
+     * Null reads "generate.event_scheduling" when the Generator is created. */
+    public Boolean eventScheduling;
     /** Population as exclusively live persons or including deceased.
      * True for live, false includes deceased */
     public boolean overflow = true;
@@ -158,9 +186,7 @@ public class Generator {
    * @param population Target population size
    */
   public Generator(int population) {
-    this(new GeneratorOptions(), new Exporter.ExporterRuntimeOptions());
-    options.population = population;
-    init();
+    this(populationOptions(population), new Exporter.ExporterRuntimeOptions());
   }
 
   /**
@@ -171,11 +197,22 @@ public class Generator {
    * @param seed Seed used for randomness
    */
   public Generator(int population, long seed, long clinicianSeed) {
-    this(new GeneratorOptions(), new Exporter.ExporterRuntimeOptions());
+    this(populationOptions(population, seed, clinicianSeed),
+        new Exporter.ExporterRuntimeOptions());
+  }
+
+  private static GeneratorOptions populationOptions(int population) {
+    GeneratorOptions options = new GeneratorOptions();
     options.population = population;
+    return options;
+  }
+
+  private static GeneratorOptions populationOptions(int population, long seed,
+      long clinicianSeed) {
+    GeneratorOptions options = populationOptions(population);
     options.seed = seed;
     options.clinicianSeed = clinicianSeed;
-    init();
+    return options;
   }
 
   /**
@@ -194,8 +231,40 @@ public class Generator {
    * @param ero Desired exporter options
    */
   public Generator(GeneratorOptions o, Exporter.ExporterRuntimeOptions ero) {
+    this(o, ero, null);
+  }
+
+  /**
+   * Create a Generator, with the given options and configuration snapshot.
+   *
+   * @param o Desired configuration options
+   * @param ero Desired exporter options
+   * @param snapshot Settings read for every person or record, or null to take a snapshot of
+   *     the current configuration
+   */
+  public Generator(GeneratorOptions o, Exporter.ExporterRuntimeOptions ero,
+      ConfigSnapshot snapshot) {
     options = o;
     exporterRuntimeOptions = ero;
+    // read here rather than in GeneratorOptions, after any command line overrides
+    if (options.indexedSeeds == null) {
+      options.indexedSeeds = Config.getAsBoolean("generate.indexed_seeds", false);
+    }
+    if (options.eventScheduling == null) {
+      options.eventScheduling = Config.getAsBoolean("generate.event_scheduling", false);
+    }
+    if (options.fixedRecordPath != null) {
+      // We'll be using the FixedRecord names, so no numbers should be appended to them.
+      Config.set("generate.append_numbers_to_person_names", "false");
+      // Since we're using FixedRecords, split records must be true.
+      Config.set("exporter.split_records", "true");
+    }
+    // settings read for every person or record are fixed from here on
+    config = snapshot != null ? snapshot : new ConfigSnapshot();
+    if (options.fixedRecordPath != null && !config.splitRecords) {
+      throw new IllegalArgumentException(
+          "Fixed records require a configuration snapshot with exporter.split_records");
+    }
     if (options.updatedPopulationSnapshotPath != null) {
       exporterRuntimeOptions.deferExports = true;
       internalStore = Collections.synchronizedList(new LinkedList<>());
@@ -216,8 +285,31 @@ public class Generator {
       options.state = DEFAULT_STATE;
     }
     int stateIndex = Location.getIndex(options.state);
+    if (options.shard != null) {
+      // must happen before the BFD exporters read their identifier counters
+      options.shard.applyIdRanges();
+    }
+    if (options.resume || Config.getAsBoolean("generate.journal.enabled", false)) {
+      if (config.parquetExport) {
+        // a Parquet file is only readable once it is closed at the end of the run
+        throw new IllegalArgumentException("exporter.parquet.export can not be combined with "
+            + "generate.journal.enabled or --resume");
+      }
+      if (config.cdwExport || config.bfdExport) {
+        // their rows are keyed by counters that restart with every run, so the rows of an
+        // unfinished patient can not be found and removed on resume
+        throw new IllegalArgumentException("exporter.cdw.export and exporter.bfd.export can "
+            + "not be combined with generate.journal.enabled or --resume");
+      }
+      // must happen before any exporter opens its output files
+      openJournal();
+    }
     if (Config.getAsBoolean("exporter.cdw.export")) {
-      CDWExporter.getInstance().setKeyStart((stateIndex * 1_000_000) + 1);
+      if (options.shard != null) {
+        CDWExporter.getInstance().setKeyStart(options.shard.cdwKeyStart(stateIndex));
+      } else {
+        CDWExporter.getInstance().setKeyStart((stateIndex * 1_000_000) + 1);
+      }
     }
 
     this.populationRandom = new DefaultRandomNumberGenerator(options.seed);
@@ -285,6 +377,7 @@ public class Generator {
     }
 
     Costs.loadCostData(); // ensure cost data loads early
+    LookupTables.awaitAll(); // lookup tables of the loaded modules are ready before simulation
 
     String locationName;
     if (options.city == null) {
@@ -301,6 +394,11 @@ public class Generator {
     if (options.gender != null) {
       System.out.println(String.format("Gender: %s", options.gender));
     }
+    if (options.shard != null) {
+      System.out.println(String.format("Shard: %s (indices %d-%d)", options.shard,
+          options.shard.firstIndex(options.population),
+          options.shard.endIndex(options.population) - 1));
+    }
     if (options.enabledModules != null) {
       moduleNames.removeAll(coreModuleNames);
       moduleNames.sort(String::compareToIgnoreCase);
@@ -308,12 +406,69 @@ public class Generator {
       System.out.println(String.format("       > [%d loaded]", moduleNames.size()));
     }
 
+    if (Config.getAsBoolean("generate.pipeline.enabled", false)
+        && !exporterRuntimeOptions.deferExports) {
+      this.exportPipeline = new ExportPipeline(this);
+    }
+
     if (Config.getAsBoolean("growtherrors", false)) {
       HealthRecordEditors hrm = HealthRecordEditors.getInstance();
       hrm.registerEditor(new GrowthDataErrorsEditor());
     }
   }
 
+  /**
+   * Open the completion journal. When resuming, remove any output left behind by slots that
+   * did not complete and switch the table exporters to append mode.
+   */
+  private void openJournal() {
+    Path baseDirectory = Paths.get(Config.get("exporter.baseDirectory"));
+    Path journalFile = baseDirectory.resolve("journal").resolve("completion_journal.csv");
+    try {
+      journal = new CompletionJournal(journalFile, options.resume,
+          Config.getAsInteger("generate.journal.checkpoint_interval", 100), journalSettings());
+      if (options.resume) {
+        for (String exporter : new String[] {"csv", "cpcds", "symptoms.csv"}) {
+          Config.set("exporter." + exporter + ".append_mode", "true");
+          Config.set("exporter." + exporter + ".folder_per_run", "false");
+        }
+        boolean groups = Config.getAsBoolean("exporter.groups.fhir.export");
+        journal.recover(baseDirectory, groups ? FhirGroupExporterR4::addPatient : null);
+      }
+    } catch (IOException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  /**
+   * Get the settings that determine which people are generated in which slot, to be recorded in
+   * the completion journal. A run can only be resumed with the same settings.
+   */
+  private Map<String, String> journalSettings() {
+    Map<String, String> settings = new LinkedHashMap<String, String>();
+    settings.put("seed", Long.toString(options.seed));
+    settings.put("clinician_seed", Long.toString(options.clinicianSeed));
+    settings.put("population", Integer.toString(options.population));
+    settings.put("reference_time", Long.toString(options.referenceTime));
+    settings.put("end_time", Long.toString(options.endTime));
+    settings.put("shard", String.valueOf(options.shard));
+    settings.put("state", options.state);
+    settings.put("city", String.valueOf(options.city));
+    settings.put("gender", String.valueOf(options.gender));
+    settings.put("age", options.ageSpecified ? options.minAge + "-" + options.maxAge : "any");
+    settings.put("overflow", Boolean.toString(options.overflow));
+    settings.put("modules", String.valueOf(options.enabledModules));
+    settings.put("keep_patients_module", String.valueOf(options.keepPatientsModulePath));
+    settings.put("fixed_records", String.valueOf(options.fixedRecordPath));
+    settings.put("indexed_seeds", String.valueOf(options.indexedSeeds));
+    for (String key : new String[] {"generate.chunk_size", "generate.timestep",
+        "generate.only_dead_patients", "generate.only_alive_patients",
+        "exporter.years_of_history"}) {
+      settings.put(key, Config.get(key, ""));
+    }
+    return settings;
+  }
+
   /**
    * Extracts a list of names from the supplied list of modules.
    *
@@ -328,7 +483,16 @@ public class Generator {
    * Generate the population, using the currently set configuration settings.
    */
   public void run() {
+    config.bind();
+    try {
+      generatePopulation();
+    } finally {
+      // the calling thread may go on to run code outside of any Generator
+      ConfigSnapshot.unbind();
+    }
+  }
 
+  private void generatePopulation() {
     // Import the fixed patient demographics records file, if a file path is given.
     if (this.options.fixedRecordPath != null) {
       try {
@@ -338,10 +502,6 @@ public class Generator {
         entityManager = EntityManager.fromJSON(rawJSON);
         // Update the population size based on number of people.
         this.options.population = entityManager.getPopulationSize();
-        // We'll be using the FixedRecord names, so no numbers should be appended to them.
-        Config.set("generate.append_numbers_to_person_names", "false");
-        // Since we're using FixedRecords, split records must be true.
-        Config.set("exporter.split_records", "true");
       } catch (IOException ioe) {
         throw new RuntimeException("Couldn't open the fixed patient demographics "
             + "records file", ioe);
@@ -349,7 +509,11 @@ public class Generator {
 
     }
 
-    ExecutorService threadPool = Executors.newFixedThreadPool(threadPoolSize);
+    ExecutorService threadPool =
+        Executors.newFixedThreadPool(threadPoolSize, config.threadFactory());
+    if (exportPipeline != null) {
+      exportPipeline.start(threadPool);
+    }
 
     if (options.initialPopulationSnapshotPath != null) {
       FileInputStream fis = null;
@@ -374,19 +538,49 @@ public class Generator {
           threadPool.submit(() -> updateRecordExportPerson(p, index));
         }
       }
+    } else if (this.options.singlePersonIndex != null) {
+      // regenerate one member of the population, constant time with indexed seeds
+      int index = this.options.singlePersonIndex;
+      long seed = SlotCursor.seedFor(this.options.seed, index, this.options.indexedSeeds);
+      if (exportPipeline != null) {
+        exportPipeline.slotsStarted(1);
+      }
+      generatePerson(index, seed);
     } else if (this.options.singlePersonSeed == null) {
       // Generate patients up to the specified population size.
-      for (int i = 0; i < this.options.population; i++) {
-        final int index = i;
-        final long seed = this.populationRandom.randLong();
-        threadPool.submit(() -> generatePerson(index, seed));
+      // Each worker claims small chunks of indices, so the executor queue stays bounded
+      // no matter how large the population is.
+      int firstIndex = 0;
+      int endIndex = this.options.population;
+      if (this.options.shard != null) {
+        firstIndex = this.options.shard.firstIndex(this.options.population);
+        endIndex = this.options.shard.endIndex(this.options.population);
+      }
+      SlotCursor cursor = new SlotCursor(this.populationRandom, firstIndex, endIndex,
+          Config.getAsInteger("generate.chunk_size", 16), this.options.indexedSeeds);
+      if (exportPipeline != null) {
+        int completed = journal == null ? 0 : journal.countComplete(firstIndex, endIndex);
+        exportPipeline.slotsStarted(endIndex - firstIndex - completed);
+      }
+      for (int i = 0; i < threadPoolSize; i++) {
+        threadPool.submit(() -> generateSlots(cursor));
       }
     } else {
       // we have a single fixed seed to generate, don't bother with threadpool
+      if (exportPipeline != null) {
+        exportPipeline.slotsStarted(1);
+      }
       generatePerson(0, this.options.singlePersonSeed);
     }
 
     try {
+      if (exportPipeline != null) {
+        // rejected slots are resubmitted to the thread pool, so it must stay open until
+        // every slot has been exported
+        exportPipeline.awaitSlots();
+        exportPipeline.shutdown();
+        System.out.println(exportPipeline.status());
+      }
       threadPool.shutdown();
       while (!threadPool.awaitTermination(30, TimeUnit.SECONDS)) {
         System.out.println("Waiting for threads to finish... " + threadPool);
@@ -396,6 +590,10 @@ public class Generator {
       threadPool.shutdownNow();
     }
 
+    if (journal != null) {
+      journal.close();
+    }
+
     // Save a snapshot of the generated population using Java Serialization
     if (options.updatedPopulationSnapshotPath != null) {
       FileOutputStream fos = null;
@@ -415,12 +613,36 @@ public class Generator {
             stats.get("alive").get(), stats.get("dead").get());
     System.out.printf("RNG=%d\n", this.populationRandom.getCount());
     System.out.printf("Clinician RNG=%d\n", this.clinicianRandom.getCount());
+    if (State.ENABLE_GUARD_TRACKING) {
+      GuardInputs.printStatistics();
+    }
 
     if (this.metrics != null) {
       metrics.printStats(totalGeneratedPopulation.get(), Module.getModules(getModulePredicate()));
     }
   }
 
+  /**
+   * Generate people for chunks claimed from the cursor until every index has been claimed.
+   * @param cursor The shared cursor over the population indices.
+   */
+  private void generateSlots(SlotCursor cursor) {
+    SlotCursor.Chunk chunk;
+    while ((chunk = cursor.claim()) != null) {
+      for (int i = 0; i < chunk.seeds.length; i++) {
+        if (journal != null && journal.isComplete(chunk.start + i)) {
+          // exported by a previous run, the seed was still drawn to keep later seeds in place
+          continue;
+        }
+        try {
+          generatePerson(chunk.start + i, chunk.seeds[i]);
+        } catch (Throwable e) {
+          // already reported by generatePerson, move on to the next slot
+        }
+      }
+    }
+  }
+
   /**
    * Generate a completely random Person. The returned person will be alive at the end of the
    * simulation. This means that if in the course of the simulation the person dies, a new person
@@ -452,16 +674,36 @@ public class Generator {
    * @return generated Person
    */
   public Person generatePerson(int index, long personSeed) {
+    return generatePerson(index, personSeed, null, 0);
+  }
+
+  /**
+   * Generate a random Person, from the given seed and demographics.
+   * When the export pipeline is enabled, the returned person may still be in the process of
+   * being exported and must not be modified.
+   *
+   * @param index Target index in the whole set of people to generate
+   * @param personSeed Seed for the random person
+   * @param initialDemoAttributes Demographics for the first attempt, or null to pick them
+   * @param previousTries Number of attempts already made for this slot, which count towards
+   *     "generate.max_attempts_to_keep_patient"
+   * @return generated Person
+   */
+  Person generatePerson(int index, long personSeed, Map<String, Object> initialDemoAttributes,
+      int previousTries) {
 
     Person person = new Person(personSeed);
     boolean wasExported = true;
 
     try {
-      int tryNumber = 0; // Number of tries to create these demographics
+      int tryNumber = previousTries; // Number of tries to create these demographics
 
       Map<String, Object> demoAttributes;
 
-      if (entityManager != null) {
+      if (initialDemoAttributes != null) {
+        // retrying a slot whose previous person was rejected by the export pipeline
+        demoAttributes = initialDemoAttributes;
+      } else if (entityManager != null) {
         // Get the fixed demographic attributes for the person.
         Entity entity = entityManager.getRecords().get(index);
         demoAttributes = pickFixedDemographics(entity, person);
@@ -537,7 +779,13 @@ public class Generator {
 
         // TODO - export is DESTRUCTIVE when it filters out data
         // this means export must be the LAST THING done with the person
-        wasExported = Exporter.export(person, finishTime, exporterRuntimeOptions);
+        if (exportPipeline != null) {
+          // the pipeline resubmits this slot if the final person is rejected
+          exportPipeline.submit(person, finishTime, index, patientMeetsCriteria, tryNumber);
+          wasExported = true;
+        } else {
+          wasExported = exportPerson(person, finishTime, index, patientMeetsCriteria);
+        }
         if (!wasExported) {
           personSeed = person.randLong();
           demoAttributes = randomDemographics(person);
@@ -554,6 +802,9 @@ public class Generator {
     } catch (Throwable e) {
       // lots of fhir things throw errors for some reason
       e.printStackTrace();
+      if (exportPipeline != null) {
+        exportPipeline.slotFailed();
+      }
       throw e;
     }
     return person;
@@ -631,6 +882,25 @@ public class Generator {
     return check;
   }
 
+  /**
+   * Export a person, recording the export in the completion journal when one is open.
+   * @param person The person to export.
+   * @param finishTime Time at which the simulation stopped.
+   * @param index Target index in the whole set of people to generate
+   * @param finalForSlot Whether this person completes the slot, if exported.
+   * @return whether the person was exported
+   */
+  boolean exportPerson(Person person, long finishTime, int index, boolean finalForSlot) {
+    if (journal == null) {
+      return Exporter.export(person, finishTime, exporterRuntimeOptions);
+    }
+    String id = (String) person.attributes.get(Person.ID);
+    journal.exportStarted(index, id);
+    boolean wasExported = Exporter.export(person, finishTime, exporterRuntimeOptions);
+    journal.exportFinished(index, id, person.getSeed(), wasExported, finalForSlot);
+    return wasExported;
+  }
+
   /**
    * Update person record to stop time, record the entry and export record.
    */
@@ -678,6 +948,11 @@ public class Generator {
   public void updatePerson(Person person) {
     HealthInsuranceModule healthInsuranceModule = new HealthInsuranceModule();
     EncounterModule encounterModule = new EncounterModule();
+    // earliest time at which each module can change the person, see Module.nextWakeup
+    Map<Module, Long> wakeups = options.eventScheduling ? new IdentityHashMap<>() : null;
+    HealthRecordEditors.EncounterCursor editorCursor = new HealthRecordEditors.EncounterCursor();
+    long processed = 0;
+    long skipped = 0;
 
     long time = person.lastUpdated;
     while (person.alive(time) && time < stop) {
@@ -708,15 +983,29 @@ public class Generator {
       while (iter.hasNext()) {
         Module module = iter.next();
 
+        if (wakeups != null) {
+          Long wakeup = wakeups.get(module);
+          if (wakeup != null && wakeup > time) {
+            // the module is blocked in a delay that has not passed yet
+            skipped++;
+            continue;
+          }
+        }
+        processed++;
         if (module.process(person, time)) {
           iter.remove(); // this module has completed/terminated.
+        } else if (wakeups != null) {
+          wakeups.put(module, module.nextWakeup(person, time));
         }
       }
       encounterModule.endEncounterModuleEncounters(person, time);
       person.lastUpdated = time;
-      HealthRecordEditors.getInstance().executeAll(person, person.record, time, timestep);
+      HealthRecordEditors.getInstance().executeAll(person, person.record, time, timestep,
+          editorCursor);
       time += timestep;
     }
+    moduleStepsProcessed.addAndGet(processed);
+    moduleStepsSkipped.addAndGet(skipped);
 
     // If the person has an open encounter, we need to override the default
     // encounter times and charges, with the current length of stay and activities.
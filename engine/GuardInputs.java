@@ -0,0 +1,256 @@
+package org.mitre.synthea.engine;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * The inputs a Guard's Logic tree reads, inferred when the module is loaded. While none of
+ * the inputs change and no time based condition (Age, Date) crosses a boundary, testing the
+ * Logic again must give the same result, so a blocked Guard does not need to be re-tested.
+ *
+ * <p>Inputs are compared by value for immutable values and by identity for record entries.
+ * Logic that can not describe its inputs makes the whole tree untrackable, and people with
+ * split records or loss of care are always re-tested, because their conditions search more
+ * than one health record.</p>
+ */
+public class GuardInputs {
+  private static final long DAY = 24L * 60 * 60 * 1000;
+  /** Shortest possible length of a year of age, see {@link #ageBoundary}. */
+  public static final long SHORTEST_YEAR = 365 * DAY;
+  /** Shortest possible length of a month of age, see {@link #ageBoundary}. */
+  public static final long SHORTEST_MONTH = 28 * DAY;
+
+  /** Statistics by module name. */
+  private static final Map<String, Statistics> statistics =
+      new ConcurrentHashMap<String, Statistics>();
+
+  /**
+   * How many Guards of a module could be tracked and how often their Logic was tested.
+   */
+  private static class Statistics {
+    private final LongAdder trackedGuards = new LongAdder();
+    private final LongAdder untrackedGuards = new LongAdder();
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+
+    private void add(Statistics other) {
+      trackedGuards.add(other.trackedGuards.sum());
+      untrackedGuards.add(other.untrackedGuards.sum());
+      evaluated.add(other.evaluated.sum());
+      skipped.add(other.skipped.sum());
+    }
+
+    private void print(String name) {
+      long total = evaluated.sum() + skipped.sum();
+      System.out.printf("%s: %d tracked, %d untracked, %d of %d tests skipped (%.1f%%)\n",
+          name, trackedGuards.sum(), untrackedGuards.sum(), skipped.sum(), total,
+          total == 0 ? 0.0 : 100.0 * skipped.sum() / total);
+    }
+  }
+
+  /**
+   * Reads one input of a Logic tree.
+   */
+  public interface Input {
+    Object read(Person person, long time);
+  }
+
+  private final List<Input> inputs = new ArrayList<Input>();
+  private boolean trackable = true;
+  private Statistics moduleStatistics;
+
+  /**
+   * Infer the inputs of a Logic tree.
+   * @param logic The root of the tree.
+   * @param moduleName The name of the module of the Guard, statistics are kept per module.
+   * @return the inputs, or null if the tree can not be tracked
+   */
+  public static GuardInputs of(Logic logic, String moduleName) {
+    Statistics moduleStatistics =
+        statistics.computeIfAbsent(moduleName, name -> new Statistics());
+    GuardInputs inputs = new GuardInputs();
+    logic.collectInputs(inputs);
+    if (!inputs.trackable) {
+      moduleStatistics.untrackedGuards.increment();
+      return null;
+    }
+    moduleStatistics.trackedGuards.increment();
+    inputs.moduleStatistics = moduleStatistics;
+    return inputs;
+  }
+
+  /**
+   * Print, for every module with Guards and in total, how many Guards could be tracked and
+   * how many tests of their Logic were skipped.
+   */
+  public static void printStatistics() {
+    Statistics total = new Statistics();
+    for (Map.Entry<String, Statistics> module : new TreeMap<String, Statistics>(statistics)
+        .entrySet()) {
+      module.getValue().print("Guards in " + module.getKey());
+      total.add(module.getValue());
+    }
+    total.print("Guards");
+  }
+
+  /**
+   * Add an input.
+   * @param input Reads the current value of the input.
+   */
+  public void add(Input input) {
+    inputs.add(input);
+  }
+
+  /**
+   * Add a person attribute as an input.
+   * @param attribute The name of the attribute.
+   * @param byIdentity Whether the condition only tests the presence of the value, so any
+   *     value may be compared by identity. Otherwise only immutable values can be tracked.
+   */
+  public void addAttribute(String attribute, boolean byIdentity) {
+    inputs.add((person, time) -> {
+      Object value = person.attributes.get(attribute);
+      if (byIdentity || value == null || value instanceof Number || value instanceof String
+          || value instanceof Boolean) {
+        return value;
+      }
+      // may be modified in place, never equal to the snapshot
+      return new Object();
+    });
+  }
+
+  /**
+   * Mark the tree as untrackable, it will be tested at every timestep.
+   */
+  public void untrackable() {
+    trackable = false;
+  }
+
+  /**
+   * Check whether every input of the tree is constant, so the result can only change at the
+   * next time boundary.
+   * @return true if the tree only depends on time
+   */
+  public boolean timeOnly() {
+    return inputs.isEmpty();
+  }
+
+  /**
+   * Record the current value of every input after the Logic failed.
+   * Only call this for people that are {@link #isTrackable}.
+   * @param logic The tested Logic tree.
+   * @param person The person being simulated.
+   * @param time The current time.
+   * @return the snapshot
+   */
+  public Object[] snapshot(Logic logic, Person person, long time) {
+    Object[] snapshot = new Object[inputs.size() + 2];
+    snapshot[0] = person.record;
+    snapshot[1] = logic.nextBoundary(person, time);
+    for (int i = 0; i < inputs.size(); i++) {
+      snapshot[i + 2] = inputs.get(i).read(person, time);
+    }
+    return snapshot;
+  }
+
+  /**
+   * Get the time until which the snapshot is valid if no input changes.
+   * @param snapshot A snapshot from {@link #snapshot}.
+   * @return the time boundary
+   */
+  public static long recheckAt(Object[] snapshot) {
+    return (Long) snapshot[1];
+  }
+
+  /**
+   * Check whether the Logic would give the same result as when the snapshot was taken.
+   * @param snapshot A snapshot from {@link #snapshot}, or null.
+   * @param person The person being simulated.
+   * @param time The current time.
+   * @return true if testing the Logic again is not necessary
+   */
+  public boolean unchanged(Object[] snapshot, Person person, long time) {
+    if (!matches(snapshot, person, time)) {
+      moduleStatistics.evaluated.increment();
+      return false;
+    }
+    moduleStatistics.skipped.increment();
+    return true;
+  }
+
+  private boolean matches(Object[] snapshot, Person person, long time) {
+    if (snapshot == null || !isTrackable(person) || time >= recheckAt(snapshot)
+        || snapshot[0] != person.record) {
+      return false;
+    }
+    for (int i = 0; i < inputs.size(); i++) {
+      if (!Objects.equals(snapshot[i + 2], inputs.get(i).read(person, time))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Check whether the Logic of a person can be tracked at all.
+   * @param person The person being simulated.
+   * @return false if conditions may search more than one health record
+   */
+  public static boolean isTrackable(Person person) {
+    return !person.hasMultipleRecords && !person.lossOfCareEnabled;
+  }
+
+  /**
+   * Get the earliest time at which an age comparison can change its result. Ages are whole
+   * units and a person gains at most one unit per shortest unit length, plus the unit that
+   * may end right away.
+   * @param time The current time.
+   * @param age The current age.
+   * @param quantity The age compared against.
+   * @param operator The comparison operator.
+   * @param unitLength The shortest length of one unit of age.
+   * @return the boundary, Long.MAX_VALUE if the result will never change
+   */
+  public static long ageBoundary(long time, double age, double quantity, String operator,
+      long unitLength) {
+    if (age > quantity) {
+      // age only grows, every comparison keeps its result
+      return Long.MAX_VALUE;
+    } else if (age == quantity) {
+      return (operator.equals("<") || operator.equals(">=")) ? Long.MAX_VALUE : time;
+    }
+    long units = (long) Math.ceil(quantity - age) - 1;
+    return time + (units * unitLength);
+  }
+
+  /**
+   * Get a time shortly before the start of the next calendar year or month, early enough to
+   * be safe in any time zone.
+   * @param time The current time.
+   * @param field Calendar.YEAR or Calendar.MONTH.
+   * @return the boundary, never before time
+   */
+  public static long calendarBoundary(long time, int field) {
+    Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    calendar.setTimeInMillis(time);
+    if (field == Calendar.YEAR) {
+      calendar.set(Calendar.MONTH, Calendar.JANUARY);
+    }
+    calendar.set(Calendar.DAY_OF_MONTH, 1);
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    calendar.add(field, 1);
+    return Math.max(time, calendar.getTimeInMillis() - DAY);
+  }
+}
@@ -2,7 +2,6 @@ package org.mitre.synthea.engine;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
 
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.HealthRecord;
@@ -18,6 +17,43 @@ public class HealthRecordEditors {
     this.registeredEditors = new ArrayList<HealthRecordEditor>();
   }
 
+  /**
+   * Remembers how far the encounters of a health record have been scanned, so that each time
+   * step only looks at the encounters added since the previous one. Time steps only move
+   * forward, so an encounter that starts before the current step never belongs to a later step.
+   * Use one cursor per person being simulated.
+   */
+  public static class EncounterCursor {
+    private List<HealthRecord.Encounter> encounters;
+    /** Every encounter before this position started before the last step. */
+    private int position;
+
+    /**
+     * Find the encounters that start at or after a given time.
+     * @param record The HealthRecord.
+     * @param start The start of the time step, never earlier than in the previous call.
+     * @return the encounters, in the order of the record
+     */
+    List<HealthRecord.Encounter> since(HealthRecord record, long start) {
+      if (record.encounters != encounters || position > record.encounters.size()) {
+        // a different record, e.g. with one record per provider
+        encounters = record.encounters;
+        position = 0;
+      }
+      while (position < encounters.size() && encounters.get(position).start < start) {
+        position++;
+      }
+      List<HealthRecord.Encounter> result = new ArrayList<HealthRecord.Encounter>();
+      for (int i = position; i < encounters.size(); i++) {
+        HealthRecord.Encounter encounter = encounters.get(i);
+        if (encounter.start >= start) {
+          result.add(encounter);
+        }
+      }
+      return result;
+    }
+  }
+
   /**
    * Get the singleton instance of HealthRecordEditors.
    * @return the one
@@ -50,11 +86,23 @@ public class HealthRecordEditors {
    * @param step The time step for the simulation
    */
   public void executeAll(Person person, HealthRecord record, long time, long step) {
+    executeAll(person, record, time, step, new EncounterCursor());
+  }
+
+  /**
+   * Runs all of the registered implementations of HealthRecordEditor, like
+   * {@link #executeAll(Person, HealthRecord, long, long)}, using a cursor kept across the time
+   * steps of a person to find the encounters of this step without scanning the whole record.
+   * @param person The Person to run on, and the source of randomness
+   * @param record The HealthRecord to potentially modify
+   * @param time The current time in the simulation
+   * @param step The time step for the simulation
+   * @param cursor The cursor of this person
+   */
+  public void executeAll(Person person, HealthRecord record, long time, long step,
+      EncounterCursor cursor) {
     if (this.registeredEditors.size() > 0) {
-      long start = time - step;
-      List<HealthRecord.Encounter> encountersThisStep = record.encounters.stream()
-          .filter(e -> e.start >= start)
-          .collect(Collectors.toList());
+      List<HealthRecord.Encounter> encountersThisStep = cursor.since(record, time - step);
       this.registeredEditors.forEach(m -> {
         if (m.shouldRun(person, record, time)) {
           m.process(person, encountersThisStep, time);
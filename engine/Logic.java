@@ -8,7 +8,7 @@ import java.util.TimeZone;
 
 import org.mitre.synthea.engine.Components.DateInput;
 import org.mitre.synthea.engine.Components.ExactWithUnit;
-import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.ConfigSnapshot;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.HealthRecord;
@@ -22,10 +22,79 @@ import org.mitre.synthea.world.concepts.HealthRecord.Medication;
  * expression. This class is stateless, and calling 'test' on an instance
  * must not modify state as instances of Logic within Modules are shared
  * across the population.
+ *
+ * <p>When a module is loaded, {@link #compile()} resolves everything that does not depend on
+ * the person or time once (operators, comparison values, fixed dates), so that 'test' does not
+ * interpret the module definition again on every call. Logic that was not compiled still
+ * works, it just takes the slower interpreted path.</p>
  */
 public abstract class Logic implements Serializable {
   public List<String> remarks;
 
+  /**
+   * Comparison operators of the module definitions, resolved once instead of matching the
+   * operator string on every test.
+   */
+  enum Operator {
+    LT("<"), LE("<="), EQ("=="), GE(">="), GT(">"), NE("!="),
+    IS_NIL("is nil"), IS_NOT_NIL("is not nil");
+
+    private final String symbol;
+
+    Operator(String symbol) {
+      this.symbol = symbol;
+    }
+
+    /**
+     * Resolve an operator string.
+     * @param symbol The operator as written in the module.
+     * @return the operator, or null if it is not supported and must be left to
+     *     Utilities.compare to report
+     */
+    static Operator of(String symbol) {
+      for (Operator operator : values()) {
+        if (operator.symbol.equals(symbol)) {
+          return operator;
+        }
+      }
+      return null;
+    }
+
+    boolean compare(double lhs, double rhs) {
+      switch (this) {
+        case LT:
+          return lhs < rhs;
+        case LE:
+          return lhs <= rhs;
+        case EQ:
+          return lhs == rhs;
+        case GE:
+          return lhs >= rhs;
+        case GT:
+          return lhs > rhs;
+        case NE:
+          return lhs != rhs;
+        case IS_NOT_NIL:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    boolean compare(Object lhs, Object rhs) {
+      if (this == IS_NIL) {
+        return lhs == null;
+      } else if (this == IS_NOT_NIL) {
+        return lhs != null;
+      } else if (lhs == null) {
+        return false;
+      } else if (lhs instanceof Number && rhs instanceof Number) {
+        return compare(((Number) lhs).doubleValue(), ((Number) rhs).doubleValue());
+      }
+      return Utilities.compare(lhs, rhs, symbol);
+    }
+  }
+
   /**
    * Test whether the logic is true for the given person at the given time.
    *
@@ -35,6 +104,37 @@ public abstract class Logic implements Serializable {
    */
   public abstract boolean test(Person person, long time);
 
+  /**
+   * Resolve everything that does not depend on the person or time, once when the module is
+   * loaded. Grouped conditions compile their sub-conditions.
+   */
+  void compile() {
+    // nothing to resolve
+  }
+
+  /**
+   * Describe the inputs this condition reads, for dependency tracked Guards
+   * (see {@link GuardInputs}). Conditions that can not describe their inputs mark the tree as
+   * untrackable.
+   *
+   * @param inputs Collects the inputs of the tree
+   */
+  void collectInputs(GuardInputs inputs) {
+    inputs.untrackable();
+  }
+
+  /**
+   * Get the earliest time at which the result of this condition could change while none of
+   * its inputs change, e.g. when an Age condition may pass its threshold.
+   *
+   * @param person Person the logic is executing against
+   * @param time Timestamp the logic was tested at
+   * @return the boundary, Long.MAX_VALUE if the result only depends on the inputs
+   */
+  long nextBoundary(Person person, long time) {
+    return Long.MAX_VALUE;
+  }
+
   /**
    * Find the most recent entry, of a specific type of HealthRecord.Entry
    * within the patient history. May return null.
@@ -48,9 +148,11 @@ public abstract class Logic implements Serializable {
       Person person, Class<T> classType, Code code) {
     // Find the most recent health record entry from the patient history
     HealthRecord.Entry entry = null;
-    for (State state : person.history) {
-      if (state.entry != null && classType.isInstance(state.entry)) {
-        T candidate = (T) state.entry;
+    ModuleHistory history = (ModuleHistory) person.history;
+    for (int i = 0; i < history.size(); i++) {
+      HealthRecord.Entry visited = history.visit(i).entry;
+      if (visited != null && classType.isInstance(visited)) {
+        T candidate = (T) visited;
         for (Code candidateCode : candidate.codes) {
           if (candidateCode.equals(code)) {
             entry = candidate;
@@ -75,6 +177,11 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return gender.equals(person.attributes.get(Person.GENDER));
     }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      inputs.addAttribute(Person.GENDER, false);
+    }
   }
 
   /**
@@ -85,6 +192,12 @@ public abstract class Logic implements Serializable {
     private Double quantity;
     private String unit;
     private String operator;
+    private transient Operator op;
+
+    @Override
+    void compile() {
+      op = Operator.of(operator);
+    }
 
     @Override
     public boolean test(Person person, long time) {
@@ -103,7 +216,26 @@ public abstract class Logic implements Serializable {
             + "' not currently supported in Age logic.");
       }
 
-      return Utilities.compare(age, quantity, operator);
+      return op == null ? Utilities.compare(age, quantity, operator) : op.compare(age, quantity);
+    }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      // only depends on time, see nextBoundary
+    }
+
+    @Override
+    long nextBoundary(Person person, long time) {
+      switch (unit) {
+        case "years":
+          return GuardInputs.ageBoundary(time, person.ageInYears(time), quantity, operator,
+              GuardInputs.SHORTEST_YEAR);
+        case "months":
+          return GuardInputs.ageBoundary(time, person.ageInMonths(time), quantity, operator,
+              GuardInputs.SHORTEST_MONTH);
+        default:
+          return time;
+      }
     }
   }
 
@@ -118,9 +250,32 @@ public abstract class Logic implements Serializable {
     private Integer month;
     private DateInput date;
     private String operator;
+    private transient Operator op;
+    private transient Long dateTime;
+
+    @Override
+    void compile() {
+      op = Operator.of(operator);
+      if (date != null) {
+        dateTime = testTime();
+      }
+    }
 
     @Override
     public boolean test(Person person, long time) {
+      if (op == null) {
+        return interpret(time);
+      } else if (year != null) {
+        return op.compare(Utilities.getYear(time), year);
+      } else if (month != null) {
+        return op.compare(Utilities.getMonth(time), month);
+      } else if (dateTime != null) {
+        return op.compare(time, dateTime);
+      }
+      return interpret(time);
+    }
+
+    private boolean interpret(long time) {
       if (year != null) {
         int currentyear = Utilities.getYear(time);
         return Utilities.compare(currentyear, year, operator);
@@ -128,16 +283,40 @@ public abstract class Logic implements Serializable {
         int currentmonth = Utilities.getMonth(time);
         return Utilities.compare(currentmonth, month, operator);
       } else if (date != null) {
-        Calendar testDate = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        testDate.set(date.year, date.month - 1, date.day, date.hour, date.minute, date.second);
-        testDate.set(Calendar.MILLISECOND,date.millisecond);
-        long testTime = testDate.getTimeInMillis();
-        return Utilities.compare(time, testTime, operator);
+        return Utilities.compare(time, testTime(), operator);
       } else {
         throw new UnsupportedOperationException("Date type "
             + "not currently supported in Date logic.");
       }
     }
+
+    private long testTime() {
+      Calendar testDate = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+      testDate.set(date.year, date.month - 1, date.day, date.hour, date.minute, date.second);
+      testDate.set(Calendar.MILLISECOND,date.millisecond);
+      return testDate.getTimeInMillis();
+    }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      // only depends on time, see nextBoundary
+    }
+
+    @Override
+    long nextBoundary(Person person, long time) {
+      if (year != null) {
+        return GuardInputs.calendarBoundary(time, Calendar.YEAR);
+      } else if (month != null) {
+        return GuardInputs.calendarBoundary(time, Calendar.MONTH);
+      } else if (date != null) {
+        long testTime = dateTime != null ? dateTime : testTime();
+        if (time < testTime) {
+          return testTime;
+        }
+        return time == testTime ? time : Long.MAX_VALUE;
+      }
+      return time;
+    }
   }
 
   /**
@@ -152,6 +331,11 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return category.equals(person.attributes.get(Person.SOCIOECONOMIC_CATEGORY));
     }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      inputs.addAttribute(Person.SOCIOECONOMIC_CATEGORY, false);
+    }
   }
 
   /**
@@ -165,6 +349,11 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return race.equalsIgnoreCase((String) person.attributes.get(Person.RACE));
     }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      inputs.addAttribute(Person.RACE, false);
+    }
   }
 
   /**
@@ -176,10 +365,23 @@ public abstract class Logic implements Serializable {
     private String symptom;
     private String operator;
     private double value;
+    private transient Operator op;
+
+    @Override
+    void compile() {
+      op = Operator.of(operator);
+    }
 
     @Override
     public boolean test(Person person, long time) {
-      return Utilities.compare((double) person.getSymptom(symptom), value, operator);
+      double symptomValue = person.getSymptom(symptom);
+      return op == null ? Utilities.compare(symptomValue, value, operator)
+          : op.compare(symptomValue, value);
+    }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      inputs.add((person, time) -> person.getSymptom(symptom));
     }
   }
 
@@ -199,6 +401,15 @@ public abstract class Logic implements Serializable {
     private String referencedByAttribute;
     private Object value;
     private Code valueCode;
+    private transient Operator op;
+    /** The value to compare against, valueCode if set. */
+    private transient Object expected;
+
+    @Override
+    void compile() {
+      op = Operator.of(operator);
+      expected = valueCode != null ? valueCode : value;
+    }
 
     @Override
     public boolean test(Person person, long time) {
@@ -224,7 +435,7 @@ public abstract class Logic implements Serializable {
             // then look in the module history.
             last = (HealthRecord.Observation)
                 findEntryFromHistory(person, HealthRecord.Observation.class, code);
-            if (Config.getAsBoolean("exporter.split_records.duplicate_data", false)) {
+            if (ConfigSnapshot.current().splitRecordsDuplicateData) {
               person.record.currentEncounter(time).observations.add(last);
             }
           }
@@ -241,12 +452,12 @@ public abstract class Logic implements Serializable {
           return false;
         }
       }
-      if (valueCode != null) {
+      if (op == null && valueCode != null) {
         value = valueCode;
       }
-      if (operator.equals("is nil")) {
+      if (op == Operator.IS_NIL || (op == null && operator.equals("is nil"))) {
         return observation == null;
-      } else if (operator.equals("is not nil")) {
+      } else if (op == Operator.IS_NOT_NIL || (op == null && operator.equals("is not nil"))) {
         return observation != null;
       } else if (observation == null) {
         if (this.codes != null) {
@@ -254,7 +465,7 @@ public abstract class Logic implements Serializable {
           //  using split records.
           // This issue occurs occasionally when using the split records feature -
           // see https://github.com/synthetichealth/synthea/issues/774.
-          if (Config.getAsBoolean("exporter.split_records", false)) {
+          if (ConfigSnapshot.current().splitRecords) {
             return false;
           }
           // Original exception that should be thrown:
@@ -265,10 +476,23 @@ public abstract class Logic implements Serializable {
         } else {
           throw new NullPointerException("Required observation is null.");
         }
+      } else if (op != null) {
+        return op.compare(observation.value, expected);
       } else {
         return Utilities.compare(observation.value, this.value, operator);
       }
     }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      if (this.codes != null) {
+        for (Code code : this.codes) {
+          inputs.add((person, time) -> person.record.getLatestObservation(code.code));
+        }
+      } else if (this.referencedByAttribute != null) {
+        inputs.addAttribute(this.referencedByAttribute, true);
+      }
+    }
   }
 
   /**
@@ -279,17 +503,36 @@ public abstract class Logic implements Serializable {
     private String operator;
 
     private Object value;
+    private transient Operator op;
+    private AttributeRegistry.Key key;
+
+    @Override
+    void compile() {
+      op = Operator.of(operator);
+      if (attribute != null) {
+        attribute = attribute.intern();
+        key = AttributeRegistry.register(attribute);
+      }
+    }
 
     @Override
     public boolean test(Person person, long time) {
       try {
-        return Utilities.compare(person.attributes.get(attribute), value, operator);
+        Object attributeValue = key == null ? person.attributes.get(attribute)
+            : AttributeMap.get(person.attributes, key);
+        return op == null ? Utilities.compare(attributeValue, value, operator)
+            : op.compare(attributeValue, value);
       } catch (Exception e) {
         String message = "Attribute Logic error: " + attribute + " " + operator + " " + value;
         message += ": " + e.getMessage();
         throw new RuntimeException(message, e);
       }
     }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      inputs.addAttribute(attribute, operator.equals("is nil") || operator.equals("is not nil"));
+    }
   }
 
   /**
@@ -298,6 +541,42 @@ public abstract class Logic implements Serializable {
    */
   private abstract static class GroupedCondition extends Logic {
     protected Collection<Logic> conditions;
+
+    @Override
+    void compile() {
+      for (Logic condition : conditions) {
+        condition.compile();
+      }
+    }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      for (Logic condition : conditions) {
+        condition.collectInputs(inputs);
+      }
+    }
+
+    /**
+     * Count the sub-conditions that are true. Every sub-condition is tested.
+     */
+    protected int countPassing(Person person, long time) {
+      int count = 0;
+      for (Logic condition : conditions) {
+        if (condition.test(person, time)) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    long nextBoundary(Person person, long time) {
+      long boundary = Long.MAX_VALUE;
+      for (Logic condition : conditions) {
+        boundary = Math.min(boundary, condition.nextBoundary(person, time));
+      }
+      return boundary;
+    }
   }
 
   /**
@@ -308,7 +587,12 @@ public abstract class Logic implements Serializable {
   public static class And extends GroupedCondition {
     @Override
     public boolean test(Person person, long time) {
-      return conditions.stream().allMatch(c -> c.test(person, time));
+      for (Logic condition : conditions) {
+        if (!condition.test(person, time)) {
+          return false;
+        }
+      }
+      return true;
     }
   }
 
@@ -320,7 +604,12 @@ public abstract class Logic implements Serializable {
   public static class Or extends GroupedCondition {
     @Override
     public boolean test(Person person, long time) {
-      return conditions.stream().anyMatch(c -> c.test(person, time));
+      for (Logic condition : conditions) {
+        if (condition.test(person, time)) {
+          return true;
+        }
+      }
+      return false;
     }
   }
 
@@ -336,6 +625,21 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return !condition.test(person, time);
     }
+
+    @Override
+    void compile() {
+      condition.compile();
+    }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      condition.collectInputs(inputs);
+    }
+
+    @Override
+    long nextBoundary(Person person, long time) {
+      return condition.nextBoundary(person, time);
+    }
   }
 
   /**
@@ -352,7 +656,7 @@ public abstract class Logic implements Serializable {
 
     @Override
     public boolean test(Person person, long time) {
-      return conditions.stream().filter(c -> c.test(person, time)).count() >= minimum;
+      return countPassing(person, time) >= minimum;
     }
   }
 
@@ -366,7 +670,7 @@ public abstract class Logic implements Serializable {
 
     @Override
     public boolean test(Person person, long time) {
-      return conditions.stream().filter(c -> c.test(person, time)).count() <= maximum;
+      return countPassing(person, time) <= maximum;
     }
   }
 
@@ -381,6 +685,11 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return true;
     }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      // constant
+    }
   }
 
   /**
@@ -393,6 +702,11 @@ public abstract class Logic implements Serializable {
     public boolean test(Person person, long time) {
       return false;
     }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      // constant
+    }
   }
 
   /**
@@ -419,7 +733,15 @@ public abstract class Logic implements Serializable {
         sinceTime = time - window;
       }
 
-      return person.hadPriorState(name, since, sinceTime);
+      return ModuleHistory.hadPriorState(person.history, name, since, sinceTime);
+    }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      if (within != null) {
+        inputs.untrackable();
+      }
+      // otherwise constant: the module history does not change while its Guard is blocked
     }
   }
 
@@ -449,7 +771,7 @@ public abstract class Logic implements Serializable {
           if (person.hasMultipleRecords) {
             HealthRecord.Entry entry = findItemWhenMultipleRecords(person, code);
             if (entry != null && entry.stop == 0L) {
-              if (Config.getAsBoolean("exporter.split_records.duplicate_data", false)) {
+              if (ConfigSnapshot.current().splitRecordsDuplicateData) {
                 addItemWhenDataIsDuplicated(person, time, entry);
               }
               return true;
@@ -469,6 +791,16 @@ public abstract class Logic implements Serializable {
       throw new RuntimeException(String.format("%s logic must be specified by code or attribute",
           this.getClass().getSimpleName()));
     }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      if (this.referencedByAttribute != null) {
+        // the referenced entry and whether it is still active
+        inputs.addAttribute(this.referencedByAttribute, true);
+      }
+      // without split records, test() only reads the current health record
+      inputs.add((person, time) -> test(person, time));
+    }
   }
 
   /**
@@ -585,10 +917,25 @@ public abstract class Logic implements Serializable {
     private org.mitre.synthea.world.concepts.VitalSign vitalSign;
     private String operator;
     private double value;
+    private transient Operator op;
+
+    @Override
+    void compile() {
+      op = Operator.of(operator);
+    }
 
     @Override
     public boolean test(Person person, long time) {
-      return Utilities.compare(person.getVitalSign(vitalSign, time), value, operator);
+      Double vitalSignValue = person.getVitalSign(vitalSign, time);
+      if (op == null || vitalSignValue == null) {
+        return Utilities.compare(vitalSignValue, value, operator);
+      }
+      return op.compare(vitalSignValue.doubleValue(), value);
+    }
+
+    @Override
+    void collectInputs(GuardInputs inputs) {
+      inputs.add((person, time) -> person.getVitalSign(vitalSign, time));
     }
   }
 }
\ No newline at end of file
@@ -0,0 +1,336 @@
+package org.mitre.synthea.engine;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.Range;
+import org.mitre.synthea.engine.Transition.DistributedTransitionOption;
+import org.mitre.synthea.engine.Transition.OptionSampler;
+import org.mitre.synthea.helpers.SimpleCSV;
+import org.mitre.synthea.helpers.Utilities;
+
+/**
+ * The rows of a lookup table used by LookupTableTransition, indexed for constant time lookup.
+ *
+ * <p>Rows are grouped by the exact values of their categorical attributes. Within a group, the
+ * boundaries of all age and time ranges split the age and time axes into elementary
+ * intervals, and every pair of intervals points at the single row covering it. A lookup is a
+ * hash on the attribute values followed by a binary search on each axis. Rows whose ranges
+ * overlap are rejected when the table is indexed, since it would be ambiguous which row
+ * applies.</p>
+ *
+ * <p>Once indexed, a table is immutable and may be shared between threads. Tables are loaded
+ * and cached by {@link LookupTables}.</p>
+ */
+public class LookupTable implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public final String name;
+  /** The attribute columns other than "age" and "time", in the order of their values. */
+  public final List<String> attributes;
+  public final boolean hasAge;
+  public final boolean hasTime;
+
+  /** Rows waiting to be indexed, null once the table is indexed. */
+  private Map<List<String>, List<Row>> rows = new HashMap<List<String>, List<Row>>();
+  private int rowCount;
+  private Map<List<String>, Grid> index;
+
+  /** A single row of the table. */
+  private static class Row implements Serializable {
+    private static final long serialVersionUID = 2L;
+    private final int line;
+    private final Range<Integer> ageRange;
+    private final Range<Long> timeRange;
+    private final OptionSampler options;
+
+    private Row(int line, Range<Integer> ageRange, Range<Long> timeRange,
+        OptionSampler options) {
+      this.line = line;
+      this.ageRange = ageRange;
+      this.timeRange = timeRange;
+      this.options = options;
+    }
+  }
+
+  /** The rows for one combination of attribute values, by age and time interval. */
+  private static class Grid implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /** Start of each age interval, the last entry only ends the previous interval. */
+    private long[] ageStarts;
+    private long[] timeStarts;
+    /** Rows by age interval * number of time intervals + time interval. */
+    private Row[] cells;
+
+    private int timeIntervals() {
+      return timeStarts == null ? 1 : timeStarts.length - 1;
+    }
+  }
+
+  /**
+   * Create an empty lookup table.
+   * @param name The name of the table, for error messages.
+   * @param attributes The attribute columns, in the order of the CSV file.
+   */
+  public LookupTable(String name, List<String> attributes) {
+    this.name = name;
+    this.hasAge = attributes.contains("age");
+    this.hasTime = attributes.contains("time");
+    List<String> categorical = new ArrayList<String>(attributes);
+    categorical.remove("age");
+    categorical.remove("time");
+    this.attributes = categorical;
+  }
+
+  /**
+   * Add a row.
+   * @param values The values of the attribute columns other than "age" and "time".
+   * @param ageRange The age range of the row, if the table has an age column.
+   * @param timeRange The time range of the row, if the table has a time column.
+   * @param options The transition probabilities of the row, fixed numbers.
+   */
+  public void addRow(List<String> values, Range<Integer> ageRange, Range<Long> timeRange,
+      List<DistributedTransitionOption> options) {
+    if (rows == null) {
+      throw new IllegalStateException("Lookup table " + name + " is already indexed");
+    }
+    OptionSampler sampler = OptionSampler.of(options);
+    if (sampler == null) {
+      throw new RuntimeException("LOOKUP TABLE '" + name + "' ERROR: row " + (rowCount + 1)
+          + " has a negative or missing probability");
+    }
+    List<Row> group = rows.computeIfAbsent(values, k -> new ArrayList<Row>());
+    group.add(new Row(++rowCount, ageRange, timeRange, sampler));
+  }
+
+  /**
+   * Build the index once all rows have been added.
+   * @throws RuntimeException if two rows with the same attribute values overlap.
+   */
+  public void index() {
+    Map<List<String>, Grid> newIndex = new HashMap<List<String>, Grid>();
+    for (Map.Entry<List<String>, List<Row>> group : rows.entrySet()) {
+      newIndex.put(group.getKey(), buildGrid(group.getKey(), group.getValue()));
+    }
+    index = Collections.unmodifiableMap(newIndex);
+    rows = null;
+  }
+
+  /**
+   * Get the number of rows in the table.
+   * @return the row count
+   */
+  public int size() {
+    return rowCount;
+  }
+
+  /**
+   * Estimate the heap used by the indexed table, assuming a 64-bit JVM with compressed
+   * references.
+   * @return the approximate size in bytes
+   */
+  public long estimateBytes() {
+    long bytes = 48 + 48L * index.size();
+    Set<Row> counted = Collections.newSetFromMap(new IdentityHashMap<Row, Boolean>());
+    for (Map.Entry<List<String>, Grid> entry : index.entrySet()) {
+      bytes += 40;
+      for (String value : entry.getKey()) {
+        bytes += 40 + value.length();
+      }
+      Grid grid = entry.getValue();
+      bytes += 24 + 16 + 4L * grid.cells.length;
+      bytes += grid.ageStarts == null ? 0 : 16 + 8L * grid.ageStarts.length;
+      bytes += grid.timeStarts == null ? 0 : 16 + 8L * grid.timeStarts.length;
+      for (Row row : grid.cells) {
+        if (row != null && counted.add(row)) {
+          // the row, its ranges and its sampler arrays
+          bytes += 32 + (row.ageRange == null ? 0 : 48) + (row.timeRange == null ? 0 : 64)
+              + 24 + 4 * 16 + 24L * row.options.size();
+        }
+      }
+    }
+    return bytes;
+  }
+
+  private Grid buildGrid(List<String> values, List<Row> group) {
+    Grid grid = new Grid();
+    if (hasAge) {
+      TreeSet<Long> starts = new TreeSet<Long>();
+      for (Row row : group) {
+        starts.add((long) row.ageRange.getMinimum());
+        starts.add(row.ageRange.getMaximum() + 1L);
+      }
+      grid.ageStarts = toArray(starts);
+    }
+    if (hasTime) {
+      TreeSet<Long> starts = new TreeSet<Long>();
+      for (Row row : group) {
+        starts.add(row.timeRange.getMinimum());
+        starts.add(endOf(row.timeRange));
+      }
+      grid.timeStarts = toArray(starts);
+    }
+    int ageIntervals = hasAge ? grid.ageStarts.length - 1 : 1;
+    grid.cells = new Row[ageIntervals * grid.timeIntervals()];
+    for (Row row : group) {
+      int ageFrom = 0;
+      int ageTo = 1;
+      if (hasAge) {
+        ageFrom = Arrays.binarySearch(grid.ageStarts, row.ageRange.getMinimum());
+        ageTo = Arrays.binarySearch(grid.ageStarts, row.ageRange.getMaximum() + 1L);
+      }
+      int timeFrom = 0;
+      int timeTo = 1;
+      if (hasTime) {
+        timeFrom = Arrays.binarySearch(grid.timeStarts, row.timeRange.getMinimum());
+        timeTo = Arrays.binarySearch(grid.timeStarts, endOf(row.timeRange));
+      }
+      for (int a = ageFrom; a < ageTo; a++) {
+        for (int t = timeFrom; t < timeTo; t++) {
+          int cell = a * grid.timeIntervals() + t;
+          if (grid.cells[cell] != null) {
+            throw new RuntimeException("LOOKUP TABLE '" + name + "' ERROR: rows "
+                + grid.cells[cell].line + " and " + row.line + " overlap for attributes "
+                + values);
+          }
+          grid.cells[cell] = row;
+        }
+      }
+    }
+    return grid;
+  }
+
+  /** Get the first time after a time range, the range ends are inclusive. */
+  private static long endOf(Range<Long> timeRange) {
+    long maximum = timeRange.getMaximum();
+    return maximum == Long.MAX_VALUE ? maximum : maximum + 1;
+  }
+
+  private static long[] toArray(TreeSet<Long> values) {
+    long[] array = new long[values.size()];
+    int i = 0;
+    for (Long value : values) {
+      array[i++] = value;
+    }
+    return array;
+  }
+
+  /**
+   * Find the row that applies to a person.
+   * @param values The person's values of the attribute columns other than "age" and "time".
+   * @param age The age of the person in years, ignored if the table has no age column.
+   * @param time The current time, ignored if the table has no time column.
+   * @return the transition probabilities of the row, or null if no row applies
+   */
+  OptionSampler lookup(List<String> values, int age, long time) {
+    Grid grid = index.get(values);
+    if (grid == null) {
+      return null;
+    }
+    int a = 0;
+    if (hasAge) {
+      a = interval(grid.ageStarts, age);
+      if (a < 0) {
+        return null;
+      }
+    }
+    int t = 0;
+    if (hasTime) {
+      t = interval(grid.timeStarts, time);
+      if (t < 0) {
+        return null;
+      }
+    }
+    Row row = grid.cells[a * grid.timeIntervals() + t];
+    return row == null ? null : row.options;
+  }
+
+  /**
+   * Find the interval that contains a value.
+   * @return the index of the interval, or -1 if the value is outside all intervals
+   */
+  private static int interval(long[] starts, long value) {
+    int position = Arrays.binarySearch(starts, value);
+    int interval = position >= 0 ? position : -position - 2;
+    return interval < starts.length - 1 ? interval : -1;
+  }
+
+  /**
+   * Parse a lookup table from CSV. The last columns hold the transition probabilities for
+   * the states named in their headers, all other columns are attributes.
+   * @param fileName The name of the CSV file, for error messages.
+   * @param csv The contents of the CSV file.
+   * @param transitionStates The states the transition may move to, one column each.
+   * @return the indexed table
+   * @throws IOException if the CSV can not be parsed.
+   */
+  public static LookupTable parse(String fileName, String csv, List<String> transitionStates)
+      throws IOException {
+    List<? extends Map<String, String>> lookupTable = SimpleCSV.parse(csv);
+
+    // Retrieve CSV column headers.
+    List<String> columnHeaders = new ArrayList<String>(lookupTable.get(0).keySet());
+    // Parse the list of attributes.
+    List<String> attributes = new ArrayList<String>(columnHeaders.subList(0,
+        columnHeaders.size() - transitionStates.size()));
+    // Parse the list of states to transition to.
+    List<String> stateColumns = columnHeaders.subList((columnHeaders.size()
+        - transitionStates.size()), columnHeaders.size());
+    for (String stateColumn : stateColumns) {
+      if (!transitionStates.contains(stateColumn)) {
+        throw new RuntimeException("LOOKUP TABLE ERROR: CSV column state name '"
+            + stateColumn + "' does not match a JSON state to transition to in CSV '"
+            + fileName + "'");
+      }
+    }
+    LookupTable table = new LookupTable(fileName, attributes);
+
+    // Insert each row of CSV into the lookup table.
+    for (Map<String, String> currentRow : lookupTable) {
+      // Extract attributes from current CSV row.
+      List<String> rowAttributes = new ArrayList<String>(currentRow.values());
+      rowAttributes = rowAttributes.subList(0, attributes.size());
+      Range<Integer> ageRange = null;
+      Range<Long> timeRange = null;
+      List<String> rowValues = new ArrayList<String>(table.attributes.size());
+      for (int i = 0; i < attributes.size(); i++) {
+        String value = rowAttributes.get(i);
+        if (attributes.get(i).equals("age")) {
+          if (!value.contains("-")
+              || value.substring(0, value.indexOf("-")).length() < 1
+              || value.substring(value.indexOf("-") + 1).length() < 1) {
+            throw new RuntimeException(
+                "LOOKUP TABLE '" + fileName
+                + "' ERROR: Age Range must be in the form: 'ageLow-ageHigh'. Found '"
+                + value + "'");
+          }
+          ageRange = Range.between(
+              Integer.parseInt(value.substring(0, value.indexOf("-"))),
+              Integer.parseInt(value.substring(value.indexOf("-") + 1)));
+        } else if (attributes.get(i).equals("time")) {
+          timeRange = Utilities.parseDateRange(value);
+        } else {
+          rowValues.add(value);
+        }
+      }
+      // Transition probabilities of this row.
+      List<DistributedTransitionOption> options = new ArrayList<DistributedTransitionOption>();
+      for (String stateColumn : stateColumns) {
+        options.add(new DistributedTransitionOption(stateColumn,
+            Double.parseDouble(currentRow.get(stateColumn))));
+      }
+      table.addRow(rowValues, ageRange, timeRange, options);
+    }
+    table.index();
+    return table;
+  }
+}
@@ -0,0 +1,210 @@
+package org.mitre.synthea.engine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.Utilities;
+
+/**
+ * Loads the lookup tables of LookupTableTransitions. Each table is requested when a module
+ * that uses it is loaded, loaded in the background while the remaining modules are parsed, and
+ * shared by every transition that names it. The Generator waits for all requested tables with
+ * {@link #awaitAll()} before simulating, so no table is parsed during simulation.
+ *
+ * <p>When "generate.lookup_tables.binary_cache" is enabled, the indexed table is also
+ * serialized to a file next to its CSV, together with a hash of the CSV contents and the
+ * transition states. A later run with the same CSV reads the cached table instead of parsing
+ * the CSV. Tables loaded from a JAR are not cached.</p>
+ */
+public class LookupTables {
+  private static final String CACHE_SUFFIX = ".bin";
+
+  private static final Map<String, CompletableFuture<Loaded>> tables =
+      new ConcurrentHashMap<String, CompletableFuture<Loaded>>();
+  private static final boolean BINARY_CACHE =
+      Config.getAsBoolean("generate.lookup_tables.binary_cache", false);
+
+  /** A loaded table and how it was loaded, for the report. */
+  private static class Loaded {
+    private final LookupTable table;
+    private final boolean fromCache;
+    private final long nanos;
+
+    private Loaded(LookupTable table, boolean fromCache, long nanos) {
+      this.table = table;
+      this.fromCache = fromCache;
+      this.nanos = nanos;
+    }
+  }
+
+  /**
+   * Start loading a lookup table, unless it has already been requested.
+   * @param lookupTableName The name of the CSV file within "generate.lookup_tables".
+   * @param transitionStates The states the transition may move to, one column each.
+   */
+  public static void request(String lookupTableName, List<String> transitionStates) {
+    List<String> states = new ArrayList<String>(transitionStates);
+    tables.computeIfAbsent(lookupTableName,
+        name -> CompletableFuture.supplyAsync(() -> load(name, states)));
+  }
+
+  /**
+   * Get a lookup table, waiting for it to finish loading if necessary.
+   * @param lookupTableName The name of a table that has been requested.
+   * @return the table
+   */
+  public static LookupTable get(String lookupTableName) {
+    CompletableFuture<Loaded> future = tables.get(lookupTableName);
+    if (future == null) {
+      throw new IllegalStateException("Lookup table " + lookupTableName + " was not requested");
+    }
+    try {
+      return future.join().table;
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Wait until every requested table has been loaded and print the load time and estimated
+   * heap size of each.
+   * @throws RuntimeException if a table could not be loaded.
+   */
+  public static void awaitAll() {
+    Map<String, LookupTable> loaded = new TreeMap<String, LookupTable>();
+    for (String name : tables.keySet()) {
+      loaded.put(name, get(name));
+    }
+    if (loaded.isEmpty()) {
+      return;
+    }
+    System.out.println("Lookup tables:");
+    long totalBytes = 0;
+    for (String name : loaded.keySet()) {
+      Loaded table = tables.get(name).join();
+      long bytes = table.table.estimateBytes();
+      totalBytes += bytes;
+      System.out.printf("  %s: %d rows, %s in %.1f ms, ~%d KB\n", name, table.table.size(),
+          table.fromCache ? "cached" : "parsed", table.nanos / 1e6, bytes / 1024);
+    }
+    System.out.printf("  [%d loaded, ~%d KB]\n", loaded.size(), totalBytes / 1024);
+  }
+
+  private static Loaded load(String lookupTableName, List<String> transitionStates) {
+    long start = System.nanoTime();
+    String fileName = Config.get("generate.lookup_tables") + lookupTableName;
+    String csv;
+    try {
+      csv = Utilities.readResource(fileName, true, true);
+    } catch (IOException e) {
+      throw new RuntimeException("LOOKUP TABLE '" + fileName + "' ERROR: unable to read", e);
+    }
+    Path cacheFile = BINARY_CACHE ? cacheFile(fileName) : null;
+    String hash = cacheFile == null ? null : hash(csv, transitionStates);
+    if (cacheFile != null) {
+      LookupTable cached = readCache(cacheFile, hash);
+      if (cached != null) {
+        return new Loaded(cached, true, System.nanoTime() - start);
+      }
+    }
+    LookupTable table;
+    try {
+      table = LookupTable.parse(fileName, csv, transitionStates);
+    } catch (IOException e) {
+      throw new RuntimeException("LOOKUP TABLE '" + fileName + "' ERROR: unable to parse", e);
+    }
+    if (cacheFile != null) {
+      writeCache(cacheFile, hash, table);
+    }
+    return new Loaded(table, false, System.nanoTime() - start);
+  }
+
+  /**
+   * Find where the cache of a table belongs, next to its CSV file.
+   * @return the cache file, or null if the CSV is not a file, e.g. inside a JAR
+   */
+  private static Path cacheFile(String fileName) {
+    try {
+      Path csvFile = Paths.get(fileName);
+      if (!Files.isRegularFile(csvFile)) {
+        URL url = LookupTables.class.getClassLoader().getResource(fileName);
+        if (url == null || !url.getProtocol().equals("file")) {
+          return null;
+        }
+        csvFile = Paths.get(url.toURI());
+      }
+      return csvFile.resolveSibling(csvFile.getFileName() + CACHE_SUFFIX);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  private static String hash(String csv, List<String> transitionStates) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(csv.getBytes(StandardCharsets.UTF_8));
+      digest.update(String.join("\n", transitionStates).getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static LookupTable readCache(Path cacheFile, String hash) {
+    if (!Files.isRegularFile(cacheFile)) {
+      return null;
+    }
+    try (ObjectInputStream in = new ObjectInputStream(
+        new BufferedInputStream(Files.newInputStream(cacheFile)))) {
+      if (!hash.equals(in.readUTF())) {
+        return null;
+      }
+      return (LookupTable) in.readObject();
+    } catch (Exception e) {
+      // stale or unreadable, e.g. written by an older version: parse the CSV again
+      return null;
+    }
+  }
+
+  private static void writeCache(Path cacheFile, String hash, LookupTable table) {
+    try {
+      Path temp = Files.createTempFile(cacheFile.getParent(), "lookup", ".tmp");
+      try (ObjectOutputStream out = new ObjectOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeUTF(hash);
+        out.writeObject(table);
+      }
+      // concurrent runs may race, each of them writes a complete file
+      Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Unable to cache lookup table " + cacheFile + ": " + e.getMessage());
+    }
+  }
+}
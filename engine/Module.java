@@ -24,7 +24,6 @@ import java.nio.file.spi.FileSystemProvider;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -51,9 +50,11 @@ import org.mitre.synthea.world.agents.Person;
  * Module represents the entry point of a generic module.
  *
  * <p>The `modules` map is the static list of generic modules. It is loaded once per process,
- * and the list of modules is shared between the generated population. Because we share modules
- * across the population, it is important that States are cloned before they are executed.
- * This keeps the "master" copy of the module clean.
+ * and the modules and their State definitions are shared between the generated population and
+ * all generator threads. State definitions are immutable: every visit to a state is recorded in
+ * a {@link Visit} in the person's {@link ModuleHistory}, which holds the entered and exited
+ * times, the resulting entry and any other per-visit data. This keeps the "master" copy of the
+ * module clean.
  */
 public class Module implements Cloneable, Serializable {
 
@@ -285,6 +286,22 @@ public class Module implements Cloneable, Serializable {
   public Double gmfVersion;
   public List<String> remarks;
   private Map<String, State> states;
+  /** Copies of this submodule acting on behalf of a calling module, by calling module name. */
+  private transient Map<String, Module> callerCopies;
+  /** Attribute keys derived from the name, see {@link #activeWellnessKey()}. */
+  private transient volatile Keys keys;
+
+  /** Person attribute keys of a module, built once instead of on every timestep. */
+  private static final class Keys {
+    private final String name;
+    private final AttributeRegistry.Key activeWellness;
+
+    private Keys(String name) {
+      this.name = name;
+      this.activeWellness = AttributeRegistry.register(
+          EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + name);
+    }
+  }
 
   protected Module() {
     // no-args constructor only allowed to be used by subclasses
@@ -330,7 +347,9 @@ public class Module implements Cloneable, Serializable {
   }
 
   /**
-   * Clone this module. Never provide the original.
+   * Clone this module, including a copy of every State definition.
+   * Modules are shared between people, so this is only needed when a module must act under
+   * a different name, see {@link #calledFrom(String)}.
    */
   public Module clone() {
     Module clone = new Module();
@@ -354,6 +373,25 @@ public class Module implements Cloneable, Serializable {
     return clone;
   }
 
+  /**
+   * Get the person attribute that tracks whether this module has used the current wellness
+   * encounter. The key is interned, so lookups find it by identity.
+   * @return the attribute key
+   */
+  public String activeWellnessKey() {
+    return keys().activeWellness.name;
+  }
+
+  private Keys keys() {
+    Keys current = keys;
+    // the name of a copy changes in calledFrom(), before the copy is shared
+    if (current == null || current.name != name) {
+      current = new Keys(name);
+      keys = current;
+    }
+    return current;
+  }
+
   /**
    * Process this Module with the given Person at the specified time within the simulation.
    * Processing will complete if the person dies.
@@ -379,16 +417,15 @@ public class Module implements Cloneable, Serializable {
    *          : whether or not to terminate if the patient is dead
    * @return completed : whether or not this Module completed.
    */
-  @SuppressWarnings("unchecked")
   public boolean process(Person person, long time, boolean terminateOnDeath) {
     if (terminateOnDeath && !person.alive(time)) {
       return true;
     }
     // Possibly reset wellness encounters for this module.
-    String activeKey = EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + this.name;
-    if (!person.attributes.containsKey(activeKey)) {
+    AttributeRegistry.Key activeKey = keys().activeWellness;
+    if (AttributeMap.get(person.attributes, activeKey) == null) {
       // "false" means the person has not entered (or is still within) a wellness encounter
-      person.attributes.put(activeKey, false);
+      AttributeMap.put(person.attributes, activeKey, false);
     }
     person.history = null;
     // what current state is this person in?
@@ -396,25 +433,26 @@ public class Module implements Cloneable, Serializable {
     if (this.submodule) {
       historyKey = this.submoduleName;
     }
-    if (!person.attributes.containsKey(historyKey)) {
-      person.history = new LinkedList<State>();
-      person.history.add(initialState());
-      person.attributes.put(historyKey, person.history);
+    ModuleHistory history = (ModuleHistory) person.attributes.get(historyKey);
+    if (history == null) {
+      history = new ModuleHistory();
+      history.enter(initialState());
+      person.attributes.put(historyKey, history);
     }
-    person.history = (List<State>) person.attributes.get(historyKey);
-    State current = person.history.get(0);
+    person.history = history;
+    Visit current = history.current();
     // System.out.println(" Resuming at " + current.name);
     // process the current state,
     // looping until module is finished,
     // probably more than one state
     String nextStateName = null;
-    while (current.run(person, time, terminateOnDeath)) {
-      Long exited = current.exited;
-      nextStateName = current.transition(person, time);
+    while (current.state.run(current, person, time, terminateOnDeath)) {
+      long exited = current.exited;
+      nextStateName = current.state.transition(person, time);
       // System.out.println(" Transitioning to " + nextStateName);
-      current = states.get(nextStateName).clone(); // clone the state so we don't dirty the original
-      person.history.add(0, current);
-      if (exited != null && exited < time) {
+      // the State definition is shared, the visit holds this person's data
+      current = history.enter(states.get(nextStateName));
+      if (exited != Visit.NOT_SET && exited < time) {
         // stop if the patient died in the meantime...
         if (terminateOnDeath && !person.alive(exited)) {
           return true;
@@ -426,14 +464,61 @@ public class Module implements Cloneable, Serializable {
             return true;
           }
         }
-        current = person.history.get(0);
+        current = history.current();
+      }
+    }
+    return (current.state instanceof State.Terminal);
+  }
+
+  /**
+   * Get a copy of this submodule that acts under the name of the calling module, so that the
+   * submodule is empowered (and vice versa) to act on encounters created using the same name.
+   * Copies are created once per calling module and shared from then on.
+   * @param callerName The name of the calling module.
+   * @return a submodule named after the calling module
+   */
+  public Module calledFrom(String callerName) {
+    Map<String, Module> copies = callerCopies;
+    if (copies == null) {
+      synchronized (this) {
+        if (callerCopies == null) {
+          callerCopies = new ConcurrentHashMap<String, Module>();
+        }
+        copies = callerCopies;
       }
     }
-    return (current instanceof State.Terminal);
+    return copies.computeIfAbsent(callerName, key -> {
+      Module copy = this.clone();
+      copy.name = key;
+      return copy;
+    });
+  }
+
+  /**
+   * Get the earliest time at which processing this module could change the person, which is
+   * when the current state stops blocking. Java modules and states that have to test a
+   * condition, e.g. Guards, are processed at every timestep.
+   * @param person the person being simulated
+   * @param time the date within the simulated world
+   * @return `time` if the module has to be processed at this timestep
+   */
+  public long nextWakeup(Person person, long time) {
+    if (states == null) {
+      // java modules keep their own cadence
+      return time;
+    }
+    String historyKey = (this.submodule && this.submoduleName != null)
+        ? this.submoduleName : this.name;
+    ModuleHistory history = (ModuleHistory) person.attributes.get(historyKey);
+    if (history == null || history.isEmpty()) {
+      return time;
+    }
+    Visit current = history.current();
+    return current.state.nextWakeup(current, person, time);
   }
 
   private State initialState() {
-    return states.get("Initial").clone(); // all Initial states have name Initial
+    return states.get("Initial"); // all Initial states have name Initial
   }
 
   /**
@@ -516,7 +601,8 @@ public class Module implements Cloneable, Serializable {
       if (fault != null) {
         throw new RuntimeException(fault);
       }
-      return module.clone();
+      // modules are shared, State definitions are never executed directly
+      return module;
     }
   }
 }
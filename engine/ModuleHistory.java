@@ -0,0 +1,364 @@
+package org.mitre.synthea.engine;
+
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mitre.synthea.helpers.ConfigSnapshot;
+
+/**
+ * The history of the states a person has visited in a single module, as stored in
+ * `person.history` and in the person attributes under the module name. Like the list it
+ * replaces, index 0 is the current state and the last element is the oldest retained visit.
+ *
+ * <p>A long life in a module that cycles every few weeks visits tens of thousands of states, and
+ * keeping every visit was the largest consumer of heap per person. This list keeps only:
+ * <ul>
+ * <li>the most recent visits, see {@link #RECENT_VISITS},</li>
+ * <li>older onset states that are still waiting to be diagnosed at a future encounter, and are
+ * not hidden from it by a later visit to an encounter state of the same name (see
+ * State.Encounter#diagnosePastConditions),</li>
+ * <li>the last visit to every state name, so that {@link #hadPriorState} runs in constant time,
+ * </li>
+ * <li>when "exporter.json.include_module_history" is enabled, the name, entered and exited
+ * time of every visit in primitive arrays, for the JSON export.</li>
+ * </ul>
+ * When "exporter.split_records" is enabled every visit is retained, because the health record
+ * entries of older visits are searched by Logic.Observation.</p>
+ *
+ * <p>The list elements are the shared State definitions. The per-person data of each visit,
+ * such as the entered and exited times and the resulting entry, is kept in a {@link Visit}, see
+ * {@link #visit(int)}. Visits that were compacted away and can no longer be reached are reused
+ * for later visits, so that moving from state to state does not allocate.</p>
+ *
+ * <p>{@link #hadPriorState} relies on exit times never decreasing along the history, which
+ * holds because time only rewinds to the exit time of the state that was just completed.</p>
+ */
+public class ModuleHistory extends AbstractList<State> implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Number of most recent visits that are always retained. */
+  public static final int RECENT_VISITS = 16;
+
+
+  /** The last visit to a state name. */
+  private static class LastVisit implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final int id;
+    /** The visit, until it is compacted away after it exited. */
+    private Visit visit;
+    /** The exited time of the visit, once it was compacted away. */
+    private long exited;
+    private long sequence;
+
+    private LastVisit(int id) {
+      this.id = id;
+    }
+  }
+
+  /** Recent visits, oldest first. */
+  private final ArrayList<Visit> recent = new ArrayList<Visit>();
+  /** Older visits that may still affect a later state, oldest first. */
+  private ArrayList<Visit> kept = new ArrayList<Visit>();
+  /** Compacted visits that can no longer be reached, ready to be reused. */
+  private transient ArrayDeque<Visit> spare;
+  /** Names of the encounter states among the visits that were compacted away. */
+  private final Set<String> compactedEncounters = new HashSet<String>();
+
+  private final Map<String, LastVisit> lastVisits = new HashMap<String, LastVisit>();
+  private final List<String> names = new ArrayList<String>();
+  private long sequence;
+
+  private int logSize;
+  private int[] logNames = new int[0];
+  private long[] logEntered = new long[0];
+  private long[] logExited = new long[0];
+  /** Logged visits that had not exited yet when they were logged, by log position. */
+  private final Map<Integer, Visit> openLog = new HashMap<Integer, Visit>();
+
+  /** Whether every visit is retained, see "exporter.split_records". */
+  private final boolean retainAll;
+  /** Whether every visit is logged, see "exporter.json.include_module_history". */
+  private final boolean logVisits;
+
+  /**
+   * Create an empty history, with the settings of the Generator running on this thread.
+   */
+  public ModuleHistory() {
+    ConfigSnapshot config = ConfigSnapshot.current();
+    retainAll = config.splitRecords;
+    logVisits = config.jsonIncludeModuleHistory;
+  }
+
+  @Override
+  public State get(int index) {
+    return visit(index).state;
+  }
+
+  /**
+   * Get a visit, where index 0 is the current visit.
+   * @param index The position of the visit in this history.
+   * @return the visit
+   */
+  public Visit visit(int index) {
+    int recentSize = recent.size();
+    if (index < recentSize) {
+      return recent.get(recentSize - 1 - index);
+    }
+    return kept.get(kept.size() - 1 - (index - recentSize));
+  }
+
+  /**
+   * Get the current visit.
+   * @return the visit at index 0
+   */
+  public Visit current() {
+    return visit(0);
+  }
+
+  @Override
+  public int size() {
+    return recent.size() + kept.size();
+  }
+
+  /**
+   * Add a visit. Visits can only be added as the new current state, at index 0.
+   */
+  @Override
+  public void add(int index, State state) {
+    if (index != 0 && !isEmpty()) {
+      throw new UnsupportedOperationException("Visits can only be added at index 0");
+    }
+    enter(state);
+  }
+
+  /**
+   * Start a new visit to a state, which becomes the current visit.
+   * @param state The shared State definition.
+   * @return the new visit
+   */
+  public Visit enter(State state) {
+    Visit visit = (spare == null) ? null : spare.poll();
+    if (visit == null) {
+      visit = new Visit(state);
+    } else {
+      visit.reset(state);
+    }
+    recent.add(visit);
+    index(state.name, visit, Visit.NOT_SET, ++sequence);
+    modCount++;
+    if (!retainAll && recent.size() >= 2 * RECENT_VISITS) {
+      compact(RECENT_VISITS);
+    }
+    return visit;
+  }
+
+  /**
+   * Add the visits of a submodule history at the front of this history.
+   */
+  @Override
+  public boolean addAll(int index, Collection<? extends State> states) {
+    if (index != 0 && !isEmpty()) {
+      throw new UnsupportedOperationException("Visits can only be added at index 0");
+    }
+    if (!(states instanceof ModuleHistory)) {
+      List<State> oldestFirst = new ArrayList<State>(states);
+      for (int i = oldestFirst.size() - 1; i >= 0; i--) {
+        add(0, oldestFirst.get(i));
+      }
+      return !oldestFirst.isEmpty();
+    }
+    ModuleHistory other = (ModuleHistory) states;
+    if (!retainAll) {
+      // every visit of the other history is more recent than every visit of this one
+      compact(0);
+      kept.removeIf(visit -> other.compactedEncounters.contains(visit.pendingEncounter()));
+      compactedEncounters.addAll(other.compactedEncounters);
+      kept.addAll(other.kept);
+    }
+    for (LastVisit last : other.lastVisits.values()) {
+      index(other.names.get(last.id), last.visit, last.exited, sequence + last.sequence);
+    }
+    sequence += other.sequence;
+    for (int i = 0; i < other.logSize; i++) {
+      Visit open = other.openLog.get(i);
+      if (open != null) {
+        openLog.put(logSize, open);
+      }
+      log(lastVisits.get(other.names.get(other.logNames[i])).id,
+          other.logEntered[i], other.logExited[i]);
+    }
+    recent.addAll(other.recent);
+    modCount++;
+    return !other.isEmpty();
+  }
+
+  private void index(String name, Visit visit, long exited, long visitSequence) {
+    LastVisit last = lastVisits.get(name);
+    if (last == null) {
+      last = new LastVisit(names.size());
+      names.add(name);
+      lastVisits.put(name, last);
+    }
+    if (visitSequence > last.sequence) {
+      last.visit = visit;
+      last.exited = exited;
+      last.sequence = visitSequence;
+    }
+  }
+
+  /**
+   * Compact all but the most recent visits. Compacted visits are logged when the module history
+   * is exported, and only retained while they can still affect a later state.
+   * @param retain The number of most recent visits to leave untouched.
+   */
+  private void compact(int retain) {
+    int count = recent.size() - retain;
+    if (count <= 0) {
+      return;
+    }
+    List<Visit> compacted = recent.subList(0, count);
+    ArrayList<Visit> pending = new ArrayList<Visit>(kept.size() + 4);
+    for (Visit visit : kept) {
+      if (visit.pendingEncounter() != null) {
+        pending.add(visit);
+      }
+    }
+    if (spare == null) {
+      spare = new ArrayDeque<Visit>(RECENT_VISITS);
+    }
+    for (Visit visit : compacted) {
+      String name = visit.state.name;
+      if (logVisits) {
+        if (visit.exited == Visit.NOT_SET) {
+          // e.g. a CallSubmodule state, which exits once the submodule returns
+          openLog.put(logSize, visit);
+        }
+        log(lastVisits.get(name).id, visit.entered, visit.exited);
+      }
+      if (visit.state instanceof State.Encounter) {
+        // later encounters of the same name stop looking at this one, so anything
+        // waiting for an encounter of this name before it will never be diagnosed
+        pending.removeIf(onset -> name.equals(onset.pendingEncounter()));
+        compactedEncounters.add(name);
+      } else if (visit.pendingEncounter() != null) {
+        pending.add(visit);
+        continue;
+      }
+      if (visit.exited == Visit.NOT_SET) {
+        // still running, e.g. a CallSubmodule state
+        continue;
+      }
+      LastVisit last = lastVisits.get(name);
+      if (last.visit == visit) {
+        last.visit = null;
+        last.exited = visit.exited;
+      }
+      // nothing refers to this visit anymore
+      if (spare.size() < RECENT_VISITS) {
+        spare.add(visit);
+      }
+    }
+    compacted.clear();
+    kept = pending;
+  }
+
+  private void log(int nameId, long entered, long exited) {
+    if (logSize == logNames.length) {
+      int capacity = Math.max(64, logSize * 2);
+      logNames = Arrays.copyOf(logNames, capacity);
+      logEntered = Arrays.copyOf(logEntered, capacity);
+      logExited = Arrays.copyOf(logExited, capacity);
+    }
+    logNames[logSize] = nameId;
+    logEntered[logSize] = entered;
+    logExited[logSize] = exited;
+    logSize++;
+  }
+
+  /**
+   * Visit the name, entered and exited time of every visit in this history, most recent first.
+   * Visits that were compacted away are only available when
+   * "exporter.json.include_module_history" is enabled.
+   * @param visitor Receives the state name, the entered time and the exited time, which are
+   *     null when not set.
+   */
+  public void forEachVisit(VisitConsumer visitor) {
+    for (int i = recent.size() - 1; i >= 0; i--) {
+      Visit visit = recent.get(i);
+      visitor.accept(visit.state.name, visit.getEntered(), visit.getExited());
+    }
+    for (int i = logSize - 1; i >= 0; i--) {
+      Visit open = openLog.get(i);
+      Long exited = logExited[i] == Visit.NOT_SET ? null : logExited[i];
+      if (open != null) {
+        exited = open.getExited();
+      }
+      visitor.accept(names.get(logNames[i]),
+          logEntered[i] == Visit.NOT_SET ? null : logEntered[i], exited);
+    }
+    if (!logVisits) {
+      for (int i = kept.size() - 1; i >= 0; i--) {
+        Visit visit = kept.get(i);
+        visitor.accept(visit.state.name, visit.getEntered(), visit.getExited());
+      }
+    }
+  }
+
+  /**
+   * Receives a single visit from {@link #forEachVisit}.
+   */
+  public interface VisitConsumer {
+    void accept(String name, Long entered, Long exited);
+  }
+
+  /**
+   * Check whether the history contains a visit to a given state, equivalent to walking the
+   * history from the current state back and stopping at the first visit to the `since` state
+   * or at the first state that exited at or before `within`.
+   * @param history The module history, typically `person.history`.
+   * @param name The name of the state.
+   * @param since Optional name of a state that must not have been visited after it.
+   * @param within Optional time at or before which the visit must not have exited.
+   * @return true if the state was visited
+   */
+  public static boolean hadPriorState(List<State> history, String name, String since,
+      Long within) {
+    if (history == null) {
+      return false;
+    }
+    if (!(history instanceof ModuleHistory)) {
+      // a plain list of State definitions, which carry no visit times
+      for (State state : history) {
+        if (since != null && state.name.equals(since)) {
+          return false;
+        }
+        if (state.name.equals(name)) {
+          return true;
+        }
+      }
+      return false;
+    }
+    Map<String, LastVisit> lastVisits = ((ModuleHistory) history).lastVisits;
+    LastVisit visit = lastVisits.get(name);
+    if (visit == null) {
+      return false;
+    }
+    if (since != null) {
+      LastVisit sinceVisit = lastVisits.get(since);
+      if (sinceVisit != null && sinceVisit.sequence >= visit.sequence) {
+        return false;
+      }
+    }
+    long exited = (visit.visit == null) ? visit.exited : visit.visit.exited;
+    return within == null || exited == Visit.NOT_SET || exited > within;
+  }
+}
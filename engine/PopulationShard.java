@@ -0,0 +1,106 @@
+package org.mitre.synthea.engine;
+
+import org.mitre.synthea.helpers.Config;
+
+/**
+ * Identifies the part of a population generated by one of several cooperating processes.
+ * Shard i of N owns a contiguous block of indices, so merging the shards in order produces
+ * the same index order as a single run. Exporters that allocate identifiers from global
+ * counters are given disjoint identifier ranges per shard.
+ */
+public class PopulationShard {
+  /** BFD identifier counters, all of which count down from their configured start. */
+  private static final String[] BFD_ID_SETTINGS = {
+    "exporter.bfd.bene_id_start",
+    "exporter.bfd.clm_id_start",
+    "exporter.bfd.clm_grp_id_start",
+    "exporter.bfd.pde_id_start",
+    "exporter.bfd.fi_doc_cntl_num_start",
+    "exporter.bfd.carr_clm_cntl_num_start"
+  };
+
+  /** CDW keys are allocated within a block of this size per state. */
+  private static final int CDW_STATE_KEY_BLOCK = 1_000_000;
+
+  public final int index;
+  public final int count;
+  private boolean idRangesApplied;
+
+  /**
+   * Create a shard.
+   * @param index Zero-based index of this shard.
+   * @param count Total number of shards.
+   */
+  public PopulationShard(int index, int count) {
+    if (count < 1 || index < 0 || index >= count) {
+      throw new IllegalArgumentException(String.format(
+          "Illegal shard %d/%d, expected 0 <= index < count", index, count));
+    }
+    this.index = index;
+    this.count = count;
+  }
+
+  /**
+   * Parse a shard from a string of the form "i/N".
+   * @param value The shard description.
+   * @return the shard
+   */
+  public static PopulationShard parse(String value) {
+    String[] parts = value.split("/");
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("Shard format: index/count. E.g. 0/4.");
+    }
+    return new PopulationShard(Integer.parseInt(parts[0].trim()),
+        Integer.parseInt(parts[1].trim()));
+  }
+
+  /**
+   * Get the first population index owned by this shard.
+   * @param population The size of the whole population.
+   * @return the first index, inclusive
+   */
+  public int firstIndex(int population) {
+    return (int) ((long) population * index / count);
+  }
+
+  /**
+   * Get the end of the population indices owned by this shard.
+   * @param population The size of the whole population.
+   * @return the last index, exclusive
+   */
+  public int endIndex(int population) {
+    return (int) ((long) population * (index + 1) / count);
+  }
+
+  /**
+   * Get the first CDW surrogate key for this shard. The block of keys for a state is split
+   * evenly between the shards.
+   * @param stateIndex Index of the state being generated.
+   * @return the first key
+   */
+  public int cdwKeyStart(int stateIndex) {
+    return (stateIndex * CDW_STATE_KEY_BLOCK) + 1 + (index * (CDW_STATE_KEY_BLOCK / count));
+  }
+
+  /**
+   * Offset the starting values of the BFD identifier counters so that every shard allocates
+   * from its own block of "generate.shard.id_block_size" identifiers.
+   * This must be called before the BFD exporter classes are loaded.
+   */
+  public synchronized void applyIdRanges() {
+    if (idRangesApplied) {
+      return;
+    }
+    idRangesApplied = true;
+    long blockSize = Config.getAsLong("generate.shard.id_block_size", 1_000_000_000L);
+    for (String setting : BFD_ID_SETTINGS) {
+      long start = Long.parseLong(Config.get(setting));
+      Config.set(setting, Long.toString(start - (index * blockSize)));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return index + "/" + count;
+  }
+}
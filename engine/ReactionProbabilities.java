@@ -4,8 +4,8 @@ import java.io.Serializable;
 import java.util.List;
 import java.util.stream.Collectors;
 
-import org.apache.commons.math3.distribution.EnumeratedDistribution;
 import org.apache.commons.math3.util.Pair;
+import org.mitre.synthea.helpers.EnumeratedSampler;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.HealthRecord;
 
@@ -22,7 +22,7 @@ public class ReactionProbabilities implements Serializable {
 
   private HealthRecord.Code reaction;
   private List<SeverityProbability> possibleSeverities;
-  private EnumeratedDistribution<String> severityDistribution;
+  private EnumeratedSampler<String> severityDistribution;
 
   public HealthRecord.Code getReaction() {
     return reaction;
@@ -79,7 +79,7 @@ public class ReactionProbabilities implements Serializable {
     List probPairs = this.possibleSeverities.stream()
           .map(sp -> new Pair(sp.getLevel(), (double) sp.getValue()))
           .collect(Collectors.toList());
-    this.severityDistribution = new EnumeratedDistribution<String>(probPairs);
+    this.severityDistribution = new EnumeratedSampler<String>(probPairs);
   }
 
   public boolean validate() {
@@ -98,8 +98,7 @@ public class ReactionProbabilities implements Serializable {
     if (this.isPopulated() && this.severityDistribution == null) {
       this.buildReactionDistributions();
     }
-    this.severityDistribution.reseedRandomGenerator(person.randLong());
-    String severity = this.severityDistribution.sample();
+    String severity = this.severityDistribution.sample(person);
     switch (severity) {
       case SEVERE:
         return HealthRecord.ReactionSeverity.SEVERE;
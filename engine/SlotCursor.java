@@ -0,0 +1,153 @@
+package org.mitre.synthea.engine;
+
+import org.mitre.synthea.helpers.DefaultRandomNumberGenerator;
+import org.mitre.synthea.helpers.RandomNumberGenerator;
+
+/**
+ * Hands out the indices of a population to worker threads in small chunks, so that the
+ * number of outstanding tasks does not grow with the population size.
+ * <p>
+ * Seeds are drawn from the population random number generator while the chunk is claimed,
+ * under the same lock as the index cursor. Index i therefore always receives the i-th seed
+ * drawn from the population generator, regardless of thread count or scheduling, which is
+ * the same assignment as submitting every index up front.
+ * </p>
+ * <p>
+ * Alternatively, seeds may be derived from the population seed and the index alone
+ * (see {@link #indexedSeed}). Any single index can then be reproduced in constant time and
+ * the population random number generator is not consumed at all.
+ * </p>
+ */
+public class SlotCursor {
+  /** Golden ratio increment used by SplitMix64. */
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private final RandomNumberGenerator populationRandom;
+  private final int endIndex;
+  private final int chunkSize;
+  private final boolean indexedSeeds;
+  private int next;
+
+  /**
+   * A contiguous run of indices and their seeds.
+   */
+  public static class Chunk {
+    /** Index of the first slot in this chunk. */
+    public final int start;
+    /** Seed for each slot, seeds[i] belongs to index start + i. */
+    public final long[] seeds;
+
+    private Chunk(int start, long[] seeds) {
+      this.start = start;
+      this.seeds = seeds;
+    }
+  }
+
+  /**
+   * Create a cursor over the indices [0, population) using sequentially drawn seeds.
+   * @param populationRandom Source of per-person seeds.
+   * @param population Number of indices to hand out.
+   * @param chunkSize Maximum number of indices per chunk.
+   */
+  public SlotCursor(RandomNumberGenerator populationRandom, int population, int chunkSize) {
+    this(populationRandom, 0, population, chunkSize, false);
+  }
+
+  /**
+   * Create a cursor over the indices [firstIndex, endIndex). With sequential seeds, the seeds
+   * of the indices before firstIndex are drawn and discarded, so each index receives the same
+   * seed as it would in a run over the whole population.
+   * @param populationRandom Source of per-person seeds, or of the population seed when
+   *     indexedSeeds is true.
+   * @param firstIndex First index to hand out, inclusive.
+   * @param endIndex Last index to hand out, exclusive.
+   * @param chunkSize Maximum number of indices per chunk.
+   * @param indexedSeeds Whether to derive seeds from the index instead of drawing them.
+   */
+  public SlotCursor(RandomNumberGenerator populationRandom, int firstIndex, int endIndex,
+      int chunkSize, boolean indexedSeeds) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException(String.format(
+          "Illegal chunk size (%d)", chunkSize));
+    }
+    this.populationRandom = populationRandom;
+    this.endIndex = endIndex;
+    this.chunkSize = chunkSize;
+    this.indexedSeeds = indexedSeeds;
+    this.next = firstIndex;
+    if (!indexedSeeds) {
+      for (int i = 0; i < firstIndex; i++) {
+        populationRandom.randLong();
+      }
+    }
+  }
+
+  /**
+   * Derive the seed for a single index of a population without drawing any of the seeds
+   * before it. Uses the SplitMix64 finalizer, applied to the population seed and then to
+   * the index offset, so neighbouring indices and neighbouring population seeds both
+   * produce uncorrelated person seeds.
+   * @param populationSeed The seed of the whole population.
+   * @param index The index of the person within the population.
+   * @return the person seed
+   */
+  public static long indexedSeed(long populationSeed, long index) {
+    return mix64(mix64(populationSeed) + GOLDEN_GAMMA * (index + 1));
+  }
+
+  /**
+   * Get the seed for a single index of a population, using the given derivation mode.
+   * Sequential seeds require drawing every seed before the index.
+   * @param populationSeed The seed of the whole population.
+   * @param index The index of the person within the population.
+   * @param indexedSeeds Whether seeds are derived from the index.
+   * @return the person seed
+   */
+  public static long seedFor(long populationSeed, long index, boolean indexedSeeds) {
+    if (indexedSeeds) {
+      return indexedSeed(populationSeed, index);
+    }
+    DefaultRandomNumberGenerator random = new DefaultRandomNumberGenerator(populationSeed);
+    long seed = random.randLong();
+    for (long i = 0; i < index; i++) {
+      seed = random.randLong();
+    }
+    return seed;
+  }
+
+  private static long mix64(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  /**
+   * Claim the next chunk of indices.
+   * @return the chunk, or null when every index has been claimed.
+   */
+  public synchronized Chunk claim() {
+    if (next >= endIndex) {
+      return null;
+    }
+    int start = next;
+    int size = Math.min(chunkSize, endIndex - start);
+    long[] seeds = new long[size];
+    for (int i = 0; i < size; i++) {
+      if (indexedSeeds) {
+        seeds[i] = indexedSeed(populationRandom.getSeed(), start + i);
+      } else {
+        seeds[i] = populationRandom.randLong();
+      }
+    }
+    next += size;
+    return new Chunk(start, seeds);
+  }
+
+  /**
+   * Get the next index that will be claimed.
+   * @return the next index
+   */
+  public synchronized int nextIndex() {
+    return next;
+  }
+}
@@ -60,9 +60,6 @@ import org.simulator.math.odes.MultiTable;
 public abstract class State implements Cloneable, Serializable {
   public Module module;
   public String name;
-  public Long entered;
-  public Entry entry;
-  public Long exited;
 
   private Transition transition;
   // note that these are not Transition objects, because they are JSON lists
@@ -76,6 +73,8 @@ public abstract class State implements Cloneable, Serializable {
 
   public static boolean ENABLE_PHYSIOLOGY_STATE =
       Config.getAsBoolean("physiology.state.enabled", false);
+  public static boolean ENABLE_GUARD_TRACKING =
+      Config.getAsBoolean("generate.guard_tracking", false);
 
   protected void initialize(Module module, String name, JsonObject definition) {
     this.module = module;
@@ -126,21 +125,18 @@ public abstract class State implements Cloneable, Serializable {
   }
 
   /**
-   * clone() should copy all the necessary variables of this State so that it can be correctly
-   * executed and modified without altering the original copy. So for example, 'entered' and
-   * 'exited' times should not be copied so the clone can be cleanly executed.
+   * clone() creates a copy of this State definition, for a copy of its module that acts under
+   * a different name. State definitions are shared by every person and every generator thread,
+   * so everything that belongs to a single visit, such as the entered and exited times, lives
+   * in a {@link Visit} instead.
    * Implementation note: the base Object.clone() copies over all fields automatically
-   * (as a shallow copy), so we don't need to do that ourselves. Instead, we should
-   * 1. explicitly null out any fields that should not be copied, such as entered/exited
-   * 2. deep copy mutable reference types, if necessary.
+   * (as a shallow copy), so the clone shares the definition fields with the original. We should
+   * never modify definition fields in process(), so that no deep copy is required.
+   * Any per-thread helper, such as an expression processor, belongs in a ThreadLocal.
    */
   public State clone() {
     try {
-      State clone = (State) super.clone();
-      clone.entered = null;
-      clone.exited = null;
-      clone.entry = null;
-      return clone;
+      return (State) super.clone();
     } catch (CloneNotSupportedException e) {
       // should not happen, and not something we can handle
       throw new RuntimeException(e);
@@ -151,6 +147,28 @@ public abstract class State implements Cloneable, Serializable {
     return transition.follow(person, time);
   }
 
+  /**
+   * Get the name of the encounter state this visit is still waiting for, e.g. an onset that
+   * will only be diagnosed at a future encounter. See {@link ModuleHistory}.
+   * @param visit a visit to this state
+   * @return the encounter state name, or null when this visit can no longer affect later states
+   */
+  String pendingEncounter(Visit visit) {
+    return null;
+  }
+
+  /**
+   * Get the earliest time at which running this visit again could do anything other than
+   * block, for the event driven scheduler (see "generate.event_scheduling").
+   * @param visit the current visit to this state
+   * @param person the person being simulated
+   * @param time the date within the simulated world
+   * @return `time` if the state has to be run at every timestep
+   */
+  long nextWakeup(Visit visit, Person person, long time) {
+    return time;
+  }
+
   public Transition getTransition() {
     return transition;
   }
@@ -158,8 +176,10 @@ public abstract class State implements Cloneable, Serializable {
   /**
    * Process this State with the given Person at the specified time within the simulation.
    * If this State generates a HealthRecord.Entry during processing, then the resulting data
-   * will reside in the State.entry field.
+   * will reside in the Visit.entry field.
    *
+   * @param visit
+   *          : the visit to this state, which holds the per-person data
    * @param person
    *          : the person being simulated
    * @param time
@@ -167,12 +187,14 @@ public abstract class State implements Cloneable, Serializable {
    * @return `true` if processing should continue to the next state, `false` if the processing
    *         should halt for this time step.
    */
-  public abstract boolean process(Person person, long time);
+  public abstract boolean process(Visit visit, Person person, long time);
 
   /**
-   * Run the state. This processes the state, setting entered and exit times.
+   * Run the state. This processes the state, setting entered and exit times on the visit.
    * This will terminate immediately if the patient is dead and `terminateOnDeath` is true.
    *
+   * @param visit
+   *          the visit to this state
    * @param person
    *          the person being simulated
    * @param time
@@ -183,27 +205,27 @@ public abstract class State implements Cloneable, Serializable {
    * @return `true` if processing should continue to the next state, `false` if the processing
    *         should halt for this time step.
    */
-  public boolean run(Person person, long time, boolean terminateOnDeath) {
+  public boolean run(Visit visit, Person person, long time, boolean terminateOnDeath) {
     if (terminateOnDeath && !person.alive(time)) {
       return false;
     }
-    if (this.entered == null) {
-      this.entered = time;
+    if (visit.entered == Visit.NOT_SET) {
+      visit.entered = time;
     }
-    boolean exit = process(person, time);
+    boolean exit = process(visit, person, time);
 
     if (exit) {
       // Delayable states return a special value for exited,
       // to indicate when the state actually completed.
       if (this instanceof Delayable) {
-        this.exited = ((Delayable)this).next;
+        visit.exited = visit.next;
       } else if (this instanceof CallSubmodule) {
-        this.exited = ((CallSubmodule)this).submoduleExited;
+        visit.exited = visit.submoduleExited;
       } else {
-        this.exited = time;
+        visit.exited = time;
       }
     } else if (this instanceof Terminal) {
-      this.exited = time;
+      visit.exited = time;
     }
 
     return exit;
@@ -221,7 +243,7 @@ public abstract class State implements Cloneable, Serializable {
    */
   public static class Initial extends State {
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       return true;
     }
   }
@@ -234,7 +256,7 @@ public abstract class State implements Cloneable, Serializable {
    */
   public static class Simple extends State {
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       return true;
     }
   }
@@ -247,7 +269,6 @@ public abstract class State implements Cloneable, Serializable {
    */
   public static class CallSubmodule extends State {
     private String submodule;
-    private transient long submoduleExited;
 
     @Override
     public CallSubmodule clone() {
@@ -256,30 +277,37 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    long nextWakeup(Visit visit, Person person, long time) {
+      Module submod = Module.getModuleByPath(submodule);
+      return submod == null ? time : submod.nextWakeup(person, time);
+    }
+
+    @Override
+    public boolean process(Visit visit, Person person, long time) {
       // e.g. "submodule": "medications/otc_antihistamine"
       List<State> moduleHistory = person.history;
       Module submod = Module.getModuleByPath(submodule);
       if (submod == null) {
         throw new RuntimeException("Unknown submodule: " + submodule);
       }
-      // set the submodule name to have the same name as this parent
+      // use the submodule with the same name as this parent
       // module, that way the submodule is empowered (and vice versa)
       // to act on encounters created using the same name.
-      submod.name = module.name;
+      submod = submod.calledFrom(module.name);
       boolean completed = submod.process(person, time);
 
       if (completed) {
         // keep track of when the submodule exited,
         // in case it was "rewinding time" when it completed
-        if (person.history.get(0).exited == null) {
+        long exited = ((ModuleHistory) person.history).current().exited;
+        if (exited == Visit.NOT_SET) {
           // this happens when the patient dies in the submodule,
           // so processing is going to stop anyway
           // but just to be safe and not crash,
           // we'll assume we exited at the current timestep
-          this.submoduleExited = time;
+          visit.submoduleExited = time;
         } else {
-          this.submoduleExited = person.history.get(0).exited;
+          visit.submoduleExited = exited;
         }
 
         // add the history from the submodule to this module's history, at the front
@@ -291,8 +319,11 @@ public abstract class State implements Cloneable, Serializable {
         person.attributes.remove(submod.submoduleName);
         // reset person.history to this module's history
         person.history = moduleHistory;
-        // add this state to history to indicate we returned to this module
-        person.history.add(0, this);
+        // add this state to history to indicate we returned to this module,
+        // with the times the visit that called the submodule is about to get
+        Visit returned = ((ModuleHistory) person.history).enter(this);
+        returned.entered = visit.entered;
+        returned.exited = visit.submoduleExited;
         return true;
       } else {
         // reset person.history to this module's history
@@ -322,7 +353,7 @@ public abstract class State implements Cloneable, Serializable {
     private List<IoMapper> inputs;
     private List<IoMapper> outputs;
     private Transition altTransition;
-    private transient PhysiologySimulator simulator;
+    private transient ThreadLocal<PhysiologySimulator> threadSimulator;
     private transient Map<String,String> paramTypes;
 
     @Override
@@ -347,7 +378,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     private void setup() {
-      simulator = new PhysiologySimulator(model, solver, stepSize, simDuration);
+      PhysiologySimulator simulator = getSimulator();
       paramTypes = new HashMap<String, String>();
 
       for (String param : simulator.getParameters()) {
@@ -366,30 +397,32 @@ public abstract class State implements Cloneable, Serializable {
       }
     }
 
-    @Override
-    public Physiology clone() {
-      Physiology clone = (Physiology) super.clone();
-      List<IoMapper> inputList = new ArrayList<IoMapper>(inputs.size());
-      for (IoMapper mapper : inputs) {
-        inputList.add(new IoMapper(mapper));
-      }
-      clone.inputs = inputList;
-
-      List<IoMapper> outputList = new ArrayList<IoMapper>(outputs.size());
-      for (IoMapper mapper : outputs) {
-        outputList.add(new IoMapper(mapper));
+    /**
+     * Get the simulator for the current thread. Simulators keep solver state between runs,
+     * so they can not be shared between threads, but every visit to this state on one thread
+     * can share one simulator.
+     */
+    private synchronized PhysiologySimulator getSimulator() {
+      if (threadSimulator == null) {
+        threadSimulator = new ThreadLocal<PhysiologySimulator>();
       }
-      clone.outputs = outputList;
-
-      if (ENABLE_PHYSIOLOGY_STATE) {
-        clone.setup();
+      PhysiologySimulator simulator = threadSimulator.get();
+      if (simulator == null) {
+        simulator = new PhysiologySimulator(model, solver, stepSize, simDuration);
+        threadSimulator.set(simulator);
       }
+      return simulator;
+    }
 
+    @Override
+    public Physiology clone() {
+      // the IoMappers keep their expression processors in a ThreadLocal, so they are shared
+      Physiology clone = (Physiology) super.clone();
       return clone;
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (!ENABLE_PHYSIOLOGY_STATE) {
         return true;
       }
@@ -398,7 +431,7 @@ public abstract class State implements Cloneable, Serializable {
         mapper.toModelInputs(person, time, modelInputs);
       }
       try {
-        MultiTable results = simulator.run(modelInputs);
+        MultiTable results = getSimulator().run(modelInputs);
         for (IoMapper mapper : outputs) {
           switch (mapper.getType()) {
             default:
@@ -448,7 +481,7 @@ public abstract class State implements Cloneable, Serializable {
    */
   public static class Terminal extends State {
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (person.hasCurrentEncounter()
           && !module.submodule // only auto-close encounter for top-level modules
           && person.getCurrentEncounterModule().equals(module.name)) {
@@ -467,20 +500,18 @@ public abstract class State implements Cloneable, Serializable {
   }
 
   public abstract static class Delayable extends State {
-    // next is "transient" in the sense that it represents object state
-    // as opposed to the other fields which represent object definition
-    // hence it is unset in clone()
-    public Long next;
+    /**
+     * Get the time at which the delay of a visit ends, once processOnce has run.
+     * The end of the delay is kept in Visit.next.
+     */
+    public abstract long endOfDelay(Visit visit, long time, Person person);
 
     @Override
-    public Delayable clone() {
-      Delayable clone = (Delayable) super.clone();
-      clone.next = null;
-      return clone;
+    long nextWakeup(Visit visit, Person person, long time) {
+      // process() blocks without side effects until the delay has passed
+      return (visit.next == Visit.NOT_SET || visit.next < time) ? time : visit.next;
     }
 
-    public abstract long endOfDelay(long time, Person person);
-
     /**
      * Process any aspect of this state which should only happen once.
      * Because of the nature of Delay states, this state may get called
@@ -488,25 +519,26 @@ public abstract class State implements Cloneable, Serializable {
      * any actions which are supposed to happen only happen once,
      * this function should be overriden in subclasses.
      *
+     * @param visit the visit to this state
      * @param person the person being simulated
      * @param time the date within the simulated world
      */
-    public void processOnce(Person person, long time) {
+    public void processOnce(Visit visit, Person person, long time) {
       // do nothing. allow subclasses to override
     }
 
     @Override
-    public boolean process(Person person, long time) {
-      if (this.next == null) {
-        this.processOnce(person, time);
-        this.next = this.endOfDelay(time, person);
-        if (this.next < time) {
+    public boolean process(Visit visit, Person person, long time) {
+      if (visit.next == Visit.NOT_SET) {
+        this.processOnce(visit, person, time);
+        visit.next = this.endOfDelay(visit, time, person);
+        if (visit.next < time) {
           // Don't allow a negative delay
-          this.next = time;
+          visit.next = time;
         }
       }
 
-      return ((time >= this.next) && person.alive(this.next));
+      return ((time >= visit.next) && person.alive(visit.next));
     }
   }
 
@@ -561,7 +593,7 @@ public abstract class State implements Cloneable, Serializable {
     @Override
     protected void initialize(Module module, String name, JsonObject definition) {
       super.initialize(module, name, definition);
-      if (distribution != null && !distribution.validate()) {
+      if (distribution != null && !distribution.compile()) {
         throw new IllegalStateException(
             String.format("State %s contains an invalid distribution", this.name));
       }
@@ -574,7 +606,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public long endOfDelay(long time, Person person) {
+    public long endOfDelay(Visit visit, long time, Person person) {
       if (isLegacyGmf()) {
         if (exact != null) {
           // use an exact quantity
@@ -620,6 +652,17 @@ public abstract class State implements Cloneable, Serializable {
    */
   public static class Guard extends State {
     private Logic allow;
+    /** The inputs of allow, when "generate.guard_tracking" is enabled and they are known. */
+    private transient GuardInputs inputs;
+
+    @Override
+    protected void initialize(Module module, String name, JsonObject definition) {
+      super.initialize(module, name, definition);
+      allow.compile();
+      if (ENABLE_GUARD_TRACKING) {
+        inputs = GuardInputs.of(allow, module.name);
+      }
+    }
 
     @Override
     public Guard clone() {
@@ -628,13 +671,29 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
+      // the inputs when allow last failed for this visit, see GuardInputs
+      if (inputs != null && inputs.unchanged(visit.snapshot, person, time)) {
+        return false;
+      }
       boolean exit = allow.test(person, time);
       if (exit) {
-        this.exited = time;
+        visit.exited = time;
+      } else if (inputs != null && GuardInputs.isTrackable(person)) {
+        visit.snapshot = inputs.snapshot(allow, person, time);
       }
       return exit;
     }
+
+    @Override
+    long nextWakeup(Visit visit, Person person, long time) {
+      if (inputs != null && inputs.timeOnly() && visit.snapshot != null
+          && GuardInputs.isTrackable(person)) {
+        // nothing but time can open the Guard before the boundary
+        return Math.max(time, GuardInputs.recheckAt(visit.snapshot));
+      }
+      return time;
+    }
   }
 
   /**
@@ -650,6 +709,8 @@ public abstract class State implements Cloneable, Serializable {
     private Code valueCode;
     /** When the value of the attribute should be the value of another attribute. */
     private String valueAttribute;
+    private AttributeRegistry.Key key;
+    private AttributeRegistry.Key valueKey;
     private Range<Double> range;
     private String expression;
     private transient ThreadLocal<ExpressionProcessor> threadExpProcessor;
@@ -658,24 +719,17 @@ public abstract class State implements Cloneable, Serializable {
     // For GMF 2.0 Support
     private Distribution distribution;
 
-
-    private ThreadLocal<ExpressionProcessor> getExpProcessor() {
-      // If the ThreadLocal instance hasn't been created yet, create it now
-      if (threadExpProcessor == null) {
-        threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
-      }
-
-      // If there's an expression, create the processor for it
-      if (this.expression != null && threadExpProcessor.get() == null) {
-        threadExpProcessor.set(new ExpressionProcessor(this.expression));
-      }
-
-      return threadExpProcessor;
-    }
-
     @Override
     protected void initialize(Module module, String name, JsonObject definition) {
       super.initialize(module, name, definition);
+      if (attribute != null) {
+        attribute = attribute.intern();
+        key = AttributeRegistry.register(attribute);
+      }
+      if (valueAttribute != null) {
+        valueKey = AttributeRegistry.register(valueAttribute);
+      }
+      createExpProcessor();
 
       // special handling for integers
       if (value instanceof Double) {
@@ -691,12 +745,27 @@ public abstract class State implements Cloneable, Serializable {
         period = 1.0;
       }
 
-      if (distribution != null && !distribution.validate()) {
+      if (distribution != null && !distribution.compile()) {
         throw new IllegalStateException(
             String.format("State %s contains an invalid distribution", this.name));
       }
     }
 
+    /**
+     * Create the per-thread expression processors. The definition is shared by every thread,
+     * and ExpressionProcessors are not thread safe.
+     */
+    private void createExpProcessor() {
+      if (expression != null) {
+        threadExpProcessor = ThreadLocal.withInitial(() -> new ExpressionProcessor(expression));
+      }
+    }
+
+    private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+      ois.defaultReadObject();
+      createExpProcessor();
+    }
+
     @Override
     public SetAttribute clone() {
       SetAttribute clone = (SetAttribute) super.clone();
@@ -704,10 +773,11 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
-      ThreadLocal<ExpressionProcessor> expProcessor = getExpProcessor();
-      if (expProcessor.get() != null) {
-        value = expProcessor.get().evaluate(person, time);
+    public boolean process(Visit visit, Person person, long time) {
+      // the configured value is the default, the definition itself is left untouched
+      Object value = this.value;
+      if (threadExpProcessor != null) {
+        value = threadExpProcessor.get().evaluate(person, time);
       } else if (range != null) {
         value = person.rand(range.low, range.high, range.decimals);
       } else if (seriesData != null) {
@@ -730,16 +800,17 @@ public abstract class State implements Cloneable, Serializable {
         value = valueCode;
       } else if (valueAttribute != null) {
         // the module is setting an attribute to be the value of an existing attribute
-        if (person.attributes.containsKey(valueAttribute)) {
-          value = person.attributes.get(valueAttribute);
+        Object existing = AttributeMap.get(person.attributes, valueKey);
+        if (existing != null) {
+          value = existing;
         }
       }
 
       if (value != null) {
-        person.attributes.put(attribute, value);
-      } else if (person.attributes.containsKey(attribute)) {
+        AttributeMap.put(person.attributes, key, value);
+      } else {
         // intentionally clear out the variable
-        person.attributes.remove(attribute);
+        AttributeMap.remove(person.attributes, key);
       }
 
       return true;
@@ -757,10 +828,15 @@ public abstract class State implements Cloneable, Serializable {
     private String action;
     private boolean increment;
     private int amount;
+    private AttributeRegistry.Key key;
 
     @Override
     protected void initialize(Module module, String name, JsonObject definition) {
       super.initialize(module, name, definition);
+      if (attribute != null) {
+        attribute = attribute.intern();
+        key = AttributeRegistry.register(attribute);
+      }
       increment = action.equals("increment");
       if (amount == 0) {
         // default to 1 for legacy compatibility
@@ -775,12 +851,21 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
+      Map<String, Object> attributes = person.attributes;
+      if (attributes instanceof AttributeMap && ((AttributeMap) attributes).isDouble(key)) {
+        // counters are kept unboxed once they have been set
+        AttributeMap map = (AttributeMap) attributes;
+        map.putDouble(key, map.getDouble(key) + (increment ? amount : -amount));
+        return true;
+      }
       double counter = 0.0;
-      if (person.attributes.containsKey(attribute)) {
-        // this cast as int from double is to handle cases where the attribute
-        // is either a java.lang.Double or java.lang.Integer
-        counter = Double.parseDouble(person.attributes.get(attribute).toString());
+      Object current = AttributeMap.get(attributes, key);
+      if (current instanceof Double || current instanceof Integer) {
+        counter = ((Number) current).doubleValue();
+      } else if (current != null || attributes.containsKey(attribute)) {
+        // other types are read from their text, as they always were
+        counter = Double.parseDouble(current.toString());
       }
 
       if (increment) {
@@ -788,7 +873,7 @@ public abstract class State implements Cloneable, Serializable {
       } else {
         counter = counter - amount;
       }
-      person.attributes.put(attribute, counter);
+      AttributeMap.put(attributes, key, counter);
       return true;
     }
   }
@@ -843,20 +928,20 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (wellness) {
         if (person.hasCurrentEncounter()
             && person.getCurrentEncounterModule().equals(EncounterModule.NAME)) {
           HealthRecord.Encounter encounter = person.record.currentEncounter(time);
-          entry = encounter;
-          String activeKey = EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + module.name;
+          visit.entry = encounter;
+          String activeKey = module.activeWellnessKey();
           if (person.attributes.containsKey(activeKey)) {
             // check-in with the activeKey...
             boolean status = (Boolean) person.attributes.get(activeKey);
             if (status == false) {
               // mark that we have used our active key
               person.attributes.put(activeKey, true);
-              diagnosePastConditions(person, time);
+              diagnosePastConditions(visit, person, time);
               if (!encounter.chronicMedsRenewed && person.chronicMedications.size() > 0) {
                 renewChronicMedicationsAtWellness(person, time);
                 encounter.chronicMedsRenewed = true;
@@ -919,13 +1004,13 @@ public abstract class State implements Cloneable, Serializable {
         }
         HealthRecord.Encounter encounter = EncounterModule.createEncounter(person, time, type,
             specialty, null, module.name);
-        entry = encounter;
+        visit.entry = encounter;
         if (codes != null) {
           encounter.mergeCodeList(codes);
         }
         encounter.name = this.name;
 
-        diagnosePastConditions(person, time);
+        diagnosePastConditions(visit, person, time);
 
         if (reason != null) {
           if (person.attributes.containsKey(reason)) {
@@ -936,7 +1021,7 @@ public abstract class State implements Cloneable, Serializable {
             } else if (value instanceof Code) {
               encounter.reason = (Code) value;
             }
-          } else if (person.hadPriorState(reason)) {
+          } else if (ModuleHistory.hadPriorState(person.history, reason, null, null)) {
             // loop through the present conditions, the condition "name" will match
             // the name of the ConditionOnset state (aka "reason")
             for (Entry entry : person.record.present.values()) {
@@ -952,16 +1037,19 @@ public abstract class State implements Cloneable, Serializable {
       }
     }
 
-    private void diagnosePastConditions(Person person, long time) {
+    private void diagnosePastConditions(Visit visit, Person person, long time) {
       // reminder: history[0] is current state, history[size-1] is Initial
-      for (State state : person.history) {
+      ModuleHistory history = (ModuleHistory) person.history;
+      for (int i = 0; i < history.size(); i++) {
+        Visit past = history.visit(i);
+        State state = past.state;
         if (state instanceof OnsetState) {
           OnsetState onset = (OnsetState) state;
 
-          if (!onset.diagnosed && this.name.equals(onset.targetEncounter)) {
-            onset.diagnose(person, time);
+          if (!past.diagnosed && this.name.equals(onset.targetEncounter)) {
+            onset.diagnose(past, person, time);
           }
-        } else if (state instanceof Encounter && state != this && state.name.equals(this.name)) {
+        } else if (state instanceof Encounter && past != visit && state.name.equals(this.name)) {
           // a prior instance of hitting this same state. no need to go back any further
           break;
         }
@@ -1053,8 +1141,8 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
-      String activeKey = EncounterModule.ACTIVE_WELLNESS_ENCOUNTER + " " + module.name;
+    public boolean process(Visit visit, Person person, long time) {
+      String activeKey = module.activeWellnessKey();
       if (person.hasCurrentEncounter()
           && person.getCurrentEncounterModule().equals(module.name)) {
         HealthRecord.Encounter encounter = person.record.currentEncounter(time);
@@ -1107,8 +1195,6 @@ public abstract class State implements Cloneable, Serializable {
    * module.
    */
   private abstract static class OnsetState extends AttributeAssignableState {
-    public boolean diagnosed;
-
     protected List<Code> codes;
     protected String targetEncounter;
 
@@ -1118,7 +1204,12 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    String pendingEncounter(Visit visit) {
+      return visit.diagnosed ? null : targetEncounter;
+    }
+
+    @Override
+    public boolean process(Visit visit, Person person, long time) {
       updateOnsetInfo(person, time);
       HealthRecord.Encounter encounter = null;
       if (person.hasCurrentEncounter()
@@ -1127,7 +1218,7 @@ public abstract class State implements Cloneable, Serializable {
       }
       if (targetEncounter == null || targetEncounter.trim().length() == 0
           || (encounter != null && targetEncounter.equals(encounter.name))) {
-        diagnose(person, time);
+        diagnose(visit, person, time);
       } else if (shouldAssignAttribute()) {
         // create a temporary coded entry to use for reference in the attribute,
         // which will be replaced if the thing is diagnosed
@@ -1143,7 +1234,7 @@ public abstract class State implements Cloneable, Serializable {
       return;
     }
 
-    public abstract void diagnose(Person person, long time);
+    public abstract void diagnose(Visit visit, Person person, long time);
   }
 
   /**
@@ -1164,9 +1255,10 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public void diagnose(Person person, long time) {
+    public void diagnose(Visit visit, Person person, long time) {
       String primaryCode = codes.get(0).code;
-      entry = person.record.conditionStart(time, primaryCode);
+      Entry entry = person.record.conditionStart(time, primaryCode);
+      visit.entry = entry;
       entry.name = this.name;
       if (codes != null) {
         entry.mergeCodeList(codes);
@@ -1175,7 +1267,7 @@ public abstract class State implements Cloneable, Serializable {
         person.attributes.put(assignToAttribute, entry);
       }
 
-      diagnosed = true;
+      visit.diagnosed = true;
     }
   }
 
@@ -1201,7 +1293,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (conditionOnset != null) {
         String condition = person.getOnsetConditionRecord().getConditionFromState(
             module.name, conditionOnset
@@ -1241,9 +1333,10 @@ public abstract class State implements Cloneable, Serializable {
     private List<ReactionProbabilities> reactions;
 
     @Override
-    public void diagnose(Person person, long time) {
+    public void diagnose(Visit visit, Person person, long time) {
       String primaryCode = codes.get(0).code;
-      entry = person.record.allergyStart(time, primaryCode);
+      Entry entry = person.record.allergyStart(time, primaryCode);
+      visit.entry = entry;
       entry.name = this.name;
       entry.mergeCodeList(codes);
       HealthRecord.Allergy allergy = (HealthRecord.Allergy) entry;
@@ -1265,7 +1358,7 @@ public abstract class State implements Cloneable, Serializable {
         allergy.reactions = reactions;
       }
 
-      diagnosed = true;
+      visit.diagnosed = true;
     }
   }
 
@@ -1293,7 +1386,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (allergyOnset != null) {
         person.record.allergyEndByState(time, allergyOnset);
       } else if (referencedByAttribute != null) {
@@ -1366,7 +1459,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       Medication medication = null;
       boolean createPrescription = true;
       String primaryCode = codes.get(0).code;
@@ -1400,7 +1493,7 @@ public abstract class State implements Cloneable, Serializable {
      * @param medication the Medication.
      */
     private void applyFeatures(Person person, Medication medication) {
-      entry = medication;
+      visit.entry = medication;
       medication.name = this.name;
       medication.mergeCodeList(codes);
       if (shouldAssignAttribute()) {
@@ -1411,7 +1504,7 @@ public abstract class State implements Cloneable, Serializable {
         if (person.attributes.containsKey(reason)) {
           Entry condition = (Entry) person.attributes.get(reason);
           medication.reasons.addAll(condition.codes);
-        } else if (person.hadPriorState(reason)) {
+        } else if (ModuleHistory.hadPriorState(person.history, reason, null, null)) {
           // loop through the present conditions, the condition "name" will match
           // the name of the ConditionOnset state (aka "reason")
           for (Entry entry : person.record.present.values()) {
@@ -1453,7 +1546,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (medicationOrder != null) {
         person.record.medicationEndByState(time, medicationOrder, EXPIRED);
       } else if (referencedByAttribute != null) {
@@ -1487,10 +1580,10 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       String primaryCode = codes.get(0).code;
       CarePlan careplan = person.record.careplanStart(time, primaryCode);
-      entry = careplan;
+      visit.entry = careplan;
       careplan.name = this.name;
       careplan.mergeCodeList(codes);
 
@@ -1505,7 +1598,7 @@ public abstract class State implements Cloneable, Serializable {
         if (person.attributes.containsKey(reason)) {
           Entry condition = (Entry) person.attributes.get(reason);
           careplan.reasons.addAll(condition.codes);
-        } else if (person.hadPriorState(reason)) {
+        } else if (ModuleHistory.hadPriorState(person.history, reason, null, null)) {
           // loop through the present conditions, the condition "name" will match
           // the name of the ConditionOnset state (aka "reason")
           for (Entry entry : person.record.present.values()) {
@@ -1544,7 +1637,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (careplan != null) {
         person.record.careplanEndByState(time, careplan, FINISHED);
       } else if (referencedByAttribute != null) {
@@ -1571,7 +1664,6 @@ public abstract class State implements Cloneable, Serializable {
     // For GMF 1.0 Support
     private RangeWithUnit<Long> duration;
     private String assignToAttribute;
-    private Long stop;
     // For GMF 2.0 Support
     private Distribution distribution;
     private String unit;
@@ -1579,7 +1671,7 @@ public abstract class State implements Cloneable, Serializable {
     @Override
     protected void initialize(Module module, String name, JsonObject definition) {
       super.initialize(module, name, definition);
-      if (distribution != null && !distribution.validate()) {
+      if (distribution != null && !distribution.compile()) {
         throw new IllegalStateException(
             String.format("State %s contains an invalid distribution", this.name));
       }
@@ -1592,19 +1684,19 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public long endOfDelay(long time, Person person) {
+    public long endOfDelay(Visit visit, long time, Person person) {
       if (duration == null && distribution == null) {
         return time;
       } else {
-        return this.stop;
+        return visit.entry.stop;
       }
     }
 
     @Override
-    public void processOnce(Person person, long time) {
+    public void processOnce(Visit visit, Person person, long time) {
       String primaryCode = codes.get(0).code;
       HealthRecord.Procedure procedure = person.record.procedure(time, primaryCode);
-      entry = procedure;
+      visit.entry = procedure;
       procedure.name = this.name;
       procedure.mergeCodeList(codes);
 
@@ -1613,7 +1705,7 @@ public abstract class State implements Cloneable, Serializable {
         if (person.attributes.containsKey(reason)) {
           Entry condition = (Entry) person.attributes.get(reason);
           procedure.reasons.addAll(condition.codes);
-        } else if (person.hadPriorState(reason)) {
+        } else if (ModuleHistory.hadPriorState(person.history, reason, null, null)) {
           // loop through the present conditions, the condition "name" will match
           // the name of the ConditionOnset state (aka "reason")
           for (Entry entry : person.record.present.values()) {
@@ -1623,7 +1715,7 @@ public abstract class State implements Cloneable, Serializable {
           }
         }
       }
-      if ((duration != null || distribution != null) && this.stop == null) {
+      if (duration != null || distribution != null) {
         double durationVal;
         String procedureDurationUnit;
         if (duration != null) {
@@ -1633,8 +1725,8 @@ public abstract class State implements Cloneable, Serializable {
           durationVal = distribution.generate(person);
           procedureDurationUnit = this.unit;
         }
-        this.stop = procedure.start + Utilities.convertTime(procedureDurationUnit, durationVal);
-        procedure.stop = this.stop;
+        procedure.stop = procedure.start
+            + Utilities.convertTime(procedureDurationUnit, durationVal);
       }
       // increment number of procedures by respective hospital
       Provider provider;
@@ -1675,24 +1767,25 @@ public abstract class State implements Cloneable, Serializable {
     @Override
     protected void initialize(Module module, String name, JsonObject definition) {
       super.initialize(module, name, definition);
-      if (distribution != null && !distribution.validate()) {
+      if (distribution != null && !distribution.compile()) {
         throw new IllegalStateException(
             String.format("State %s contains an invalid distribution", this.name));
       }
+      createExpProcessor();
     }
 
-    private ThreadLocal<ExpressionProcessor> getExpProcessor() {
-      // If the ThreadLocal instance hasn't been created yet, create it now
-      if (threadExpProcessor == null) {
-        threadExpProcessor = new ThreadLocal<ExpressionProcessor>();
-      }
-
-      // If there's an expression, create the processor for it
-      if (this.expression != null && threadExpProcessor.get() == null) {
-        threadExpProcessor.set(new ExpressionProcessor(this.expression));
+    /**
+     * Create the expression processors, one per thread like in SetAttribute.
+     */
+    private void createExpProcessor() {
+      if (expression != null) {
+        threadExpProcessor = ThreadLocal.withInitial(() -> new ExpressionProcessor(expression));
       }
+    }
 
-      return threadExpProcessor;
+    private void readObject(ObjectInputStream ois) throws ClassNotFoundException, IOException {
+      ois.defaultReadObject();
+      createExpProcessor();
     }
 
     @Override
@@ -1702,7 +1795,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (isLegacyGmf()) {
         if (exact != null) {
           person.setVitalSign(vitalSign, new ConstantValueGenerator(person,
@@ -1712,8 +1805,8 @@ public abstract class State implements Cloneable, Serializable {
               (double) range.low, (double) range.high));
         }
       } else {
-        if (getExpProcessor().get() != null) {
-          Number value = (Number) getExpProcessor().get().evaluate(person, time);
+        if (threadExpProcessor != null) {
+          Number value = (Number) threadExpProcessor.get().evaluate(person, time);
           person.setVitalSign(vitalSign, value.doubleValue());
         } else if (distribution != null) {
           person.setVitalSign(vitalSign, new RandomValueGenerator(person, distribution));
@@ -1790,7 +1883,7 @@ public abstract class State implements Cloneable, Serializable {
         }
       }
 
-      if (distribution != null && !distribution.validate()) {
+      if (distribution != null && !distribution.compile()) {
         throw new IllegalStateException(
             String.format("State %s contains an invalid distribution", this.name));
       }
@@ -1822,7 +1915,16 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
+      visit.entry = record(person, time);
+      return true;
+    }
+
+    /**
+     * Record this observation in the person's health record, without modifying this state.
+     * Used directly by the observation groups, whose observations are shared definitions.
+     */
+    HealthRecord.Observation record(Person person, long time) {
       String primaryCode = codes.get(0).code;
       Object value = null;
       if (isLegacyGmf()) {
@@ -1855,13 +1957,12 @@ public abstract class State implements Cloneable, Serializable {
       }
 
       HealthRecord.Observation observation = person.record.observation(time, primaryCode, value);
-      entry = observation;
       observation.name = this.name;
       observation.mergeCodeList(codes);
       observation.category = category;
       observation.unit = unit;
 
-      return true;
+      return observation;
     }
   }
 
@@ -1883,18 +1984,9 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     public ObservationGroup clone() {
+      // the observations are only ever record()ed, never process()ed,
+      // so the list is shared with the definition
       ObservationGroup clone = (ObservationGroup) super.clone();
-
-      // IMPORTANT: because each observation gets process()ed when the state gets processed,
-      // we need to ensure we deep clone the list
-      // (otherwise as this gets passed around, the same objects are used for different patients
-      // which causes weird and unexpected results)
-      List<Observation> cloneObs = new ArrayList<>(observations.size());
-      for (Observation o : observations) {
-        cloneObs.add(o.clone());
-      }
-      clone.observations = cloneObs;
-
       return clone;
     }
   }
@@ -1917,14 +2009,14 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       for (Observation o : observations) {
-        o.process(person, time);
+        o.record(person, time);
       }
       String primaryCode = codes.get(0).code;
       HealthRecord.Observation observation =
           person.record.multiObservation(time, primaryCode, observations.size());
-      entry = observation;
+      visit.entry = observation;
       observation.name = this.name;
       observation.mergeCodeList(codes);
       observation.category = category;
@@ -1942,13 +2034,13 @@ public abstract class State implements Cloneable, Serializable {
    */
   public static class DiagnosticReport extends ObservationGroup {
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       for (Observation o : observations) {
-        o.process(person, time);
+        o.record(person, time);
       }
       String primaryCode = codes.get(0).code;
       Report report = person.record.report(time, primaryCode, observations.size());
-      entry = report;
+      visit.entry = report;
       report.name = this.name;
       report.mergeCodeList(codes);
 
@@ -1991,7 +2083,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       // Randomly pick number of series and instances if bounds were provided
       // Don't modify the instance series as it gets reused - create a local copy
       List<HealthRecord.ImagingStudy.Series> mySeries = duplicateSeries(person, time);
@@ -2000,7 +2092,8 @@ public abstract class State implements Cloneable, Serializable {
       // The modality code of the first series is a good approximation
       // of the type of ImagingStudy this is
       String primaryModality = mySeries.get(0).modality.code;
-      entry = person.record.imagingStudy(time, primaryModality, mySeries);
+      Entry entry = person.record.imagingStudy(time, primaryModality, mySeries);
+      visit.entry = entry;
       // note the imagingStudy call will choose dicomUIDs,
       // so they don't need to be selected here
 
@@ -2096,7 +2189,7 @@ public abstract class State implements Cloneable, Serializable {
         probability = 1.0;
       }
       addressed = false;
-      if (distribution != null && !distribution.validate()) {
+      if (distribution != null && !distribution.compile()) {
         throw new IllegalStateException(
             String.format("State %s contains an invalid distribution", this.name));
       }
@@ -2109,7 +2202,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       //using the module name instead of the cause
       if (person.rand() <= probability) {
         if (isLegacyGmf()) {
@@ -2159,7 +2252,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       HealthRecord.Device device = person.record.deviceImplant(time, code.code);
       device.name = this.name;
       device.codes.add(code);
@@ -2194,7 +2287,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       if (device != null) {
         person.record.deviceRemoveByState(time, device);
       } else if (referencedByAttribute != null) {
@@ -2226,7 +2319,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       for (SupplyComponent s : supplies) {
         person.record.useSupply(time, s.code, s.quantity);
       }
@@ -2273,12 +2366,12 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       Code reason = null;
       if (codes != null) {
         reason = codes.get(0);
       } else if (conditionOnset != null) {
-        if (person.hadPriorState(conditionOnset)) {
+        if (ModuleHistory.hadPriorState(person.history, conditionOnset, null, null)) {
           // loop through the present conditions, the condition "name" will match
           // the name of the ConditionOnset state (aka "reason")
           for (Entry entry : person.record.present.values()) {
@@ -2326,7 +2419,7 @@ public abstract class State implements Cloneable, Serializable {
     }
 
     @Override
-    public boolean process(Person person, long time) {
+    public boolean process(Visit visit, Person person, long time) {
       HealthRecord.Immunization entry = person.record.immunization(time, codes.get(0).display);
       for (Code code : codes) {
         entry.codes.add(code);
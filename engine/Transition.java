@@ -2,18 +2,13 @@ package org.mitre.synthea.engine;
 
 import com.google.gson.JsonObject;
 
-import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.apache.commons.lang3.Range;
-import org.apache.commons.math3.distribution.EnumeratedDistribution;
 import org.mitre.synthea.helpers.Config;
-import org.mitre.synthea.helpers.SimpleCSV;
-import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.helpers.EnumeratedSampler;
 import org.mitre.synthea.world.agents.PayerManager;
 import org.mitre.synthea.world.agents.Person;
 import org.mitre.synthea.world.concepts.TelemedicineConfig;
@@ -26,6 +21,13 @@ import org.mitre.synthea.world.concepts.healthinsurance.InsurancePlan;
  * shared across the population.
  */
 public abstract class Transition implements Serializable {
+  /**
+   * Whether fixed distributions are sampled with alias tables, which is faster for wide
+   * distributions but consumes the random number differently, so the same seed picks
+   * different transitions than the cumulative search used by default.
+   */
+  static final boolean ALIAS_SAMPLING =
+      Config.getAsBoolean("generate.transitions.alias_sampling", false);
 
   protected List<String> remarks;
 
@@ -101,12 +103,18 @@ public abstract class Transition implements Serializable {
   public static class DistributedTransition extends Transition {
     private List<DistributedTransitionOption> transitions;
 
+    private OptionSampler sampler;
+
     public DistributedTransition(List<DistributedTransitionOption> transitions) {
       this.transitions = transitions;
+      this.sampler = OptionSampler.of(transitions);
     }
 
     @Override
     public String follow(Person person, long time) {
+      if (sampler != null) {
+        return sampler.sample(person);
+      }
       return pickDistributedTransition(transitions, person);
     }
   }
@@ -122,6 +130,10 @@ public abstract class Transition implements Serializable {
     private String telemedicine;
     private String emergency;
     private TelemedicineConfig config;
+    private EnumeratedSampler<String> preTelemedHighEmergency;
+    private EnumeratedSampler<String> preTelemedTypicalEmergency;
+    private EnumeratedSampler<String> telemedHighEmergency;
+    private EnumeratedSampler<String> telemedTypicalEmergency;
 
     /**
      * Creates a new telemedicine config essentially from the JSON in GMF. This also reads in the
@@ -134,6 +146,11 @@ public abstract class Transition implements Serializable {
       this.emergency = options.emergency;
       this.telemedicine = options.telemedicine;
       this.config = TelemedicineConfig.fromJSON();
+      this.preTelemedHighEmergency = EnumeratedSampler.of(config.getPreTelemedHighEmergency());
+      this.preTelemedTypicalEmergency =
+          EnumeratedSampler.of(config.getPreTelemedTypicalEmergency());
+      this.telemedHighEmergency = EnumeratedSampler.of(config.getTelemedHighEmergency());
+      this.telemedTypicalEmergency = EnumeratedSampler.of(config.getTelemedTypicalEmergency());
     }
 
     @Override
@@ -148,31 +165,15 @@ public abstract class Transition implements Serializable {
       }
       if (time < config.getTelemedicineStartTime()) {
         if (config.getHighEmergencyUseInsuranceNames().contains(insuranceName)) {
-          EnumeratedDistribution<String> preHigh = config.getPreTelemedHighEmergency();
-          synchronized (preHigh) {
-            preHigh.reseedRandomGenerator(person.randLong());
-            selectedTransition = preHigh.sample();
-          }
+          selectedTransition = preTelemedHighEmergency.sample(person);
         } else {
-          EnumeratedDistribution<String> preTypical = config.getPreTelemedTypicalEmergency();
-          synchronized (preTypical) {
-            preTypical.reseedRandomGenerator(person.randLong());
-            selectedTransition = preTypical.sample();
-          }
+          selectedTransition = preTelemedTypicalEmergency.sample(person);
         }
       } else {
         if (config.getHighEmergencyUseInsuranceNames().contains(insuranceName)) {
-          EnumeratedDistribution<String> high = config.getTelemedHighEmergency();
-          synchronized (high) {
-            high.reseedRandomGenerator(person.randLong());
-            selectedTransition = high.sample();
-          }
+          selectedTransition = telemedHighEmergency.sample(person);
         } else {
-          EnumeratedDistribution<String> typical = config.getTelemedTypicalEmergency();
-          synchronized (typical) {
-            typical.reseedRandomGenerator(person.randLong());
-            selectedTransition = typical.sample();
-          }
+          selectedTransition = telemedTypicalEmergency.sample(person);
         }
       }
       switch (selectedTransition) {
@@ -215,31 +216,32 @@ public abstract class Transition implements Serializable {
    */
   public static class LookupTableTransition extends Transition {
 
-    // Map of lookupTables
-    private static HashMap<String, HashMap<LookupTableKey, List<DistributedTransitionOption>>>
-        lookupTables = new HashMap<String, HashMap<LookupTableKey,
-        List<DistributedTransitionOption>>>();
     private final List<LookupTableTransitionOption> transitions;
-    private List<String> attributes;
     private List<DistributedTransitionOption> defaultTransitions;
+    private OptionSampler defaultSampler;
     private String lookupTableName;
+    private transient LookupTable table;
 
     /**
-     * Constructor for LookupTableTransition.
+     * Constructor for LookupTableTransition. Starts loading the lookup table, see
+     * {@link LookupTables}.
      * @param lookupTableTransitions transitions parsed from JSON
      */
     public LookupTableTransition(List<LookupTableTransitionOption> lookupTableTransitions) {
 
       this.transitions = lookupTableTransitions;
       this.defaultTransitions = loadDefaultTransitions();
+      this.defaultSampler = OptionSampler.of(defaultTransitions);
       this.lookupTableName = lookupTableTransitions.get(0).lookupTableName;
       if (lookupTableName == null) {
         throw new RuntimeException(
           "LOOKUP TABLE JSON ERROR: Table name cannot be null.");
       }
-      if (!lookupTables.containsKey(lookupTableName)) {
-        loadLookupTable();
+      List<String> transitionStates = new ArrayList<String>();
+      for (LookupTableTransitionOption option : lookupTableTransitions) {
+        transitionStates.add(option.transition);
       }
+      LookupTables.request(lookupTableName, transitionStates);
     }
 
     /**
@@ -257,275 +259,37 @@ public abstract class Transition implements Serializable {
       return defaultTransitions;
     }
 
-    /**
-     * Loads the current lookuptable.
-     */
-    private void loadLookupTable() {
-
-      System.out.println("Loading Lookup Table: " + lookupTableName);
-      // Hashmap for the new lookup table.
-      HashMap<LookupTableKey, List<DistributedTransitionOption>> newTable
-          = new HashMap<LookupTableKey, List<DistributedTransitionOption>>();
-
-      // Load in this transitions's CSV file.
-      String fileName = Config.get("generate.lookup_tables") + lookupTableName;
-      List<? extends Map<String, String>> lookupTable = null;
-      try {
-        String csv = Utilities.readResource(fileName, true, true);
-        lookupTable = SimpleCSV.parse(csv);
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
-
-      // Retrieve CSV column headers.
-      List<String> columnHeaders = new ArrayList<String>(lookupTable.get(0).keySet());
-      // Parse the list of attributes.
-      this.attributes = new ArrayList<String>(columnHeaders.subList(0,
-          columnHeaders.size() - this.transitions.size()));
-      // Parse the list of states to transition to.
-      List<String> transitionStates = columnHeaders.subList((columnHeaders.size()
-          - this.transitions.size()), columnHeaders.size());
-
-      // Create keys and insert each row of CSV into lookup table map.
-      for (Map<String, String> currentRow : lookupTable) {
-        // Extract attributes from current CSV row.
-        List<String> rowAttributes = new ArrayList<String>(currentRow.values());
-        rowAttributes = rowAttributes.subList(0, this.attributes.size());
-        // Create age range for lookup table key if age is an attribute.
-        Range<Integer> ageRange = null;
-        Range<Long> timeRange = null;
-        if (this.attributes.contains("age")) {
-          Integer ageIndex = this.attributes.indexOf("age");
-          // Remove and parse the age range.
-          String value = rowAttributes.remove(ageIndex.intValue());
-          if (!value.contains("-")
-              || value.substring(0, value.indexOf("-")).length() < 1
-              || value.substring(value.indexOf("-") + 1).length() < 1) {
-            throw new RuntimeException(
-                "LOOKUP TABLE '" + fileName
-                + "' ERROR: Age Range must be in the form: 'ageLow-ageHigh'. Found '"
-                + value + "'");
-          }
-          ageRange = Range.between(
-              Integer.parseInt(value.substring(0, value.indexOf("-"))),
-              Integer.parseInt(value.substring(value.indexOf("-") + 1)));
-        }
-        if (this.attributes.contains("time")) {
-          Integer timeIndex = this.attributes.indexOf("time");
-          // Remove and parse the age range.
-          String value = rowAttributes.remove(timeIndex.intValue());
-          timeRange = Utilities.parseDateRange(value);
-        }
-        // Attributes key to inert into lookup table.
-        LookupTableKey attributesLookupKey =
-            new LookupTableKey(rowAttributes, ageRange, timeRange);
-        // Transition probabilities to insert into lookup table.
-        List<DistributedTransitionOption> transitionProbabilities
-            = createDistributedTransitionOptions(currentRow, transitionStates);
-        // Insert the parsed attributes and transition probabilities into lookup table.
-        newTable.put(attributesLookupKey, transitionProbabilities);
-      }
-
-      // Put new table into Hash map of all lookup tables.
-      lookupTables.put(lookupTableName, newTable);
-    }
-
-    /**
-     *  Creates Distributed Transition Options based on CSV row probabilities.
-     */
-    private ArrayList<DistributedTransitionOption> createDistributedTransitionOptions(
-        Map<String, String> currentRow, List<String> transitionStates) {
-
-      ArrayList<DistributedTransitionOption> transitionProbabilities
-          = new ArrayList<DistributedTransitionOption>();
-
-      for (String transitionName : transitionStates) {
-        if (currentRow.containsKey(transitionName)
-            && transitions.stream().anyMatch(t -> t.transition.equals(transitionName))) {
-          DistributedTransitionOption currentOption = new DistributedTransitionOption();
-          currentOption.numericDistribution = Double.parseDouble(currentRow.get(transitionName));
-          currentOption.transition = transitionName;
-          transitionProbabilities.add(currentOption);
-        } else {
-          throw new RuntimeException("LOOKUP TABLE ERROR: CSV column state name '"
-              + transitionName + "' does not match a JSON state to transition to in CSV '"
-              + lookupTableName + "'");
-        }
-      }
-      return transitionProbabilities;
-    }
-
     @Override
     public String follow(Person person, long time) {
-      Integer age = null;
+      LookupTable table = this.table;
+      if (table == null) {
+        table = LookupTables.get(lookupTableName);
+        this.table = table;
+      }
       // Extract Person's list of relevant attributes.
-      ArrayList<String> personsAttributes = new ArrayList<String>();
-      for (String currentAttribute : this.attributes) {
-        if (currentAttribute.equalsIgnoreCase("age")) {
-          age = person.ageInYears(time);
-        } else if (currentAttribute.equalsIgnoreCase("time")) {
-          // do nothing, we already have it
-        } else {
-          if (!person.attributes.containsKey(currentAttribute)) {
-            throw new RuntimeException("LOOKUP TABLE ERROR: Attribute '"
-                + currentAttribute + "' in CSV table '" + this.lookupTableName
-                + "' does not exist as one of this person's attributes.");
-          }
-          String personsAttribute
-              = person.attributes.get(currentAttribute).toString();
-          personsAttributes.add(personsAttribute);
+      List<String> personsAttributes = new ArrayList<String>(table.attributes.size());
+      for (String currentAttribute : table.attributes) {
+        if (!person.attributes.containsKey(currentAttribute)) {
+          throw new RuntimeException("LOOKUP TABLE ERROR: Attribute '"
+              + currentAttribute + "' in CSV table '" + this.lookupTableName
+              + "' does not exist as one of this person's attributes.");
         }
+        personsAttributes.add(person.attributes.get(currentAttribute).toString());
       }
-      // Create key from person's attributes to get distributions
-      LookupTableKey personsAttributesLookupKey = new LookupTableKey(personsAttributes, age, time);
-      if (lookupTables.get(lookupTableName).containsKey(personsAttributesLookupKey)) {
+      int age = table.hasAge ? person.ageInYears(time) : 0;
+      OptionSampler options = table.lookup(personsAttributes, age, time);
+      if (options != null) {
         // Person matches, use their attribute's list of distributedtransitionoptions
-        return pickDistributedTransition(
-          lookupTables.get(lookupTableName).get(personsAttributesLookupKey), person);
-      } else {
+        return options.sample(person);
+      } else if (defaultSampler != null) {
         // No attribute match, use default transition.
+        return defaultSampler.sample(person);
+      } else {
         return pickDistributedTransition(this.defaultTransitions, person);
       }
     }
   }
 
-  public final class LookupTableKey implements Serializable {
-    private final List<String> attributes;
-    /** Age for this patient. May be null if lookup table does not use age. */
-    private final Integer age;
-    /** Age range for this row. Null if this is a person. */
-    private final Range<Integer> ageRange;
-
-    private final Long time;
-    private final Range<Long> timeRange;
-
-    /**
-     * Create a symbolic lookup key for a given row that contains actual patient values.
-     * @param attributes Patient attribute values.
-     * @param age Patient age.
-     */
-    public LookupTableKey(List<String> attributes, Integer age, Long time) {
-      this.attributes = attributes;
-      this.age = age;
-      this.ageRange = null;
-      this.time = time;
-      this.timeRange = null;
-    }
-
-    /**
-     * Create a symbolic lookup key for a given row that contains lookup values.
-     * @param attributes Table attribute values.
-     * @param range If the table contains an age column, range contains the age range
-     *     information for this key.
-     */
-    public LookupTableKey(List<String> attributes, Range<Integer> range, Range<Long> timeRange) {
-      this.attributes = attributes;
-      this.age = null;
-      this.ageRange = range;
-      this.time = null;
-      this.timeRange = timeRange;
-    }
-
-    /**
-     * Overrides the hashcode method. Returns the hash of the List of attributes,
-     * forcing age range to be a hash collision.
-     */
-    @Override
-    public int hashCode() {
-      return this.attributes.hashCode();
-    }
-
-    /**
-     * Overides the equals method. If there is no age in this tranistion, then it just
-     * returns the default List.equals(). If there is an age range, then the age
-     * must fit in the range for this to return true.
-     *
-     * @param obj the object to check that this equals.
-     */
-    @Override
-    public boolean equals(Object obj) {
-      if (obj == null || this.getClass() != obj.getClass()) {
-        return false;
-      }
-      LookupTableKey that = (LookupTableKey) obj;
-
-      boolean agesMatch = true;
-      boolean timesMatch = true;
-
-      if (this.age != null) {
-        if (that.age != null) {
-          agesMatch = (this.age == that.age);
-        } else if (that.ageRange != null) {
-          agesMatch = (that.ageRange.contains(this.age));
-        } else {
-          // that.age == null && that.ageRange == null
-          agesMatch = false;
-        }
-      } else if (that.age != null) {
-        if (this.ageRange != null) {
-          agesMatch = (this.ageRange.contains(that.age));
-        } else {
-          // this.age == null && this.ageRange == null
-          agesMatch = false;
-        }
-      } else if (this.ageRange != null) {
-        // this.age == null && that.age == null
-        if (that.ageRange != null) {
-          agesMatch = this.ageRange.containsRange(that.ageRange);
-        } else {
-          agesMatch = false;
-        }
-      } else if (that.ageRange != null) {
-        agesMatch = false;
-      }
-
-      if (this.time != null) {
-        if (that.time != null) {
-          timesMatch = (this.time == that.time);
-        } else if (that.timeRange != null) {
-          timesMatch = (that.timeRange.contains(this.time));
-        } else {
-          // that.age == null && that.ageRange == null
-          // do nothing. Time will always be populated in one of them
-        }
-      } else if (that.time != null) {
-        if (this.timeRange != null) {
-          timesMatch = (this.timeRange.contains(that.time));
-        } else {
-          // this.age == null && this.ageRange == null
-          timesMatch = false;
-        }
-      } else if (this.timeRange != null) {
-        // this.age == null && that.age == null
-        if (that.timeRange != null) {
-          timesMatch = this.timeRange.containsRange(that.timeRange);
-        } else {
-          timesMatch = false;
-        }
-      } else if (that.timeRange != null) {
-        timesMatch = false;
-      }
-
-      return agesMatch && timesMatch && this.attributes.equals(that.attributes);
-    }
-
-    /**
-     * Overrides the toString method for LookupTableKey.
-     */
-    @Override
-    public String toString() {
-      String ending = "";
-      if (this.age != null || this.ageRange != null) {
-        ending = (this.age == null ? ageRange.toString() : this.age.toString());
-      }
-      if (this.time != null || this.timeRange != null) {
-        ending = (this.time == null ? timeRange.toString() : this.time.toString());
-      }
-      return attributes.toString() + " : " + ending;
-    }
-  }
-
-
   /**
    * A ConditionalTransitionOption represents a single destination state, with a
    * given logical condition that must be true in order for the state to be
@@ -551,6 +315,11 @@ public abstract class Transition implements Serializable {
 
     public ConditionalTransition(List<ConditionalTransitionOption> transitions) {
       this.transitions = transitions;
+      for (ConditionalTransitionOption option : transitions) {
+        if (option.condition != null) {
+          option.condition.compile();
+        }
+      }
     }
 
     @Override
@@ -574,6 +343,7 @@ public abstract class Transition implements Serializable {
   public static final class ComplexTransitionOption extends TransitionOption {
     private Logic condition;
     private List<DistributedTransitionOption> distributions;
+    private OptionSampler sampler;
   }
 
   /**
@@ -596,6 +366,14 @@ public abstract class Transition implements Serializable {
 
     public ComplexTransition(List<ComplexTransitionOption> transitions) {
       this.transitions = transitions;
+      for (ComplexTransitionOption option : transitions) {
+        if (option.condition != null) {
+          option.condition.compile();
+        }
+        if (option.distributions != null) {
+          option.sampler = OptionSampler.of(option.distributions);
+        }
+      }
     }
 
     @Override
@@ -614,6 +392,8 @@ public abstract class Transition implements Serializable {
     private String follow(ComplexTransitionOption option, Person person) {
       if (option.transition != null) {
         return option.transition;
+      } else if (option.sampler != null) {
+        return option.sampler.sample(person);
       } else if (option.distributions != null) {
         return pickDistributedTransition(option.distributions, person);
       }
@@ -622,7 +402,7 @@ public abstract class Transition implements Serializable {
     }
   }
 
-  private static String pickDistributedTransition(
+  static String pickDistributedTransition(
       List<DistributedTransitionOption> transitions, Person person) {
     double p = person.rand();
     double high = 0.0;
@@ -647,6 +427,132 @@ public abstract class Transition implements Serializable {
     return last.transition;
   }
 
+  /**
+   * Samples a distributed transition whose probabilities are all fixed numbers, without
+   * walking the options. By default the cumulative probabilities are binary searched, which
+   * picks the same transition as {@link #pickDistributedTransition} for the same random number.
+   * With "generate.transitions.alias_sampling" enabled, a Walker alias table picks a
+   * transition in constant time instead.
+   */
+  static final class OptionSampler implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final String[] transitions;
+    /** Running sum of the probabilities, in the order of the options. */
+    private final double[] cumulative;
+    /** Alias table, the probability of keeping each column and the alias of each column. */
+    private final double[] keep;
+    private final int[] alias;
+
+    private OptionSampler(String[] transitions, double[] cumulative) {
+      this.transitions = transitions;
+      this.cumulative = cumulative;
+      int n = transitions.length;
+      // the effective probabilities: anything past 1.0 is ignored and anything missing
+      // goes to the last transition, just as with the cumulative search
+      double[] scaled = new double[n];
+      double previous = 0.0;
+      for (int i = 0; i < n; i++) {
+        double current = Math.min(cumulative[i], 1.0);
+        scaled[i] = (current - previous) * n;
+        previous = current;
+      }
+      scaled[n - 1] += (1.0 - previous) * n;
+      keep = new double[n];
+      alias = new int[n];
+      int[] small = new int[n];
+      int[] large = new int[n];
+      int smallCount = 0;
+      int largeCount = 0;
+      for (int i = 0; i < n; i++) {
+        if (scaled[i] < 1.0) {
+          small[smallCount++] = i;
+        } else {
+          large[largeCount++] = i;
+        }
+      }
+      while (smallCount > 0 && largeCount > 0) {
+        int less = small[--smallCount];
+        int more = large[--largeCount];
+        keep[less] = scaled[less];
+        alias[less] = more;
+        scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+        if (scaled[more] < 1.0) {
+          small[smallCount++] = more;
+        } else {
+          large[largeCount++] = more;
+        }
+      }
+      // whatever remains is full up to rounding error
+      while (largeCount > 0) {
+        keep[large[--largeCount]] = 1.0;
+      }
+      while (smallCount > 0) {
+        keep[small[--smallCount]] = 1.0;
+      }
+    }
+
+    /**
+     * Create a sampler for a list of options.
+     * @param options The options of a distributed transition.
+     * @return the sampler, or null if any probability is read from an attribute or is not a
+     *     non-negative number, in which case the options must be walked at every transition
+     */
+    static OptionSampler of(List<DistributedTransitionOption> options) {
+      if (options == null || options.isEmpty()) {
+        return null;
+      }
+      String[] transitions = new String[options.size()];
+      double[] cumulative = new double[options.size()];
+      double high = 0.0;
+      for (int i = 0; i < options.size(); i++) {
+        DistributedTransitionOption option = options.get(i);
+        processDistributedTransition(option);
+        if (option.numericDistribution == null || !(option.numericDistribution >= 0.0)) {
+          return null;
+        }
+        high += option.numericDistribution;
+        transitions[i] = option.transition;
+        cumulative[i] = high;
+      }
+      return new OptionSampler(transitions, cumulative);
+    }
+
+    /**
+     * Pick a transition, drawing one random number from the person.
+     * @param person The person making the transition.
+     * @return the name of the next state
+     */
+    String sample(Person person) {
+      double p = person.rand();
+      if (ALIAS_SAMPLING) {
+        double column = p * transitions.length;
+        int i = Math.min((int) column, transitions.length - 1);
+        return (column - i) < keep[i] ? transitions[i] : transitions[alias[i]];
+      }
+      // the first option whose running sum exceeds p
+      int low = 0;
+      int high = cumulative.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (p < cumulative[mid]) {
+          high = mid;
+        } else {
+          low = mid + 1;
+        }
+      }
+      // fallback, just return the last transition
+      return transitions[Math.min(low, transitions.length - 1)];
+    }
+
+    /**
+     * Get the number of transitions.
+     * @return the number of options
+     */
+    int size() {
+      return transitions.length;
+    }
+  }
+
   private static void processDistributedTransition(DistributedTransitionOption option) {
     if (option.numericDistribution != null || option.namedDistribution != null) {
       return;
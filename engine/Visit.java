@@ -0,0 +1,83 @@
+package org.mitre.synthea.engine;
+
+import java.io.Serializable;
+
+import org.mitre.synthea.world.concepts.HealthRecord.Entry;
+
+/**
+ * A single visit of a person to a State, as stored in the person's {@link ModuleHistory}.
+ * State definitions are immutable and shared by every person and every generator thread, so
+ * everything that belongs to one pass through a state lives here: the entered and exited times,
+ * the resulting health record entry and the bookkeeping of Delayable, CallSubmodule, Guard and
+ * onset states. Visits are created and recycled by {@link ModuleHistory#enter(State)}.
+ */
+public class Visit implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Stand-in for a time that is not set. */
+  static final long NOT_SET = Long.MIN_VALUE;
+
+  State state;
+  long entered;
+  long exited;
+  Entry entry;
+  /** When a Delayable state completes, once its delay has started. */
+  long next;
+  /** When the submodule called by a CallSubmodule state completed. */
+  long submoduleExited;
+  /** The Guard inputs when the Guard last failed, see {@link GuardInputs}. */
+  transient Object[] snapshot;
+  /** Whether the condition or allergy of an onset state has been diagnosed. */
+  boolean diagnosed;
+
+  Visit(State state) {
+    reset(state);
+  }
+
+  /**
+   * Turn this record into a fresh visit to the given state.
+   * @param state The shared State definition.
+   */
+  void reset(State state) {
+    this.state = state;
+    this.entered = NOT_SET;
+    this.exited = NOT_SET;
+    this.entry = null;
+    this.next = NOT_SET;
+    this.submoduleExited = NOT_SET;
+    this.snapshot = null;
+    this.diagnosed = false;
+  }
+
+  /**
+   * Get the name of the encounter state this visit is still waiting for.
+   * See {@link State#pendingEncounter(Visit)}.
+   */
+  String pendingEncounter() {
+    return state.pendingEncounter(this);
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public Long getEntered() {
+    return entered == NOT_SET ? null : entered;
+  }
+
+  public Long getExited() {
+    return exited == NOT_SET ? null : exited;
+  }
+
+  /**
+   * Get the health record entry created during this visit, if any.
+   */
+  public Entry getEntry() {
+    return entry;
+  }
+
+  @Override
+  public String toString() {
+    return "Visit to " + state;
+  }
+}
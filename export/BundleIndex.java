@@ -0,0 +1,105 @@
+package org.mitre.synthea.export;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * An index of the entries of a FHIR Bundle that is being built, so that the exporters can find
+ * the Organization, Location, Practitioner or Condition already in the bundle in constant time
+ * instead of scanning every entry for every encounter, claim and diagnosis.
+ *
+ * <p>The exporters keep one index per bundle in its user data. Entries are indexed by the first
+ * lookup after they were added, when their resources are complete. A key keeps the first entry
+ * that has it, which is the entry a scan of the bundle would find. For lookups that collect
+ * every match, such as the Conditions a reason code refers to, {@link #add} keeps all entries
+ * with a key in bundle order.</p>
+ * @param <E> The type of the bundle entries.
+ */
+final class BundleIndex<E> {
+  /** The name of the index in the user data of a Bundle. */
+  static final String USER_DATA = "org.mitre.synthea.export.BundleIndex";
+
+  private final Map<String, E> entries = new HashMap<String, E>();
+  private final Map<String, List<E>> allEntries = new HashMap<String, List<E>>();
+  private int indexed;
+
+  /**
+   * Index the entries added to the bundle since the last update.
+   * @param bundleEntries The entries of the bundle, in order.
+   * @param keys Adds the keys of one entry to the index.
+   * @return this index
+   */
+  BundleIndex<E> update(List<E> bundleEntries, BiConsumer<E, BundleIndex<E>> keys) {
+    if (indexed > bundleEntries.size()) {
+      // entries were removed, start over
+      entries.clear();
+      allEntries.clear();
+      indexed = 0;
+    }
+    while (indexed < bundleEntries.size()) {
+      keys.accept(bundleEntries.get(indexed++), this);
+    }
+    return this;
+  }
+
+  /**
+   * Add a key for an entry, unless an earlier entry has the same key.
+   * @param type The resource type, or another namespace for the key.
+   * @param key The identifier or code, ignored if null.
+   * @param entry The entry.
+   */
+  void put(String type, String key, E entry) {
+    if (key != null) {
+      entries.putIfAbsent(type + "|" + key, entry);
+    }
+  }
+
+  /**
+   * Add a key for an entry, replacing any earlier entry with the same key.
+   * @param type The resource type, or another namespace for the key.
+   * @param key The identifier or code, ignored if null.
+   * @param entry The entry.
+   */
+  void putLast(String type, String key, E entry) {
+    if (key != null) {
+      entries.put(type + "|" + key, entry);
+    }
+  }
+
+  /**
+   * Add a key for an entry, after any earlier entries with the same key.
+   * @param type The resource type, or another namespace for the key.
+   * @param key The identifier or code, ignored if null.
+   * @param entry The entry.
+   */
+  void add(String type, String key, E entry) {
+    if (key != null) {
+      allEntries.computeIfAbsent(type + "|" + key, k -> new ArrayList<E>()).add(entry);
+    }
+  }
+
+  /**
+   * Find every entry added with a key.
+   * @param type The resource type, or another namespace for the key.
+   * @param key The identifier or code.
+   * @return the entries in bundle order, empty if there are none
+   */
+  List<E> getAll(String type, String key) {
+    List<E> found = key == null ? null : allEntries.get(type + "|" + key);
+    return found == null ? Collections.<E>emptyList() : found;
+  }
+
+  /**
+   * Find an entry.
+   * @param type The resource type, or another namespace for the key.
+   * @param key The identifier or code.
+   * @return the entry, or null if there is none
+   */
+  E get(String type, String key) {
+    return key == null ? null : entries.get(type + "|" + key);
+  }
+}
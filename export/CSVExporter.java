@@ -1,12 +1,11 @@
 package org.mitre.synthea.export;
 
-import static org.mitre.synthea.export.ExportHelper.dateFromTimestamp;
 import static org.mitre.synthea.export.ExportHelper.getSystemFromURI;
-import static org.mitre.synthea.export.ExportHelper.iso8601Timestamp;
 
 import com.google.common.collect.Table;
 import com.google.gson.JsonObject;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -21,9 +20,9 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.GregorianCalendar;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
@@ -33,6 +32,7 @@ import java.util.stream.Collectors;
 import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.ConfigSnapshot;
 import org.mitre.synthea.helpers.RandomCodeGenerator;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.modules.QualityOfLifeModule;
@@ -164,6 +164,30 @@ public class CSVExporter {
    */
   private AtomicLong transactionId;
 
+  /**
+   * Size of the buffer between each writer and its file. Files are written when their buffer
+   * fills up rather than after every patient.
+   */
+  private static final int BUFFER_SIZE =
+      Config.getAsInteger("exporter.csv.buffer_size", 1024 * 1024);
+
+  /**
+   * Rows built by the current thread that have not been handed to the shared writers yet.
+   */
+  private final ThreadLocal<PendingRows> pendingRows =
+      ThreadLocal.withInitial(PendingRows::new);
+
+  /**
+   * The rows one thread has built for the patient it is exporting, by writer. They are
+   * appended to each file in a single block, so a patient's rows stay together in every file
+   * and each shared writer is locked once per patient instead of once per row.
+   */
+  private static class PendingRows {
+    private final Map<OutputStreamWriter, StringBuilder> rows =
+        new IdentityHashMap<OutputStreamWriter, StringBuilder>();
+    private char[] chars = new char[8192];
+  }
+
   /**
    * Constructor for the CSVExporter - initialize the specified files and store
    * the writers in fields.
@@ -408,9 +432,10 @@ public class CSVExporter {
           }
         }
       }
-      organizations.flush();
-      providers.flush();
     }
+    writePendingRows();
+    organizations.flush();
+    providers.flush();
   }
 
   /**
@@ -423,13 +448,32 @@ public class CSVExporter {
     // Export All Payers
     for (Payer payer : PayerManager.getAllPayers()) {
       payer(payer);
-      payers.flush();
     }
     // Export No Insurance statistics
     payer(PayerManager.getNoInsurancePlan().getPayer());
+    writePendingRows();
     payers.flush();
   }
 
+  /**
+   * Write everything that is still buffered to the CSV files. This method is called after all
+   * the Patient records have been exported using the export(Person,long) method, and at every
+   * completion journal checkpoint so that journaled patients are on disk.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  public void flush() throws IOException {
+    writePendingRows();
+    for (OutputStreamWriter writer : new OutputStreamWriter[] { patients, allergies,
+        medications, conditions, careplans, observations, procedures, immunizations, encounters,
+        imagingStudies, devices, supplies, organizations, providers, payers, payerTransitions,
+        claims, claimsTransactions, patientExpenses }) {
+      synchronized (writer) {
+        writer.flush();
+      }
+    }
+  }
+
   /**
    * Export the payerTransitions.csv file. This method should be called once after all the
    * Patient records have been exported using the export(Person,long) method.
@@ -446,7 +490,6 @@ public class CSVExporter {
         payerTransition(person, planRecord);
       }
     }
-    payerTransitions.flush();
   }
 
   /**
@@ -465,7 +508,6 @@ public class CSVExporter {
         patientExpense(person, planRecord);
       }
     }
-    patientExpenses.flush();
   }
 
   /**
@@ -476,7 +518,16 @@ public class CSVExporter {
    * @throws IOException if any IO error occurs
    */
   public void export(Person person, long time) throws IOException {
+    try {
+      exportRows(person, time);
+    } finally {
+      // hand the patient's rows to the shared writers even if the export failed part way,
+      // so they are never left behind in this thread's buffer
+      writePendingRows();
+    }
+  }
 
+  private void exportRows(Person person, long time) throws IOException {
     String personID = patient(person, time);
 
     for (Encounter encounter : person.record.encounters) {
@@ -489,10 +540,8 @@ public class CSVExporter {
       for (HealthRecord.Entry condition : encounter.conditions) {
         /* condition to ignore codes other then retrieved from terminology url */
         if (!StringUtils.isEmpty(Config.get("generate.terminology_service_url"))
-            && !RandomCodeGenerator.selectedCodes.isEmpty()) {
-          if (RandomCodeGenerator.selectedCodes.stream()
-              .filter(code -> code.code.equals(condition.codes.get(0).code))
-              .findFirst().isPresent()) {
+            && RandomCodeGenerator.hasSelectedCodes()) {
+          if (RandomCodeGenerator.isSelected(condition.codes.get(0).code)) {
             condition(personID, encounterID, condition);
           }
         } else {
@@ -537,14 +586,42 @@ public class CSVExporter {
         supply(personID, encounterID, encounter, supply);
       }
     }
-    int yearsOfHistory = Integer.parseInt(Config.get("exporter.years_of_history"));
+    Calendar cutOff = historyCutOff();
+    CSVExporter.getInstance().exportPayerTransitions(person, cutOff.getTimeInMillis(), time);
+    CSVExporter.getInstance().exportPatientExpenses(person, cutOff.getTimeInMillis(), time);
+    for (Observation obs : qualityOfLifeObservations(person, cutOff)) {
+      observation(personID, "", obs);
+    }
+  }
+
+  /**
+   * Get the start of the exported history, see "exporter.years_of_history".
+   *
+   * @return the first day of the first exported year
+   */
+  private static Calendar historyCutOff() {
+    int yearsOfHistory = ConfigSnapshot.current().yearsOfHistory;
     Calendar cutOff = new GregorianCalendar(1900, 0, 1);
     if (yearsOfHistory > 0) {
       cutOff = Calendar.getInstance();
       cutOff.set(cutOff.get(Calendar.YEAR) - yearsOfHistory, 0, 1);
     }
-    CSVExporter.getInstance().exportPayerTransitions(person, cutOff.getTimeInMillis(), time);
-    CSVExporter.getInstance().exportPatientExpenses(person, cutOff.getTimeInMillis(), time);
+    return cutOff;
+  }
+
+  /**
+   * Get the yearly GBD quality of life scores (QALY, DALY and QOLS) of a person as
+   * observations, which are exported without an encounter.
+   *
+   * @param person The person.
+   * @return the observations within the exported history
+   */
+  static List<Observation> qualityOfLifeObservations(Person person) {
+    return qualityOfLifeObservations(person, historyCutOff());
+  }
+
+  private static List<Observation> qualityOfLifeObservations(Person person, Calendar cutOff) {
+    List<Observation> observations = new ArrayList<Observation>();
     Calendar now = Calendar.getInstance();
     Calendar birthDay = Calendar.getInstance();
     birthDay.setTimeInMillis((long) person.attributes.get(Person.BIRTHDATE));
@@ -568,26 +645,11 @@ public class CSVExporter {
           obs.unit = unit;
           Code code = new Code("GBD", score, score);
           obs.codes.add(code);
-          observation(personID, "", obs);
+          observations.add(obs);
         }
       }
     }
-
-    patients.flush();
-    encounters.flush();
-    conditions.flush();
-    allergies.flush();
-    medications.flush();
-    careplans.flush();
-    observations.flush();
-    procedures.flush();
-    immunizations.flush();
-    imagingStudies.flush();
-    devices.flush();
-    supplies.flush();
-    claims.flush();
-    claimsTransactions.flush();
-    patientExpenses.flush();
+    return observations;
   }
 
   /**
@@ -614,9 +676,9 @@ public class CSVExporter {
 
     StringBuilder s = new StringBuilder();
     s.append(personID).append(',');
-    s.append(dateFromTimestamp((long) person.attributes.get(Person.BIRTHDATE))).append(',');
+    ExportFormatter.appendDate(s, (long) person.attributes.get(Person.BIRTHDATE)).append(',');
     if (!person.alive(time)) {
-      s.append(dateFromTimestamp((Long) person.attributes.get(Person.DEATHDATE)));
+      ExportFormatter.appendDate(s, (Long) person.attributes.get(Person.DEATHDATE));
     }
 
     for (String attribute : new String[] {
@@ -657,7 +719,7 @@ public class CSVExporter {
     // s.append(person.attributes.get("most-recent-daly"));
 
     s.append(NEWLINE);
-    write(s.toString(), patients);
+    write(s, patients);
 
     return personID;
   }
@@ -680,10 +742,10 @@ public class CSVExporter {
     // ID
     s.append(encounterID).append(',');
     // START
-    s.append(iso8601Timestamp(encounter.start)).append(',');
+    ExportFormatter.appendIso8601(s, encounter.start).append(',');
     // STOP
     if (encounter.stop != 0L) {
-      s.append(iso8601Timestamp(encounter.stop)).append(',');
+      ExportFormatter.appendIso8601(s, encounter.stop).append(',');
     } else {
       s.append(',');
     }
@@ -723,11 +785,11 @@ public class CSVExporter {
     s.append(clean(coding.display)).append(',');
 
     // BASE_ENCOUNTER_COST
-    s.append(String.format(Locale.US, "%.2f", encounter.getCost())).append(',');
+    ExportFormatter.appendDecimal(s, encounter.getCost(), 2).append(',');
     // TOTAL_COST
-    s.append(String.format(Locale.US, "%.2f", encounter.claim.getTotalClaimCost())).append(',');
+    ExportFormatter.appendDecimal(s, encounter.claim.getTotalClaimCost(), 2).append(',');
     // PAYER_COVERAGE
-    s.append(String.format(Locale.US, "%.2f", encounter.claim.getTotalCoveredCost())).append(',');
+    ExportFormatter.appendDecimal(s, encounter.claim.getTotalCoveredCost(), 2).append(',');
     // REASONCODE & REASONDESCRIPTION
     if (encounter.reason == null) {
       s.append(",");
@@ -737,7 +799,7 @@ public class CSVExporter {
     }
 
     s.append(NEWLINE);
-    write(s.toString(), encounters);
+    write(s, encounters);
 
     return encounterID;
   }
@@ -754,9 +816,9 @@ public class CSVExporter {
     // START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION
     StringBuilder s = new StringBuilder();
 
-    s.append(dateFromTimestamp(condition.start)).append(',');
+    ExportFormatter.appendDate(s, condition.start).append(',');
     if (condition.stop != 0L) {
-      s.append(dateFromTimestamp(condition.stop));
+      ExportFormatter.appendDate(s, condition.stop);
     }
     s.append(',');
     s.append(personID).append(',');
@@ -768,7 +830,7 @@ public class CSVExporter {
     s.append(clean(coding.display));
 
     s.append(NEWLINE);
-    write(s.toString(), conditions);
+    write(s, conditions);
   }
 
   /**
@@ -786,9 +848,9 @@ public class CSVExporter {
     // REACTION2,DESCRIPTION2,SEVERITY2
     StringBuilder s = new StringBuilder();
 
-    s.append(dateFromTimestamp(allergy.start)).append(',');
+    ExportFormatter.appendDate(s, allergy.start).append(',');
     if (allergy.stop != 0L) {
-      s.append(dateFromTimestamp(allergy.stop));
+      ExportFormatter.appendDate(s, allergy.stop);
     }
     s.append(',');
     s.append(personID).append(',');
@@ -839,7 +901,7 @@ public class CSVExporter {
     }
 
     s.append(NEWLINE);
-    write(s.toString(), allergies);
+    write(s, allergies);
   }
 
   /**
@@ -869,7 +931,7 @@ public class CSVExporter {
     // DATE,PATIENT,ENCOUNTER,CATEGORY,CODE,DESCRIPTION,VALUE,UNITS
     StringBuilder s = new StringBuilder();
 
-    s.append(iso8601Timestamp(observation.start)).append(',');
+    ExportFormatter.appendIso8601(s, observation.start).append(',');
     s.append(personID).append(',');
     s.append(encounterID).append(',');
     if (observation.category != null) {
@@ -889,7 +951,7 @@ public class CSVExporter {
     s.append(type);
 
     s.append(NEWLINE);
-    write(s.toString(), observations);
+    write(s, observations);
   }
 
   /**
@@ -905,9 +967,9 @@ public class CSVExporter {
     // START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION,COST,REASONCODE,REASONDESCRIPTION
     StringBuilder s = new StringBuilder();
 
-    s.append(iso8601Timestamp(procedure.start)).append(',');
+    ExportFormatter.appendIso8601(s, procedure.start).append(',');
     if (procedure.stop != 0L) {
-      s.append(iso8601Timestamp(procedure.stop));
+      ExportFormatter.appendIso8601(s, procedure.stop);
     }
     s.append(',');
     s.append(personID).append(',');
@@ -918,7 +980,7 @@ public class CSVExporter {
     // DESCRIPTION
     s.append(clean(coding.display)).append(',');
     // BASE_COST
-    s.append(String.format(Locale.US, "%.2f", procedure.getCost())).append(',');
+    ExportFormatter.appendDecimal(s, procedure.getCost(), 2).append(',');
     // REASONCODE & REASONDESCRIPTION
     if (procedure.reasons.isEmpty()) {
       s.append(','); // reason code & desc
@@ -929,7 +991,7 @@ public class CSVExporter {
     }
 
     s.append(NEWLINE);
-    write(s.toString(), procedures);
+    write(s, procedures);
   }
 
   /**
@@ -949,9 +1011,9 @@ public class CSVExporter {
     // BASE_COST,PAYER_COVERAGE,DISPENSES,TOTALCOST,REASONCODE,REASONDESCRIPTION
     StringBuilder s = new StringBuilder();
 
-    s.append(iso8601Timestamp(medication.start)).append(',');
+    ExportFormatter.appendIso8601(s, medication.start).append(',');
     if (medication.stop != 0L) {
-      s.append(iso8601Timestamp(medication.stop));
+      ExportFormatter.appendIso8601(s, medication.stop);
     }
     s.append(',');
     s.append(personID).append(',');
@@ -964,9 +1026,36 @@ public class CSVExporter {
     s.append(clean(coding.display)).append(',');
     // BASE_COST
     BigDecimal cost = medication.getCost();
-    s.append(String.format(Locale.US, "%.2f", cost)).append(',');
+    ExportFormatter.appendDecimal(s, cost, 2).append(',');
     // PAYER_COVERAGE
-    s.append(String.format(Locale.US, "%.2f", medication.claim.getTotalCoveredCost())).append(',');
+    ExportFormatter.appendDecimal(s, medication.claim.getTotalCoveredCost(), 2).append(',');
+    long dispenses = dispenses(medication, stopTime);
+    s.append(dispenses).append(',');
+    BigDecimal totalCost = cost.multiply(
+        BigDecimal.valueOf(dispenses)).setScale(2, RoundingMode.DOWN); //Truncate 2 decimal places
+    ExportFormatter.appendDecimal(s, totalCost, 2).append(',');
+
+    if (medication.reasons.isEmpty()) {
+      s.append(','); // reason code & desc
+    } else {
+      Code reason = medication.reasons.get(0);
+      s.append(reason.code).append(',');
+      s.append(clean(reason.display));
+    }
+
+    s.append(NEWLINE);
+    write(s, medications);
+  }
+
+  /**
+   * Get the number of times a medication was dispensed: the original prescription and its
+   * refills.
+   *
+   * @param medication The medication.
+   * @param stopTime   End time, used if the medication was never stopped.
+   * @return the number of dispenses, at least one
+   */
+  static long dispenses(Medication medication, long stopTime) {
     long dispenses = 1; // dispenses = refills + original
     // makes the math cleaner and more explicit. dispenses * unit cost = total cost
 
@@ -998,22 +1087,7 @@ public class CSVExporter {
       // or less than a month if no duration provided
       dispenses = 1;
     }
-
-    s.append(dispenses).append(',');
-    BigDecimal totalCost = cost.multiply(
-        BigDecimal.valueOf(dispenses)).setScale(2, RoundingMode.DOWN); //Truncate 2 decimal places
-    s.append(String.format(Locale.US, "%.2f", totalCost)).append(',');
-
-    if (medication.reasons.isEmpty()) {
-      s.append(','); // reason code & desc
-    } else {
-      Code reason = medication.reasons.get(0);
-      s.append(reason.code).append(',');
-      s.append(clean(reason.display));
-    }
-
-    s.append(NEWLINE);
-    write(s.toString(), medications);
+    return dispenses;
   }
 
   /**
@@ -1029,7 +1103,7 @@ public class CSVExporter {
     // DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,BASE_COST
     StringBuilder s = new StringBuilder();
 
-    s.append(iso8601Timestamp(immunization.start)).append(',');
+    ExportFormatter.appendIso8601(s, immunization.start).append(',');
     s.append(personID).append(',');
     s.append(encounterID).append(',');
     // CODE
@@ -1038,10 +1112,10 @@ public class CSVExporter {
     // DESCRIPTION
     s.append(clean(coding.display)).append(',');
     // BASE_COST
-    s.append(String.format(Locale.US, "%.2f", immunization.getCost()));
+    ExportFormatter.appendDecimal(s, immunization.getCost(), 2);
 
     s.append(NEWLINE);
-    write(s.toString(), immunizations);
+    write(s, immunizations);
   }
 
   /**
@@ -1059,9 +1133,9 @@ public class CSVExporter {
 
     String careplanID = careplan.uuid.toString();
     s.append(careplanID).append(',');
-    s.append(dateFromTimestamp(careplan.start)).append(',');
+    ExportFormatter.appendDate(s, careplan.start).append(',');
     if (careplan.stop != 0L) {
-      s.append(dateFromTimestamp(careplan.stop));
+      ExportFormatter.appendDate(s, careplan.stop);
     }
     s.append(',');
     s.append(personID).append(',');
@@ -1081,7 +1155,7 @@ public class CSVExporter {
     }
     s.append(NEWLINE);
 
-    write(s.toString(), careplans);
+    write(s, careplans);
 
     return careplanID;
   }
@@ -1110,7 +1184,7 @@ public class CSVExporter {
         String instanceDicomUid = instance.dicomUid;
         Code sopClass = instance.sopClass;
         s.append(studyID).append(',');
-        s.append(iso8601Timestamp(imagingStudy.start)).append(',');
+        ExportFormatter.appendIso8601(s, imagingStudy.start).append(',');
         s.append(personID).append(',');
         s.append(encounterID).append(',');
 
@@ -1132,7 +1206,7 @@ public class CSVExporter {
       }
     }
 
-    write(s.toString(), imagingStudies);
+    write(s, imagingStudies);
 
     return studyID;
   }
@@ -1150,9 +1224,9 @@ public class CSVExporter {
     // START,STOP,PATIENT,ENCOUNTER,CODE,DESCRIPTION,UDI
     StringBuilder s = new StringBuilder();
 
-    s.append(iso8601Timestamp(device.start)).append(',');
+    ExportFormatter.appendIso8601(s, device.start).append(',');
     if (device.stop != 0L) {
-      s.append(iso8601Timestamp(device.stop));
+      ExportFormatter.appendIso8601(s, device.stop);
     }
     s.append(',');
 
@@ -1167,7 +1241,7 @@ public class CSVExporter {
 
     s.append(NEWLINE);
 
-    write(s.toString(), devices);
+    write(s, devices);
   }
 
   /**
@@ -1183,7 +1257,7 @@ public class CSVExporter {
     // DATE,PATIENT,ENCOUNTER,CODE,DESCRIPTION,QUANTITY
     StringBuilder s = new StringBuilder();
 
-    s.append(dateFromTimestamp(supply.start)).append(',');
+    ExportFormatter.appendDate(s, supply.start).append(',');
     s.append(personID).append(',');
     s.append(encounterID).append(',');
 
@@ -1195,7 +1269,7 @@ public class CSVExporter {
 
     s.append(NEWLINE);
 
-    write(s.toString(), supplies);
+    write(s, supplies);
   }
 
   /**
@@ -1221,7 +1295,7 @@ public class CSVExporter {
     s.append(utilization);
     s.append(NEWLINE);
 
-    write(s.toString(), organizations);
+    write(s, organizations);
   }
 
   /**
@@ -1250,7 +1324,7 @@ public class CSVExporter {
 
     s.append(NEWLINE);
 
-    write(s.toString(), providers);
+    write(s, providers);
   }
 
   /**
@@ -1280,11 +1354,11 @@ public class CSVExporter {
       s.append(clean(value)).append(',');
     }
     // AMOUNT_COVERED
-    s.append(String.format(Locale.US, "%.2f", payer.getAmountCovered())).append(',');
+    ExportFormatter.appendDecimal(s, payer.getAmountCovered(), 2).append(',');
     // AMOUNT_UNCOVERED
-    s.append(String.format(Locale.US, "%.2f", payer.getAmountUncovered())).append(',');
+    ExportFormatter.appendDecimal(s, payer.getAmountUncovered(), 2).append(',');
     // REVENUE
-    s.append(String.format(Locale.US, "%.2f", payer.getRevenue())).append(',');
+    ExportFormatter.appendDecimal(s, payer.getRevenue(), 2).append(',');
     // Covered/Uncovered Encounters/Medications/Procedures/Immunizations
     s.append(payer.getEncountersCoveredCount()).append(",");
     s.append(payer.getEncountersUncoveredCount()).append(",");
@@ -1302,7 +1376,7 @@ public class CSVExporter {
     s.append(payer.getNumYearsCovered() * 12);
 
     s.append(NEWLINE);
-    write(s.toString(), payers);
+    write(s, payers);
   }
 
   /**
@@ -1324,9 +1398,9 @@ public class CSVExporter {
     }
     s.append(",");
     // START_YEAR
-    s.append(iso8601Timestamp(planRecord.getStartTime())).append(',');
+    ExportFormatter.appendIso8601(s, planRecord.getStartTime()).append(',');
     // END_YEAR
-    s.append(iso8601Timestamp(planRecord.getStopTime())).append(',');
+    ExportFormatter.appendIso8601(s, planRecord.getStopTime()).append(',');
     // PAYER_ID
     s.append(planRecord.getPlan().getPayer().getResourceID()).append(',');
     // SECONDARY_PAYER_ID
@@ -1345,7 +1419,7 @@ public class CSVExporter {
       s.append(planRecord.ownerName);
     }
     s.append(NEWLINE);
-    write(s.toString(), payerTransitions);
+    write(s, payerTransitions);
   }
 
   private void patientExpense(Person person, PlanRecord planRecord) throws IOException {
@@ -1355,7 +1429,7 @@ public class CSVExporter {
     // PATIENT_ID
     s.append(person.attributes.get(Person.ID)).append(",");
     // YEAR
-    s.append(iso8601Timestamp(planRecord.getStartTime())).append(',');
+    ExportFormatter.appendIso8601(s, planRecord.getStartTime()).append(',');
     // PAYER_ID
     s.append(planRecord.getPlan().getPayer().getResourceID()).append(',');
     // HEALTHCARE_EXPENSES
@@ -1369,7 +1443,7 @@ public class CSVExporter {
     s.append(coveredExpenses);
 
     s.append(NEWLINE);
-    write(s.toString(), patientExpenses);
+    write(s, patientExpenses);
   }
 
   /**
@@ -1487,9 +1561,9 @@ public class CSVExporter {
     // APPOINTMENTID
     s.append(encounterID).append(',');
     // CURRENTILLNESSDATE
-    s.append(iso8601Timestamp(onsetIllness)).append(',');
+    ExportFormatter.appendIso8601(s, onsetIllness).append(',');
     // SERVICEDATE
-    s.append(iso8601Timestamp(encounter.start)).append(',');
+    ExportFormatter.appendIso8601(s, encounter.start).append(',');
     // SUPERVISINGPROVIDERID
     if (encounter.clinician != null) {
       s.append(encounter.clinician.getResourceID()).append(',');
@@ -1520,16 +1594,16 @@ public class CSVExporter {
       // OUTSTANDINGP
       s.append("0,");
       // LASTBILLEDDATE1
-      s.append(iso8601Timestamp(encounter.stop)).append(',');
+      ExportFormatter.appendIso8601(s, encounter.stop).append(',');
       // LASTBILLEDDATE2
       if (claim.getSecondaryPayer() != null
           && claim.getSecondaryPayer().isNoInsurance()) {
-        s.append(iso8601Timestamp(encounter.stop)).append(',');
+        ExportFormatter.appendIso8601(s, encounter.stop).append(',');
       } else {
         s.append(',');
       }
       // LASTBILLEDDATEP
-      s.append(iso8601Timestamp(encounter.stop)).append(',');
+      ExportFormatter.appendIso8601(s, encounter.stop).append(',');
 
     } else {
       // TODO this may not get triggered
@@ -1545,31 +1619,31 @@ public class CSVExporter {
       // STATUSP for Patient as Payer
       s.append("BILLED,");
       // OUTSTANDING1 (TODO this should be the outstanding payer balance)
-      s.append(String.format(Locale.US, "%.2f", encounter.claim.getTotalCoveredCost()))
+      ExportFormatter.appendDecimal(s, encounter.claim.getTotalCoveredCost(), 2)
               .append(',');
       // OUTSTANDING2
       if (claim.getSecondaryPayer() != null
           && claim.getSecondaryPayer().isNoInsurance()) {
         // TODO this is not correct
-        s.append(String.format(Locale.US, "%.2f", encounter.claim.getTotalCoveredCost()))
+        ExportFormatter.appendDecimal(s, encounter.claim.getTotalCoveredCost(), 2)
                 .append(',');
       } else {
         s.append(',');
       }
       // OUTSTANDINGP (TODO this should be the outstanding patient balance)
       BigDecimal patientCost = claim.getTotalClaimCost().subtract(claim.getTotalCoveredCost());
-      s.append(String.format(Locale.US, "%.2f", patientCost)).append(',');
+      ExportFormatter.appendDecimal(s, patientCost, 2).append(',');
       // LASTBILLEDDATE1
-      s.append(iso8601Timestamp(encounter.start)).append(',');
+      ExportFormatter.appendIso8601(s, encounter.start).append(',');
       // LASTBILLEDDATE2
       if (claim.getSecondaryPayer() != null
           && claim.getSecondaryPayer().isNoInsurance()) {
-        s.append(iso8601Timestamp(encounter.start)).append(',');
+        ExportFormatter.appendIso8601(s, encounter.start).append(',');
       } else {
         s.append(',');
       }
       // LASTBILLEDDATEP
-      s.append(iso8601Timestamp(encounter.start)).append(',');
+      ExportFormatter.appendIso8601(s, encounter.start).append(',');
     }
 
     // HEALTHCARECLAIMTYPEID1
@@ -1590,7 +1664,7 @@ public class CSVExporter {
       s.append('0');
     }
     s.append(NEWLINE);
-    write(s.toString(), claims);
+    write(s, claims);
 
     // Main Claim
     simulateClaimProcess(person, claim, claimId, encounter, encounterID, claim.mainEntry,
@@ -1868,7 +1942,7 @@ public class CSVExporter {
       s.append(type.toString()).append(',');
       // AMOUNT
       if (type == ClaimTransactionType.CHARGE || type == ClaimTransactionType.TRANSFERIN) {
-        s.append(String.format(Locale.US, "%.2f", amount));
+        ExportFormatter.appendDecimal(s, amount, 2);
       }
       s.append(',');
       // METHOD
@@ -1877,9 +1951,9 @@ public class CSVExporter {
       }
       s.append(',');
       // FROMDATE
-      s.append(iso8601Timestamp(start)).append(',');
+      ExportFormatter.appendIso8601(s, start).append(',');
       // TODATE
-      s.append(iso8601Timestamp(stop)).append(',');
+      ExportFormatter.appendIso8601(s, stop).append(',');
       // PLACEOFSERVICE
       s.append(organizationId).append(',');
       // PROCEDURECODE
@@ -1909,7 +1983,7 @@ public class CSVExporter {
       s.append(clean(procedureDisplay)).append(',');
       // UNITAMOUNT
       if (unitAmount != null) {
-        s.append(String.format(Locale.US, "%.2f", unitAmount));
+        ExportFormatter.appendDecimal(s, unitAmount, 2);
       }
       s.append(',');
       // TRANSFEROUTID
@@ -1924,22 +1998,22 @@ public class CSVExporter {
       s.append(',');
       // PAYMENTS
       if (payment != null) {
-        s.append(String.format(Locale.US, "%.2f", payment));
+        ExportFormatter.appendDecimal(s, payment, 2);
       }
       s.append(',');
       // ADJUSTMENTS
       if (adjustment != null) {
-        s.append(String.format(Locale.US, "%.2f", adjustment));
+        ExportFormatter.appendDecimal(s, adjustment, 2);
       }
       s.append(',');
       // TRANSFERS
       if (type == ClaimTransactionType.TRANSFERIN || type == ClaimTransactionType.TRANSFEROUT) {
-        s.append(String.format(Locale.US, "%.2f", amount));
+        ExportFormatter.appendDecimal(s, amount, 2);
       }
       s.append(',');
       // OUTSTANDING
       if (unpaid != null) {
-        s.append(String.format(Locale.US, "%.2f", unpaid));
+        ExportFormatter.appendDecimal(s, unpaid, 2);
       }
       s.append(',');
       // APPOINTMENTID
@@ -1976,15 +2050,41 @@ public class CSVExporter {
 
   /**
    * Helper method to write a line to a File. Extracted to a separate method here
-   * to make it a little easier to replace implementations.
+   * to make it a little easier to replace implementations. The line is kept in a buffer of
+   * the current thread until {@link #writePendingRows()} is called.
    *
    * @param line   The line to write
    * @param writer The place to write it
+   */
+  private void write(CharSequence line, OutputStreamWriter writer) {
+    if (writer == NO_OP) {
+      return;
+    }
+    pendingRows.get().rows.computeIfAbsent(writer, w -> new StringBuilder()).append(line);
+  }
+
+  /**
+   * Append the rows the current thread has buffered to their files, one block per file.
+   *
    * @throws IOException if an I/O error occurs
    */
-  private static void write(String line, OutputStreamWriter writer) throws IOException {
-    synchronized (writer) {
-      writer.write(line);
+  private void writePendingRows() throws IOException {
+    PendingRows pending = pendingRows.get();
+    for (Map.Entry<OutputStreamWriter, StringBuilder> entry : pending.rows.entrySet()) {
+      StringBuilder rows = entry.getValue();
+      int length = rows.length();
+      if (length == 0) {
+        continue;
+      }
+      if (pending.chars.length < length) {
+        pending.chars = new char[Math.max(length, 2 * pending.chars.length)];
+      }
+      rows.getChars(0, length, pending.chars, 0);
+      rows.setLength(0);
+      OutputStreamWriter writer = entry.getKey();
+      synchronized (writer) {
+        writer.write(pending.chars, 0, length);
+      }
     }
   }
 
@@ -2019,6 +2119,7 @@ public class CSVExporter {
     File file = outputDirectory.resolve(filename).toFile();
     // file writing may fail if we tell it to append to a file that doesn't already exist
     append = append && file.exists();
-    return new OutputStreamWriter(new FileOutputStream(file, append), charset);
+    return new OutputStreamWriter(
+        new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_SIZE), charset);
   }
 }
\ No newline at end of file
@@ -0,0 +1,240 @@
+package org.mitre.synthea.export;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.zone.ZoneRules;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * Thread safe formatting of the dates, decimals and UUIDs written by the exporters. Values are
+ * appended to a caller's StringBuilder without locks and without intermediate Strings.
+ *
+ * <p>The output is identical to the formats the exporters used before: SimpleDateFormat
+ * "yyyy-MM-dd" in the default time zone, "yyyy-MM-dd'T'HH:mm:ss'Z'" in UTC,
+ * {@code String.format(Locale.US, "%.2f", value)} and {@link UUID#toString()}. Times outside
+ * the range where the fast path is known to match (before 1900 or after 2037 in a time zone
+ * with daylight saving time, or outside the years 1583 to 9999, where SimpleDateFormat uses
+ * the Julian calendar or more digits) are formatted with a per-thread SimpleDateFormat.</p>
+ */
+public final class ExportFormatter {
+  private static final long MILLIS_PER_DAY = 86400000L;
+  /** 1583-01-01T00:00:00Z, the first full year of the Gregorian calendar. */
+  private static final long MIN_GREGORIAN = -12212553600000L;
+  /** 10000-01-01T00:00:00Z, the first year with more than four digits. */
+  private static final long MAX_FOUR_DIGITS = 253402300800000L;
+  /** 1900-01-01T00:00:00Z and 2038-01-01T00:00:00Z, the range of zone transitions. */
+  private static final long MIN_TRANSITIONS = -2208988800000L;
+  private static final long MAX_TRANSITIONS = 2145916800000L;
+
+  /** The default time zone, captured once like the SimpleDateFormat it replaces. */
+  private static final TimeZone DEFAULT_ZONE = TimeZone.getDefault();
+  private static final ZoneRules DEFAULT_RULES = DEFAULT_ZONE.toZoneId().getRules();
+  /** The offset of the default time zone in millis, if it never changes. */
+  private static final Long FIXED_OFFSET = DEFAULT_RULES.isFixedOffset()
+      ? DEFAULT_RULES.getOffset(Instant.EPOCH).getTotalSeconds() * 1000L : null;
+
+  private static final ThreadLocal<SimpleDateFormat> DATE_FORMAT =
+      ThreadLocal.withInitial(() -> format("yyyy-MM-dd", DEFAULT_ZONE));
+  private static final ThreadLocal<SimpleDateFormat> ISO_DATE_FORMAT =
+      ThreadLocal.withInitial(() -> format("yyyy-MM-dd'T'HH:mm:ss'Z'",
+          TimeZone.getTimeZone("UTC")));
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+  private static final long[] POWERS_OF_TEN = { 1L, 10L, 100L, 1000L, 10000L, 100000L,
+      1000000L, 10000000L, 100000000L, 1000000000L };
+
+  private ExportFormatter() {
+  }
+
+  private static SimpleDateFormat format(String pattern, TimeZone zone) {
+    SimpleDateFormat format = new SimpleDateFormat(pattern);
+    format.setTimeZone(zone);
+    return format;
+  }
+
+  /**
+   * Get the "yyyy-MM-dd" date of a time stamp in the default time zone.
+   * @param time The time stamp in milliseconds.
+   * @return the date
+   */
+  public static String date(long time) {
+    return appendDate(new StringBuilder(10), time).toString();
+  }
+
+  /**
+   * Append the "yyyy-MM-dd" date of a time stamp in the default time zone.
+   * @param sb The builder to append to.
+   * @param time The time stamp in milliseconds.
+   * @return the builder
+   */
+  public static StringBuilder appendDate(StringBuilder sb, long time) {
+    long offset;
+    if (FIXED_OFFSET != null) {
+      offset = FIXED_OFFSET;
+    } else if (time >= MIN_TRANSITIONS && time < MAX_TRANSITIONS) {
+      offset = DEFAULT_RULES.getOffset(Instant.ofEpochMilli(time)).getTotalSeconds() * 1000L;
+    } else {
+      return sb.append(DATE_FORMAT.get().format(new Date(time)));
+    }
+    long local = time + offset;
+    if (local < MIN_GREGORIAN || local >= MAX_FOUR_DIGITS) {
+      return sb.append(DATE_FORMAT.get().format(new Date(time)));
+    }
+    return appendDay(sb, Math.floorDiv(local, MILLIS_PER_DAY));
+  }
+
+  /**
+   * Get the iso8601 "yyyy-MM-dd'T'HH:mm:ss'Z'" string of a time stamp in UTC.
+   * @param time The time stamp in milliseconds.
+   * @return the date and time
+   */
+  public static String iso8601(long time) {
+    return appendIso8601(new StringBuilder(20), time).toString();
+  }
+
+  /**
+   * Append the iso8601 "yyyy-MM-dd'T'HH:mm:ss'Z'" string of a time stamp in UTC.
+   * @param sb The builder to append to.
+   * @param time The time stamp in milliseconds.
+   * @return the builder
+   */
+  public static StringBuilder appendIso8601(StringBuilder sb, long time) {
+    if (time < MIN_GREGORIAN || time >= MAX_FOUR_DIGITS) {
+      return sb.append(ISO_DATE_FORMAT.get().format(new Date(time)));
+    }
+    int seconds = (int) (Math.floorMod(time, MILLIS_PER_DAY) / 1000);
+    appendDay(sb, Math.floorDiv(time, MILLIS_PER_DAY)).append('T');
+    appendTwoDigits(sb, seconds / 3600).append(':');
+    appendTwoDigits(sb, seconds / 60 % 60).append(':');
+    return appendTwoDigits(sb, seconds % 60).append('Z');
+  }
+
+  /**
+   * Append the proleptic Gregorian date of a day since the epoch, for years 0 to 9999.
+   * See http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+   */
+  private static StringBuilder appendDay(StringBuilder sb, long epochDay) {
+    long days = epochDay + 719468;
+    long era = Math.floorDiv(days, 146097);
+    int dayOfEra = (int) (days - era * 146097);
+    int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+    int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    int shiftedMonth = (5 * dayOfYear + 2) / 153;
+    int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    int year = (int) (yearOfEra + era * 400) + (month <= 2 ? 1 : 0);
+    appendTwoDigits(sb, year / 100);
+    appendTwoDigits(sb, year % 100).append('-');
+    appendTwoDigits(sb, month).append('-');
+    return appendTwoDigits(sb, day);
+  }
+
+  private static StringBuilder appendTwoDigits(StringBuilder sb, int value) {
+    return sb.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+  }
+
+  /**
+   * Append a decimal number rounded half up to a fixed number of digits, exactly as
+   * {@code String.format(Locale.US, "%.2f", value)} does for two digits.
+   * @param sb The builder to append to.
+   * @param value The number.
+   * @param digits The number of digits after the decimal point, at most 9.
+   * @return the builder
+   */
+  public static StringBuilder appendDecimal(StringBuilder sb, double value, int digits) {
+    if (Double.isNaN(value)) {
+      return sb.append("NaN");
+    }
+    // like Formatter, -0.0 keeps its sign
+    if (Double.compare(value, 0.0) < 0) {
+      sb.append('-');
+      value = -value;
+    }
+    if (Double.isInfinite(value)) {
+      return sb.append("Infinity");
+    }
+    // Formatter rounds the shortest decimal digits of the double, which is what valueOf uses
+    return appendRounded(sb, BigDecimal.valueOf(value), digits);
+  }
+
+  /**
+   * Append a decimal number rounded half up to a fixed number of digits, exactly as
+   * {@code String.format(Locale.US, "%.2f", value)} does for two digits.
+   * @param sb The builder to append to.
+   * @param value The number.
+   * @param digits The number of digits after the decimal point, at most 9.
+   * @return the builder
+   */
+  public static StringBuilder appendDecimal(StringBuilder sb, BigDecimal value, int digits) {
+    if (value.signum() < 0) {
+      sb.append('-');
+      value = value.negate();
+    }
+    return appendRounded(sb, value, digits);
+  }
+
+  private static StringBuilder appendRounded(StringBuilder sb, BigDecimal value, int digits) {
+    BigDecimal rounded = value.setScale(digits, RoundingMode.HALF_UP);
+    if (rounded.precision() > 18) {
+      return sb.append(rounded.toPlainString());
+    }
+    long unscaled = rounded.unscaledValue().longValue();
+    long power = POWERS_OF_TEN[digits];
+    sb.append(unscaled / power);
+    if (digits > 0) {
+      sb.append('.');
+      long fraction = unscaled % power;
+      for (long p = power / 10; p > 0; p /= 10) {
+        sb.append((char) ('0' + fraction / p % 10));
+      }
+    }
+    return sb;
+  }
+
+  /**
+   * Append a UUID in the format of {@link UUID#toString()}.
+   * @param sb The builder to append to.
+   * @param uuid The UUID.
+   * @return the builder
+   */
+  public static StringBuilder appendUuid(StringBuilder sb, UUID uuid) {
+    char[] chars = new char[36];
+    writeUuid(chars, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    return sb.append(chars);
+  }
+
+  /**
+   * Get the string form of a UUID without creating the UUID.
+   * @param mostSigBits The most significant bits of the UUID.
+   * @param leastSigBits The least significant bits of the UUID.
+   * @return the same string as {@code new UUID(mostSigBits, leastSigBits).toString()}
+   */
+  public static String uuid(long mostSigBits, long leastSigBits) {
+    char[] chars = new char[36];
+    writeUuid(chars, mostSigBits, leastSigBits);
+    return new String(chars);
+  }
+
+  private static void writeUuid(char[] chars, long msb, long lsb) {
+    writeHex(chars, 0, msb >>> 32, 8);
+    chars[8] = '-';
+    writeHex(chars, 9, msb >>> 16, 4);
+    chars[13] = '-';
+    writeHex(chars, 14, msb, 4);
+    chars[18] = '-';
+    writeHex(chars, 19, lsb >>> 48, 4);
+    chars[23] = '-';
+    writeHex(chars, 24, lsb, 12);
+  }
+
+  private static void writeHex(char[] chars, int offset, long value, int length) {
+    for (int i = offset + length - 1; i >= offset; i--) {
+      chars[i] = HEX[(int) (value & 0xF)];
+      value >>>= 4;
+    }
+  }
+}
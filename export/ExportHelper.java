@@ -1,17 +1,14 @@
 package org.mitre.synthea.export;
 
 import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
 import java.time.temporal.TemporalAdjusters;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
-import java.util.UUID;
 
 import org.hl7.fhir.dstu3.model.Condition;
 import org.mitre.synthea.engine.Components.Attachment;
@@ -159,44 +156,18 @@ public abstract class ExportHelper {
     return type;
   }
 
-  /**
-   * Year-Month-Day date format.
-   */
-  private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd");
-
-  /**
-   * Iso8601 date time format.
-   */
-  private static final SimpleDateFormat ISO_DATE_FORMAT = iso();
-
-  /**
-   * Create a SimpleDateFormat for iso8601.
-   * @return Iso8601 date time format.
-   */
-  private static final SimpleDateFormat iso() {
-    SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
-    f.setTimeZone(TimeZone.getTimeZone("UTC"));
-    return f;
-  }
-
   /**
    * Get a date string in the format YYYY-MM-DD from the given time stamp.
    */
   public static String dateFromTimestamp(long time) {
-    synchronized (DATE_FORMAT) {
-      // http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6231579
-      return DATE_FORMAT.format(new Date(time));
-    }
+    return ExportFormatter.date(time);
   }
 
   /**
    * Get an iso8601 string for the given time stamp.
    */
   public static String iso8601Timestamp(long time) {
-    synchronized (ISO_DATE_FORMAT) {
-      // http://bugs.java.com/bugdatabase/view_bug.do?bug_id=6231579
-      return ISO_DATE_FORMAT.format(new Date(time));
-    }
+    return ExportFormatter.iso8601(time);
   }
 
   /**
@@ -328,7 +299,7 @@ public abstract class ExportHelper {
     mostSigBits = Long.rotateLeft(mostSigBits, keyHash);
     leastSigBits = Long.rotateLeft(leastSigBits, keyHash);
 
-    return new UUID(mostSigBits, leastSigBits).toString();
+    return ExportFormatter.uuid(mostSigBits, leastSigBits);
   }
 
   /**
@@ -26,6 +26,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.mitre.synthea.engine.Generator;
 import org.mitre.synthea.export.rif.BB2RIFExporter;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.ConfigSnapshot;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.identity.Entity;
 import org.mitre.synthea.identity.Seed;
@@ -184,6 +185,7 @@ public abstract class Exporter {
    */
   private static boolean exportRecord(Person person, String fileTag, long stopTime,
           ExporterRuntimeOptions options) {
+    ConfigSnapshot config = ConfigSnapshot.current();
     boolean wasExported = true;
     if (options.terminologyService) {
       // Resolve any coded values within the record that are specified using a ValueSet URI.
@@ -191,9 +193,9 @@ public abstract class Exporter {
       valueSetCodeResolver.resolve();
     }
 
-    if (Config.getAsBoolean("exporter.fhir_stu3.export")) {
+    if (config.fhirStu3Export) {
       File outDirectory = getOutputFolder("fhir_stu3", person);
-      if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+      if (config.fhirBulkData) {
         org.hl7.fhir.dstu3.model.Bundle bundle = FhirStu3.convertToFHIR(person, stopTime);
         IParser parser = FhirStu3.getContext().newJsonParser().setPrettyPrint(false);
         for (org.hl7.fhir.dstu3.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
@@ -208,9 +210,9 @@ public abstract class Exporter {
         writeNewFile(outFilePath, bundleJson);
       }
     }
-    if (Config.getAsBoolean("exporter.fhir_dstu2.export")) {
+    if (config.fhirDstu2Export) {
       File outDirectory = getOutputFolder("fhir_dstu2", person);
-      if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+      if (config.fhirBulkData) {
         ca.uhn.fhir.model.dstu2.resource.Bundle bundle = FhirDstu2.convertToFHIR(person, stopTime);
         IParser parser = FhirDstu2.getContext().newJsonParser().setPrettyPrint(false);
         for (ca.uhn.fhir.model.dstu2.resource.Bundle.Entry entry : bundle.getEntry()) {
@@ -225,9 +227,9 @@ public abstract class Exporter {
         writeNewFile(outFilePath, bundleJson);
       }
     }
-    if (Config.getAsBoolean("exporter.fhir.export")) {
+    if (config.fhirExport) {
       File outDirectory = getOutputFolder("fhir", person);
-      if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+      if (config.fhirBulkData) {
         org.hl7.fhir.r4.model.Bundle bundle = FhirR4.convertToFHIR(person, stopTime);
         IParser parser = FhirR4.getContext().newJsonParser().setPrettyPrint(false);
         for (org.hl7.fhir.r4.model.Bundle.BundleEntryComponent entry : bundle.getEntry()) {
@@ -243,26 +245,33 @@ public abstract class Exporter {
       }
       FhirGroupExporterR4.addPatient((String) person.attributes.get(Person.ID));
     }
-    if (Config.getAsBoolean("exporter.ccda.export")) {
+    if (config.ccdaExport) {
       String ccdaXml = CCDAExporter.export(person, stopTime);
       File outDirectory = getOutputFolder("ccda", person);
       Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "xml"));
       writeNewFile(outFilePath, ccdaXml);
     }
-    if (Config.getAsBoolean("exporter.json.export")) {
+    if (config.jsonExport) {
       String json = JSONExporter.export(person);
       File outDirectory = getOutputFolder("json", person);
       Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "json"));
       writeNewFile(outFilePath, json);
     }
-    if (Config.getAsBoolean("exporter.csv.export")) {
+    if (config.csvExport) {
       try {
         CSVExporter.getInstance().export(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
-    if (Config.getAsBoolean("exporter.bfd.export")) {
+    if (config.parquetExport) {
+      try {
+        ParquetExporter.getInstance().export(person, stopTime);
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    if (config.bfdExport) {
       try {
         BB2RIFExporter exporter = BB2RIFExporter.getInstance();
         wasExported = exporter.export(person, stopTime, options.yearsOfHistory);
@@ -270,49 +279,49 @@ public abstract class Exporter {
         e.printStackTrace();
       }
     }
-    if (Config.getAsBoolean("exporter.cpcds.export")) {
+    if (config.cpcdsExport) {
       try {
         CPCDSExporter.getInstance().export(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
-    if (Config.getAsBoolean("exporter.text.export")) {
+    if (config.textExport) {
       try {
         TextExporter.exportAll(person, fileTag, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
-    if (Config.getAsBoolean("exporter.text.per_encounter_export")) {
+    if (config.textPerEncounterExport) {
       try {
         TextExporter.exportEncounter(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
-    if (Config.getAsBoolean("exporter.symptoms.csv.export")) {
+    if (config.symptomsCsvExport) {
       try {
         SymptomCSVExporter.getInstance().export(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
-    if (Config.getAsBoolean("exporter.symptoms.text.export")) {
+    if (config.symptomsTextExport) {
       try {
         SymptomTextExporter.exportAll(person, fileTag, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
-    if (Config.getAsBoolean("exporter.cdw.export")) {
+    if (config.cdwExport) {
       try {
         CDWExporter.getInstance().export(person, stopTime);
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
-    if (Config.getAsBoolean("exporter.clinical_note.export")) {
+    if (config.clinicalNoteExport) {
       File outDirectory = getOutputFolder("notes", person);
       Path outFilePath = outDirectory.toPath().resolve(filename(person, fileTag, "txt"));
       String consolidatedNotes = ClinicalNoteExporter.export(person);
@@ -396,6 +405,25 @@ public abstract class Exporter {
     }
   }
 
+  /**
+   * Flushes the data of all open files without closing them, including the rows the CSV
+   * exporter has buffered.
+   */
+  public static void flushOpenFiles() {
+    for (PrintWriter writer : fileWriters.values()) {
+      synchronized (writer) {
+        writer.flush();
+      }
+    }
+    if (ConfigSnapshot.current().csvExport) {
+      try {
+        CSVExporter.getInstance().flush();
+      } catch (IOException e) {
+        throw new RuntimeException("Unable to flush CSV output", e);
+      }
+    }
+  }
+
   /**
    * Flushes the data and closes all open files.
    */
@@ -424,6 +452,7 @@ public abstract class Exporter {
    * @param generator Generator that generated the patients
    */
   public static void runPostCompletionExports(Generator generator, ExporterRuntimeOptions options) {
+    ConfigSnapshot config = generator.config;
 
     if (options.deferExports) {
       ExporterRuntimeOptions nonDeferredOptions = new ExporterRuntimeOptions(options);
@@ -476,7 +505,7 @@ public abstract class Exporter {
       e.printStackTrace();
     }
 
-    if (Config.getAsBoolean("exporter.bfd.export")) {
+    if (config.bfdExport) {
       try {
         BB2RIFExporter exporter = BB2RIFExporter.getInstance();
         exporter.exportNPIs();
@@ -488,20 +517,29 @@ public abstract class Exporter {
       }
     }
 
-    if (Config.getAsBoolean("exporter.cdw.export")) {
+    if (config.cdwExport) {
       CDWExporter.getInstance().writeFactTables();
     }
 
-    if (Config.getAsBoolean("exporter.csv.export")) {
+    if (config.csvExport) {
       try {
         CSVExporter.getInstance().exportOrganizationsAndProviders();
         CSVExporter.getInstance().exportPayers();
+        CSVExporter.getInstance().flush();
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
 
-    if (Config.getAsBoolean("exporter.metadata.export", false)) {
+    if (config.parquetExport) {
+      try {
+        ParquetExporter.getInstance().close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    if (config.metadataExport) {
       try {
         MetadataExporter.exportMetadata(generator);
       } catch (IOException e) {
@@ -722,17 +760,15 @@ public abstract class Exporter {
 
     folders.add(folderName);
 
-    if (person != null
-        && Config.getAsBoolean("exporter.subfolders_by_id_substring")) {
+    ConfigSnapshot config = ConfigSnapshot.current();
+    if (person != null && config.subfoldersByIdSubstring) {
       String id = (String) person.attributes.get(Person.ID);
 
       folders.add(id.substring(0, 2));
       folders.add(id.substring(0, 3));
     }
 
-    String baseDirectory = Config.get("exporter.baseDirectory");
-
-    File f = Paths.get(baseDirectory, folders.toArray(new String[0])).toFile();
+    File f = Paths.get(config.baseDirectory, folders.toArray(new String[0])).toFile();
     f.mkdirs();
 
     return f;
@@ -748,7 +784,7 @@ public abstract class Exporter {
    * @return The filename only (not a path).
    */
   public static String filename(Person person, String tag, String extension) {
-    if (Config.getAsBoolean("exporter.use_uuid_filenames")) {
+    if (ConfigSnapshot.current().useUuidFilenames) {
       return person.attributes.get(Person.ID) + tag + "." + extension;
     } else {
       // ensure unique filenames for now
@@ -102,6 +102,7 @@ import java.util.Map;
 import org.mitre.synthea.engine.Components;
 import org.mitre.synthea.engine.Components.Attachment;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.ConfigSnapshot;
 import org.mitre.synthea.helpers.RandomNumberGenerator;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Clinician;
@@ -614,15 +615,49 @@ public class FhirDstu2 {
    * @return Provider.fullUrl if found, otherwise null.
    */
   private static String findProviderUrl(Provider provider, Bundle bundle) {
-    for (Entry entry : bundle.getEntry()) {
-      if (entry.getResource().getResourceName().equals("Organization")) {
-        Organization org = (Organization) entry.getResource();
-        if (org.getIdentifierFirstRep().getValue().equals(provider.getResourceID())) {
-          return entry.getFullUrl();
+    Entry entry = index(bundle).get("Organization", provider.getResourceID());
+    return entry == null ? null : entry.getFullUrl();
+  }
+
+  /**
+   * Get the index of a bundle, updated with the entries added since the last lookup.
+   * @param bundle The current bundle being generated.
+   * @return the index
+   */
+  @SuppressWarnings("unchecked")
+  private static BundleIndex<Entry> index(Bundle bundle) {
+    BundleIndex<Entry> index =
+        (BundleIndex<Entry>) bundle.getUserData(BundleIndex.USER_DATA);
+    if (index == null) {
+      index = new BundleIndex<Entry>();
+      bundle.setUserData(BundleIndex.USER_DATA, index);
+    }
+    return index.update(bundle.getEntry(), FhirDstu2::indexEntry);
+  }
+
+  /**
+   * Add the keys of an entry to the index of its bundle, matching the lookups of
+   * findProviderUrl, findPractitioner and the reason Conditions by code.
+   */
+  private static void indexEntry(Entry entry, BundleIndex<Entry> index) {
+    switch (entry.getResource().getResourceName()) {
+      case "Condition":
+        List<CodingDt> codings = ((Condition) entry.getResource()).getCode().getCoding();
+        if (!codings.isEmpty()) {
+          index.add("Condition.code", codings.get(0).getCode(), entry);
         }
-      }
+        break;
+      case "Organization":
+        index.put("Organization",
+            ((Organization) entry.getResource()).getIdentifierFirstRep().getValue(), entry);
+        break;
+      case "Practitioner":
+        index.put("Practitioner",
+            ((Practitioner) entry.getResource()).getIdentifierFirstRep().getValue(), entry);
+        break;
+      default:
+        break;
     }
-    return null;
   }
 
   /**
@@ -633,15 +668,8 @@ public class FhirDstu2 {
    * @return Practitioner.fullUrl if found, otherwise null.
    */
   private static String findPractitioner(Clinician clinician, Bundle bundle) {
-    for (Entry entry : bundle.getEntry()) {
-      if (entry.getResource().getResourceName().equals("Practitioner")) {
-        Practitioner doc = (Practitioner) entry.getResource();
-        if (doc.getIdentifierFirstRep().getValue().equals(clinician.npi)) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    Entry entry = index(bundle).get("Practitioner", clinician.npi);
+    return entry == null ? null : entry.getFullUrl();
   }
 
   /**
@@ -1037,14 +1065,8 @@ public class FhirDstu2 {
 
     if (!procedure.reasons.isEmpty()) {
       Code reason = procedure.reasons.get(0); // Only one element in list
-      for (Entry entry : bundle.getEntry()) {
-        if (entry.getResource().getResourceName().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          CodingDt coding = condition.getCode().getCoding().get(0); // Only one element in list
-          if (reason.code.equals(coding.getCode())) {
-            procedureResource.setReason(new ResourceReferenceDt(entry.getFullUrl()));
-          }
-        }
+      for (Entry entry : index(bundle).getAll("Condition.code", reason.code)) {
+        procedureResource.setReason(new ResourceReferenceDt(entry.getFullUrl()));
       }
     }
 
@@ -1111,15 +1133,8 @@ public class FhirDstu2 {
     if (!medication.reasons.isEmpty()) {
       // Only one element in list
       Code reason = medication.reasons.get(0);
-      for (Entry entry : bundle.getEntry()) {
-        if (entry.getResource().getResourceName().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          CodingDt coding = condition.getCode().getCoding().get(0);
-          if (reason.code.equals(coding.getCode())) {
-            medicationResource.setReason(new ResourceReferenceDt(entry.getFullUrl()));
-          }
-        }
+      for (Entry entry : index(bundle).getAll("Condition.code", reason.code)) {
+        medicationResource.setReason(new ResourceReferenceDt(entry.getFullUrl()));
       }
     }
 
@@ -1224,15 +1239,9 @@ public class FhirDstu2 {
     if (!medication.reasons.isEmpty()) {
       // Only one element in list
       Code reason = medication.reasons.get(0);
-      for (Entry entry : bundle.getEntry()) {
-        if (entry.getResource().getResourceName().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          CodeableConceptDt coding = condition.getCode();
-          if (reason.code.equals(coding.getCodingFirstRep().getCode())) {
-            medicationResource.addReasonGiven(coding);
-          }
-        }
+      for (Entry entry : index(bundle).getAll("Condition.code", reason.code)) {
+        Condition condition = (Condition) entry.getResource();
+        medicationResource.addReasonGiven(condition.getCode());
       }
     }
 
@@ -1357,15 +1366,8 @@ public class FhirDstu2 {
     if (!carePlan.reasons.isEmpty()) {
       // Only one element in list
       Code reason = carePlan.reasons.get(0);
-      for (Entry entry : bundle.getEntry()) {
-        if (entry.getResource().getResourceName().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          CodingDt coding = condition.getCode().getCoding().get(0);
-          if (reason.code.equals(coding.getCode())) {
-            careplanResource.addAddresses().setReference(entry.getFullUrl());
-          }
-        }
+      for (Entry entry : index(bundle).getAll("Condition.code", reason.code)) {
+        careplanResource.addAddresses().setReference(entry.getFullUrl());
       }
     }
 
@@ -1712,15 +1714,8 @@ public class FhirDstu2 {
           String reasonCode = reasonObject.get("codes").getAsJsonObject().get("SNOMED-CT")
               .getAsJsonArray().get(0).getAsString();
 
-          for (Entry entry : bundle.getEntry()) {
-            if (entry.getResource().getResourceName().equals("Condition")) {
-              Condition condition = (Condition) entry.getResource();
-              // Only one element in list
-              CodingDt coding = condition.getCode().getCoding().get(0);
-              if (reasonCode.equals(coding.getCode())) {
-                goalResource.addAddresses().setReference(entry.getFullUrl());
-              }
-            }
+          for (Entry entry : index(bundle).getAll("Condition.code", reasonCode)) {
+            goalResource.addAddresses().setReference(entry.getFullUrl());
           }
         }
       }
@@ -1830,7 +1825,7 @@ public class FhirDstu2 {
     Entry entry = bundle.addEntry();
 
     resource.setId(resourceID);
-    if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+    if (ConfigSnapshot.current().fhirBulkData) {
       entry.setFullUrl(resource.getResourceName() + "/" + resourceID);
     } else {
       entry.setFullUrl("urn:uuid:" + resourceID);
@@ -139,6 +139,7 @@ import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.mitre.synthea.engine.Components;
 import org.mitre.synthea.engine.Components.Attachment;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.ConfigSnapshot;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.identity.Entity;
@@ -1029,16 +1030,63 @@ public class FhirR4 {
    * @return Provider.fullUrl if found, otherwise null.
    */
   private static String findProviderUrl(Provider provider, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Organization")) {
-        Organization org = (Organization) entry.getResource();
-        if (org.getIdentifierFirstRep().getValue() != null
-            && org.getIdentifierFirstRep().getValue().equals(provider.getResourceID())) {
-          return entry.getFullUrl();
+    BundleEntryComponent entry = index(bundle).get("Organization", provider.getResourceID());
+    return entry == null ? null : entry.getFullUrl();
+  }
+
+  /**
+   * Get the index of a bundle, updated with the entries added since the last lookup.
+   * @param bundle The current bundle being generated.
+   * @return the index
+   */
+  @SuppressWarnings("unchecked")
+  private static BundleIndex<BundleEntryComponent> index(Bundle bundle) {
+    BundleIndex<BundleEntryComponent> index =
+        (BundleIndex<BundleEntryComponent>) bundle.getUserData(BundleIndex.USER_DATA);
+    if (index == null) {
+      index = new BundleIndex<BundleEntryComponent>();
+      bundle.setUserData(BundleIndex.USER_DATA, index);
+    }
+    return index.update(bundle.getEntry(), FhirR4::indexEntry);
+  }
+
+  /**
+   * Add the keys of an entry to the index of its bundle, matching the lookups of
+   * findProviderUrl, findLocationUrl, findPractitioner, findConditionResourceByCode and
+   * addPatientHomeLocation.
+   */
+  private static void indexEntry(BundleEntryComponent entry,
+      BundleIndex<BundleEntryComponent> index) {
+    Resource resource = entry.getResource();
+    switch (resource.fhirType()) {
+      case "Organization":
+        index.put("Organization",
+            ((Organization) resource).getIdentifierFirstRep().getValue(), entry);
+        break;
+      case "Location":
+        // the patient's home is looked up by id, and the last one wins
+        index.putLast("Location.id", resource.getId(), entry);
+        Reference managingOrg =
+            ((org.hl7.fhir.r4.model.Location) resource).getManagingOrganization();
+        if (managingOrg != null
+            && managingOrg.hasIdentifier()
+            && managingOrg.getIdentifier().hasValue()) {
+          index.put("Location", managingOrg.getIdentifier().getValue(), entry);
         }
-      }
+        break;
+      case "Practitioner":
+        index.put("Practitioner",
+            ((Practitioner) resource).getIdentifierFirstRep().getValue(), entry);
+        break;
+      case "Condition":
+        List<Coding> codings = ((Condition) resource).getCode().getCoding();
+        if (!codings.isEmpty()) {
+          index.put("Condition", codings.get(0).getCode(), entry);
+        }
+        break;
+      default:
+        break;
     }
-    return null;
   }
 
   /**
@@ -1049,12 +1097,10 @@ public class FhirR4 {
    */
   public static String addPatientHomeLocation(Bundle bundle) {
     String locationURL = null;
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Location")) {
-        if (entry.getResource().getId().equals(FhirR4PatientHome.getPatientHome().getId())) {
-          locationURL = entry.getFullUrl();
-        }
-      }
+    BundleEntryComponent home =
+        index(bundle).get("Location.id", FhirR4PatientHome.getPatientHome().getId());
+    if (home != null) {
+      locationURL = home.getFullUrl();
     }
     if (locationURL == null) {
       org.hl7.fhir.r4.model.Location location = FhirR4PatientHome.getPatientHome();
@@ -1076,20 +1122,8 @@ public class FhirR4 {
     if (provider == null) {
       return null;
     }
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Location")) {
-        org.hl7.fhir.r4.model.Location location =
-            (org.hl7.fhir.r4.model.Location) entry.getResource();
-        Reference managingOrg = location.getManagingOrganization();
-        if (managingOrg != null
-            && managingOrg.hasIdentifier()
-            && managingOrg.getIdentifier().hasValue()
-            && managingOrg.getIdentifier().getValue().equals(provider.getResourceID())) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    BundleEntryComponent entry = index(bundle).get("Location", provider.getResourceID());
+    return entry == null ? null : entry.getFullUrl();
   }
 
   /**
@@ -1100,15 +1134,8 @@ public class FhirR4 {
    * @return Practitioner.fullUrl if found, otherwise null.
    */
   private static String findPractitioner(Clinician clinician, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Practitioner")) {
-        Practitioner doc = (Practitioner) entry.getResource();
-        if (doc.getIdentifierFirstRep().getValue().equals(clinician.npi)) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    BundleEntryComponent entry = index(bundle).get("Practitioner", clinician.npi);
+    return entry == null ? null : entry.getFullUrl();
   }
 
   /**
@@ -3491,16 +3518,7 @@ public class FhirR4 {
    * @return entry for the matching Condition, or null if none is found
    */
   private static BundleEntryComponent findConditionResourceByCode(Bundle bundle, String code) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Condition")) {
-        Condition condition = (Condition) entry.getResource();
-        Coding coding = condition.getCode().getCoding().get(0); // Only one element in list
-        if (code.equals(coding.getCode())) {
-          return entry;
-        }
-      }
-    }
-    return null;
+    return index(bundle).get("Condition", code);
   }
 
   /**
@@ -3509,7 +3527,7 @@ public class FhirR4 {
    * @return "[resourceType]/" or "urn:uuid:"
    */
   protected static String getUrlPrefix(String resourceType) {
-    if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+    if (ConfigSnapshot.current().fhirBulkData) {
       return resourceType + "/";
     } else {
       return "urn:uuid:";
@@ -116,6 +116,7 @@ import org.hl7.fhir.utilities.xhtml.XhtmlNode;
 import org.mitre.synthea.engine.Components;
 import org.mitre.synthea.engine.Components.Attachment;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.ConfigSnapshot;
 import org.mitre.synthea.helpers.RandomNumberGenerator;
 import org.mitre.synthea.helpers.SimpleCSV;
 import org.mitre.synthea.helpers.Utilities;
@@ -757,15 +758,50 @@ public class FhirStu3 {
    * @return Provider.fullUrl if found, otherwise null.
    */
   private static String findProviderUrl(Provider provider, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Organization")) {
-        Organization org = (Organization) entry.getResource();
-        if (org.getIdentifierFirstRep().getValue().equals(provider.getResourceID())) {
-          return entry.getFullUrl();
+    BundleEntryComponent entry = index(bundle).get("Organization", provider.getResourceID());
+    return entry == null ? null : entry.getFullUrl();
+  }
+
+  /**
+   * Get the index of a bundle, updated with the entries added since the last lookup.
+   * @param bundle The current bundle being generated.
+   * @return the index
+   */
+  @SuppressWarnings("unchecked")
+  private static BundleIndex<BundleEntryComponent> index(Bundle bundle) {
+    BundleIndex<BundleEntryComponent> index =
+        (BundleIndex<BundleEntryComponent>) bundle.getUserData(BundleIndex.USER_DATA);
+    if (index == null) {
+      index = new BundleIndex<BundleEntryComponent>();
+      bundle.setUserData(BundleIndex.USER_DATA, index);
+    }
+    return index.update(bundle.getEntry(), FhirStu3::indexEntry);
+  }
+
+  /**
+   * Add the keys of an entry to the index of its bundle, matching the lookups of
+   * findProviderUrl, findPractitioner and the reason Conditions by code.
+   */
+  private static void indexEntry(BundleEntryComponent entry,
+      BundleIndex<BundleEntryComponent> index) {
+    switch (entry.getResource().fhirType()) {
+      case "Condition":
+        List<Coding> codings = ((Condition) entry.getResource()).getCode().getCoding();
+        if (!codings.isEmpty()) {
+          index.add("Condition.code", codings.get(0).getCode(), entry);
         }
-      }
+        break;
+      case "Organization":
+        index.put("Organization",
+            ((Organization) entry.getResource()).getIdentifierFirstRep().getValue(), entry);
+        break;
+      case "Practitioner":
+        index.put("Practitioner",
+            ((Practitioner) entry.getResource()).getIdentifierFirstRep().getValue(), entry);
+        break;
+      default:
+        break;
     }
-    return null;
   }
 
   /**
@@ -776,15 +812,8 @@ public class FhirStu3 {
    * @return Practitioner.fullUrl if found, otherwise null.
    */
   private static String findPractitioner(Clinician clinician, Bundle bundle) {
-    for (BundleEntryComponent entry : bundle.getEntry()) {
-      if (entry.getResource().fhirType().equals("Practitioner")) {
-        Practitioner doc = (Practitioner) entry.getResource();
-        if (doc.getIdentifierFirstRep().getValue().equals(clinician.npi)) {
-          return entry.getFullUrl();
-        }
-      }
-    }
-    return null;
+    BundleEntryComponent entry = index(bundle).get("Practitioner", clinician.npi);
+    return entry == null ? null : entry.getFullUrl();
   }
 
   /**
@@ -1815,15 +1844,9 @@ public class FhirStu3 {
 
     if (!procedure.reasons.isEmpty()) {
       Code reason = procedure.reasons.get(0); // Only one element in list
-      for (BundleEntryComponent entry : bundle.getEntry()) {
-        if (entry.getResource().fhirType().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          Coding coding = condition.getCode().getCoding().get(0); // Only one element in list
-          if (reason.code.equals(coding.getCode())) {
-            procedureResource.addReasonReference().setReference(entry.getFullUrl())
-                .setDisplay(reason.display);
-          }
-        }
+      for (BundleEntryComponent entry : index(bundle).getAll("Condition.code", reason.code)) {
+        procedureResource.addReasonReference().setReference(entry.getFullUrl())
+            .setDisplay(reason.display);
       }
     }
 
@@ -1924,16 +1947,9 @@ public class FhirStu3 {
     if (!medication.reasons.isEmpty()) {
       // Only one element in list
       Code reason = medication.reasons.get(0);
-      for (BundleEntryComponent entry : bundle.getEntry()) {
-        if (entry.getResource().fhirType().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          Coding coding = condition.getCode().getCoding().get(0);
-          if (reason.code.equals(coding.getCode())) {
-            medicationResource.addReasonReference()
-                .setReference(entry.getFullUrl());
-          }
-        }
+      for (BundleEntryComponent entry : index(bundle).getAll("Condition.code", reason.code)) {
+        medicationResource.addReasonReference()
+            .setReference(entry.getFullUrl());
       }
     }
 
@@ -2073,15 +2089,8 @@ public class FhirStu3 {
     if (!medication.reasons.isEmpty()) {
       // Only one element in list
       Code reason = medication.reasons.get(0);
-      for (BundleEntryComponent entry : bundle.getEntry()) {
-        if (entry.getResource().fhirType().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          Coding coding = condition.getCode().getCoding().get(0);
-          if (reason.code.equals(coding.getCode())) {
-            medicationResource.addReasonReference().setReference(entry.getFullUrl());
-          }
-        }
+      for (BundleEntryComponent entry : index(bundle).getAll("Condition.code", reason.code)) {
+        medicationResource.addReasonReference().setReference(entry.getFullUrl());
       }
     }
 
@@ -2185,15 +2194,8 @@ public class FhirStu3 {
     if (!carePlan.reasons.isEmpty()) {
       // Only one element in list
       Code reason = carePlan.reasons.get(0);
-      for (BundleEntryComponent entry : bundle.getEntry()) {
-        if (entry.getResource().fhirType().equals("Condition")) {
-          Condition condition = (Condition) entry.getResource();
-          // Only one element in list
-          Coding coding = condition.getCode().getCoding().get(0);
-          if (reason.code.equals(coding.getCode())) {
-            careplanResource.addAddresses().setReference(entry.getFullUrl());
-          }
-        }
+      for (BundleEntryComponent entry : index(bundle).getAll("Condition.code", reason.code)) {
+        careplanResource.addAddresses().setReference(entry.getFullUrl());
       }
     }
 
@@ -2569,16 +2571,9 @@ public class FhirStu3 {
                   .get(0)
                   .getAsString();
 
-          for (BundleEntryComponent entry : bundle.getEntry()) {
-            if (entry.getResource().fhirType().equals("Condition")) {
-              Condition condition = (Condition) entry.getResource();
-              // Only one element in list
-              Coding coding = condition.getCode().getCoding().get(0);
-              if (reasonCode.equals(coding.getCode())) {
-                goalResource.addAddresses()
-                    .setReference(entry.getFullUrl());
-              }
-            }
+          for (BundleEntryComponent entry : index(bundle).getAll("Condition.code", reasonCode)) {
+            goalResource.addAddresses()
+                .setReference(entry.getFullUrl());
           }
         }
       }
@@ -2682,7 +2677,7 @@ public class FhirStu3 {
     BundleEntryComponent entry = bundle.addEntry();
 
     resource.setId(resourceID);
-    if (Config.getAsBoolean("exporter.fhir.bulk_data")) {
+    if (ConfigSnapshot.current().fhirBulkData) {
       entry.setFullUrl(resource.fhirType() + "/" + resourceID);
     } else {
       entry.setFullUrl("urn:uuid:" + resourceID);
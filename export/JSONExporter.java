@@ -4,6 +4,7 @@ import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
@@ -16,8 +17,10 @@ import java.time.LocalDate;
 import java.util.List;
 import java.util.Random;
 
+import org.mitre.synthea.engine.ModuleHistory;
 import org.mitre.synthea.engine.State;
 import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.ConfigSnapshot;
 import org.mitre.synthea.world.agents.Payer;
 import org.mitre.synthea.world.agents.Person;
 
@@ -38,8 +41,9 @@ public class JSONExporter {
         .excludeFieldsWithModifiers(Modifier.STATIC, Modifier.TRANSIENT, Modifier.VOLATILE)
         .addSerializationExclusionStrategy(new SyntheaExclusionStrategy())
         .registerTypeHierarchyAdapter(State.class, new StateSerializer())
+        .registerTypeHierarchyAdapter(ModuleHistory.class, new ModuleHistorySerializer())
         .registerTypeHierarchyAdapter(Person.class,
-            new PersonSerializer(!Config.getAsBoolean("exporter.json.include_module_history")))
+            new PersonSerializer(!ConfigSnapshot.current().jsonIncludeModuleHistory))
         .registerTypeHierarchyAdapter(Payer.class, new ShortPayerSerializer())
         .registerTypeHierarchyAdapter(Random.class, new RandomSerializer())
         .registerTypeHierarchyAdapter(LocalDate.class, new LocalDateSerializer());
@@ -118,6 +122,9 @@ public class JSONExporter {
     }
 
     private boolean isModuleHistory(Object obj) {
+      if (obj instanceof ModuleHistory) {
+        return true;
+      }
       if (List.class.isAssignableFrom(obj.getClass())) {
         List things = (List) obj;
         return things.stream().allMatch(t -> State.class.isAssignableFrom(t.getClass()));
@@ -132,17 +139,36 @@ public class JSONExporter {
     @Override
     public JsonElement serialize(State src, Type typeOfSrc, JsonSerializationContext context) {
       JsonObject stateOut = new JsonObject();
+      // the entered and exited times belong to a visit, see ModuleHistorySerializer
       stateOut.add("state_name", new JsonPrimitive(src.name));
-      if (src.entered != null) {
-        stateOut.add("entered", new JsonPrimitive(src.entered));
-      }
-      if (src.exited != null) {
-        stateOut.add("exited", new JsonPrimitive(src.exited));
-      }
       return stateOut;
     }
   }
 
+  /**
+   * Serializes a module history, including the visits that are only kept in its compact log.
+   */
+  public static class ModuleHistorySerializer implements JsonSerializer<ModuleHistory> {
+
+    @Override
+    public JsonElement serialize(ModuleHistory src, Type typeOfSrc,
+        JsonSerializationContext context) {
+      JsonArray historyOut = new JsonArray();
+      src.forEachVisit((name, entered, exited) -> {
+        JsonObject stateOut = new JsonObject();
+        stateOut.add("state_name", new JsonPrimitive(name));
+        if (entered != null) {
+          stateOut.add("entered", new JsonPrimitive(entered));
+        }
+        if (exited != null) {
+          stateOut.add("exited", new JsonPrimitive(exited));
+        }
+        historyOut.add(stateOut);
+      });
+      return historyOut;
+    }
+  }
+
   public static class SyntheaExclusionStrategy implements ExclusionStrategy {
     @Override
     public boolean shouldSkipField(FieldAttributes f) {
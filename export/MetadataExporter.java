@@ -67,6 +67,15 @@ public class MetadataExporter {
     int patientCount = generator.totalGeneratedPopulation.get();
     metadata.put("patientCount", patientCount);
 
+    // alive/dead counts, so that the metadata of population shards can be merged
+    Map<String, Integer> stats = new LinkedHashMap<>();
+    generator.stats.forEach((key, count) -> stats.put(key, count.get()));
+    metadata.put("stats", stats);
+
+    if (opts.shard != null) {
+      metadata.put("shard", opts.shard.toString());
+    }
+
     int providerCount = Provider.getProviderList().size();
     metadata.put("providerCount", providerCount);
 
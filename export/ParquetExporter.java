@@ -0,0 +1,342 @@
+package org.mitre.synthea.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.lang3.StringUtils;
+import org.mitre.synthea.export.ParquetWriter.Column;
+import org.mitre.synthea.export.ParquetWriter.ColumnType;
+import org.mitre.synthea.helpers.Config;
+import org.mitre.synthea.helpers.RandomCodeGenerator;
+import org.mitre.synthea.world.agents.Person;
+import org.mitre.synthea.world.concepts.HealthRecord;
+import org.mitre.synthea.world.concepts.HealthRecord.Code;
+import org.mitre.synthea.world.concepts.HealthRecord.Encounter;
+import org.mitre.synthea.world.concepts.HealthRecord.Entry;
+import org.mitre.synthea.world.concepts.HealthRecord.Medication;
+import org.mitre.synthea.world.concepts.HealthRecord.Observation;
+import org.mitre.synthea.world.concepts.HealthRecord.Procedure;
+
+/**
+ * Writes the main tables of the CSV export as Apache Parquet files, for populations that are
+ * too large to load from CSV comfortably. Each file has the columns of its CSV counterpart,
+ * but typed: times are UTC timestamps, costs are exact decimals and coordinates are doubles.
+ * Codes and other repeated strings are dictionary encoded. The claims and claims_transactions
+ * tables are not written yet: their transactions are simulated while the CSV exporter writes
+ * them, so they are only available from the CSV export for now.
+ *
+ * <p>Each patient's rows are handed to the writer of each table as one block, and a writer
+ * writes a row group once its buffered rows reach "exporter.parquet.row_group_size" bytes, so
+ * the memory used per table is bounded. The files are complete once {@link #close()} has been
+ * called after all patients have been exported. Until then a file has no footer and can not be
+ * read, so this exporter can not be combined with the completion journal, whose checkpoints
+ * promise that every journaled patient is readable on disk.</p>
+ */
+public class ParquetExporter {
+  private static final List<Column> PATIENT_COLUMNS = Arrays.asList(
+      Column.required("Id", ColumnType.STRING),
+      Column.optional("BIRTHDATE", ColumnType.TIMESTAMP),
+      Column.optional("DEATHDATE", ColumnType.TIMESTAMP),
+      Column.optional("SSN", ColumnType.STRING),
+      Column.optional("DRIVERS", ColumnType.STRING),
+      Column.optional("PASSPORT", ColumnType.STRING),
+      Column.optional("PREFIX", ColumnType.STRING),
+      Column.optional("FIRST", ColumnType.STRING),
+      Column.optional("LAST", ColumnType.STRING),
+      Column.optional("SUFFIX", ColumnType.STRING),
+      Column.optional("MAIDEN", ColumnType.STRING),
+      Column.optional("MARITAL", ColumnType.STRING),
+      Column.optional("RACE", ColumnType.STRING),
+      Column.optional("ETHNICITY", ColumnType.STRING),
+      Column.optional("GENDER", ColumnType.STRING),
+      Column.optional("BIRTHPLACE", ColumnType.STRING),
+      Column.optional("ADDRESS", ColumnType.STRING),
+      Column.optional("CITY", ColumnType.STRING),
+      Column.optional("STATE", ColumnType.STRING),
+      Column.optional("COUNTY", ColumnType.STRING),
+      Column.optional("FIPS", ColumnType.STRING),
+      Column.optional("ZIP", ColumnType.STRING),
+      Column.optional("LAT", ColumnType.DOUBLE),
+      Column.optional("LON", ColumnType.DOUBLE),
+      Column.optional("HEALTHCARE_EXPENSES", ColumnType.DECIMAL),
+      Column.optional("HEALTHCARE_COVERAGE", ColumnType.DECIMAL),
+      Column.optional("INCOME", ColumnType.INT64));
+  private static final String[] PATIENT_ATTRIBUTES = { Person.IDENTIFIER_SSN,
+      Person.IDENTIFIER_DRIVERS, Person.IDENTIFIER_PASSPORT, Person.NAME_PREFIX,
+      Person.FIRST_NAME, Person.LAST_NAME, Person.NAME_SUFFIX, Person.MAIDEN_NAME,
+      Person.MARITAL_STATUS, Person.RACE, Person.ETHNICITY, Person.GENDER, Person.BIRTHPLACE,
+      Person.ADDRESS, Person.CITY, Person.STATE, Person.COUNTY, Person.FIPS, Person.ZIP };
+
+  private static final List<Column> ENCOUNTER_COLUMNS = Arrays.asList(
+      Column.required("Id", ColumnType.STRING),
+      Column.required("START", ColumnType.TIMESTAMP),
+      Column.optional("STOP", ColumnType.TIMESTAMP),
+      Column.required("PATIENT", ColumnType.STRING),
+      Column.optional("ORGANIZATION", ColumnType.STRING),
+      Column.optional("PROVIDER", ColumnType.STRING),
+      Column.optional("PAYER", ColumnType.STRING),
+      Column.optional("ENCOUNTERCLASS", ColumnType.STRING),
+      Column.required("CODE", ColumnType.STRING),
+      Column.optional("DESCRIPTION", ColumnType.STRING),
+      Column.optional("BASE_ENCOUNTER_COST", ColumnType.DECIMAL),
+      Column.optional("TOTAL_CLAIM_COST", ColumnType.DECIMAL),
+      Column.optional("PAYER_COVERAGE", ColumnType.DECIMAL),
+      Column.optional("REASONCODE", ColumnType.STRING),
+      Column.optional("REASONDESCRIPTION", ColumnType.STRING));
+
+  private static final List<Column> CONDITION_COLUMNS = Arrays.asList(
+      Column.required("START", ColumnType.TIMESTAMP),
+      Column.optional("STOP", ColumnType.TIMESTAMP),
+      Column.required("PATIENT", ColumnType.STRING),
+      Column.required("ENCOUNTER", ColumnType.STRING),
+      Column.required("CODE", ColumnType.STRING),
+      Column.optional("DESCRIPTION", ColumnType.STRING));
+
+  private static final List<Column> OBSERVATION_COLUMNS = Arrays.asList(
+      Column.required("DATE", ColumnType.TIMESTAMP),
+      Column.required("PATIENT", ColumnType.STRING),
+      Column.required("ENCOUNTER", ColumnType.STRING),
+      Column.optional("CATEGORY", ColumnType.STRING),
+      Column.required("CODE", ColumnType.STRING),
+      Column.optional("DESCRIPTION", ColumnType.STRING),
+      Column.optional("VALUE", ColumnType.STRING),
+      Column.optional("UNITS", ColumnType.STRING),
+      Column.optional("TYPE", ColumnType.STRING));
+
+  private static final List<Column> PROCEDURE_COLUMNS = Arrays.asList(
+      Column.required("START", ColumnType.TIMESTAMP),
+      Column.optional("STOP", ColumnType.TIMESTAMP),
+      Column.required("PATIENT", ColumnType.STRING),
+      Column.required("ENCOUNTER", ColumnType.STRING),
+      Column.required("CODE", ColumnType.STRING),
+      Column.optional("DESCRIPTION", ColumnType.STRING),
+      Column.optional("BASE_COST", ColumnType.DECIMAL),
+      Column.optional("REASONCODE", ColumnType.STRING),
+      Column.optional("REASONDESCRIPTION", ColumnType.STRING));
+
+  private static final List<Column> MEDICATION_COLUMNS = Arrays.asList(
+      Column.required("START", ColumnType.TIMESTAMP),
+      Column.optional("STOP", ColumnType.TIMESTAMP),
+      Column.required("PATIENT", ColumnType.STRING),
+      Column.optional("PAYER", ColumnType.STRING),
+      Column.required("ENCOUNTER", ColumnType.STRING),
+      Column.required("CODE", ColumnType.STRING),
+      Column.optional("DESCRIPTION", ColumnType.STRING),
+      Column.optional("BASE_COST", ColumnType.DECIMAL),
+      Column.optional("PAYER_COVERAGE", ColumnType.DECIMAL),
+      Column.required("DISPENSES", ColumnType.INT64),
+      Column.optional("TOTALCOST", ColumnType.DECIMAL),
+      Column.optional("REASONCODE", ColumnType.STRING),
+      Column.optional("REASONDESCRIPTION", ColumnType.STRING));
+
+  private static final List<Column> IMMUNIZATION_COLUMNS = Arrays.asList(
+      Column.required("DATE", ColumnType.TIMESTAMP),
+      Column.required("PATIENT", ColumnType.STRING),
+      Column.required("ENCOUNTER", ColumnType.STRING),
+      Column.required("CODE", ColumnType.STRING),
+      Column.optional("DESCRIPTION", ColumnType.STRING),
+      Column.optional("BASE_COST", ColumnType.DECIMAL));
+
+  private final ParquetWriter patients;
+  private final ParquetWriter encounters;
+  private final ParquetWriter conditions;
+  private final ParquetWriter observations;
+  private final ParquetWriter procedures;
+  private final ParquetWriter medications;
+  private final ParquetWriter immunizations;
+
+  /**
+   * Constructor for the ParquetExporter - create the files and their writers.
+   */
+  private ParquetExporter() {
+    File output = Exporter.getOutputFolder("parquet", null);
+    output.mkdirs();
+    Path directory = output.toPath();
+    long rowGroupBytes = Config.getAsLong("exporter.parquet.row_group_size", 64L * 1024 * 1024);
+    boolean compress = Config.get("exporter.parquet.compression", "gzip").equals("gzip");
+    try {
+      patients = new ParquetWriter(directory.resolve("patients.parquet"), PATIENT_COLUMNS,
+          rowGroupBytes, compress);
+      encounters = new ParquetWriter(directory.resolve("encounters.parquet"),
+          ENCOUNTER_COLUMNS, rowGroupBytes, compress);
+      conditions = new ParquetWriter(directory.resolve("conditions.parquet"),
+          CONDITION_COLUMNS, rowGroupBytes, compress);
+      observations = new ParquetWriter(directory.resolve("observations.parquet"),
+          OBSERVATION_COLUMNS, rowGroupBytes, compress);
+      procedures = new ParquetWriter(directory.resolve("procedures.parquet"),
+          PROCEDURE_COLUMNS, rowGroupBytes, compress);
+      medications = new ParquetWriter(directory.resolve("medications.parquet"),
+          MEDICATION_COLUMNS, rowGroupBytes, compress);
+      immunizations = new ParquetWriter(directory.resolve("immunizations.parquet"),
+          IMMUNIZATION_COLUMNS, rowGroupBytes, compress);
+    } catch (IOException e) {
+      // wrap the exception in a runtime exception, like CSVExporter
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Thread safe singleton pattern adopted from
+   * https://stackoverflow.com/questions/7048198/thread-safe-singletons-in-java
+   */
+  private static class SingletonHolder {
+    /**
+     * Singleton instance of the ParquetExporter.
+     */
+    private static final ParquetExporter instance = new ParquetExporter();
+  }
+
+  /**
+   * Get the current instance of the ParquetExporter.
+   *
+   * @return the current instance of the ParquetExporter.
+   */
+  public static ParquetExporter getInstance() {
+    return SingletonHolder.instance;
+  }
+
+  /**
+   * Add a single Person's health record to the Parquet files.
+   *
+   * @param person Person to write record data for
+   * @param time   Time the simulation ended
+   * @throws IOException if any IO error occurs
+   */
+  public void export(Person person, long time) throws IOException {
+    String personID = (String) person.attributes.get(Person.ID);
+    List<Object[]> encounterRows = new ArrayList<Object[]>();
+    List<Object[]> conditionRows = new ArrayList<Object[]>();
+    List<Object[]> observationRows = new ArrayList<Object[]>();
+    List<Object[]> procedureRows = new ArrayList<Object[]>();
+    List<Object[]> medicationRows = new ArrayList<Object[]>();
+    List<Object[]> immunizationRows = new ArrayList<Object[]>();
+    boolean filterConditions = !StringUtils.isEmpty(Config.get("generate.terminology_service_url"))
+        && RandomCodeGenerator.hasSelectedCodes();
+
+    for (Encounter encounter : person.record.encounters) {
+      String encounterID = encounter.uuid.toString();
+      Code coding = encounter.codes.get(0);
+      encounterRows.add(new Object[] { encounterID, encounter.start, stop(encounter),
+          personID,
+          encounter.provider == null ? null : encounter.provider.getResourceID(),
+          encounter.clinician == null ? null : encounter.clinician.getResourceID(),
+          encounter.claim.getPayer() == null ? null
+              : encounter.claim.getPayer().getResourceID(),
+          encounter.type == null ? null : encounter.type.toLowerCase(),
+          coding.code, coding.display, encounter.getCost(),
+          encounter.claim.getTotalClaimCost(), encounter.claim.getTotalCoveredCost(),
+          encounter.reason == null ? null : encounter.reason.code,
+          encounter.reason == null ? null : encounter.reason.display });
+      String payerID = encounter.claim.getPayer().uuid;
+
+      for (Entry condition : encounter.conditions) {
+        Code code = condition.codes.get(0);
+        // like the CSV export, ignore codes that were not retrieved from the terminology url
+        if (!filterConditions || RandomCodeGenerator.isSelected(code.code)) {
+          conditionRows.add(new Object[] { condition.start, stop(condition), personID,
+              encounterID, code.code, code.display });
+        }
+      }
+      for (Observation observation : encounter.observations) {
+        observation(observationRows, personID, encounterID, observation);
+      }
+      for (Procedure procedure : encounter.procedures) {
+        Code code = procedure.codes.get(0);
+        Code reason = procedure.reasons.isEmpty() ? null : procedure.reasons.get(0);
+        procedureRows.add(new Object[] { procedure.start, stop(procedure), personID,
+            encounterID, code.code, code.display, procedure.getCost(),
+            reason == null ? null : reason.code, reason == null ? null : reason.display });
+      }
+      for (Medication medication : encounter.medications) {
+        Code code = medication.codes.get(0);
+        Code reason = medication.reasons.isEmpty() ? null : medication.reasons.get(0);
+        BigDecimal cost = medication.getCost();
+        long dispenses = CSVExporter.dispenses(medication, time);
+        medicationRows.add(new Object[] { medication.start, stop(medication), personID,
+            payerID, encounterID, code.code, code.display, cost,
+            medication.claim.getTotalCoveredCost(), dispenses,
+            cost.multiply(BigDecimal.valueOf(dispenses)).setScale(2, RoundingMode.DOWN),
+            reason == null ? null : reason.code, reason == null ? null : reason.display });
+      }
+      for (Entry immunization : encounter.immunizations) {
+        Code code = immunization.codes.get(0);
+        immunizationRows.add(new Object[] { immunization.start, personID, encounterID,
+            code.code, code.display, immunization.getCost() });
+      }
+    }
+
+    // like the CSV export, the yearly quality of life scores have no encounter
+    for (Observation observation : CSVExporter.qualityOfLifeObservations(person)) {
+      observation(observationRows, personID, "", observation);
+    }
+
+    // the "split record" feature exports the same patient more than once
+    if (!person.attributes.containsKey("exported_to_parquet")) {
+      person.attributes.put("exported_to_parquet", personID);
+      patients.writeRows(patient(person, time));
+    }
+    encounters.writeRows(encounterRows);
+    conditions.writeRows(conditionRows);
+    observations.writeRows(observationRows);
+    procedures.writeRows(procedureRows);
+    medications.writeRows(medicationRows);
+    immunizations.writeRows(immunizationRows);
+  }
+
+  private static List<Object[]> patient(Person person, long time) {
+    Object[] row = new Object[PATIENT_COLUMNS.size()];
+    int column = 0;
+    row[column++] = person.attributes.get(Person.ID);
+    row[column++] = person.attributes.get(Person.BIRTHDATE);
+    row[column++] = person.alive(time) ? null : person.attributes.get(Person.DEATHDATE);
+    for (String attribute : PATIENT_ATTRIBUTES) {
+      row[column++] = person.attributes.get(attribute);
+    }
+    row[column++] = person.getY();
+    row[column++] = person.getX();
+    row[column++] = person.coverage.getTotalOutOfPocketExpenses();
+    row[column++] = person.coverage.getTotalCoverage();
+    Object income = person.attributes.get(Person.INCOME);
+    row[column++] = income instanceof Number ? income : null;
+    return Arrays.<Object[]>asList(row);
+  }
+
+  private static void observation(List<Object[]> rows, String personID, String encounterID,
+      Observation observation) {
+    if (observation.value == null) {
+      if (observation.observations != null) {
+        for (Observation subObs : observation.observations) {
+          observation(rows, personID, encounterID, subObs);
+        }
+      }
+      return;
+    }
+    Code code = observation.codes.get(0);
+    rows.add(new Object[] { observation.start, personID, encounterID, observation.category,
+        code.code, code.display, ExportHelper.getObservationValue(observation),
+        observation.unit, ExportHelper.getObservationType(observation) });
+  }
+
+  private static Long stop(HealthRecord.Entry entry) {
+    return entry.stop == 0L ? null : entry.stop;
+  }
+
+  /**
+   * Write the remaining rows and the footer of every file. This method should be called once
+   * after all the Patient records have been exported using the export(Person,long) method.
+   *
+   * @throws IOException if any IO errors occur.
+   */
+  public void close() throws IOException {
+    for (ParquetWriter writer : new ParquetWriter[] { patients, encounters, conditions,
+        observations, procedures, medications, immunizations }) {
+      writer.close();
+    }
+  }
+}
@@ -0,0 +1,614 @@
+package org.mitre.synthea.export;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a flat table to an Apache Parquet file, without depending on the Hadoop libraries.
+ *
+ * <p>Rows are buffered by column until the buffered values reach the row group size, then
+ * written as one row group with a single page per column. String columns are dictionary
+ * encoded when they repeat and their dictionary is small, other columns are plain encoded.
+ * Pages may be compressed with GZIP. The memory used by a writer is bounded by the row group
+ * size. See https://github.com/apache/parquet-format for the format.</p>
+ */
+final class ParquetWriter implements Closeable {
+  private static final byte[] MAGIC = "PAR1".getBytes(StandardCharsets.US_ASCII);
+  /** Dictionaries larger than this are not worth it, the column is plain encoded instead. */
+  private static final int MAX_DICTIONARY_BYTES = 1024 * 1024;
+
+  // parquet.thrift enums
+  private static final int TYPE_INT64 = 2;
+  private static final int TYPE_DOUBLE = 5;
+  private static final int TYPE_BYTE_ARRAY = 6;
+  private static final int REQUIRED = 0;
+  private static final int OPTIONAL = 1;
+  private static final int CONVERTED_UTF8 = 0;
+  private static final int CONVERTED_DECIMAL = 5;
+  private static final int CONVERTED_TIMESTAMP_MILLIS = 9;
+  private static final int ENCODING_PLAIN = 0;
+  private static final int ENCODING_PLAIN_DICTIONARY = 2;
+  private static final int ENCODING_RLE = 3;
+  private static final int PAGE_DATA = 0;
+  private static final int PAGE_DICTIONARY = 2;
+  private static final int CODEC_UNCOMPRESSED = 0;
+  private static final int CODEC_GZIP = 2;
+
+  /** The types of column that can be written. */
+  enum ColumnType {
+    /** UTF-8 text. */
+    STRING,
+    /** Milliseconds since the epoch, in UTC. */
+    TIMESTAMP,
+    /** An amount of money, stored exactly as a decimal with two digits after the point. */
+    DECIMAL,
+    /** A whole number. */
+    INT64,
+    /** A floating point number. */
+    DOUBLE
+  }
+
+  /** A column of the table. */
+  static final class Column {
+    final String name;
+    final ColumnType type;
+    final boolean optional;
+
+    private Column(String name, ColumnType type, boolean optional) {
+      this.name = name;
+      this.type = type;
+      this.optional = optional;
+    }
+
+    /** A column that has a value in every row. */
+    static Column required(String name, ColumnType type) {
+      return new Column(name, type, false);
+    }
+
+    /** A column that may be null. */
+    static Column optional(String name, ColumnType type) {
+      return new Column(name, type, true);
+    }
+  }
+
+  /** The values of one column in the current row group. */
+  private static final class ColumnBuffer {
+    private final Column column;
+    private String[] strings;
+    private long[] longs;
+    private double[] doubles;
+    private boolean[] present;
+
+    private ColumnBuffer(Column column, int capacity) {
+      this.column = column;
+      allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+      if (column.type == ColumnType.STRING) {
+        strings = strings == null ? new String[capacity] : Arrays.copyOf(strings, capacity);
+        return;
+      }
+      if (column.type == ColumnType.DOUBLE) {
+        doubles = doubles == null ? new double[capacity] : Arrays.copyOf(doubles, capacity);
+      } else {
+        longs = longs == null ? new long[capacity] : Arrays.copyOf(longs, capacity);
+      }
+      present = present == null ? new boolean[capacity] : Arrays.copyOf(present, capacity);
+    }
+
+    private boolean isPresent(int row) {
+      return column.type == ColumnType.STRING ? strings[row] != null : present[row];
+    }
+  }
+
+  private final Path file;
+  private final List<Column> columns;
+  private final ColumnBuffer[] buffers;
+  private final long rowGroupBytes;
+  private final boolean compress;
+  private final OutputStream out;
+  private long position;
+  private int rows;
+  private int capacity = 1024;
+  private long bufferedBytes;
+  private long totalRows;
+  private final List<byte[]> rowGroups = new ArrayList<byte[]>();
+  private boolean closed;
+
+  /**
+   * Create a Parquet file.
+   * @param file The file to write, replaced if it exists.
+   * @param columns The columns of the table.
+   * @param rowGroupBytes The approximate size of the values buffered before a row group is
+   *     written.
+   * @param compress True to compress pages with GZIP.
+   * @throws IOException if the file can not be created.
+   */
+  ParquetWriter(Path file, List<Column> columns, long rowGroupBytes, boolean compress)
+      throws IOException {
+    this.file = file;
+    this.columns = new ArrayList<Column>(columns);
+    this.buffers = new ColumnBuffer[columns.size()];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = new ColumnBuffer(columns.get(i), capacity);
+    }
+    this.rowGroupBytes = rowGroupBytes;
+    this.compress = compress;
+    this.out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16);
+    write(MAGIC);
+  }
+
+  /**
+   * Add rows to the table, keeping them together in the same row group if possible.
+   * @param block The rows, each with one value per column: a String, a Number, or null.
+   * @throws IOException if a row group can not be written.
+   */
+  synchronized void writeRows(List<Object[]> block) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("Parquet file " + file + " is closed");
+    }
+    for (Object[] row : block) {
+      add(row);
+    }
+    if (bufferedBytes >= rowGroupBytes) {
+      writeRowGroup();
+    }
+  }
+
+  private void add(Object[] row) {
+    if (row.length != buffers.length) {
+      throw new IllegalArgumentException("Expected " + buffers.length + " values but got "
+          + row.length + " for " + file);
+    }
+    if (rows == capacity) {
+      capacity *= 2;
+      for (ColumnBuffer buffer : buffers) {
+        buffer.allocate(capacity);
+      }
+    }
+    for (int i = 0; i < buffers.length; i++) {
+      ColumnBuffer buffer = buffers[i];
+      Object value = row[i];
+      if (value == null && !buffer.column.optional) {
+        throw new IllegalArgumentException("Column " + buffer.column.name + " of " + file
+            + " is required");
+      }
+      switch (buffer.column.type) {
+        case STRING:
+          String string = value == null ? null : value.toString();
+          buffer.strings[rows] = string;
+          bufferedBytes += string == null ? 1 : 8 + string.length();
+          break;
+        case DOUBLE:
+          buffer.present[rows] = value != null;
+          buffer.doubles[rows] = value == null ? 0 : ((Number) value).doubleValue();
+          bufferedBytes += 9;
+          break;
+        case DECIMAL:
+          buffer.present[rows] = value != null;
+          buffer.longs[rows] = value == null ? 0 : cents((Number) value);
+          bufferedBytes += 9;
+          break;
+        default:
+          buffer.present[rows] = value != null;
+          buffer.longs[rows] = value == null ? 0 : ((Number) value).longValue();
+          bufferedBytes += 9;
+          break;
+      }
+    }
+    rows++;
+  }
+
+  private static long cents(Number value) {
+    BigDecimal decimal = value instanceof BigDecimal ? (BigDecimal) value
+        : BigDecimal.valueOf(value.doubleValue());
+    return decimal.setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+  }
+
+  /**
+   * Write the buffered rows and the footer, then close the file.
+   * @throws IOException if the file can not be written.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (rows > 0) {
+      writeRowGroup();
+    }
+    Thrift footer = new Thrift();
+    footer.i32(1, 1);
+    footer.list(2, Thrift.STRUCT, columns.size() + 1);
+    footer.beginElement();
+    footer.string(4, "schema");
+    footer.i32(5, columns.size());
+    footer.endStruct();
+    for (Column column : columns) {
+      footer.beginElement();
+      footer.i32(1, physicalType(column.type));
+      footer.i32(3, column.optional ? OPTIONAL : REQUIRED);
+      footer.string(4, column.name);
+      if (column.type == ColumnType.STRING) {
+        footer.i32(6, CONVERTED_UTF8);
+      } else if (column.type == ColumnType.TIMESTAMP) {
+        footer.i32(6, CONVERTED_TIMESTAMP_MILLIS);
+      } else if (column.type == ColumnType.DECIMAL) {
+        footer.i32(6, CONVERTED_DECIMAL);
+        footer.i32(7, 2);
+        footer.i32(8, 18);
+      }
+      footer.endStruct();
+    }
+    footer.i64(3, totalRows);
+    footer.list(4, Thrift.STRUCT, rowGroups.size());
+    for (byte[] rowGroup : rowGroups) {
+      footer.raw(rowGroup);
+    }
+    footer.string(6, "synthea");
+    footer.endStruct();
+    byte[] bytes = footer.toByteArray();
+    write(bytes);
+    write(new byte[] { (byte) bytes.length, (byte) (bytes.length >>> 8),
+        (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 24) });
+    write(MAGIC);
+    out.close();
+  }
+
+  private static int physicalType(ColumnType type) {
+    switch (type) {
+      case STRING:
+        return TYPE_BYTE_ARRAY;
+      case DOUBLE:
+        return TYPE_DOUBLE;
+      default:
+        return TYPE_INT64;
+    }
+  }
+
+  private void write(byte[] bytes) throws IOException {
+    out.write(bytes);
+    position += bytes.length;
+  }
+
+  /** Write the buffered rows as a row group and keep its metadata for the footer. */
+  private void writeRowGroup() throws IOException {
+    Thrift rowGroup = new Thrift();
+    rowGroup.beginElement();
+    rowGroup.list(1, Thrift.STRUCT, buffers.length);
+    long totalBytes = 0;
+    for (ColumnBuffer buffer : buffers) {
+      totalBytes += writeColumnChunk(buffer, rowGroup);
+    }
+    rowGroup.i64(2, totalBytes);
+    rowGroup.i64(3, rows);
+    rowGroup.endStruct();
+    rowGroups.add(rowGroup.toByteArray());
+    totalRows += rows;
+    rows = 0;
+    bufferedBytes = 0;
+    for (ColumnBuffer buffer : buffers) {
+      if (buffer.strings != null) {
+        Arrays.fill(buffer.strings, null);
+      }
+    }
+  }
+
+  /**
+   * Write the pages of one column and add its ColumnChunk to the row group metadata.
+   * @return the uncompressed size of the chunk
+   */
+  private long writeColumnChunk(ColumnBuffer buffer, Thrift rowGroup) throws IOException {
+    Column column = buffer.column;
+    long start = position;
+    long uncompressed = 0;
+    long dictionaryOffset = -1;
+
+    ByteArrayOutputStream page = new ByteArrayOutputStream();
+    if (column.optional) {
+      int[] levels = new int[rows];
+      for (int row = 0; row < rows; row++) {
+        levels[row] = buffer.isPresent(row) ? 1 : 0;
+      }
+      ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+      writeHybrid(encoded, levels, rows, 1);
+      writeInt(page, encoded.size());
+      encoded.writeTo(page);
+    }
+
+    int encoding = ENCODING_PLAIN;
+    if (column.type == ColumnType.STRING) {
+      Map<String, Integer> dictionary = new HashMap<String, Integer>();
+      List<byte[]> entries = new ArrayList<byte[]>();
+      int[] indices = new int[rows];
+      int count = 0;
+      long dictionaryBytes = 0;
+      for (int row = 0; row < rows && dictionaryBytes <= MAX_DICTIONARY_BYTES; row++) {
+        String value = buffer.strings[row];
+        if (value == null) {
+          continue;
+        }
+        Integer index = dictionary.get(value);
+        if (index == null) {
+          index = entries.size();
+          dictionary.put(value, index);
+          byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          entries.add(bytes);
+          dictionaryBytes += 4 + bytes.length;
+        }
+        indices[count++] = index;
+      }
+      if (dictionaryBytes <= MAX_DICTIONARY_BYTES && !entries.isEmpty()
+          && entries.size() < count) {
+        ByteArrayOutputStream dictionaryPage = new ByteArrayOutputStream();
+        for (byte[] entry : entries) {
+          writeInt(dictionaryPage, entry.length);
+          dictionaryPage.write(entry);
+        }
+        dictionaryOffset = position;
+        uncompressed += writePage(PAGE_DICTIONARY, dictionaryPage, entries.size(), 0);
+        int bitWidth = Math.max(1, 32 - Integer.numberOfLeadingZeros(entries.size() - 1));
+        page.write(bitWidth);
+        writeHybrid(page, indices, count, bitWidth);
+        encoding = ENCODING_PLAIN_DICTIONARY;
+      } else {
+        for (int row = 0; row < rows; row++) {
+          if (buffer.strings[row] != null) {
+            byte[] bytes = buffer.strings[row].getBytes(StandardCharsets.UTF_8);
+            writeInt(page, bytes.length);
+            page.write(bytes);
+          }
+        }
+      }
+    } else {
+      for (int row = 0; row < rows; row++) {
+        if (buffer.present[row]) {
+          writeLong(page, column.type == ColumnType.DOUBLE
+              ? Double.doubleToLongBits(buffer.doubles[row]) : buffer.longs[row]);
+        }
+      }
+    }
+    long dataOffset = position;
+    uncompressed += writePage(PAGE_DATA, page, rows, encoding);
+
+    rowGroup.beginElement();
+    rowGroup.i64(2, start);
+    rowGroup.beginStruct(3);
+    rowGroup.i32(1, physicalType(column.type));
+    rowGroup.list(2, Thrift.I32, 2);
+    rowGroup.listI32(encoding);
+    rowGroup.listI32(ENCODING_RLE);
+    rowGroup.list(3, Thrift.BINARY, 1);
+    rowGroup.listString(column.name);
+    rowGroup.i32(4, compress ? CODEC_GZIP : CODEC_UNCOMPRESSED);
+    rowGroup.i64(5, rows);
+    rowGroup.i64(6, uncompressed);
+    rowGroup.i64(7, position - start);
+    rowGroup.i64(9, dataOffset);
+    if (dictionaryOffset >= 0) {
+      rowGroup.i64(11, dictionaryOffset);
+    }
+    rowGroup.endStruct();
+    rowGroup.endStruct();
+    return uncompressed;
+  }
+
+  /**
+   * Write a page header and its, possibly compressed, contents.
+   * @return the uncompressed size of the page including its header
+   */
+  private long writePage(int type, ByteArrayOutputStream contents, int values, int encoding)
+      throws IOException {
+    byte[] body = contents.toByteArray();
+    byte[] stored = body;
+    if (compress) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4 + 64);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+        gzip.write(body);
+      }
+      stored = compressed.toByteArray();
+    }
+    Thrift header = new Thrift();
+    header.i32(1, type);
+    header.i32(2, body.length);
+    header.i32(3, stored.length);
+    if (type == PAGE_DATA) {
+      header.beginStruct(5);
+      header.i32(1, values);
+      header.i32(2, encoding);
+      header.i32(3, ENCODING_RLE);
+      header.i32(4, ENCODING_RLE);
+      header.endStruct();
+    } else {
+      header.beginStruct(7);
+      header.i32(1, values);
+      header.i32(2, ENCODING_PLAIN_DICTIONARY);
+      header.endStruct();
+    }
+    header.endStruct();
+    byte[] headerBytes = header.toByteArray();
+    write(headerBytes);
+    write(stored);
+    return headerBytes.length + body.length;
+  }
+
+  /**
+   * Write values with the RLE / bit-packing hybrid encoding. Runs of at least 8 equal values
+   * are run length encoded, everything else is bit-packed in groups of 8.
+   */
+  static void writeHybrid(ByteArrayOutputStream out, int[] values, int count, int bitWidth) {
+    int byteWidth = (bitWidth + 7) / 8;
+    int packedStart = 0;
+    int packedGroups = 0;
+    int i = 0;
+    while (i < count) {
+      int run = 1;
+      while (i + run < count && values[i + run] == values[i]) {
+        run++;
+      }
+      if (run >= 8) {
+        writeBitPacked(out, values, count, packedStart, packedGroups, bitWidth);
+        packedGroups = 0;
+        writeUnsignedVarint(out, (long) run << 1);
+        for (int b = 0; b < byteWidth; b++) {
+          out.write(values[i] >>> (8 * b));
+        }
+        i += run;
+        packedStart = i;
+      } else {
+        packedGroups++;
+        i += 8;
+      }
+    }
+    writeBitPacked(out, values, count, packedStart, packedGroups, bitWidth);
+  }
+
+  private static void writeBitPacked(ByteArrayOutputStream out, int[] values, int count,
+      int start, int groups, int bitWidth) {
+    if (groups == 0) {
+      return;
+    }
+    writeUnsignedVarint(out, ((long) groups << 1) | 1);
+    long bits = 0;
+    int bitCount = 0;
+    for (int i = start; i < start + groups * 8; i++) {
+      // the last group is padded with zeros
+      long value = i < count ? values[i] & 0xFFFFFFFFL : 0;
+      bits |= value << bitCount;
+      bitCount += bitWidth;
+      while (bitCount >= 8) {
+        out.write((int) bits);
+        bits >>>= 8;
+        bitCount -= 8;
+      }
+    }
+  }
+
+  private static void writeUnsignedVarint(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+
+  private static void writeLong(ByteArrayOutputStream out, long value) {
+    for (int i = 0; i < 8; i++) {
+      out.write((int) (value >>> (8 * i)));
+    }
+  }
+
+  /** Just enough of the Thrift compact protocol to write the Parquet metadata. */
+  private static final class Thrift {
+    static final int I32 = 5;
+    static final int I64 = 6;
+    static final int BINARY = 8;
+    static final int LIST = 9;
+    static final int STRUCT = 12;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final Deque<Integer> fieldIds = new ArrayDeque<Integer>();
+    private int lastFieldId;
+
+    private void field(int type, int id) {
+      int delta = id - lastFieldId;
+      if (delta > 0 && delta <= 15) {
+        out.write((delta << 4) | type);
+      } else {
+        out.write(type);
+        writeUnsignedVarint(out, zigzag(id));
+      }
+      lastFieldId = id;
+    }
+
+    void i32(int id, int value) {
+      field(I32, id);
+      writeUnsignedVarint(out, zigzag(value));
+    }
+
+    void i64(int id, long value) {
+      field(I64, id);
+      writeUnsignedVarint(out, zigzag(value));
+    }
+
+    void string(int id, String value) {
+      field(BINARY, id);
+      listString(value);
+    }
+
+    void beginStruct(int id) {
+      field(STRUCT, id);
+      beginElement();
+    }
+
+    /** Start a struct that is an element of a list. */
+    void beginElement() {
+      fieldIds.push(lastFieldId);
+      lastFieldId = 0;
+    }
+
+    /** End a struct, or the whole message. */
+    void endStruct() {
+      out.write(0);
+      lastFieldId = fieldIds.isEmpty() ? 0 : fieldIds.pop();
+    }
+
+    void list(int id, int elementType, int size) {
+      field(LIST, id);
+      if (size < 15) {
+        out.write((size << 4) | elementType);
+      } else {
+        out.write(0xF0 | elementType);
+        writeUnsignedVarint(out, size);
+      }
+    }
+
+    void listI32(int value) {
+      writeUnsignedVarint(out, zigzag(value));
+    }
+
+    void listString(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      writeUnsignedVarint(out, bytes.length);
+      out.write(bytes, 0, bytes.length);
+    }
+
+    /** Append an element that was written separately, e.g. a struct in a list. */
+    void raw(byte[] bytes) {
+      out.write(bytes, 0, bytes.length);
+    }
+
+    byte[] toByteArray() {
+      return out.toByteArray();
+    }
+
+    private static long zigzag(long value) {
+      return (value << 1) ^ (value >> 63);
+    }
+  }
+}
@@ -0,0 +1,367 @@
+package org.mitre.synthea.export;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Combines the output directories of a population generated in shards
+ * (see "--shard index/count") into a single dataset.
+ * <ul>
+ * <li>CSV tables are concatenated in shard order with a single header. Reference tables that
+ * every shard writes in full (organizations, providers, payers) keep one row per Id, with the
+ * utilization columns each shard counted for its own patients summed across shards.</li>
+ * <li>FHIR bulk NDJSON files are concatenated per resource type. Practitioner and organization
+ * resources written by every shard keep the first resource per id.</li>
+ * <li>FHIR Group resources are merged into one group with the union of the members.</li>
+ * <li>Run metadata is merged into a single file with summed patient counts and stats.</li>
+ * <li>Any other file, e.g. a per-patient bundle, is copied.</li>
+ * </ul>
+ * Usage: ShardMerger outputDirectory shardDirectory...
+ */
+public class ShardMerger {
+  /**
+   * CSV tables written in full by every shard, keyed by their first column, and the columns
+   * that count utilization by the patients of one shard.
+   */
+  private static final Map<String, Set<String>> REFERENCE_TABLES = new HashMap<>();
+  /** Averages over the patients of one shard, and the column counting those patients. */
+  private static final Map<String, String> WEIGHTED_AVERAGES = new HashMap<>();
+
+  static {
+    REFERENCE_TABLES.put("organizations.csv", new HashSet<>(Arrays.asList(
+        "REVENUE", "UTILIZATION")));
+    REFERENCE_TABLES.put("providers.csv", new HashSet<>(Arrays.asList(
+        "ENCOUNTERS", "PROCEDURES")));
+    REFERENCE_TABLES.put("payers.csv", new HashSet<>(Arrays.asList(
+        "AMOUNT_COVERED", "AMOUNT_UNCOVERED", "REVENUE", "COVERED_ENCOUNTERS",
+        "UNCOVERED_ENCOUNTERS", "COVERED_MEDICATIONS", "UNCOVERED_MEDICATIONS",
+        "COVERED_PROCEDURES", "UNCOVERED_PROCEDURES", "COVERED_IMMUNIZATIONS",
+        "UNCOVERED_IMMUNIZATIONS", "UNIQUE_CUSTOMERS", "MEMBER_MONTHS")));
+    WEIGHTED_AVERAGES.put("QOLS_AVG", "UNIQUE_CUSTOMERS");
+  }
+
+  /** NDJSON resource types written in full by every shard, keyed by resource id. */
+  private static final Set<String> REFERENCE_RESOURCES = new HashSet<>(Arrays.asList(
+      "Organization.ndjson", "Location.ndjson", "Practitioner.ndjson",
+      "PractitionerRole.ndjson"));
+
+  private final Path output;
+  private final List<Path> shards;
+
+  /**
+   * Create a merger.
+   * @param output Directory to write the merged dataset to.
+   * @param shards Output directories of the shards, in shard order.
+   */
+  public ShardMerger(Path output, List<Path> shards) {
+    this.output = output;
+    this.shards = shards;
+  }
+
+  /**
+   * Merge the shard outputs.
+   * @throws IOException if a file can not be read or written.
+   */
+  public void merge() throws IOException {
+    Set<Path> relativePaths = new TreeSet<>();
+    for (Path shard : shards) {
+      try (Stream<Path> files = Files.walk(shard)) {
+        relativePaths.addAll(files.filter(Files::isRegularFile)
+            .map(shard::relativize).collect(Collectors.toList()));
+      }
+    }
+    for (Path relativePath : relativePaths) {
+      List<Path> sources = new ArrayList<>();
+      for (Path shard : shards) {
+        Path source = shard.resolve(relativePath);
+        if (Files.exists(source)) {
+          sources.add(source);
+        }
+      }
+      Path target = output.resolve(relativePath);
+      Files.createDirectories(target.getParent());
+      String filename = relativePath.getFileName().toString();
+      String folder = relativePath.getNameCount() > 1 ? relativePath.getName(0).toString() : "";
+
+      if (folder.equals("metadata") && filename.endsWith(".json")) {
+        // merged separately below, the file names are unique per run
+        continue;
+      } else if (filename.equals("Group.ndjson")
+          || (filename.startsWith("groupInformation") && filename.endsWith(".json"))) {
+        mergeGroups(sources, target);
+      } else if (filename.endsWith(".ndjson")) {
+        concatenate(sources, target, false, REFERENCE_RESOURCES.contains(filename)
+            ? ShardMerger::resourceId : null);
+      } else if (REFERENCE_TABLES.containsKey(filename)) {
+        mergeReferenceTable(sources, target, REFERENCE_TABLES.get(filename));
+      } else if (filename.endsWith(".csv")) {
+        concatenate(sources, target, true, null);
+      } else {
+        Files.copy(sources.get(0), target, StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    mergeMetadata();
+  }
+
+  /**
+   * Concatenate files line by line.
+   * @param sources The files to concatenate, in order.
+   * @param target The file to write.
+   * @param hasHeader Whether the first line of every file is a header to write only once.
+   * @param key Optional function from a line to a key. Only the first line per key is kept.
+   */
+  private static void concatenate(List<Path> sources, Path target, boolean hasHeader,
+      Function<String, String> key) throws IOException {
+    Set<String> seen = new HashSet<>();
+    boolean headerWritten = false;
+    try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+      for (Path source : sources) {
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+          String line = reader.readLine();
+          if (hasHeader && line != null) {
+            if (!headerWritten) {
+              writer.write(line);
+              writer.newLine();
+              headerWritten = true;
+            }
+            line = reader.readLine();
+          }
+          for (; line != null; line = reader.readLine()) {
+            if (line.isEmpty() || (key != null && !seen.add(key.apply(line)))) {
+              continue;
+            }
+            writer.write(line);
+            writer.newLine();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Merge a CSV table that every shard writes in full into one row per Id. The summed columns
+   * are added up across shards and the weighted averages are combined by their count column.
+   * Reference tables are small, so the merged rows are kept in memory.
+   * @param sources The files to merge, in order.
+   * @param target The file to write.
+   * @param summed The names of the columns to sum.
+   */
+  private static void mergeReferenceTable(List<Path> sources, Path target, Set<String> summed)
+      throws IOException {
+    String header = null;
+    String[] columns = null;
+    Map<String, String[]> rows = new LinkedHashMap<>();
+    for (Path source : sources) {
+      try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+        String line = reader.readLine();
+        if (line == null) {
+          continue;
+        }
+        if (header == null) {
+          header = line;
+          columns = header.split(",", -1);
+        }
+        for (line = reader.readLine(); line != null; line = reader.readLine()) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          String[] values = line.split(",", -1);
+          String[] merged = rows.putIfAbsent(values[0], values);
+          if (merged != null) {
+            mergeRow(columns, merged, values, summed);
+          }
+        }
+      }
+    }
+    try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+      if (header == null) {
+        return;
+      }
+      writer.write(header);
+      writer.newLine();
+      for (String[] row : rows.values()) {
+        writer.write(String.join(",", row));
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * Add the utilization in a row of another shard to the merged row.
+   */
+  private static void mergeRow(String[] columns, String[] merged, String[] values,
+      Set<String> summed) {
+    // averages first, they are weighted by the counts before those are summed
+    for (int i = 0; i < columns.length; i++) {
+      String countColumn = WEIGHTED_AVERAGES.get(columns[i]);
+      int count = countColumn == null ? -1 : Arrays.asList(columns).indexOf(countColumn);
+      if (count < 0 || values[i].isEmpty()) {
+        continue;
+      }
+      double mergedCount = parse(merged[count]);
+      double valuesCount = parse(values[count]);
+      if (merged[i].isEmpty()) {
+        merged[i] = values[i];
+        continue;
+      } else if (mergedCount + valuesCount == 0) {
+        continue;
+      }
+      double average = (parse(merged[i]) * mergedCount + parse(values[i]) * valuesCount)
+          / (mergedCount + valuesCount);
+      merged[i] = Double.toString(average);
+    }
+    for (int i = 0; i < columns.length; i++) {
+      if (!summed.contains(columns[i]) || values[i].isEmpty()) {
+        continue;
+      }
+      if (merged[i].isEmpty()) {
+        merged[i] = values[i];
+      } else {
+        merged[i] = new BigDecimal(merged[i]).add(new BigDecimal(values[i])).toPlainString();
+      }
+    }
+  }
+
+  private static double parse(String value) {
+    return value.isEmpty() ? 0 : Double.parseDouble(value);
+  }
+
+  private static String resourceId(String line) {
+    return JsonParser.parseString(line).getAsJsonObject().get("id").getAsString();
+  }
+
+  /**
+   * Merge FHIR Group resources into the first one, with the union of all members.
+   */
+  private static void mergeGroups(List<Path> sources, Path target) throws IOException {
+    JsonObject merged = null;
+    Set<String> members = new HashSet<>();
+    JsonArray memberArray = new JsonArray();
+    boolean ndjson = target.getFileName().toString().endsWith(".ndjson");
+    for (Path source : sources) {
+      String json = new String(Files.readAllBytes(source), StandardCharsets.UTF_8).trim();
+      if (json.isEmpty()) {
+        continue;
+      }
+      JsonObject group = JsonParser.parseString(json).getAsJsonObject();
+      if (merged == null) {
+        merged = group;
+      }
+      if (group.has("member")) {
+        for (JsonElement member : group.getAsJsonArray("member")) {
+          String reference = member.getAsJsonObject().getAsJsonObject("entity")
+              .get("reference").getAsString();
+          if (members.add(reference)) {
+            memberArray.add(member);
+          }
+        }
+      }
+    }
+    if (merged == null) {
+      return;
+    }
+    merged.add("member", memberArray);
+    merged.addProperty("quantity", memberArray.size());
+    Gson gson = ndjson ? new Gson() : new GsonBuilder().setPrettyPrinting().create();
+    Files.write(target, (gson.toJson(merged) + System.lineSeparator())
+        .getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Merge the run metadata of every shard into a single file with summed counts.
+   */
+  private void mergeMetadata() throws IOException {
+    Map<String, Object> merged = new LinkedHashMap<>();
+    Map<String, Long> stats = new LinkedHashMap<>();
+    List<String> runIds = new ArrayList<>();
+    long patientCount = 0;
+    JsonObject first = null;
+    for (Path shard : shards) {
+      Path folder = shard.resolve("metadata");
+      if (!Files.isDirectory(folder)) {
+        continue;
+      }
+      List<Path> files;
+      try (Stream<Path> list = Files.list(folder)) {
+        files = list.filter(p -> p.toString().endsWith(".json")).sorted()
+            .collect(Collectors.toList());
+      }
+      for (Path file : files) {
+        JsonObject metadata = JsonParser.parseString(
+            new String(Files.readAllBytes(file), StandardCharsets.UTF_8)).getAsJsonObject();
+        if (first == null) {
+          first = metadata;
+        }
+        runIds.add(metadata.get("runID").getAsString());
+        patientCount += metadata.get("patientCount").getAsLong();
+        if (metadata.has("stats")) {
+          for (Map.Entry<String, JsonElement> stat
+              : metadata.getAsJsonObject("stats").entrySet()) {
+            stats.merge(stat.getKey(), stat.getValue().getAsLong(), Long::sum);
+          }
+        }
+      }
+    }
+    if (first == null) {
+      return;
+    }
+    for (Map.Entry<String, JsonElement> entry : first.entrySet()) {
+      merged.put(entry.getKey(), entry.getValue());
+    }
+    merged.remove("shard");
+    merged.put("runID", runIds);
+    merged.put("shardCount", shards.size());
+    merged.put("patientCount", patientCount);
+    merged.put("stats", stats);
+
+    Path target = output.resolve("metadata");
+    Files.createDirectories(target);
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    Files.write(target.resolve("merged_" + shards.size() + "_shards.json"),
+        gson.toJson(merged).getBytes(StandardCharsets.UTF_8));
+    System.out.printf("Records: total=%d, %s\n", patientCount, stats);
+  }
+
+  /**
+   * Merge shard output directories.
+   * @param args The output directory, followed by the shard directories in shard order.
+   * @throws IOException if a file can not be read or written.
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.out.println("Usage: ShardMerger outputDirectory shardDirectory...");
+      System.exit(1);
+    }
+    List<Path> shards = new ArrayList<>();
+    for (int i = 1; i < args.length; i++) {
+      shards.add(Paths.get(args[i]));
+    }
+    new ShardMerger(Paths.get(args[0]), shards).merge();
+  }
+}
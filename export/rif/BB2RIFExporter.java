@@ -167,6 +167,7 @@ public class BB2RIFExporter {
       }
       return null;
     }
+    data.values().forEach(RandomCollection::freeze);
     return data;
   }
 
@@ -191,7 +192,7 @@ public class BB2RIFExporter {
       }
       return null;
     }
-    return codes;
+    return codes.freeze();
   }
 
   <E extends Enum<E>> void setExternalCode(Person person,
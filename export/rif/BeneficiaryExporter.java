@@ -474,6 +474,9 @@ public class BeneficiaryExporter extends RIFExporter {
     bicCodes.add(30, "C2");
     // C3 = Child includes minor student or disabled child 3rd claimant
     bicCodes.add(15, "C3");
+
+    dualCodes.freeze();
+    bicCodes.freeze();
   }
 
   static final double POVERTY_LEVEL =
@@ -72,7 +72,7 @@ class CodeMapper {
           }
           collection.add(weight, codeEntry);
         });
-        map.put(syntheaCode, collection);
+        map.put(syntheaCode, collection.freeze());
       });
       mapImported = true;
     } catch (JsonSyntaxException | IOException | IllegalArgumentException e) {
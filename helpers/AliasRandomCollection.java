@@ -0,0 +1,98 @@
+package org.mitre.synthea.helpers;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable weighted collection that selects an object in constant time, using Vose's alias
+ * method. Each of the n columns holds one object, the probability of keeping it, and an alias
+ * taken otherwise. One random number chooses the column and the coin, so a selection costs the
+ * same whatever the number of objects.
+ *
+ * <p>A selection uses the random number differently than {@link RandomCollection}, so the same
+ * seed picks different objects. Use it where the number of objects is large and the exact
+ * sequence of a RandomCollection does not have to be preserved.</p>
+ */
+public final class AliasRandomCollection<E> implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final Object[] results;
+  private final double[] keep;
+  private final int[] alias;
+
+  /**
+   * Build an alias table from the objects and weights of a collection.
+   * @param collection The collection, which is frozen if it is not already.
+   */
+  public AliasRandomCollection(RandomCollection<E> collection) {
+    collection.freeze();
+    results = collection.results();
+    double[] weights = collection.weights();
+    int n = weights.length;
+    keep = new double[n];
+    alias = new int[n];
+    double total = 0;
+    for (double weight : weights) {
+      total += weight;
+    }
+    double[] scaled = new double[n];
+    Deque<Integer> small = new ArrayDeque<Integer>();
+    Deque<Integer> large = new ArrayDeque<Integer>();
+    for (int i = 0; i < n; i++) {
+      scaled[i] = weights[i] * n / total;
+      if (scaled[i] < 1.0) {
+        small.push(i);
+      } else {
+        large.push(i);
+      }
+    }
+    while (!small.isEmpty() && !large.isEmpty()) {
+      int less = small.pop();
+      int more = large.pop();
+      keep[less] = scaled[less];
+      alias[less] = more;
+      scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+      if (scaled[more] < 1.0) {
+        small.push(more);
+      } else {
+        large.push(more);
+      }
+    }
+    // whatever is left is 1 up to rounding
+    while (!large.isEmpty()) {
+      int i = large.pop();
+      keep[i] = 1.0;
+      alias[i] = i;
+    }
+    while (!small.isEmpty()) {
+      int i = small.pop();
+      keep[i] = 1.0;
+      alias[i] = i;
+    }
+  }
+
+  /**
+   * Get the number of objects in the collection.
+   * @return the number of objects with a positive weight
+   */
+  public int size() {
+    return results.length;
+  }
+
+  /**
+   * Select an item from the collection at random by the weight of the items.
+   * @param random the random number generator.
+   * @return a random item from the collection weighted by the item weights.
+   */
+  @SuppressWarnings("unchecked")
+  public E next(RandomNumberGenerator random) {
+    if (results.length == 0) {
+      throw new NoSuchElementException("AliasRandomCollection is empty");
+    }
+    double value = random.rand() * results.length;
+    int column = Math.min((int) value, results.length - 1);
+    return (E) (value - column < keep[column] ? results[column] : results[alias[column]]);
+  }
+}
@@ -5,11 +5,18 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class Config {
   private static Properties properties = new Properties();
+  /** Whether a ConfigSnapshot has been taken, after which its keys should not change. */
+  private static volatile boolean snapshotTaken = false;
+  /** Snapshot keys that were changed after the snapshot, reported once each. */
+  private static final Set<String> reportedChanges = ConcurrentHashMap.newKeySet();
 
   static {
     try {
@@ -24,14 +31,18 @@ public abstract class Config {
    * Load properties from a file.
    */
   public static void load(File propsFile) throws FileNotFoundException, IOException {
+    Map<String, String> before = snapshotValues();
     properties.load(new FileReader(propsFile));
+    checkSnapshotValues(before);
   }
 
   /**
    * Load properties from an input stream. (ex, when running inside a JAR)
    */
   public static void load(InputStream stream) throws IOException {
+    Map<String, String> before = snapshotValues();
     properties.load(stream);
+    checkSnapshotValues(before);
   }
 
   /**
@@ -162,7 +173,10 @@ public abstract class Config {
    * @param value property value
    */
   public static void set(String key, String value) {
-    properties.setProperty(key, value);
+    Object previous = properties.setProperty(key, value);
+    if (!value.equals(previous)) {
+      changedAfterSnapshot(key);
+    }
   }
 
   /**
@@ -188,6 +202,48 @@ public abstract class Config {
   public static void remove(String key) {
     if (properties.containsKey(key)) {
       properties.remove(key);
+      changedAfterSnapshot(key);
+    }
+  }
+
+  /**
+   * Record that a ConfigSnapshot has been taken.
+   */
+  static void snapshotTaken() {
+    snapshotTaken = true;
+    reportedChanges.clear();
+  }
+
+  /**
+   * Report a change to a setting that a ConfigSnapshot has already captured, since it will not
+   * be seen by a Generator that has already been created. Code running outside of any Generator
+   * sees the change.
+   */
+  private static void changedAfterSnapshot(String key) {
+    if (!ConfigSnapshot.KEYS.contains(key)) {
+      return;
+    }
+    ConfigSnapshot.keyChanged();
+    if (snapshotTaken && reportedChanges.add(key)) {
+      System.err.println("Configuration setting " + key + " was changed after a configuration "
+          + "snapshot was taken, Generators that were already created keep the old value.");
+    }
+  }
+
+  private static Map<String, String> snapshotValues() {
+    Map<String, String> values = new HashMap<String, String>();
+    for (String key : ConfigSnapshot.KEYS) {
+      values.put(key, properties.getProperty(key));
+    }
+    return values;
+  }
+
+  private static void checkSnapshotValues(Map<String, String> before) {
+    for (Map.Entry<String, String> entry : before.entrySet()) {
+      String value = properties.getProperty(entry.getKey());
+      if (value != null && !value.equals(entry.getValue())) {
+        changedAfterSnapshot(entry.getKey());
+      }
     }
   }
 
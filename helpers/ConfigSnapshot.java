@@ -0,0 +1,183 @@
+package org.mitre.synthea.helpers;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A frozen, typed copy of the configuration settings that are read for every person or
+ * record, so that hot paths read final fields instead of parsing strings out of the global
+ * Properties.
+ *
+ * <p>Each Generator takes a snapshot when it is created, or is given one, and validates it at
+ * that point, so a malformed value fails the run at startup instead of on the first export.
+ * The snapshot is bound to the threads the Generator runs people on, where {@link #current()}
+ * returns it to code that has no Generator at hand, such as Logic conditions and the
+ * exporters. Changing one of the {@link #KEYS} with Config.set afterwards is reported, because
+ * it only takes effect for the next Generator. Code running outside of any Generator sees a
+ * snapshot that is taken again after such a change. Tests can pass a snapshot of their own to a
+ * Generator, or {@link #bind} it to the test thread.</p>
+ */
+public final class ConfigSnapshot {
+  /** The configuration keys captured by a snapshot. */
+  public static final Set<String> KEYS = Collections.unmodifiableSet(new HashSet<String>(
+      Arrays.asList("exporter.baseDirectory", "exporter.years_of_history",
+          "exporter.subfolders_by_id_substring", "exporter.use_uuid_filenames",
+          "exporter.split_records", "exporter.split_records.duplicate_data",
+          "exporter.fhir.export", "exporter.fhir_stu3.export", "exporter.fhir_dstu2.export",
+          "exporter.fhir.bulk_data", "exporter.ccda.export", "exporter.json.export",
+          "exporter.json.include_module_history",
+          "exporter.csv.export", "exporter.parquet.export", "exporter.bfd.export",
+          "exporter.cpcds.export", "exporter.text.export", "exporter.text.per_encounter_export",
+          "exporter.symptoms.csv.export", "exporter.symptoms.text.export",
+          "exporter.cdw.export", "exporter.clinical_note.export", "exporter.metadata.export")));
+
+  /** The snapshot of the Generator running on each thread. */
+  private static final ThreadLocal<ConfigSnapshot> BOUND = new ThreadLocal<ConfigSnapshot>();
+  /** The snapshot for code running outside of any Generator, taken on first use after a change. */
+  private static volatile ConfigSnapshot unbound;
+
+  public final String baseDirectory;
+  public final int yearsOfHistory;
+  public final boolean subfoldersByIdSubstring;
+  public final boolean useUuidFilenames;
+  public final boolean splitRecords;
+  public final boolean splitRecordsDuplicateData;
+
+  public final boolean fhirExport;
+  public final boolean fhirStu3Export;
+  public final boolean fhirDstu2Export;
+  public final boolean fhirBulkData;
+  public final boolean ccdaExport;
+  public final boolean jsonExport;
+  public final boolean jsonIncludeModuleHistory;
+  public final boolean csvExport;
+  public final boolean parquetExport;
+  public final boolean bfdExport;
+  public final boolean cpcdsExport;
+  public final boolean textExport;
+  public final boolean textPerEncounterExport;
+  public final boolean symptomsCsvExport;
+  public final boolean symptomsTextExport;
+  public final boolean cdwExport;
+  public final boolean clinicalNoteExport;
+  public final boolean metadataExport;
+
+  /**
+   * Read and validate the current configuration.
+   * @throws IllegalArgumentException if a setting has an illegal value.
+   */
+  public ConfigSnapshot() {
+    this(true);
+  }
+
+  /**
+   * Read and validate the current configuration.
+   * @param forGenerator Whether a Generator will keep this snapshot, so later changes to its
+   *     keys are reported.
+   */
+  private ConfigSnapshot(boolean forGenerator) {
+    baseDirectory = Config.get("exporter.baseDirectory");
+    if (baseDirectory == null) {
+      throw new IllegalArgumentException("exporter.baseDirectory is not set");
+    }
+    String years = Config.get("exporter.years_of_history", "0").trim();
+    try {
+      yearsOfHistory = Integer.parseInt(years);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(String.format(
+          "Illegal exporter.years_of_history (%s)", years), e);
+    }
+    if (yearsOfHistory < 0) {
+      throw new IllegalArgumentException(String.format(
+          "Illegal exporter.years_of_history (%d)", yearsOfHistory));
+    }
+    subfoldersByIdSubstring = Config.getAsBoolean("exporter.subfolders_by_id_substring", false);
+    useUuidFilenames = Config.getAsBoolean("exporter.use_uuid_filenames", false);
+    splitRecords = Config.getAsBoolean("exporter.split_records", false);
+    splitRecordsDuplicateData =
+        Config.getAsBoolean("exporter.split_records.duplicate_data", false);
+
+    fhirExport = Config.getAsBoolean("exporter.fhir.export", false);
+    fhirStu3Export = Config.getAsBoolean("exporter.fhir_stu3.export", false);
+    fhirDstu2Export = Config.getAsBoolean("exporter.fhir_dstu2.export", false);
+    fhirBulkData = Config.getAsBoolean("exporter.fhir.bulk_data", false);
+    ccdaExport = Config.getAsBoolean("exporter.ccda.export", false);
+    jsonExport = Config.getAsBoolean("exporter.json.export", false);
+    jsonIncludeModuleHistory = Config.getAsBoolean("exporter.json.include_module_history", false);
+    csvExport = Config.getAsBoolean("exporter.csv.export", false);
+    parquetExport = Config.getAsBoolean("exporter.parquet.export", false);
+    bfdExport = Config.getAsBoolean("exporter.bfd.export", false);
+    cpcdsExport = Config.getAsBoolean("exporter.cpcds.export", false);
+    textExport = Config.getAsBoolean("exporter.text.export", false);
+    textPerEncounterExport = Config.getAsBoolean("exporter.text.per_encounter_export", false);
+    symptomsCsvExport = Config.getAsBoolean("exporter.symptoms.csv.export", false);
+    symptomsTextExport = Config.getAsBoolean("exporter.symptoms.text.export", false);
+    cdwExport = Config.getAsBoolean("exporter.cdw.export", false);
+    clinicalNoteExport = Config.getAsBoolean("exporter.clinical_note.export", false);
+    metadataExport = Config.getAsBoolean("exporter.metadata.export", false);
+    if (forGenerator) {
+      Config.snapshotTaken();
+    }
+  }
+
+  /**
+   * Make this snapshot the one {@link #current()} returns on the calling thread.
+   */
+  public void bind() {
+    BOUND.set(this);
+  }
+
+  /**
+   * Stop the calling thread from seeing the snapshot it was bound to, so that code it runs
+   * outside of a Generator sees the current configuration again.
+   */
+  public static void unbind() {
+    BOUND.remove();
+  }
+
+  /**
+   * Record that one of the {@link #KEYS} changed, so that code running outside of any Generator
+   * sees the new value.
+   */
+  static void keyChanged() {
+    unbound = null;
+  }
+
+  /**
+   * Get a factory for threads that see this snapshot as the current one.
+   * @return the thread factory
+   */
+  public ThreadFactory threadFactory() {
+    ThreadFactory threads = Executors.defaultThreadFactory();
+    return task -> threads.newThread(() -> {
+      bind();
+      task.run();
+    });
+  }
+
+  /**
+   * Get the snapshot of the Generator running on this thread. Outside of a Generator, a
+   * snapshot of the configuration is taken on first use and again after any of the
+   * {@link #KEYS} changes.
+   * @return the snapshot
+   */
+  public static ConfigSnapshot current() {
+    ConfigSnapshot snapshot = BOUND.get();
+    if (snapshot == null) {
+      snapshot = unbound;
+      if (snapshot == null) {
+        synchronized (ConfigSnapshot.class) {
+          if (unbound == null) {
+            unbound = new ConfigSnapshot(false);
+          }
+          snapshot = unbound;
+        }
+      }
+    }
+    return snapshot;
+  }
+}
@@ -0,0 +1,104 @@
+package org.mitre.synthea.helpers;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.math3.distribution.EnumeratedDistribution;
+import org.apache.commons.math3.exception.MathArithmeticException;
+import org.apache.commons.math3.exception.NotANumberException;
+import org.apache.commons.math3.exception.NotFiniteNumberException;
+import org.apache.commons.math3.exception.NotPositiveException;
+import org.apache.commons.math3.random.Well19937c;
+import org.apache.commons.math3.util.MathArrays;
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * An immutable replacement for a shared EnumeratedDistribution that is reseeded for each person.
+ * The caller passes the source of randomness to every {@link #sample} call, so one sampler can be
+ * used by any number of threads without a lock.
+ *
+ * <p>A sample draws a seed from the RandomNumberGenerator, seeds a Well19937c with it and
+ * searches the cumulative probabilities the same way EnumeratedDistribution does, so it returns
+ * exactly what reseedRandomGenerator(random.randLong()) followed by sample() returned. The
+ * Well19937c belongs to the calling thread and is reseeded on every call.</p>
+ * @param <T> The type to be returned when sampling from the distribution.
+ */
+public final class EnumeratedSampler<T> implements Serializable {
+  private static final long serialVersionUID = 1L;
+  private static final ThreadLocal<Well19937c> GENERATOR =
+      ThreadLocal.withInitial(Well19937c::new);
+
+  private final List<T> singletons;
+  private final double[] cumulativeProbabilities;
+
+  /**
+   * Create a sampler, normalizing the weights like EnumeratedDistribution.
+   * @param pmf List of pairs of values and their weight in the distribution.
+   */
+  public EnumeratedSampler(List<Pair<T, Double>> pmf) throws NotPositiveException,
+      MathArithmeticException, NotFiniteNumberException, NotANumberException {
+    this(pmf, true);
+  }
+
+  private EnumeratedSampler(List<Pair<T, Double>> pmf, boolean normalize) {
+    singletons = new ArrayList<T>(pmf.size());
+    double[] probabilities = new double[pmf.size()];
+    for (int i = 0; i < pmf.size(); i++) {
+      Pair<T, Double> sample = pmf.get(i);
+      singletons.add(sample.getKey());
+      double p = sample.getValue();
+      if (p < 0) {
+        throw new NotPositiveException(sample.getValue());
+      }
+      if (Double.isInfinite(p)) {
+        throw new NotFiniteNumberException(p);
+      }
+      if (Double.isNaN(p)) {
+        throw new NotANumberException();
+      }
+      probabilities[i] = p;
+    }
+    if (normalize) {
+      probabilities = MathArrays.normalizeArray(probabilities, 1.0);
+    }
+    cumulativeProbabilities = new double[probabilities.length];
+    double sum = 0;
+    for (int i = 0; i < probabilities.length; i++) {
+      sum += probabilities[i];
+      cumulativeProbabilities[i] = sum;
+    }
+  }
+
+  /**
+   * Create a sampler with the same probabilities as an existing distribution, which are already
+   * normalized.
+   * @param distribution The distribution.
+   * @return a sampler that selects exactly what the distribution selects for the same seed
+   */
+  public static <T> EnumeratedSampler<T> of(EnumeratedDistribution<T> distribution) {
+    return new EnumeratedSampler<T>(distribution.getPmf(), false);
+  }
+
+  /**
+   * Select a value at random by weight.
+   * @param random Where the randomness comes from, usually a Person.
+   * @return a value from the distribution based on a weighted, random selection
+   */
+  public T sample(RandomNumberGenerator random) {
+    Well19937c generator = GENERATOR.get();
+    generator.setSeed(random.randLong());
+    double randomValue = generator.nextDouble();
+    int index = Arrays.binarySearch(cumulativeProbabilities, randomValue);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    if (index < cumulativeProbabilities.length
+        && randomValue < cumulativeProbabilities[index]) {
+      return singletons.get(index);
+    }
+    // the cumulative probabilities may not quite reach 1
+    return singletons.get(singletons.size() - 1);
+  }
+}
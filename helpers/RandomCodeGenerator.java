@@ -5,12 +5,20 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.annotation.Nonnull;
 
@@ -31,16 +39,39 @@ import org.slf4j.LoggerFactory;
  *
  * <p>The URL for the terminology service is configured using the
  * <code>generate.terminology_service_url</code> property.
+ *
+ * <p>Each ValueSet is expanded once per run, threads that need a ValueSet that is being
+ * expanded wait for that expansion only. When <code>generate.terminology_cache</code> names a
+ * directory, every expansion is also stored there in a file named by the SHA-256 hash of the
+ * terminology service URL, the ValueSet URL and its version (the part of the URI after "|"),
+ * and later runs read it instead of calling the terminology service. An expansion of another
+ * service or ValueSet version is never reused, and entries older than
+ * <code>generate.terminology_cache.max_age_days</code> are expanded again, since an
+ * unversioned ValueSet can change. With <code>generate.terminology_cache.offline</code> the
+ * service is never called and entries do not expire, so a populated directory can be used
+ * without network access.
  */
 public abstract class RandomCodeGenerator {
 
   public static String expandBaseUrl = Config.get("generate.terminology_service_url")
       + "/ValueSet/$expand?url=";
   private static final Logger logger = LoggerFactory.getLogger(RandomCodeGenerator.class);
-  public static Map<String, List<Object>> codeListCache = new HashMap<>();
-  public static List<Code> selectedCodes = new ArrayList<>();
+  public static Map<String, List<Object>> codeListCache = new ConcurrentHashMap<>();
+  /** The codes that have been selected, the first one selected for each code value. */
+  private static final Map<String, Code> selectedCodes = new ConcurrentHashMap<>();
+  private static final Map<String, Object> expansionLocks = new ConcurrentHashMap<>();
   private static UrlValidator urlValidator = new UrlValidator(UrlValidator.ALLOW_2_SLASHES);
   private static OkHttpClient client = new OkHttpClient();
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+  private static Path cacheDirectory = cacheDirectory(Config.get("generate.terminology_cache"));
+  private static boolean offline = Config.getAsBoolean("generate.terminology_cache.offline",
+      false);
+  private static long maxAgeMillis = Config.getAsLong("generate.terminology_cache.max_age_days",
+      30L) * 24L * 60L * 60L * 1000L;
+
+  private static Path cacheDirectory(String directory) {
+    return StringUtils.isBlank(directory) ? null : Paths.get(directory.trim());
+  }
 
   /**
    * Gets a random code from the expansion of a ValueSet.
@@ -54,46 +85,170 @@ public abstract class RandomCodeGenerator {
   @SuppressWarnings("unchecked")
   public static Code getCode(String valueSetUri, long seed, Code code) {
     if (urlValidator.isValid(valueSetUri)) {
-      expandValueSet(valueSetUri);
-      List<Object> codes = codeListCache.get(valueSetUri);
+      List<Object> codes = expandValueSet(valueSetUri);
       int randomIndex = new Random(seed).nextInt(codes.size());
       Map<String, String> codeMap = (Map<String, String>) codes.get(randomIndex);
       validateCode(codeMap);
       Code newCode = new Code(codeMap.get("system"), codeMap.get("code"), codeMap.get("display"));
-      selectedCodes.add(newCode);
+      selectedCodes.putIfAbsent(newCode.code, newCode);
       return newCode;
     }
     return code;
   }
 
+  /**
+   * Get the codes that have been selected from ValueSets, one per distinct code value.
+   * This replaces the <code>selectedCodes</code> list, which held an entry per selection.
+   *
+   * @return a copy of the selected codes, in no particular order
+   */
+  public static List<Code> getSelectedCodes() {
+    return new ArrayList<>(selectedCodes.values());
+  }
+
+  /**
+   * Check whether a code value has been selected from a ValueSet.
+   *
+   * @param code the code value
+   * @return true if {@link #getCode} returned a code with this value
+   */
+  public static boolean isSelected(String code) {
+    return selectedCodes.containsKey(code);
+  }
+
+  /**
+   * Check whether any code has been selected from a ValueSet.
+   *
+   * @return true if {@link #getCode} returned a code from a ValueSet
+   */
+  public static boolean hasSelectedCodes() {
+    return !selectedCodes.isEmpty();
+  }
+
+  /**
+   * Get the codes of a ValueSet, expanding it if this is the first request for it.
+   * Only threads requesting the same ValueSet wait for each other.
+   */
+  private static List<Object> expandValueSet(String valueSetUri) {
+    List<Object> codes = codeListCache.get(valueSetUri);
+    if (codes != null) {
+      return codes;
+    }
+    synchronized (expansionLocks.computeIfAbsent(valueSetUri, uri -> new Object())) {
+      codes = codeListCache.get(valueSetUri);
+      if (codes == null) {
+        codes = loadValueSet(valueSetUri);
+        codeListCache.put(valueSetUri, codes);
+      }
+      return codes;
+    }
+  }
+
   @SuppressWarnings("unchecked")
-  private static synchronized void expandValueSet(String valueSetUri) {
-    if (!codeListCache.containsKey(valueSetUri)) {
-      Request request = new Request.Builder()
-              .url(expandBaseUrl + valueSetUri)
-              .header("Content-Type", "application/json")
-              .build();
-      Map<String, Object> valueSet = null;
+  private static List<Object> loadValueSet(String valueSetUri) {
+    Path cacheFile = cacheDirectory == null ? null
+        : cacheDirectory.resolve(cacheKey(valueSetUri) + ".json");
+    byte[] json = null;
+    if (cacheFile != null && Files.isRegularFile(cacheFile)
+        && (offline || !isExpired(cacheFile))) {
       try {
-        Response response = client.newCall(request).execute();
-        ObjectMapper objectMapper = new ObjectMapper();
-        ResponseBody body = response.body();
-        if (body != null) {
-          valueSet = objectMapper.readValue(body.byteStream(),
-                  new TypeReference<Map<String, Object>>() {
-            });
-        } else {
-          throw new RuntimeException("Value Set Expansion contained no body");
-        }
-      } catch (JsonProcessingException e) {
-        throw new RuntimeException("JsonProcessingException while parsing valueSet response");
+        json = Files.readAllBytes(cacheFile);
       } catch (IOException e) {
-        throw new RuntimeException("Issue when expanding the value set", e);
+        logger.warn("Unable to read cached expansion of " + valueSetUri, e);
+      }
+    }
+    boolean cached = json != null;
+    if (!cached) {
+      if (offline) {
+        throw new RuntimeException("ValueSet " + valueSetUri + " is not in the terminology cache "
+            + cacheDirectory + " and generate.terminology_cache.offline is set");
       }
+      json = requestExpansion(valueSetUri);
+    }
+
+    Map<String, Object> valueSet;
+    try {
+      valueSet = objectMapper.readValue(json, new TypeReference<Map<String, Object>>() {
+      });
+    } catch (JsonProcessingException e) {
+      throw new RuntimeException("JsonProcessingException while parsing valueSet response");
+    } catch (IOException e) {
+      throw new RuntimeException("Issue when expanding the value set", e);
+    }
 
-      Map<String, Object> expansion = (Map<String, Object>) valueSet.get("expansion");
-      validateExpansion(expansion);
-      codeListCache.put(valueSetUri, (List<Object>) expansion.get("contains"));
+    Map<String, Object> expansion = (Map<String, Object>) valueSet.get("expansion");
+    validateExpansion(expansion);
+    if (cacheFile != null && !cached) {
+      // only valid expansions are stored
+      writeCache(cacheFile, json);
+    }
+    return (List<Object>) expansion.get("contains");
+  }
+
+  private static byte[] requestExpansion(String valueSetUri) {
+    Request request = new Request.Builder()
+            .url(expandBaseUrl + valueSetUri)
+            .header("Content-Type", "application/json")
+            .build();
+    try (Response response = client.newCall(request).execute()) {
+      ResponseBody body = response.body();
+      if (body == null) {
+        throw new RuntimeException("Value Set Expansion contained no body");
+      }
+      try (InputStream in = body.byteStream()) {
+        return in.readAllBytes();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Issue when expanding the value set", e);
+    }
+  }
+
+  /**
+   * Get the name of the stored expansion of a ValueSet: a hash of everything the expansion
+   * depends on, the terminology service, the ValueSet URL and the ValueSet version.
+   */
+  private static String cacheKey(String valueSetUri) {
+    int bar = valueSetUri.indexOf('|');
+    String url = bar < 0 ? valueSetUri : valueSetUri.substring(0, bar);
+    String version = bar < 0 ? "" : valueSetUri.substring(bar + 1);
+    return hash(expandBaseUrl + "\n" + url + "\n" + version);
+  }
+
+  private static boolean isExpired(Path cacheFile) {
+    if (maxAgeMillis <= 0) {
+      return false;
+    }
+    try {
+      long age = System.currentTimeMillis() - Files.getLastModifiedTime(cacheFile).toMillis();
+      return age > maxAgeMillis;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  private static String hash(String key) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest(key.getBytes(StandardCharsets.UTF_8))) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void writeCache(Path cacheFile, byte[] json) {
+    try {
+      Files.createDirectories(cacheFile.getParent());
+      Path temp = Files.createTempFile(cacheFile.getParent(), "valueset", ".tmp");
+      Files.write(temp, json);
+      // concurrent runs may race, each of them writes a complete file
+      Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn("Unable to cache expansion in " + cacheFile, e);
     }
   }
 
@@ -118,4 +273,14 @@ public abstract class RandomCodeGenerator {
   public static void setBaseUrl(String url) {
     expandBaseUrl = url + "/ValueSet/$expand?url=";
   }
+
+  /**
+   * Set the directory of stored ValueSet expansions.
+   * @param directory the directory, or null to always call the terminology service.
+   * @param offlineOnly true to never call the terminology service.
+   */
+  public static void setCacheDirectory(Path directory, boolean offlineOnly) {
+    cacheDirectory = directory;
+    offline = offlineOnly;
+  }
 }
@@ -3,15 +3,24 @@ package org.mitre.synthea.helpers;
 import java.io.Serializable;
 import java.util.Map.Entry;
 import java.util.NavigableMap;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
 
 /**
  * Random collection of objects, with weightings. Intended to be an equivalent to the ruby Pickup
  * gem. Adapted from https://stackoverflow.com/a/6409791/630384
+ *
+ * <p>Once every object has been added, {@link #freeze()} replaces the TreeMap of cumulative
+ * weights with primitive arrays that are binary searched. A frozen collection picks exactly
+ * the same objects for the same random numbers, is immutable, and can be shared between
+ * threads. See {@link AliasRandomCollection} for constant time selection.</p>
  */
 public class RandomCollection<E> implements Serializable {
-  private final NavigableMap<Double, E> map = new TreeMap<Double, E>();
+  private NavigableMap<Double, E> map = new TreeMap<Double, E>();
   private double total = 0;
+  /** Cumulative weights and their objects, once frozen. */
+  private double[] cumulative;
+  private Object[] results;
 
   /**
    * Add an object (result) to the collection with a given weight.
@@ -19,8 +28,12 @@ public class RandomCollection<E> implements Serializable {
    * Objects are retrieved by weight using the next method.
    * @param weight - Positive weight of the result.
    * @param result - the object to add to the collection.
+   * @throws IllegalStateException if the collection is frozen.
    */
   public void add(double weight, E result) {
+    if (map == null) {
+      throw new IllegalStateException("RandomCollection is frozen");
+    }
     if (weight <= 0) {
       return;
     }
@@ -28,6 +41,66 @@ public class RandomCollection<E> implements Serializable {
     map.put(total, result);
   }
 
+  /**
+   * Make the collection immutable and switch to primitive arrays for selection.
+   * @return this collection
+   */
+  public RandomCollection<E> freeze() {
+    if (map == null) {
+      return this;
+    }
+    double[] frozenWeights = new double[map.size()];
+    Object[] frozenResults = new Object[map.size()];
+    int i = 0;
+    for (Entry<Double, E> entry : map.entrySet()) {
+      frozenWeights[i] = entry.getKey();
+      frozenResults[i] = entry.getValue();
+      i++;
+    }
+    cumulative = frozenWeights;
+    results = frozenResults;
+    map = null;
+    return this;
+  }
+
+  /**
+   * Get the number of objects in the collection.
+   * @return the number of objects with a positive weight
+   */
+  public int size() {
+    return map == null ? results.length : map.size();
+  }
+
+  /**
+   * Get the weight of every object, in the order they were added.
+   * @return the weights
+   */
+  double[] weights() {
+    requireFrozen();
+    double[] weights = new double[cumulative.length];
+    double previous = 0;
+    for (int i = 0; i < cumulative.length; i++) {
+      weights[i] = cumulative[i] - previous;
+      previous = cumulative[i];
+    }
+    return weights;
+  }
+
+  /**
+   * Get every object, in the order they were added.
+   * @return the objects
+   */
+  Object[] results() {
+    requireFrozen();
+    return results.clone();
+  }
+
+  private void requireFrozen() {
+    if (map != null) {
+      throw new IllegalStateException("RandomCollection must be frozen first");
+    }
+  }
+
   /**
    * Select an item from the collection at random by the weight of the items.
    * Selecting an item from one draw, does not remove the item from the collection
@@ -40,11 +113,29 @@ public class RandomCollection<E> implements Serializable {
     return next(random.rand() * total);
   }
 
+  @SuppressWarnings("unchecked")
   private E next(double value) {
-    Entry<Double, E> entry = map.higherEntry(value);
-    if (entry == null) {
-      entry = map.lastEntry();
+    if (map != null) {
+      Entry<Double, E> entry = map.higherEntry(value);
+      if (entry == null) {
+        entry = map.lastEntry();
+      }
+      return entry.getValue();
+    }
+    if (results.length == 0) {
+      throw new NoSuchElementException("RandomCollection is empty");
+    }
+    // the first cumulative weight strictly above the value, like TreeMap.higherEntry
+    int low = 0;
+    int high = cumulative.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (cumulative[mid] > value) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
     }
-    return entry.getValue();
+    return (E) results[Math.min(low, results.length - 1)];
   }
 }
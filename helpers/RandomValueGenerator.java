@@ -25,6 +25,7 @@ public class RandomValueGenerator extends ValueGenerator {
     parameters.put("low", low);
     parameters.put("high", high);
     distribution.parameters = parameters;
+    distribution.compile();
   }
 
   public RandomValueGenerator(Person person, Distribution distribution) {
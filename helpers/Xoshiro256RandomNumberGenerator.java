@@ -0,0 +1,142 @@
+package org.mitre.synthea.helpers;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A RandomNumberGenerator using xoshiro256** (Blackman and Vigna), seeded through SplitMix64.
+ * It is not thread safe: like the generator of a Person, an instance must only be used by one
+ * thread at a time. It keeps the draw count in a plain long and does no atomic operations, so a
+ * draw costs a few shifts and multiplications instead of the compare-and-set of
+ * java.util.Random.
+ *
+ * <p>Not yet selectable for the people of a Generator: every Person still creates a
+ * {@link DefaultRandomNumberGenerator}. The same seed produces a different sequence than the
+ * default, so once it can be selected, populations generated with it can not be compared record
+ * by record with populations generated with the default.</p>
+ */
+public class Xoshiro256RandomNumberGenerator implements RandomNumberGenerator, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final long seed;
+  private long s0;
+  private long s1;
+  private long s2;
+  private long s3;
+  private long count;
+  private double nextGaussian;
+  private boolean haveNextGaussian;
+
+  /**
+   * Create a new xoshiro256** random number generator.
+   * @param seed The random number generator seed.
+   */
+  public Xoshiro256RandomNumberGenerator(long seed) {
+    this.seed = seed;
+    // expand the seed with SplitMix64, which never yields an all zero state
+    long x = seed;
+    s0 = mix(x += 0x9E3779B97F4A7C15L);
+    s1 = mix(x += 0x9E3779B97F4A7C15L);
+    s2 = mix(x += 0x9E3779B97F4A7C15L);
+    s3 = mix(x += 0x9E3779B97F4A7C15L);
+  }
+
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private long next() {
+    long result = Long.rotateLeft(s1 * 5, 7) * 9;
+    long t = s1 << 17;
+    s2 ^= s0;
+    s3 ^= s1;
+    s1 ^= s2;
+    s0 ^= s3;
+    s2 ^= t;
+    s3 = Long.rotateLeft(s3, 45);
+    return result;
+  }
+
+  @Override
+  public long getSeed() {
+    return seed;
+  }
+
+  @Override
+  public double rand() {
+    count++;
+    return (next() >>> 11) * 0x1.0p-53;
+  }
+
+  @Override
+  public boolean randBoolean() {
+    count++;
+    return next() < 0;
+  }
+
+  @Override
+  public double randGaussian() {
+    count++;
+    if (haveNextGaussian) {
+      haveNextGaussian = false;
+      return nextGaussian;
+    }
+    // the polar method, as in java.util.Random
+    double v1;
+    double v2;
+    double s;
+    do {
+      v1 = 2 * ((next() >>> 11) * 0x1.0p-53) - 1;
+      v2 = 2 * ((next() >>> 11) * 0x1.0p-53) - 1;
+      s = v1 * v1 + v2 * v2;
+    } while (s >= 1 || s == 0);
+    double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+    nextGaussian = v2 * multiplier;
+    haveNextGaussian = true;
+    return v1 * multiplier;
+  }
+
+  @Override
+  public int randInt() {
+    count++;
+    return (int) (next() >>> 32);
+  }
+
+  @Override
+  public int randInt(int bound) {
+    if (bound <= 0) {
+      throw new IllegalArgumentException("bound must be positive");
+    }
+    count++;
+    // Lemire's multiply and reject, unbiased for any bound
+    long m = (next() >>> 32) * bound;
+    long low = m & 0xFFFFFFFFL;
+    if (low < bound) {
+      long threshold = (0x100000000L - bound) % bound;
+      while (low < threshold) {
+        m = (next() >>> 32) * bound;
+        low = m & 0xFFFFFFFFL;
+      }
+    }
+    return (int) (m >>> 32);
+  }
+
+  @Override
+  public long randLong() {
+    count++;
+    return next();
+  }
+
+  @Override
+  public UUID randUUID() {
+    count += 2;
+    return new UUID(next(), next());
+  }
+
+  @Override
+  public long getCount() {
+    return count;
+  }
+}
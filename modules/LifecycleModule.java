@@ -82,7 +82,7 @@ public final class LifecycleModule extends Module {
     soDistribution.add(soPercentages[0], "heterosexual");
     soDistribution.add(soPercentages[1], "homosexual");
     soDistribution.add(soPercentages[2], "bisexual");
-    return soDistribution;
+    return soDistribution.freeze();
   }
 
   private static QualifyingConditionCodesEligibility loadDisabilityData() {
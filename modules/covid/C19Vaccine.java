@@ -6,7 +6,7 @@ import java.util.TreeMap;
 import java.util.stream.Collectors;
 
 import org.apache.commons.math3.util.Pair;
-import org.mitre.synthea.helpers.SyncedEnumeratedDistro;
+import org.mitre.synthea.helpers.EnumeratedSampler;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Person;
 
@@ -21,7 +21,7 @@ import org.mitre.synthea.world.agents.Person;
  */
 public class C19Vaccine {
   public static final Map<EUASet, C19Vaccine> EUAs = new TreeMap<>();
-  private static SyncedEnumeratedDistro<EUASet> shotSelector;
+  private static EnumeratedSampler<EUASet> shotSelector;
 
   private String display;
   private String cvx;
@@ -56,7 +56,7 @@ public class C19Vaccine {
         .map(entry -> new Pair<>(entry.getKey(), entry.getValue().getUsagePercentage()))
         .collect(Collectors.toList());
 
-    shotSelector = new SyncedEnumeratedDistro<EUASet>(pmf);
+    shotSelector = new EnumeratedSampler<EUASet>(pmf);
   }
 
   /**
@@ -68,7 +68,7 @@ public class C19Vaccine {
     if (shotSelector == null) {
       initialize();
     }
-    return shotSelector.syncedReseededSample(person);
+    return shotSelector.sample(person);
   }
 
   /**
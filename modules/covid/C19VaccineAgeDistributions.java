@@ -19,7 +19,7 @@ import java.util.stream.Collectors;
 import org.apache.commons.math3.util.Pair;
 import org.mitre.synthea.helpers.Config;
 import org.mitre.synthea.helpers.SimpleCSV;
-import org.mitre.synthea.helpers.SyncedEnumeratedDistro;
+import org.mitre.synthea.helpers.EnumeratedSampler;
 import org.mitre.synthea.helpers.Utilities;
 import org.mitre.synthea.world.agents.Person;
 
@@ -44,7 +44,7 @@ public class C19VaccineAgeDistributions {
   public static final HashMap<AgeRange,
       List<Pair<String, Integer>>> rawDistributions = new HashMap<>();
   public static final HashMap<AgeRange,
-      SyncedEnumeratedDistro<String>> distributions = new HashMap<>();
+      EnumeratedSampler<String>> distributions = new HashMap<>();
   public static final HashMap<AgeRange, Double> firstShotProbByAge = new HashMap<>();
 
   /**
@@ -166,7 +166,7 @@ public class C19VaccineAgeDistributions {
         double weight = dosesForDay / totalDosesForRange;
         return new Pair<String, Double>(dayInfo.getFirst(), weight);
       }).collect(Collectors.toList());
-      distributions.put(ageRange, new SyncedEnumeratedDistro(pmf));
+      distributions.put(ageRange, new EnumeratedSampler<String>(pmf));
     });
   }
 
@@ -206,8 +206,8 @@ public class C19VaccineAgeDistributions {
         .filter(ageRange -> ageRange.in(age))
         .findFirst()
         .get();
-    SyncedEnumeratedDistro<String> distro = distributions.get(r);
-    LocalDate shotDate = CSV_DATE_FORMAT.parse(distro.syncedReseededSample(person),
+    EnumeratedSampler<String> distro = distributions.get(r);
+    LocalDate shotDate = CSV_DATE_FORMAT.parse(distro.sample(person),
         LocalDate::from);
     return LocalDateTime.of(shotDate, LocalTime.NOON).toInstant(ZoneOffset.UTC).toEpochMilli();
   }
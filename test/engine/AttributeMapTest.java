@@ -0,0 +1,133 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Test;
+import org.mitre.synthea.engine.AttributeRegistry.Key;
+
+public class AttributeMapTest {
+  @Test
+  public void testRegisterIsIdempotent() {
+    Key key = AttributeRegistry.register(new String("attribute_map_test_idempotent"));
+    assertSame(key, AttributeRegistry.register("attribute_map_test_idempotent"));
+    assertSame(key, AttributeRegistry.find("attribute_map_test_idempotent"));
+    assertSame("attribute_map_test_idempotent", key.name);
+    assertNull(AttributeRegistry.find("attribute_map_test_never_registered"));
+  }
+
+  @Test
+  public void testBehavesLikeHashMap() {
+    Key registered = AttributeRegistry.register("attribute_map_test_registered");
+    Key counter = AttributeRegistry.register("attribute_map_test_counter");
+    AttributeMap attributes = new AttributeMap();
+    Map<String, Object> expected = new HashMap<String, Object>();
+    for (Map<String, Object> map : Arrays.<Map<String, Object>>asList(attributes, expected)) {
+      map.put(registered.name, "value");
+      map.put(counter.name, 1.5);
+      map.put("attribute_map_test_unregistered", 3);
+    }
+    assertEquals(expected, attributes);
+    assertEquals(attributes, expected);
+    assertEquals(expected.hashCode(), attributes.hashCode());
+    assertEquals(3, attributes.size());
+    assertEquals("value", attributes.get(registered));
+    assertEquals(1.5, attributes.get(counter.name));
+    assertEquals(3, attributes.get("attribute_map_test_unregistered"));
+    assertTrue(attributes.containsKey(registered.name));
+    assertFalse(attributes.containsKey("attribute_map_test_missing"));
+
+    assertEquals("value", attributes.remove(registered.name));
+    assertNull(attributes.remove(registered.name));
+    assertEquals(3, attributes.remove("attribute_map_test_unregistered"));
+    assertEquals(1, attributes.size());
+    attributes.clear();
+    assertTrue(attributes.isEmpty());
+  }
+
+  @Test
+  public void testDoublesAreUnboxed() {
+    Key counter = AttributeRegistry.register("attribute_map_test_unboxed");
+    AttributeMap attributes = new AttributeMap();
+    assertFalse(attributes.isDouble(counter));
+    attributes.put(counter.name, 2.0);
+    assertTrue(attributes.isDouble(counter));
+    attributes.putDouble(counter, attributes.getDouble(counter) + 1);
+    assertEquals(3.0, attributes.get(counter.name));
+    attributes.put(counter, 4);
+    assertFalse(attributes.isDouble(counter));
+    assertEquals(4, attributes.get(counter.name));
+  }
+
+  @Test
+  public void testNameRegisteredLater() {
+    AttributeMap attributes = new AttributeMap();
+    attributes.put("attribute_map_test_later", "before");
+    Key key = AttributeRegistry.register("attribute_map_test_later");
+    assertEquals("before", attributes.get(key));
+    attributes.put(key, "after");
+    assertEquals(1, attributes.size());
+    assertEquals("after", attributes.get("attribute_map_test_later"));
+  }
+
+  @Test
+  public void testIterator() {
+    Key registered = AttributeRegistry.register("attribute_map_test_iterated");
+    AttributeMap attributes = new AttributeMap();
+    attributes.put(registered, "slot");
+    attributes.put("attribute_map_test_iterated_other", "name");
+    Map<String, Object> seen = new HashMap<String, Object>();
+    Iterator<Map.Entry<String, Object>> iterator = attributes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Object> entry = iterator.next();
+      seen.put(entry.getKey(), entry.getValue());
+      if (entry.getKey().equals(registered.name)) {
+        entry.setValue("changed");
+      } else {
+        iterator.remove();
+      }
+    }
+    assertEquals(2, seen.size());
+    assertEquals(1, attributes.size());
+    assertEquals("changed", attributes.get(registered));
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void testNullValuesAreRejected() {
+    new AttributeMap().put("attribute_map_test_null", null);
+  }
+
+  @Test
+  public void testSerializedByName() throws IOException, ClassNotFoundException {
+    Key counter = AttributeRegistry.register("attribute_map_test_serialized");
+    AttributeMap attributes = new AttributeMap();
+    attributes.put(counter, 7.0);
+    attributes.put("attribute_map_test_serialized_other", "name");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(attributes);
+      out.writeObject(counter);
+    }
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      AttributeMap copy = (AttributeMap) in.readObject();
+      assertEquals(attributes, copy);
+      assertTrue(copy.isDouble(counter));
+      // keys resolve to the instance registered in this JVM
+      assertSame(counter, in.readObject());
+    }
+  }
+}
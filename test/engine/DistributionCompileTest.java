@@ -0,0 +1,55 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Checks that a compiled Distribution generates exactly the values of the interpreted one for
+ * the same seed, and draws as many random numbers doing so.
+ */
+public class DistributionCompileTest {
+  private static final String[] DISTRIBUTIONS = {
+    "{\"kind\": \"EXACT\", \"parameters\": {\"value\": 7}}",
+    "{\"kind\": \"EXACT\", \"round\": true, \"parameters\": {\"value\": 7.6}}",
+    "{\"kind\": \"UNIFORM\", \"parameters\": {\"low\": 0.5, \"high\": 2.5}}",
+    "{\"kind\": \"UNIFORM\", \"round\": true, \"parameters\": {\"low\": 1, \"high\": 30}}",
+    "{\"kind\": \"GAUSSIAN\", \"parameters\": {\"mean\": 120, \"standardDeviation\": 15}}",
+    "{\"kind\": \"GAUSSIAN\", \"parameters\": {\"mean\": 5.5, \"standardDeviation\": 1.2,"
+        + " \"min\": 4, \"max\": 9}}",
+    "{\"kind\": \"GAUSSIAN\", \"round\": true, \"parameters\": {\"mean\": 0,"
+        + " \"standardDeviation\": 3, \"min\": -2}}",
+    "{\"kind\": \"EXPONENTIAL\", \"parameters\": {\"mean\": 14}}",
+    "{\"kind\": \"EXPONENTIAL\", \"round\": true, \"parameters\": {\"mean\": 2}}"
+  };
+  private static final int SAMPLES = 10000;
+
+  @Test
+  public void testCompiledSamplesAreIdentical() {
+    for (String json : DISTRIBUTIONS) {
+      Distribution interpreted = Utilities.getGson().fromJson(json, Distribution.class);
+      Distribution compiled = Utilities.getGson().fromJson(json, Distribution.class);
+      assertTrue(json, compiled.compile());
+      Person interpretedPerson = new Person(1L);
+      Person compiledPerson = new Person(1L);
+      for (int i = 0; i < SAMPLES; i++) {
+        assertEquals(json + " sample " + i,
+            Double.doubleToLongBits(interpreted.generate(interpretedPerson)),
+            Double.doubleToLongBits(compiled.generate(compiledPerson)));
+      }
+      // both consumed the same random numbers
+      assertEquals(json, interpretedPerson.rand(), compiledPerson.rand(), 0.0);
+    }
+  }
+
+  @Test
+  public void testInvalidDistributionIsNotCompiled() {
+    Distribution missing = Utilities.getGson().fromJson(
+        "{\"kind\": \"UNIFORM\", \"parameters\": {\"low\": 1}}", Distribution.class);
+    assertFalse(missing.compile());
+  }
+}
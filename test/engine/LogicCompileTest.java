@@ -0,0 +1,107 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.mitre.synthea.helpers.Utilities;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Checks that compiled Logic gives the same result as interpreted Logic for every condition,
+ * person and time.
+ */
+public class LogicCompileTest {
+  private static final String[] CONDITIONS = {
+    "{\"condition_type\": \"Age\", \"operator\": \">=\", \"quantity\": 18, \"unit\": \"years\"}",
+    "{\"condition_type\": \"Age\", \"operator\": \"<\", \"quantity\": 30, \"unit\": \"months\"}",
+    "{\"condition_type\": \"Gender\", \"gender\": \"F\"}",
+    "{\"condition_type\": \"Attribute\", \"attribute\": \"bmi\", \"operator\": \">\","
+        + " \"value\": 30}",
+    "{\"condition_type\": \"Attribute\", \"attribute\": \"diabetes\", \"operator\": \"is nil\"}",
+    "{\"condition_type\": \"Attribute\", \"attribute\": \"diabetes\","
+        + " \"operator\": \"is not nil\"}",
+    "{\"condition_type\": \"Attribute\", \"attribute\": \"smoker\", \"operator\": \"==\","
+        + " \"value\": true}",
+    "{\"condition_type\": \"Date\", \"operator\": \">\", \"date\": {\"year\": 2010, \"month\": 3,"
+        + " \"day\": 1, \"hour\": 0, \"minute\": 0, \"second\": 0, \"millisecond\": 0}}",
+    "{\"condition_type\": \"Date\", \"operator\": \"==\", \"month\": 6}",
+    "{\"condition_type\": \"True\"}",
+    "{\"condition_type\": \"False\"}",
+    "{\"condition_type\": \"And\", \"conditions\": ["
+        + "{\"condition_type\": \"Age\", \"operator\": \"<\", \"quantity\": 65,"
+        + " \"unit\": \"years\"},"
+        + "{\"condition_type\": \"Or\", \"conditions\": ["
+        + "{\"condition_type\": \"Attribute\", \"attribute\": \"smoker\", \"operator\": \"==\","
+        + " \"value\": true},"
+        + "{\"condition_type\": \"Not\", \"condition\": {\"condition_type\": \"Gender\","
+        + " \"gender\": \"M\"}}]}]}",
+    "{\"condition_type\": \"At Least\", \"minimum\": 2, \"conditions\": ["
+        + "{\"condition_type\": \"Age\", \"operator\": \">\", \"quantity\": 40,"
+        + " \"unit\": \"years\"},"
+        + "{\"condition_type\": \"Attribute\", \"attribute\": \"bmi\", \"operator\": \">=\","
+        + " \"value\": 25},"
+        + "{\"condition_type\": \"Date\", \"operator\": \">=\", \"year\": 2000}]}",
+    "{\"condition_type\": \"At Most\", \"maximum\": 1, \"conditions\": ["
+        + "{\"condition_type\": \"Gender\", \"gender\": \"M\"},"
+        + "{\"condition_type\": \"Attribute\", \"attribute\": \"smoker\", \"operator\": \"==\","
+        + " \"value\": true}]}"
+  };
+  private static final int PEOPLE = 20;
+  private static final int YEARS = 60;
+  private static final long WEEK = Utilities.convertTime("weeks", 1);
+
+  private static List<Person> people() {
+    List<Person> people = new ArrayList<Person>();
+    long start = Utilities.convertCalendarYearsToTime(1960);
+    for (int i = 0; i < PEOPLE; i++) {
+      Person person = new Person(i);
+      person.attributes.put(Person.BIRTHDATE, start + person.randInt(40) * 52 * WEEK);
+      person.attributes.put(Person.GENDER, person.randBoolean() ? "F" : "M");
+      person.attributes.put("bmi", person.rand(18.0, 40.0));
+      person.attributes.put("smoker", person.randBoolean());
+      if (person.randBoolean()) {
+        person.attributes.put("diabetes", true);
+      }
+      people.add(person);
+    }
+    return people;
+  }
+
+  @Test
+  public void testCompiledMatchesInterpreted() {
+    List<Person> people = people();
+    long start = Utilities.convertCalendarYearsToTime(1960);
+    for (String json : CONDITIONS) {
+      Logic interpreted = Utilities.getGson().fromJson(json, Logic.class);
+      Logic compiled = Utilities.getGson().fromJson(json, Logic.class);
+      compiled.compile();
+      for (Person person : people) {
+        for (int step = 0; step < 52 * YEARS; step++) {
+          long time = start + step * WEEK;
+          assertEquals(json + " at " + time, interpreted.test(person, time),
+              compiled.test(person, time));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testCompiledSeesAttributeChanges() {
+    String json = "{\"condition_type\": \"Attribute\", \"attribute\": \"bmi\","
+        + " \"operator\": \">\", \"value\": 30}";
+    Logic interpreted = Utilities.getGson().fromJson(json, Logic.class);
+    Logic compiled = Utilities.getGson().fromJson(json, Logic.class);
+    compiled.compile();
+    Person person = people().get(0);
+    long time = Utilities.convertCalendarYearsToTime(2000);
+    for (double bmi : new double[] { 20.0, 30.0, 30.5, 45.0 }) {
+      person.attributes.put("bmi", bmi);
+      assertEquals(interpreted.test(person, time), compiled.test(person, time));
+    }
+    person.attributes.remove("bmi");
+    assertEquals(interpreted.test(person, time), compiled.test(person, time));
+  }
+}
@@ -0,0 +1,81 @@
+package org.mitre.synthea.engine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.mitre.synthea.engine.Transition.DistributedTransitionOption;
+import org.mitre.synthea.engine.Transition.OptionSampler;
+import org.mitre.synthea.world.agents.Person;
+
+/**
+ * Checks that the OptionSampler of a distributed transition picks the same transition as the
+ * walk over the options it replaced, for the same random numbers.
+ */
+public class OptionSamplerTest {
+  private static final int DRAWS = 10000;
+
+  private static List<DistributedTransitionOption> options(double... probabilities) {
+    List<DistributedTransitionOption> options = new ArrayList<DistributedTransitionOption>();
+    for (int i = 0; i < probabilities.length; i++) {
+      options.add(new DistributedTransitionOption("State " + i, probabilities[i]));
+    }
+    return options;
+  }
+
+  private static void assertSameAsWalk(List<DistributedTransitionOption> options) {
+    OptionSampler sampler = OptionSampler.of(options);
+    Person sampled = new Person(7L);
+    Person walked = new Person(7L);
+    for (int i = 0; i < DRAWS; i++) {
+      assertEquals("draw " + i, Transition.pickDistributedTransition(options, walked),
+          sampler.sample(sampled));
+    }
+  }
+
+  @Test
+  public void testMatchesLinearWalk() {
+    // the cumulative search is only used without alias sampling
+    assumeFalse(Transition.ALIAS_SAMPLING);
+    assertSameAsWalk(options(1.0));
+    assertSameAsWalk(options(0.5, 0.5));
+    assertSameAsWalk(options(0.1, 0.2, 0.3, 0.4));
+    assertSameAsWalk(options(0.001, 0.0, 0.998, 0.001));
+    // options that sum to less than 1 fall back to the last one
+    assertSameAsWalk(options(0.2, 0.3));
+    // options past a sum of 1 are never picked
+    assertSameAsWalk(options(0.6, 0.6, 0.6));
+    double[] wide = new double[100];
+    Arrays.fill(wide, 0.01);
+    assertSameAsWalk(options(wide));
+  }
+
+  @Test
+  public void testFrequencies() {
+    List<DistributedTransitionOption> options = options(0.1, 0.2, 0.3, 0.4);
+    OptionSampler sampler = OptionSampler.of(options);
+    Person person = new Person(3L);
+    int[] counts = new int[options.size()];
+    int draws = 100000;
+    for (int i = 0; i < draws; i++) {
+      String state = sampler.sample(person);
+      counts[Integer.parseInt(state.substring("State ".length()))]++;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      assertEquals(0.1 * (i + 1), counts[i] / (double) draws, 0.01);
+    }
+  }
+
+  @Test
+  public void testNoSamplerForInvalidProbabilities() {
+    assertNull(OptionSampler.of(null));
+    assertNull(OptionSampler.of(new ArrayList<DistributedTransitionOption>()));
+    assertNull(OptionSampler.of(options(0.5, -0.1)));
+    assertNull(OptionSampler.of(options(0.5, Double.NaN)));
+  }
+}
@@ -0,0 +1,105 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigDecimal;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.UUID;
+
+import org.junit.Test;
+
+/**
+ * Checks that ExportFormatter writes exactly the text of the SimpleDateFormat, String.format
+ * and UUID.toString calls it replaced, in the default time zone of the JVM.
+ */
+public class ExportFormatterTest {
+  private static final int VALUES = 1 << 14;
+  /** 1900-01-01 to 2040-01-01, the span of a simulated population. */
+  private static final long MIN_TIME = -2208988800000L;
+  private static final long MAX_TIME = 2208988800000L;
+
+  private static SimpleDateFormat dateFormat() {
+    return new SimpleDateFormat("yyyy-MM-dd");
+  }
+
+  private static SimpleDateFormat isoDateFormat() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format;
+  }
+
+  private static String decimal(double value) {
+    return ExportFormatter.appendDecimal(new StringBuilder(), value, 2).toString();
+  }
+
+  private static String decimal(BigDecimal value) {
+    return ExportFormatter.appendDecimal(new StringBuilder(), value, 2).toString();
+  }
+
+  @Test
+  public void testDateEdges() {
+    SimpleDateFormat date = dateFormat();
+    SimpleDateFormat iso = isoDateFormat();
+    // the epoch, the Gregorian cutover, the end of four digit years and a leap day
+    long[] edges = { 0L, -1L, 1L, MIN_TIME, MAX_TIME, -12212553600000L, -12212553600001L,
+        253402300799999L, 253402300800000L, Long.MIN_VALUE / 2, 1583020800000L };
+    for (long time : edges) {
+      assertEquals(date.format(new Date(time)), ExportFormatter.date(time));
+      assertEquals(iso.format(new Date(time)), ExportFormatter.iso8601(time));
+      assertEquals(date.format(new Date(time)),
+          ExportFormatter.appendDate(new StringBuilder(), time).toString());
+      assertEquals(iso.format(new Date(time)),
+          ExportFormatter.appendIso8601(new StringBuilder(), time).toString());
+    }
+  }
+
+  @Test
+  public void testRandomDates() {
+    SimpleDateFormat date = dateFormat();
+    SimpleDateFormat iso = isoDateFormat();
+    Random random = new Random(0);
+    for (int i = 0; i < VALUES; i++) {
+      long time = MIN_TIME + (long) (random.nextDouble() * (MAX_TIME - MIN_TIME));
+      assertEquals(date.format(new Date(time)), ExportFormatter.date(time));
+      assertEquals(iso.format(new Date(time)), ExportFormatter.iso8601(time));
+    }
+  }
+
+  @Test
+  public void testDecimalEdges() {
+    // half cent values are where rounding differences would show
+    double[] specials = { 0.0, -0.0, -0.001, 1.005, 0.125, 2.675, 1e20, Double.NaN,
+        Double.NEGATIVE_INFINITY, 9.995, 123456789.125 };
+    for (double value : specials) {
+      assertEquals(String.format(Locale.US, "%.2f", value), decimal(value));
+    }
+  }
+
+  @Test
+  public void testRandomDecimals() {
+    Random random = new Random(0);
+    for (int i = 0; i < VALUES; i++) {
+      BigDecimal cost = BigDecimal.valueOf(random.nextInt(10000000), 3);
+      assertEquals(String.format(Locale.US, "%.2f", cost), decimal(cost));
+      assertEquals(String.format(Locale.US, "%.2f", cost.negate()), decimal(cost.negate()));
+      double amount = random.nextInt(10000000) / 1000.0 * (random.nextBoolean() ? 1 : -1);
+      assertEquals(String.format(Locale.US, "%.2f", amount), decimal(amount));
+    }
+  }
+
+  @Test
+  public void testUuids() {
+    Random random = new Random(0);
+    for (int i = 0; i < VALUES; i++) {
+      UUID uuid = new UUID(random.nextLong(), random.nextLong());
+      assertEquals(uuid.toString(),
+          ExportFormatter.appendUuid(new StringBuilder(), uuid).toString());
+      assertEquals(uuid.toString(),
+          ExportFormatter.uuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+    }
+  }
+}
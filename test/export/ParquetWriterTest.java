@@ -0,0 +1,515 @@
+package org.mitre.synthea.export;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.export.ParquetWriter.Column;
+import org.mitre.synthea.export.ParquetWriter.ColumnType;
+
+public class ParquetWriterTest {
+  private static final List<Column> COLUMNS = Arrays.asList(
+      Column.required("Id", ColumnType.STRING),
+      Column.optional("CODE", ColumnType.STRING),
+      Column.optional("CATEGORY", ColumnType.STRING),
+      Column.required("START", ColumnType.TIMESTAMP),
+      Column.optional("STOP", ColumnType.TIMESTAMP),
+      Column.optional("COST", ColumnType.DECIMAL),
+      Column.optional("VALUE", ColumnType.DOUBLE),
+      Column.optional("COUNT", ColumnType.INT64));
+
+  // parquet.thrift enums
+  private static final long TYPE_INT64 = 2;
+  private static final long TYPE_DOUBLE = 5;
+  private static final long TYPE_BYTE_ARRAY = 6;
+  private static final long OPTIONAL = 1;
+  private static final long CONVERTED_UTF8 = 0;
+  private static final long CONVERTED_DECIMAL = 5;
+  private static final long CONVERTED_TIMESTAMP_MILLIS = 9;
+  private static final long ENCODING_PLAIN = 0;
+  private static final long ENCODING_PLAIN_DICTIONARY = 2;
+  private static final long PAGE_DATA = 0;
+  private static final long PAGE_DICTIONARY = 2;
+  private static final long CODEC_UNCOMPRESSED = 0;
+  private static final long CODEC_GZIP = 2;
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  /**
+   * A row with every kind of value: unique strings, strings with long runs and short cycles,
+   * nulls in every optional column, negative numbers and costs that need rounding.
+   */
+  private static Object[] row(int i) {
+    return new Object[] {
+        "id-" + i + "-\u00e9\u6f22",
+        i % 7 == 0 ? null : "code-" + (i / 40),
+        i % 11 == 0 ? null : "category-\u00fc" + (i % 5),
+        1_600_000_000_000L + i * 1000L,
+        i % 3 == 0 ? null : 1_600_000_000_000L + i * 2000L,
+        i % 4 == 0 ? null : BigDecimal.valueOf(i - 100).add(new BigDecimal("0.125")),
+        i % 5 == 0 ? null : i * 0.5 - 3.25,
+        i % 6 == 0 ? null : (long) i * i - 50 };
+  }
+
+  /** The row as it should read back from the file. */
+  private static Object[] expected(int i) {
+    Object[] row = row(i);
+    if (row[5] != null) {
+      row[5] = ((BigDecimal) row[5]).setScale(2, RoundingMode.HALF_UP);
+    }
+    return row;
+  }
+
+  private static List<Object[]> rows(int from, int to) {
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = from; i < to; i++) {
+      rows.add(row(i));
+    }
+    return rows;
+  }
+
+  private static void assertRows(ParquetFile file, int count) {
+    assertEquals(count, file.numRows);
+    assertEquals(count, file.rows.size());
+    for (int i = 0; i < count; i++) {
+      assertArrayEquals("row " + i, expected(i), file.rows.get(i));
+    }
+  }
+
+  @Test
+  public void testSingleRowGroupUncompressed() throws IOException {
+    Path path = tempFolder.newFile("single.parquet").toPath();
+    try (ParquetWriter writer = new ParquetWriter(path, COLUMNS, 64 * 1024 * 1024, false)) {
+      writer.writeRows(rows(0, 300));
+    }
+    ParquetFile file = ParquetFile.read(path);
+    assertEquals(Arrays.asList(300L), file.rowGroupRows);
+    assertRows(file, 300);
+    assertEquals(Arrays.asList(CODEC_UNCOMPRESSED), file.codecs.get("CODE"));
+    // unique strings are plain encoded, repeated ones use a dictionary
+    assertEquals(Arrays.asList(ENCODING_PLAIN), file.encodings.get("Id"));
+    assertEquals(Arrays.asList(ENCODING_PLAIN_DICTIONARY), file.encodings.get("CODE"));
+    assertEquals(Arrays.asList(ENCODING_PLAIN_DICTIONARY), file.encodings.get("CATEGORY"));
+    assertEquals(Arrays.asList(ENCODING_PLAIN), file.encodings.get("COUNT"));
+  }
+
+  @Test
+  public void testMultipleRowGroupsGzip() throws IOException {
+    Path path = tempFolder.newFile("multiple.parquet").toPath();
+    // every block fills a row group
+    try (ParquetWriter writer = new ParquetWriter(path, COLUMNS, 1, true)) {
+      for (int i = 0; i < 10; i++) {
+        writer.writeRows(rows(i * 50, (i + 1) * 50));
+      }
+    }
+    ParquetFile file = ParquetFile.read(path);
+    assertEquals(Collections.nCopies(10, 50L), file.rowGroupRows);
+    assertRows(file, 500);
+    for (String name : file.names) {
+      assertEquals(Collections.nCopies(10, CODEC_GZIP), file.codecs.get(name));
+    }
+  }
+
+  @Test
+  public void testRowGroupsKeepBlocksTogether() throws IOException {
+    Path path = tempFolder.newFile("blocks.parquet").toPath();
+    // the first block does not fill a row group, the second one does
+    try (ParquetWriter writer = new ParquetWriter(path, COLUMNS, 4096, true)) {
+      writer.writeRows(rows(0, 5));
+      writer.writeRows(rows(5, 200));
+      writer.writeRows(rows(200, 210));
+    }
+    ParquetFile file = ParquetFile.read(path);
+    assertEquals(Arrays.asList(200L, 10L), file.rowGroupRows);
+    assertRows(file, 210);
+  }
+
+  @Test
+  public void testNullColumns() throws IOException {
+    Path path = tempFolder.newFile("nulls.parquet").toPath();
+    List<Object[]> rows = new ArrayList<Object[]>();
+    for (int i = 0; i < 20; i++) {
+      rows.add(new Object[] { "id-" + i, null, null, (long) i, null, null, null, null });
+    }
+    try (ParquetWriter writer = new ParquetWriter(path, COLUMNS, 64 * 1024 * 1024, true)) {
+      writer.writeRows(rows);
+    }
+    ParquetFile file = ParquetFile.read(path);
+    assertEquals(20, file.rows.size());
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(rows.get(i), file.rows.get(i));
+    }
+    assertEquals(Arrays.asList(ENCODING_PLAIN), file.encodings.get("CODE"));
+  }
+
+  @Test
+  public void testEmptyFile() throws IOException {
+    Path path = tempFolder.newFile("empty.parquet").toPath();
+    new ParquetWriter(path, COLUMNS, 1024, true).close();
+    ParquetFile file = ParquetFile.read(path);
+    assertEquals(0, file.rowGroupRows.size());
+    assertEquals(0, file.numRows);
+    assertEquals(COLUMNS.size(), file.names.size());
+  }
+
+  @Test
+  public void testSchema() throws IOException {
+    Path path = tempFolder.newFile("schema.parquet").toPath();
+    try (ParquetWriter writer = new ParquetWriter(path, COLUMNS, 1024, false)) {
+      writer.writeRows(rows(0, 1));
+    }
+    ParquetFile file = ParquetFile.read(path);
+    List<String> names = new ArrayList<String>();
+    for (Column column : COLUMNS) {
+      names.add(column.name);
+    }
+    assertEquals(names, file.names);
+    Map<Integer, Object> id = file.schema.get(0);
+    assertEquals(TYPE_BYTE_ARRAY, id.get(1));
+    assertEquals(CONVERTED_UTF8, id.get(6));
+    Map<Integer, Object> stop = file.schema.get(4);
+    assertEquals(TYPE_INT64, stop.get(1));
+    assertEquals(OPTIONAL, stop.get(3));
+    assertEquals(CONVERTED_TIMESTAMP_MILLIS, stop.get(6));
+    Map<Integer, Object> cost = file.schema.get(5);
+    assertEquals(CONVERTED_DECIMAL, cost.get(6));
+    assertEquals(2L, cost.get(7));
+    assertEquals(18L, cost.get(8));
+    assertEquals(TYPE_DOUBLE, file.schema.get(6).get(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRequiredColumnRejectsNull() throws IOException {
+    Path path = tempFolder.newFile("required.parquet").toPath();
+    try (ParquetWriter writer = new ParquetWriter(path, COLUMNS, 1024, false)) {
+      Object[] row = row(1);
+      row[3] = null;
+      writer.writeRows(Arrays.<Object[]>asList(row));
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testWriteAfterClose() throws IOException {
+    Path path = tempFolder.newFile("closed.parquet").toPath();
+    ParquetWriter writer = new ParquetWriter(path, COLUMNS, 1024, false);
+    writer.close();
+    writer.writeRows(rows(0, 1));
+  }
+
+  /**
+   * Just enough of a Parquet reader to read back what ParquetWriter writes, following the
+   * format specification rather than the writer: the Thrift compact protocol metadata,
+   * dictionary and data pages, GZIP, definition levels and the RLE / bit-packing hybrid.
+   */
+  private static final class ParquetFile {
+    final List<String> names = new ArrayList<String>();
+    /** The SchemaElement of each column, by Thrift field id. */
+    final List<Map<Integer, Object>> schema = new ArrayList<Map<Integer, Object>>();
+    final List<Object[]> rows = new ArrayList<Object[]>();
+    final List<Long> rowGroupRows = new ArrayList<Long>();
+    /** The data page encoding of each column chunk, by column name. */
+    final Map<String, List<Long>> encodings = new HashMap<String, List<Long>>();
+    /** The compression codec of each column chunk, by column name. */
+    final Map<String, List<Long>> codecs = new HashMap<String, List<Long>>();
+    long numRows;
+
+    @SuppressWarnings("unchecked")
+    static ParquetFile read(Path path) throws IOException {
+      byte[] bytes = Files.readAllBytes(path);
+      byte[] magic = "PAR1".getBytes(StandardCharsets.US_ASCII);
+      assertArrayEquals(magic, Arrays.copyOfRange(bytes, 0, 4));
+      assertArrayEquals(magic, Arrays.copyOfRange(bytes, bytes.length - 4, bytes.length));
+      int footerLength = (int) littleEndian(bytes, bytes.length - 8, 4);
+      Reader footer = new Reader(bytes, bytes.length - 8 - footerLength);
+      Map<Integer, Object> metadata = footer.struct();
+      assertEquals(bytes.length - 8, footer.pos);
+
+      ParquetFile file = new ParquetFile();
+      file.numRows = (Long) metadata.get(3);
+      List<Object> elements = (List<Object>) metadata.get(2);
+      Map<Integer, Object> root = (Map<Integer, Object>) elements.get(0);
+      assertEquals((long) elements.size() - 1, root.get(5));
+      for (Object element : elements.subList(1, elements.size())) {
+        Map<Integer, Object> column = (Map<Integer, Object>) element;
+        String name = new String((byte[]) column.get(4), StandardCharsets.UTF_8);
+        file.schema.add(column);
+        file.names.add(name);
+        file.encodings.put(name, new ArrayList<Long>());
+        file.codecs.put(name, new ArrayList<Long>());
+      }
+
+      long total = 0;
+      for (Object group : (List<Object>) metadata.get(4)) {
+        Map<Integer, Object> rowGroup = (Map<Integer, Object>) group;
+        long count = (Long) rowGroup.get(3);
+        file.rowGroupRows.add(count);
+        total += count;
+        List<Object> chunks = (List<Object>) rowGroup.get(1);
+        assertEquals(file.names.size(), chunks.size());
+        Object[][] groupRows = new Object[(int) count][file.names.size()];
+        for (int c = 0; c < chunks.size(); c++) {
+          Map<Integer, Object> chunk = (Map<Integer, Object>) chunks.get(c);
+          Object[] values = file.readChunk(bytes, c, (Map<Integer, Object>) chunk.get(3),
+              (int) count);
+          for (int row = 0; row < count; row++) {
+            groupRows[row][c] = values[row];
+          }
+        }
+        file.rows.addAll(Arrays.asList(groupRows));
+      }
+      assertEquals(file.numRows, total);
+      return file;
+    }
+
+    /** Read the pages of a column chunk, described by its ColumnMetaData. */
+    @SuppressWarnings("unchecked")
+    private Object[] readChunk(byte[] bytes, int c, Map<Integer, Object> meta, int count)
+        throws IOException {
+      String name = names.get(c);
+      Map<Integer, Object> column = schema.get(c);
+      assertEquals(column.get(1), meta.get(1));
+      List<Object> pathInSchema = (List<Object>) meta.get(3);
+      assertEquals(name, new String((byte[]) pathInSchema.get(0), StandardCharsets.UTF_8));
+      long codec = (Long) meta.get(4);
+      codecs.get(name).add(codec);
+      assertEquals((long) count, meta.get(5));
+
+      long offset = meta.containsKey(11) ? (Long) meta.get(11) : (Long) meta.get(9);
+      long end = offset + (Long) meta.get(7);
+      List<Object> dictionary = null;
+      Object[] values = null;
+      while (offset < end) {
+        long pageStart = offset;
+        Reader reader = new Reader(bytes, (int) offset);
+        Map<Integer, Object> header = reader.struct();
+        int uncompressed = (int) (long) (Long) header.get(2);
+        int compressed = (int) (long) (Long) header.get(3);
+        byte[] body = Arrays.copyOfRange(bytes, reader.pos, reader.pos + compressed);
+        if (codec == CODEC_GZIP) {
+          body = gunzip(body);
+        }
+        assertEquals(uncompressed, body.length);
+        offset = reader.pos + compressed;
+
+        if ((Long) header.get(1) == PAGE_DICTIONARY) {
+          assertEquals(meta.get(11), pageStart);
+          int size = (int) (long) (Long) ((Map<Integer, Object>) header.get(7)).get(1);
+          dictionary = new ArrayList<Object>();
+          Reader entries = new Reader(body, 0);
+          for (int i = 0; i < size; i++) {
+            dictionary.add(entries.plain(column));
+          }
+          assertEquals(body.length, entries.pos);
+        } else {
+          assertEquals(PAGE_DATA, header.get(1));
+          assertEquals(meta.get(9), pageStart);
+          Map<Integer, Object> dataHeader = (Map<Integer, Object>) header.get(5);
+          assertEquals((long) count, dataHeader.get(1));
+          long encoding = (Long) dataHeader.get(2);
+          encodings.get(name).add(encoding);
+          values = readDataPage(body, column, encoding, dictionary, count);
+        }
+      }
+      assertEquals(end, offset);
+      return values;
+    }
+
+    private static Object[] readDataPage(byte[] body, Map<Integer, Object> column,
+        long encoding, List<Object> dictionary, int count) {
+      Reader reader = new Reader(body, 0);
+      int[] levels = new int[count];
+      Arrays.fill(levels, 1);
+      if (column.get(3).equals(OPTIONAL)) {
+        int length = (int) littleEndian(body, 0, 4);
+        reader.pos = 4;
+        levels = reader.hybrid(1, count);
+        assertEquals(4 + length, reader.pos);
+      }
+      int present = 0;
+      for (int level : levels) {
+        present += level;
+      }
+      int[] indices = null;
+      if (encoding == ENCODING_PLAIN_DICTIONARY) {
+        int bitWidth = body[reader.pos++];
+        indices = reader.hybrid(bitWidth, present);
+      } else {
+        assertEquals(ENCODING_PLAIN, encoding);
+      }
+      Object[] values = new Object[count];
+      int next = 0;
+      for (int row = 0; row < count; row++) {
+        if (levels[row] == 1) {
+          values[row] = indices != null ? dictionary.get(indices[next++]) : reader.plain(column);
+        }
+      }
+      assertEquals(body.length, reader.pos);
+      return values;
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          out.write(buffer, 0, read);
+        }
+      }
+      return out.toByteArray();
+    }
+
+    private static long littleEndian(byte[] bytes, int pos, int length) {
+      long value = 0;
+      for (int i = 0; i < length; i++) {
+        value |= (bytes[pos + i] & 0xFFL) << (8 * i);
+      }
+      return value;
+    }
+  }
+
+  /** Reads the Thrift compact protocol and the Parquet value encodings. */
+  private static final class Reader {
+    private final byte[] bytes;
+    private int pos;
+
+    private Reader(byte[] bytes, int pos) {
+      this.bytes = bytes;
+      this.pos = pos;
+    }
+
+    private long varint() {
+      long value = 0;
+      int shift = 0;
+      while (true) {
+        int b = bytes[pos++] & 0xFF;
+        value |= (long) (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+        shift += 7;
+      }
+    }
+
+    private long zigzag() {
+      long value = varint();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    private Map<Integer, Object> struct() {
+      Map<Integer, Object> fields = new HashMap<Integer, Object>();
+      int lastId = 0;
+      while (true) {
+        int header = bytes[pos++] & 0xFF;
+        if (header == 0) {
+          return fields;
+        }
+        int delta = header >>> 4;
+        int id = delta == 0 ? (int) zigzag() : lastId + delta;
+        lastId = id;
+        fields.put(id, value(header & 0x0F));
+      }
+    }
+
+    private Object value(int type) {
+      switch (type) {
+        case 5: // i32
+        case 6: // i64
+          return zigzag();
+        case 8: // binary
+          int length = (int) varint();
+          pos += length;
+          return Arrays.copyOfRange(bytes, pos - length, pos);
+        case 9: // list
+          int header = bytes[pos++] & 0xFF;
+          int size = header >>> 4;
+          if (size == 15) {
+            size = (int) varint();
+          }
+          List<Object> list = new ArrayList<Object>();
+          for (int i = 0; i < size; i++) {
+            list.add(value(header & 0x0F));
+          }
+          return list;
+        case 12: // struct
+          return struct();
+        default:
+          throw new IllegalStateException("Unexpected Thrift type " + type);
+      }
+    }
+
+    /** Decode values written with the RLE / bit-packing hybrid encoding. */
+    private int[] hybrid(int bitWidth, int count) {
+      int[] values = new int[count];
+      int read = 0;
+      while (read < count) {
+        long header = varint();
+        if ((header & 1) == 0) {
+          int run = (int) (header >>> 1);
+          int byteWidth = (bitWidth + 7) / 8;
+          int value = (int) ParquetFile.littleEndian(bytes, pos, byteWidth);
+          pos += byteWidth;
+          assertTrue(read + run <= count);
+          Arrays.fill(values, read, read + run, value);
+          read += run;
+        } else {
+          long bits = 0;
+          int bitCount = 0;
+          for (int i = 0; i < (header >>> 1) * 8; i++) {
+            while (bitCount < bitWidth) {
+              bits |= (bytes[pos++] & 0xFFL) << bitCount;
+              bitCount += 8;
+            }
+            // the last group is padded
+            if (read < count) {
+              values[read++] = (int) (bits & ((1L << bitWidth) - 1));
+            }
+            bits >>>= bitWidth;
+            bitCount -= bitWidth;
+          }
+        }
+      }
+      return values;
+    }
+
+    /** Decode one plain encoded value of a column. */
+    private Object plain(Map<Integer, Object> column) {
+      if (column.get(1).equals(TYPE_BYTE_ARRAY)) {
+        int length = (int) ParquetFile.littleEndian(bytes, pos, 4);
+        pos += 4 + length;
+        return new String(bytes, pos - length, length, StandardCharsets.UTF_8);
+      }
+      long value = ParquetFile.littleEndian(bytes, pos, 8);
+      pos += 8;
+      if (column.get(1).equals(TYPE_DOUBLE)) {
+        return Double.longBitsToDouble(value);
+      }
+      if (CONVERTED_DECIMAL == (Long) column.getOrDefault(6, -1L)) {
+        return new BigDecimal(BigInteger.valueOf(value), 2);
+      }
+      return value;
+    }
+  }
+}
@@ -0,0 +1,144 @@
+package org.mitre.synthea.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mitre.synthea.world.concepts.HealthRecord.Code;
+
+/**
+ * Expands ValueSets against a local stub of the terminology service, which answers every
+ * $expand request with the same two codes.
+ */
+public class RandomCodeGeneratorTest {
+  private static final String EXPANSION = "{\"resourceType\": \"ValueSet\", \"expansion\": {"
+      + "\"total\": 2, \"contains\": ["
+      + "{\"system\": \"http://snomed.info/sct\", \"code\": \"254637007\","
+      + " \"display\": \"Non-small cell lung cancer\"},"
+      + "{\"system\": \"http://snomed.info/sct\", \"code\": \"254632001\","
+      + " \"display\": \"Small cell carcinoma of lung\"}]}}";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private MockWebServer server;
+  private String previousBaseUrl;
+
+  /**
+   * Start the stub terminology service.
+   */
+  @Before
+  public void setUp() throws IOException {
+    server = new MockWebServer();
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        if (!request.getPath().startsWith("/fhir/ValueSet/$expand?url=")) {
+          return new MockResponse().setResponseCode(404);
+        }
+        return new MockResponse().setHeader("Content-Type", "application/json")
+            .setBody(EXPANSION);
+      }
+    });
+    server.start();
+    previousBaseUrl = RandomCodeGenerator.expandBaseUrl;
+    RandomCodeGenerator.setBaseUrl(server.url("/fhir").toString());
+    RandomCodeGenerator.codeListCache.clear();
+  }
+
+  /**
+   * Stop the stub and restore the terminology settings.
+   */
+  @After
+  public void tearDown() throws IOException {
+    server.shutdown();
+    RandomCodeGenerator.expandBaseUrl = previousBaseUrl;
+    RandomCodeGenerator.setCacheDirectory(null, false);
+    RandomCodeGenerator.codeListCache.clear();
+  }
+
+  @Test
+  public void testGetCode() {
+    Code code = RandomCodeGenerator.getCode("http://example.org/ValueSet/lung-cancer", 42L,
+        new Code("SNOMED-CT", "0", "fallback"));
+    assertEquals("http://snomed.info/sct", code.system);
+    assertTrue(code.code.equals("254637007") || code.code.equals("254632001"));
+    assertTrue(RandomCodeGenerator.hasSelectedCodes());
+    assertTrue(RandomCodeGenerator.isSelected(code.code));
+    assertFalse(RandomCodeGenerator.isSelected("0"));
+
+    // the same seed selects the same code
+    Code again = RandomCodeGenerator.getCode("http://example.org/ValueSet/lung-cancer", 42L,
+        null);
+    assertEquals(code.code, again.code);
+  }
+
+  @Test
+  public void testInvalidUriKeepsCode() {
+    Code fallback = new Code("SNOMED-CT", "0", "fallback");
+    assertSame(fallback, RandomCodeGenerator.getCode("not a url", 1L, fallback));
+    assertEquals(0, server.getRequestCount());
+  }
+
+  @Test
+  public void testSelectedCodesAreDistinct() {
+    for (long seed = 0; seed < 50; seed++) {
+      RandomCodeGenerator.getCode("http://example.org/ValueSet/distinct", seed, null);
+    }
+    long matching = RandomCodeGenerator.getSelectedCodes().stream()
+        .filter(code -> code.code.equals("254637007")).count();
+    assertEquals(1, matching);
+  }
+
+  @Test
+  public void testExpandedOncePerRun() {
+    for (long seed = 0; seed < 10; seed++) {
+      RandomCodeGenerator.getCode("http://example.org/ValueSet/once", seed, null);
+    }
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test
+  public void testCachedExpansionIsReused() {
+    File cache = folder.getRoot();
+    RandomCodeGenerator.setCacheDirectory(cache.toPath(), false);
+    Code code = RandomCodeGenerator.getCode("http://example.org/ValueSet/cached", 7L, null);
+    assertEquals(1, server.getRequestCount());
+    assertEquals(1, cache.list().length);
+
+    // a later run reads the stored expansion, even without the terminology service
+    RandomCodeGenerator.codeListCache.clear();
+    RandomCodeGenerator.setCacheDirectory(cache.toPath(), true);
+    Code cached = RandomCodeGenerator.getCode("http://example.org/ValueSet/cached", 7L, null);
+    assertEquals(code.code, cached.code);
+    assertEquals(1, server.getRequestCount());
+  }
+
+  @Test
+  public void testCacheKeyedByVersion() {
+    RandomCodeGenerator.setCacheDirectory(folder.getRoot().toPath(), false);
+    RandomCodeGenerator.getCode("http://example.org/ValueSet/versioned|1", 7L, null);
+    RandomCodeGenerator.getCode("http://example.org/ValueSet/versioned|2", 7L, null);
+    assertEquals(2, server.getRequestCount());
+    assertEquals(2, folder.getRoot().list().length);
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testOfflineWithoutCachedExpansion() {
+    RandomCodeGenerator.setCacheDirectory(folder.getRoot().toPath(), true);
+    RandomCodeGenerator.getCode("http://example.org/ValueSet/missing", 7L, null);
+  }
+}